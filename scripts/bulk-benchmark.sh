@@ -0,0 +1,41 @@
+#!/bin/bash
+
+# Throughput benchmark for the bulk import endpoint.
+#
+# Generates a CSV payload of unique users and posts it to /api/users/bulk once per
+# import method, printing rows/second as reported by the server and as seen by curl.
+#
+# Usage: scripts/bulk-benchmark.sh [rows] [base-url]
+#   rows      number of users to generate (default 100000)
+#   base-url  application URL (default http://localhost:8080)
+
+set -e
+
+ROWS=${1:-100000}
+BASE_URL=${2:-http://localhost:8080}
+RUN_ID=$(date +%s)
+PAYLOAD=$(mktemp /tmp/bulk-users-XXXXXX.csv)
+trap 'rm -f "$PAYLOAD" "$PAYLOAD.json"' EXIT
+
+echo "📊 Bulk import benchmark: $ROWS rows against $BASE_URL"
+
+for method in batch copy; do
+    echo "name,email" > "$PAYLOAD"
+    awk -v n="$ROWS" -v run="$RUN_ID" -v m="$method" \
+        'BEGIN { for (i = 1; i <= n; i++) printf "Bench User %d,bench-%s-%s-%d@example.com\n", i, m, run, i }' \
+        >> "$PAYLOAD"
+
+    echo "🚀 Method: $method ($(du -h "$PAYLOAD" | cut -f1) payload)"
+    start=$(date +%s.%N)
+    curl -s -X POST "$BASE_URL/api/users/bulk?method=$method" \
+        -H "Content-Type: text/csv" \
+        --data-binary @"$PAYLOAD" > "$PAYLOAD.json"
+    end=$(date +%s.%N)
+
+    elapsed=$(echo "$end - $start" | bc)
+    inserted=$(grep -o '"inserted":[0-9]*' "$PAYLOAD.json" | cut -d: -f2)
+    server_rate=$(grep -o '"rowsPerSecond":[0-9]*' "$PAYLOAD.json" | cut -d: -f2)
+    client_rate=$(echo "scale=0; ${inserted:-0} / $elapsed" | bc)
+
+    echo "  ✅ inserted=${inserted:-0} wall=${elapsed}s server=${server_rate:-?} rows/s client=${client_rate} rows/s"
+done
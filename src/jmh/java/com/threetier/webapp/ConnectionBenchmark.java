@@ -0,0 +1,73 @@
+package com.threetier.webapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection acquisition cost: a borrow from ConnectionPool versus a new
+ * DriverManager connection, the two paths behind DatabaseConnection.getConnection().
+ *
+ * Runs against an embedded H2 database by default. Point BENCH_JDBC_URL,
+ * BENCH_DB_USER and BENCH_DB_PASSWORD at a local PostgreSQL for realistic numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConnectionBenchmark {
+
+    private String url;
+    private String user;
+    private String password;
+    private ConnectionPool pool;
+
+    @Setup
+    public void setup() throws SQLException {
+        url = EnvConfig.getString("BENCH_JDBC_URL", "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1");
+        user = EnvConfig.getString("BENCH_DB_USER", "sa");
+        password = EnvConfig.getString("BENCH_DB_PASSWORD", "");
+        ConnectionPool.Settings settings = new ConnectionPool.Settings();
+        settings.minSize = 4;
+        settings.maxSize = 8;
+        pool = new ConnectionPool("bench", url, user, password, settings);
+        // Fail fast if the database is not reachable
+        DriverManager.getConnection(url, user, password).close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public boolean pooled() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            return conn.getAutoCommit();
+        }
+    }
+
+    @Benchmark
+    public boolean unpooled() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url, user, password)) {
+            return conn.getAutoCommit();
+        }
+    }
+}
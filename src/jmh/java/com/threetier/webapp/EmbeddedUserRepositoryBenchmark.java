@@ -0,0 +1,93 @@
+package com.threetier.webapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of the embedded user store: lookups by id and email, a list page, and
+ * inserts from concurrent writers (which only contend on the short append).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class EmbeddedUserRepositoryBenchmark {
+
+    @Param({"100000"})
+    int users;
+
+    private Path directory;
+    private EmbeddedUserRepository repository;
+    private final AtomicLong inserted = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        directory = Files.createTempDirectory("users-bench");
+        repository = new EmbeddedUserRepository(directory,
+                                                64 * 1024 * 1024, Long.MAX_VALUE, false, 64);
+        repository.open();
+        for (int i = 1; i <= users; i++) {
+            repository.insert(new User("User " + i, "user" + i + "@example.com"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        // The store preallocates 64 MB segments; do not leave them in the temp directory
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public User findById() {
+        return repository.findById(1 + ThreadLocalRandom.current().nextInt(users), false);
+    }
+
+    @Benchmark
+    public User findByEmail() {
+        return repository.findByEmail("user" + (1 + ThreadLocalRandom.current().nextInt(users)) + "@example.com", false);
+    }
+
+    @Benchmark
+    public List<User> readPage() {
+        List<User> page = new ArrayList<>(100);
+        repository.readPage(ThreadLocalRandom.current().nextInt(users - 100), 100, page, false);
+        return page;
+    }
+
+    @Benchmark
+    public User insert() throws SQLException {
+        return repository.insert(new User("New user", "new" + inserted.incrementAndGet() + "@example.com"));
+    }
+}
@@ -0,0 +1,122 @@
+package com.threetier.webapp;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks for the CPU-bound pieces of a users request: row mapping,
+ * JSON serialization, validation and error formatting.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestPathBenchmark {
+
+    private Gson prettyGson;
+    private Gson compactGson;
+    private ResultSet row;
+    private User validUser;
+    private User invalidUser;
+
+    @Setup
+    public void setup() {
+        prettyGson = new GsonBuilder().setPrettyPrinting().create();
+        compactGson = new GsonBuilder().create();
+        row = singleRowResultSet();
+        validUser = new User("Jane Smith", "jane.smith@example.com");
+        invalidUser = new User("Jane Smith", "not-an-email");
+    }
+
+    /**
+     * A page of users as returned by GET /api/users
+     */
+    @State(Scope.Benchmark)
+    public static class Page {
+        @Param({"1", "100", "500"})
+        int pageSize;
+
+        List<User> users;
+
+        @Setup
+        public void setup() {
+            users = new ArrayList<>(pageSize);
+            for (int i = 1; i <= pageSize; i++) {
+                users.add(new User(i, "Benchmark User " + i, "user" + i + "@example.com", "2024-01-01 12:00:00.000"));
+            }
+        }
+    }
+
+    /**
+     * A ResultSet positioned on one fixed row, so mapping is measured without a database
+     */
+    private static ResultSet singleRowResultSet() {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+            new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getInt":
+                        return 42;
+                    case "getString":
+                        switch ((String) args[0]) {
+                            case "name": return "Benchmark User";
+                            case "email": return "benchmark@example.com";
+                            default: return "2024-01-01 12:00:00.000";
+                        }
+                    case "next":
+                        return true;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    @Benchmark
+    public User mapRow() throws SQLException {
+        return PostgresUserRepository.mapUser(row);
+    }
+
+    @Benchmark
+    public String serializePretty(Page page) {
+        return prettyGson.toJson(page.users);
+    }
+
+    @Benchmark
+    public String serializeCompact(Page page) {
+        return compactGson.toJson(page.users);
+    }
+
+    @Benchmark
+    public boolean validateValid() {
+        return validUser.isValid();
+    }
+
+    @Benchmark
+    public boolean validateInvalid() {
+        return invalidUser.isValid();
+    }
+
+    @Benchmark
+    public String formatError() {
+        return UserServlet.formatError(409, "User with this email already exists");
+    }
+}
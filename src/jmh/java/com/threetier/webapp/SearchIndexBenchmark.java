@@ -0,0 +1,65 @@
+package com.threetier.webapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search latency of the in-memory user index for selective, short-prefix and broad queries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+
+    private static final String[] FIRST = {"Alice", "Bob", "Carol", "Dave", "Erin", "Frank", "Grace", "Heidi",
+                                           "Ivan", "Judy", "Mallory", "Oscar", "Peggy", "Trent", "Victor", "Walter"};
+    private static final String[] LAST = {"Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson",
+                                          "Davies", "Robinson", "Wright", "Thompson", "Evans"};
+
+    @Param({"10000", "100000"})
+    int users;
+
+    private UserSearchIndex index;
+
+    @Setup
+    public void setup() {
+        index = new UserSearchIndex(100, 0, 0);
+        Random random = new Random(42);
+        for (int id = 1; id <= users; id++) {
+            String last = LAST[random.nextInt(LAST.length)];
+            index.add(new User(id, FIRST[random.nextInt(FIRST.length)] + " " + last,
+                               "user" + id + "." + last.toLowerCase() + "@example.com", null));
+        }
+    }
+
+    @Benchmark
+    public List<User> selectiveSubstring() {
+        return index.search("user4242", 20);
+    }
+
+    @Benchmark
+    public List<User> shortPrefix() {
+        return index.search("vi", 20);
+    }
+
+    @Benchmark
+    public List<User> broadSubstring() {
+        return index.search("taylor", 20);
+    }
+}
@@ -0,0 +1,240 @@
+package com.threetier.webapp;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load generator.
+ *
+ * Requests are scheduled at fixed intervals and sent asynchronously, so a slow response
+ * never delays the next request. Latency is measured from each request's intended send
+ * time rather than the moment it was actually sent, which corrects for coordinated
+ * omission when the generator or the server falls behind.
+ */
+public class LoadGenerator {
+
+    /**
+     * Request types in the mix
+     */
+    public enum Operation {
+        LIST, CREATE, HEALTH
+    }
+
+    /**
+     * Per-operation latency and outcome counters
+     */
+    static final class OperationStats {
+        final Operation operation;
+        final Histogram latencyMicros = new ConcurrentHistogram(TimeUnit.SECONDS.toMicros(60), 3);
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        OperationStats(Operation operation) {
+            this.operation = operation;
+        }
+    }
+
+    private final String baseUrl;
+    private final Operation[] schedule;
+    private final HttpClient client;
+    private final ExecutorService callbacks;
+    private final AtomicLong emailSequence = new AtomicLong();
+    private final OperationStats[] stats = new OperationStats[Operation.values().length];
+
+    public LoadGenerator(String baseUrl, Operation[] schedule) {
+        this.baseUrl = baseUrl;
+        this.schedule = schedule;
+        this.callbacks = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(callbacks)
+            .build();
+        for (Operation op : Operation.values()) {
+            stats[op.ordinal()] = new OperationStats(op);
+        }
+    }
+
+    /**
+     * Parse a weighted mix such as "list:70,create:20,health:10" into a schedule
+     * with one slot per unit of weight, sampled uniformly at random
+     */
+    public static Operation[] parseMix(String mix) {
+        List<Operation> slots = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            Operation op = Operation.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                slots.add(op);
+            }
+        }
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("Empty load mix");
+        }
+        return slots.toArray(new Operation[0]);
+    }
+
+    /**
+     * Run the load and return the measured report
+     * @param rate requests per second
+     * @param warmupSeconds unmeasured seconds at the start
+     * @param durationSeconds measured seconds
+     */
+    public Report run(int rate, int warmupSeconds, int durationSeconds) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        ConcurrentLinkedQueue<CompletableFuture<?>> inFlight = new ConcurrentLinkedQueue<>();
+        long late = 0;
+
+        for (long i = 0; ; i++) {
+            long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -TimeUnit.MILLISECONDS.toNanos(1)) {
+                late++;
+            }
+            Operation op = schedule[ThreadLocalRandom.current().nextInt(schedule.length)];
+            boolean measured = intended >= measureStart;
+            CompletableFuture<?> future = send(op, intended, measured);
+            inFlight.add(future);
+            // Drop completed futures so the queue does not grow with the run length
+            while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                inFlight.poll();
+            }
+        }
+
+        for (CompletableFuture<?> future : inFlight) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // Recorded as an error by the completion handler
+            }
+        }
+        callbacks.shutdown();
+        return new Report(stats, durationSeconds, late);
+    }
+
+    private CompletableFuture<?> send(Operation op, long intendedNanos, boolean measured) {
+        HttpRequest request;
+        switch (op) {
+            case CREATE:
+                long n = emailSequence.incrementAndGet();
+                String body = "name=Load+User+" + n + "&email=load-" + intendedNanos + "-" + n + "%40example.com";
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/users/"))
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+                break;
+            case HEALTH:
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/health"))
+                    .timeout(Duration.ofSeconds(30)).GET().build();
+                break;
+            default:
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/users/?limit=50"))
+                    .timeout(Duration.ofSeconds(30)).GET().build();
+        }
+        OperationStats s = stats[op.ordinal()];
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, error) -> {
+                if (!measured) {
+                    return;
+                }
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos);
+                s.latencyMicros.recordValue(Math.min(micros, s.latencyMicros.getHighestTrackableValue()));
+                int status = response == null ? 0 : response.statusCode();
+                if (error == null && status >= 200 && status < 400) {
+                    s.ok.incrementAndGet();
+                } else {
+                    s.errors.incrementAndGet();
+                }
+            });
+    }
+
+    /**
+     * Measured results of a run
+     */
+    public static final class Report {
+        private final OperationStats[] stats;
+        private final int durationSeconds;
+        private final long lateSends;
+
+        Report(OperationStats[] stats, int durationSeconds, long lateSends) {
+            this.stats = stats;
+            this.durationSeconds = durationSeconds;
+            this.lateSends = lateSends;
+        }
+
+        public String toText() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-8s %10s %10s %8s %9s %9s %9s %9s %9s %9s%n",
+                "op", "requests", "req/s", "err%", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "mean ms"));
+            for (OperationStats s : stats) {
+                long total = s.ok.get() + s.errors.get();
+                if (total == 0) {
+                    continue;
+                }
+                Histogram h = s.latencyMicros;
+                sb.append(String.format("%-8s %10d %10.1f %8.2f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    s.operation.name().toLowerCase(Locale.ROOT), total, total / (double) durationSeconds,
+                    100.0 * s.errors.get() / total,
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMaxValue() / 1000.0, h.getMean() / 1000.0));
+            }
+            if (lateSends > 0) {
+                sb.append(String.format("Note: %d requests were sent more than 1ms late; their latency is still " +
+                                        "measured from the intended send time%n", lateSends));
+            }
+            return sb.toString();
+        }
+
+        public String toJson(int rate, String mix) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "{\"targetRate\":%d,\"mix\":\"%s\",\"durationSeconds\":%d,\"lateSends\":%d,\"operations\":[",
+                rate, mix, durationSeconds, lateSends));
+            boolean first = true;
+            for (OperationStats s : stats) {
+                long total = s.ok.get() + s.errors.get();
+                if (total == 0) {
+                    continue;
+                }
+                if (!first) sb.append(',');
+                first = false;
+                Histogram h = s.latencyMicros;
+                sb.append(String.format(Locale.ROOT,
+                    "{\"operation\":\"%s\",\"requests\":%d,\"errors\":%d,\"throughput\":%.2f," +
+                    "\"latencyMs\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f,\"mean\":%.3f}}",
+                    s.operation.name().toLowerCase(Locale.ROOT), total, s.errors.get(), total / (double) durationSeconds,
+                    h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                    h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                    h.getMaxValue() / 1000.0, h.getMean() / 1000.0));
+            }
+            return sb.append("]}").toString();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.threetier.webapp;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.apache.catalina.Context;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Self-contained end-to-end load test.
+ *
+ * Starts a local PostgreSQL (embedded binaries, no network needed once the Maven artifact
+ * is cached), deploys the webapp into an embedded Tomcat on an ephemeral port, drives a
+ * fixed-arrival-rate request mix against it and prints throughput, error rates and
+ * latency percentiles. Settings are read from system properties:
+ *
+ * <ul>
+ *   <li>load.rate - requests per second (default 200)</li>
+ *   <li>load.duration - measured seconds (default 30)</li>
+ *   <li>load.warmup - unmeasured seconds before measuring (default 5)</li>
+ *   <li>load.mix - weighted operations, e.g. list:70,create:20,health:10</li>
+ *   <li>load.result - JSON result file</li>
+ *   <li>load.webapp - webapp directory (default src/main/webapp)</li>
+ *   <li>load.appLogLevel - application log level during the run (default WARN)</li>
+ *   <li>load.shards - PostgreSQL instances to shard users over (default 1, unsharded)</li>
+ *   <li>load.storage - postgresql (default) or embedded, which runs without PostgreSQL
+ *       against the memory-mapped user store in a temporary directory</li>
+ * </ul>
+ *
+ * Any application setting (DB_POOL_MAX_SIZE, USERS_ASYNC_ENABLED, ...) can also be
+ * passed as a system property of the same name.
+ */
+public class LoadTestHarness {
+    public static void main(String[] args) throws Exception {
+        int rate = Integer.getInteger("load.rate", 200);
+        int duration = Integer.getInteger("load.duration", 30);
+        int warmup = Integer.getInteger("load.warmup", 5);
+        String mix = System.getProperty("load.mix", "list:70,create:20,health:10");
+        String resultFile = System.getProperty("load.result", "target/loadtest-result.json");
+        String webapp = System.getProperty("load.webapp", "src/main/webapp");
+        int shards = Math.max(1, Integer.getInteger("load.shards", 1));
+        boolean embedded = "embedded".equalsIgnoreCase(System.getProperty("load.storage", "postgresql"));
+        ((Logger) LoggerFactory.getLogger("com.threetier.webapp"))
+            .setLevel(Level.toLevel(System.getProperty("load.appLogLevel", "WARN"), Level.WARN));
+
+        List<EmbeddedPostgres> databases = new ArrayList<>();
+        try {
+            if (embedded) {
+                Path storeDir = Files.createTempDirectory("loadtest-users");
+                System.out.println("[LOADTEST] Using the embedded user store in " + storeDir);
+                System.setProperty("USERS_STORAGE", "embedded");
+                System.setProperty("USERS_EMBEDDED_DIR", storeDir.toString());
+            } else {
+                System.out.println(shards == 1 ? "[LOADTEST] Starting embedded PostgreSQL..."
+                                               : "[LOADTEST] Starting " + shards + " embedded PostgreSQL shards...");
+            }
+            StringBuilder shardList = new StringBuilder();
+            for (int i = 0; i < (embedded ? 0 : shards); i++) {
+                EmbeddedPostgres postgres = EmbeddedPostgres.builder().start();
+                databases.add(postgres);
+                shardList.append(i == 0 ? "" : ",").append("localhost:").append(postgres.getPort()).append("/postgres");
+            }
+            if (!embedded) {
+                System.setProperty("DB_HOST", "localhost");
+                System.setProperty("DB_PORT", String.valueOf(databases.get(0).getPort()));
+                System.setProperty("DB_NAME", "postgres");
+                System.setProperty("DB_USER", "postgres");
+                System.setProperty("DB_PASSWORD", "postgres");
+            }
+            if (!embedded && shards > 1) {
+                System.setProperty("DB_SHARDS", shardList.toString());
+            }
+
+            Path baseDir = Files.createTempDirectory("loadtest-tomcat");
+            Tomcat tomcat = startTomcat(baseDir, new File(webapp).getAbsolutePath());
+            try {
+                int port = tomcat.getConnector().getLocalPort();
+                String baseUrl = "http://localhost:" + port;
+                System.out.println("[LOADTEST] Application running at " + baseUrl);
+                awaitReady(baseUrl, Duration.ofSeconds(60));
+
+                LoadGenerator generator = new LoadGenerator(baseUrl, LoadGenerator.parseMix(mix));
+                System.out.printf("[LOADTEST] Driving %d req/s (%s) for %ds after %ds warmup%n",
+                                  rate, mix, duration, warmup);
+                LoadGenerator.Report report = generator.run(rate, warmup, duration);
+
+                System.out.println();
+                System.out.print(report.toText());
+                writeResult(Paths.get(resultFile), report.toJson(rate, mix));
+                System.out.println("[LOADTEST] Results written to " + resultFile);
+            } finally {
+                tomcat.stop();
+                tomcat.destroy();
+            }
+        } finally {
+            for (EmbeddedPostgres postgres : databases) {
+                postgres.close();
+            }
+        }
+    }
+
+    private static Tomcat startTomcat(Path baseDir, String webappDir) throws Exception {
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+        // Only core Tomcat is on the classpath, so skip the JSP defaults and add the default servlet by hand
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        Context ctx = tomcat.addWebapp("", webappDir);
+        ((StandardJarScanner) ctx.getJarScanner()).setScanClassPath(false);
+        Tomcat.addDefaultMimeTypeMappings(ctx);
+        Tomcat.addServlet(ctx, "default", new DefaultServlet());
+        ctx.addServletMappingDecoded("/", "default");
+        tomcat.start();
+        return tomcat;
+    }
+
+    /**
+     * Poll /health/ready until schema migrations and the first database check have completed
+     */
+    private static void awaitReady(String baseUrl, Duration timeout) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/health/ready")).build();
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        while (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Application did not become ready within " + timeout);
+            }
+            Thread.sleep(100);
+        }
+        System.out.printf("[LOADTEST] Application ready after %dms%n", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void writeResult(Path file, String json) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(json);
+        }
+    }
+}
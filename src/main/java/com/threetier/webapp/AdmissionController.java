@@ -0,0 +1,317 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive concurrency limit for requests that use the database.
+ *
+ * The limit follows observed latency (gradient style): every window of completed requests
+ * compares its average latency with a slowly moving baseline. While latency stays within
+ * ADMISSION_RTT_TOLERANCE of the baseline the limit grows by about its square root; when
+ * latency rises above it the limit shrinks in proportion (at most halving per window), and
+ * a window containing server errors backs off by 10%. A slow database therefore lowers the
+ * limit instead of letting requests pile up behind the connection pool.
+ *
+ * Writes may use the whole limit, reads only ADMISSION_READ_SHARE of it, so writes keep
+ * headroom when reads saturate the database. Endpoints can also have a fixed cap
+ * (ADMISSION_MAX_&lt;ENDPOINT&gt;; exports and bulk imports hold connections for long).
+ * A request over the limit waits in a bounded queue for a short time and is otherwise
+ * rejected immediately. Capacity freed by a completing request is handed to queued
+ * requests (writes first, then oldest first) before a new arrival can take it, so arriving
+ * reads cannot starve queued writes.
+ */
+public final class AdmissionController {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionController.class);
+
+    private static final int WINDOW_SAMPLES = 50;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_WINDOW_SAMPLES = 5;
+    private static final double SMOOTHING = 0.2;
+    private static final double ERROR_BACKOFF = 0.9;
+
+    public enum Priority { WRITE, READ }
+
+    private static final AdmissionController SHARED = fromEnvironment();
+
+    /**
+     * An admitted request; release it exactly once when the request completes
+     */
+    public final class Permit {
+        final Metrics.Endpoint endpoint;
+        final long startNanos = System.nanoTime();
+        final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(Metrics.Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private final boolean enabled;
+    private final double minLimit;
+    private final double maxLimit;
+    private final double readShare;
+    private final double rttTolerance;
+    private final int queueCapacity;
+    private final long readMaxWaitNanos;
+    private final long writeMaxWaitNanos;
+    private final int[] endpointCaps = new int[Metrics.Endpoint.values().length];
+
+    /**
+     * A queued request; whoever frees capacity admits it and hands it the permit
+     */
+    private final class Waiter {
+        final Metrics.Endpoint endpoint;
+        final Condition granted = lock.newCondition();
+        Permit permit;
+
+        Waiter(Metrics.Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private double limit;
+    private int inFlight;
+    private final int[] endpointInFlight = new int[Metrics.Endpoint.values().length];
+    private final ArrayDeque<Waiter> queuedWrites = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> queuedReads = new ArrayDeque<>();
+    private double baselineNanos;
+    private long windowStart = System.nanoTime();
+    private long windowSumNanos;
+    private int windowSamples;
+    private int windowErrors;
+    private int windowPeakInFlight;
+
+    AdmissionController(boolean enabled, double initialLimit, double minLimit, double maxLimit, double readShare,
+                        double rttTolerance, int queueCapacity, long readMaxWaitMs, long writeMaxWaitMs) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.readShare = Math.max(0.1, Math.min(1.0, readShare));
+        this.rttTolerance = Math.max(1.0, rttTolerance);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.readMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, readMaxWaitMs));
+        this.writeMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, writeMaxWaitMs));
+    }
+
+    /**
+     * Build the controller from ADMISSION_* settings; the limit starts at the pool size
+     */
+    private static AdmissionController fromEnvironment() {
+        int poolSize = ConnectionPool.Settings.fromEnvironment().maxSize;
+        AdmissionController controller = new AdmissionController(
+            EnvConfig.getBoolean("ADMISSION_ENABLED", true),
+            EnvConfig.getInt("ADMISSION_INITIAL_LIMIT", poolSize),
+            EnvConfig.getInt("ADMISSION_MIN_LIMIT", 2),
+            EnvConfig.getInt("ADMISSION_MAX_LIMIT", poolSize * 2),
+            EnvConfig.getDouble("ADMISSION_READ_SHARE", 0.8),
+            EnvConfig.getDouble("ADMISSION_RTT_TOLERANCE", 1.5),
+            EnvConfig.getInt("ADMISSION_QUEUE_SIZE", 50),
+            EnvConfig.getLong("ADMISSION_READ_MAX_WAIT_MS", 50),
+            EnvConfig.getLong("ADMISSION_WRITE_MAX_WAIT_MS", 250));
+        for (Metrics.Endpoint endpoint : Metrics.Endpoint.values()) {
+            int defaultCap = endpoint == Metrics.Endpoint.USERS_EXPORT || endpoint == Metrics.Endpoint.USERS_BULK ? 2 : 0;
+            controller.endpointCaps[endpoint.ordinal()] = EnvConfig.getInt("ADMISSION_MAX_" + endpoint.name(), defaultCap);
+        }
+        return controller;
+    }
+
+    /**
+     * Application-wide controller
+     */
+    public static AdmissionController shared() {
+        return SHARED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Admit a request now, or after a short bounded wait
+     * @return the permit, or null if the request should be rejected
+     */
+    public Permit acquire(Metrics.Endpoint endpoint, Priority priority) throws InterruptedException {
+        lock.lock();
+        try {
+            if (canAdmit(endpoint, priority)) {
+                return admit(endpoint);
+            }
+            long remaining = priority == Priority.WRITE ? writeMaxWaitNanos : readMaxWaitNanos;
+            if (remaining <= 0 || queuedWrites.size() + queuedReads.size() >= queueCapacity) {
+                return null;
+            }
+            ArrayDeque<Waiter> queue = priority == Priority.WRITE ? queuedWrites : queuedReads;
+            Waiter waiter = new Waiter(endpoint);
+            queue.addLast(waiter);
+            boolean taken = false;
+            try {
+                while (waiter.permit == null) {
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    remaining = waiter.granted.awaitNanos(remaining);
+                }
+                taken = true;
+                return waiter.permit;
+            } finally {
+                if (!taken) {
+                    if (waiter.permit == null) {
+                        queue.remove(waiter);
+                    } else {
+                        // Granted as the wait was interrupted; pass the capacity on
+                        unadmit(waiter.permit.endpoint);
+                        grantQueued();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canAdmit(Metrics.Endpoint endpoint, Priority priority) {
+        int cap = endpointCaps[endpoint.ordinal()];
+        if (cap > 0 && endpointInFlight[endpoint.ordinal()] >= cap) {
+            return false;
+        }
+        double allowed = priority == Priority.WRITE ? limit : limit * readShare;
+        return inFlight < Math.max(1, (int) allowed);
+    }
+
+    private Permit admit(Metrics.Endpoint endpoint) {
+        inFlight++;
+        endpointInFlight[endpoint.ordinal()]++;
+        windowPeakInFlight = Math.max(windowPeakInFlight, inFlight);
+        return new Permit(endpoint);
+    }
+
+    private void unadmit(Metrics.Endpoint endpoint) {
+        inFlight--;
+        endpointInFlight[endpoint.ordinal()]--;
+    }
+
+    /**
+     * Admit every queued request that now fits, writes first and oldest first
+     */
+    private void grantQueued() {
+        grant(queuedWrites, Priority.WRITE);
+        grant(queuedReads, Priority.READ);
+    }
+
+    private void grant(ArrayDeque<Waiter> queue, Priority priority) {
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            // Later waiters may still fit when an earlier one is held by its endpoint cap
+            if (canAdmit(waiter.endpoint, priority)) {
+                it.remove();
+                waiter.permit = admit(waiter.endpoint);
+                waiter.granted.signal();
+            }
+        }
+    }
+
+    /**
+     * Release a permit and feed its latency into the limit
+     * @param failed true if the request ended with a server error
+     */
+    public void release(Permit permit, boolean failed) {
+        if (!permit.released.compareAndSet(false, true)) {
+            return;
+        }
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            unadmit(permit.endpoint);
+            if (failed) {
+                windowErrors++;
+            } else {
+                windowSumNanos += now - permit.startNanos;
+            }
+            windowSamples++;
+            if (windowSamples >= WINDOW_SAMPLES
+                    || (windowSamples >= MIN_WINDOW_SAMPLES && now - windowStart >= WINDOW_NANOS)) {
+                updateLimit(now);
+            }
+            // Before the lock is released, so no new arrival can take the capacity first
+            grantQueued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateLimit(long now) {
+        double previous = limit;
+        int successes = windowSamples - windowErrors;
+        double next;
+        if (windowErrors > 0) {
+            next = limit * ERROR_BACKOFF;
+        } else {
+            double averageNanos = (double) windowSumNanos / Math.max(1, successes);
+            if (baselineNanos == 0) {
+                baselineNanos = averageNanos;
+            } else {
+                baselineNanos = baselineNanos * 0.95 + averageNanos * 0.05;
+                // After a slow period, let the baseline fall back instead of pinning the limit high
+                if (baselineNanos > averageNanos * 2) {
+                    baselineNanos *= 0.95;
+                }
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * baselineNanos / averageNanos));
+            if (gradient >= 1.0 && windowPeakInFlight < limit / 2) {
+                // Not using the current limit, so latency says nothing about a higher one
+                next = limit;
+            } else {
+                next = limit * gradient + Math.sqrt(limit);
+            }
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + next * SMOOTHING));
+        if ((int) limit != (int) previous) {
+            LOGGER.debug("Admission limit {} -> {} (errors={}, baselineMs={})",
+                         (int) previous, (int) limit, windowErrors, baselineNanos / 1e6);
+        }
+        windowStart = now;
+        windowSumNanos = 0;
+        windowSamples = 0;
+        windowErrors = 0;
+        windowPeakInFlight = inFlight;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queuedWrites.size() + queuedReads.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.threetier.webapp;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Sheds user API requests the database cannot take on right now (see AdmissionController).
+ * Rejected requests get a 503 with Retry-After immediately instead of queueing for a
+ * pool connection. Search and the change stream are answered from memory and are not
+ * limited; health probes are not mapped here so readiness reflects the database, not load.
+ * Async requests hold their permit until the async cycle completes.
+ */
+public class AdmissionFilter implements Filter {
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private AdmissionController controller;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        controller = AdmissionController.shared();
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        Metrics.Endpoint endpoint = MetricsFilter.endpointOf(request);
+        AdmissionController.Priority priority = priorityOf(endpoint);
+        if (!controller.isEnabled() || priority == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        AdmissionController.Permit permit = acquire(endpoint, priority);
+        if (permit == null) {
+            Metrics.recordShed(endpoint);
+            reject(response);
+            return;
+        }
+
+        boolean async = false;
+        boolean threw = true;
+        try {
+            chain.doFilter(request, response);
+            threw = false;
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        controller.release(permit, isServerError(response));
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                controller.release(permit, threw || isServerError(response));
+            }
+        }
+    }
+
+    private AdmissionController.Permit acquire(Metrics.Endpoint endpoint, AdmissionController.Priority priority) {
+        try {
+            return controller.acquire(endpoint, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Admission class of an endpoint, or null when it does not use the database per request
+     */
+    static AdmissionController.Priority priorityOf(Metrics.Endpoint endpoint) {
+        switch (endpoint) {
+            case USERS_CREATE:
+            case USERS_BULK:
+            case USERS_BATCH:
+                return AdmissionController.Priority.WRITE;
+            case USERS_LIST:
+            case USERS_GET:
+            case USERS_BY_EMAIL:
+            case USERS_EXPORT:
+                return AdmissionController.Priority.READ;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isServerError(HttpServletResponse response) {
+        // 503s from a saturated pool count as errors; the controller backs off on them
+        return response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private static void reject(HttpServletResponse response) throws IOException {
+        int status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Access-Control-Allow-Origin", "*");
+        response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        response.getWriter().write(UserServlet.formatError(status, "Server is overloaded, please retry"));
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
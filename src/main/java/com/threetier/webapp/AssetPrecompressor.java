@@ -0,0 +1,86 @@
+package com.threetier.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Build-time gzip precompression of static web assets.
+ *
+ * Run during prepare-package to write &lt;asset&gt;.gz next to each compressible asset; the
+ * war plugin packages them alongside the originals and StaticAssetServlet serves them.
+ * Assets are compressed once at the highest level, since the cost is paid at build time.
+ *
+ * Usage: AssetPrecompressor &lt;webapp source dir&gt; &lt;output dir&gt;
+ */
+public final class AssetPrecompressor {
+
+    private static final String[] EXTENSIONS = {".html", ".css", ".js", ".json", ".svg", ".txt", ".xml"};
+
+    private AssetPrecompressor() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: AssetPrecompressor <webapp source dir> <output dir>");
+            System.exit(2);
+        }
+        Path source = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(source)) {
+            files = walk.filter(Files::isRegularFile)
+                        .filter(p -> !source.relativize(p).startsWith("WEB-INF"))
+                        .filter(p -> !source.relativize(p).startsWith("META-INF"))
+                        .filter(p -> isCompressible(p.getFileName().toString()))
+                        .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            byte[] original = Files.readAllBytes(file);
+            byte[] gzipped = gzip(original);
+            if (gzipped.length >= original.length) {
+                continue;
+            }
+            Path target = output.resolve(source.relativize(file).toString() + ".gz");
+            Files.createDirectories(target.getParent());
+            Files.write(target, gzipped);
+            System.out.printf("[precompress] %s: %d -> %d bytes%n", source.relativize(file), original.length, gzipped.length);
+        }
+    }
+
+    /**
+     * Whether a file name has an extension worth precompressing
+     */
+    static boolean isCompressible(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (String ext : EXTENSIONS) {
+            if (name.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gzip at maximum compression
+     */
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (OutputStream out = new GZIPOutputStream(bytes, 8192) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
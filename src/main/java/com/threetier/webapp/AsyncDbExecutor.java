@@ -0,0 +1,272 @@
+package com.threetier.webapp;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking database work for servlet requests off the container's request threads.
+ *
+ * The request is put into async mode and its handler is submitted to a bounded executor:
+ * a virtual-thread-per-task executor on JDK 21+ (looked up reflectively, since the build
+ * targets Java 11), or a fixed thread pool with a bounded queue otherwise. Requests that
+ * cannot be queued are rejected with 503, and requests that have not started by the
+ * deadline are answered with 503 without ever touching the database.
+ *
+ * A request that has started is never interrupted: the PostgreSQL driver ignores
+ * interrupts, and an interrupt can close the container's channel mid-write. Instead the
+ * deadline is kept for the worker thread, and DatabaseConnection gives each connection it
+ * hands out a network timeout of the time left, so a slow query fails the request in time.
+ */
+public class AsyncDbExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncDbExecutor.class);
+
+    /**
+     * Request handling code that runs on the executor
+     */
+    @FunctionalInterface
+    public interface RequestHandler {
+        void handle() throws IOException, ServletException;
+    }
+
+    /**
+     * Writes a JSON error response (status, message)
+     */
+    @FunctionalInterface
+    public interface ErrorWriter {
+        void send(HttpServletResponse response, int status, String message) throws IOException;
+    }
+
+    // System.nanoTime() deadline of the request the current thread is working for
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final long timeoutMs;
+    private final boolean virtualThreads;
+    private final ScheduledExecutorService timer;
+
+    private AsyncDbExecutor(ExecutorService executor, int maxInFlight, long timeoutMs, boolean virtualThreads) {
+        this.executor = executor;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutMs = timeoutMs;
+        this.virtualThreads = virtualThreads;
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "db-async-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        // Completed requests cancel their timeout; drop it from the queue instead of holding it until the deadline
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = timer;
+    }
+
+    /**
+     * Create an executor from USERS_ASYNC_* environment variables, or return null when
+     * async processing is disabled
+     */
+    public static AsyncDbExecutor fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_ASYNC_ENABLED", false)) {
+            return null;
+        }
+        int threads = Math.max(1, EnvConfig.getInt("USERS_ASYNC_THREADS", 32));
+        int queueCapacity = Math.max(1, EnvConfig.getInt("USERS_ASYNC_QUEUE_CAPACITY", 1000));
+        long timeoutMs = EnvConfig.getLong("USERS_ASYNC_TIMEOUT_MS", 30_000);
+        boolean preferVirtual = EnvConfig.getBoolean("USERS_ASYNC_VIRTUAL_THREADS", true);
+
+        ExecutorService virtual = preferVirtual ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            LOGGER.info("Async DB executor using virtual threads, max in flight {}", threads + queueCapacity);
+            return new AsyncDbExecutor(virtual, threads + queueCapacity, timeoutMs, true);
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread t = new Thread(r, "db-async-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        LOGGER.info("Async DB executor using {} platform threads, queue {}", threads, queueCapacity);
+        return new AsyncDbExecutor(pool, threads + queueCapacity, timeoutMs, false);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() when running on JDK 21+, else null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Virtual threads unavailable, falling back to a thread pool", e);
+            return null;
+        }
+    }
+
+    /**
+     * Handle a request asynchronously. The calling container thread returns immediately.
+     */
+    public void dispatch(HttpServletRequest request, HttpServletResponse response,
+                         RequestHandler handler, ErrorWriter errors) throws IOException {
+        if (!inFlight.tryAcquire()) {
+            errors.send(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Server is busy, please retry later");
+            return;
+        }
+
+        AsyncContext async = request.startAsync(request, response);
+        // Timeouts are enforced by our own timer so the container never writes concurrently
+        async.setTimeout(0);
+        ReentrantLock responseLock = new ReentrantLock();
+        boolean[] finished = {false};
+        AtomicReference<Future<?>> submitted = new AtomicReference<>();
+
+        // Scheduled before the task is submitted so the task can always cancel it when it ends
+        ScheduledFuture<?> timeout = timeoutMs <= 0 ? null : timer.schedule(() -> {
+            Future<?> future = submitted.get();
+            if (responseLock.tryLock()) {
+                try {
+                    if (!finished[0]) {
+                        // Still queued: answer now; the task sees the flag and skips the database
+                        finished[0] = true;
+                        if (future != null) {
+                            future.cancel(false);
+                        }
+                        try {
+                            errors.send(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                        "Request timed out waiting for a database worker");
+                        } catch (IOException ignored) {
+                            // Client went away
+                        }
+                        complete(async, response);
+                        // A cancelled task never runs its finally block
+                        if (future != null && future.isCancelled()) {
+                            inFlight.release();
+                        }
+                    }
+                } finally {
+                    responseLock.unlock();
+                }
+            } else {
+                // Running and owns the response; its connections time out at the same deadline
+                LOGGER.debug("Async request still running at its {}ms deadline", timeoutMs);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        Long deadline = timeoutMs <= 0 ? null : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        Runnable task = () -> {
+            responseLock.lock();
+            try {
+                if (finished[0]) {
+                    return;
+                }
+                DEADLINE.set(deadline);
+                handler.handle();
+            } catch (IOException | ServletException | RuntimeException e) {
+                LOGGER.error("Async request handling failed", e);
+                if (!response.isCommitted()) {
+                    try {
+                        errors.send(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                    "Internal server error");
+                    } catch (IOException ignored) {
+                        // Client went away
+                    }
+                }
+            } finally {
+                DEADLINE.remove();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                if (!finished[0]) {
+                    finished[0] = true;
+                    complete(async, response);
+                }
+                responseLock.unlock();
+                inFlight.release();
+            }
+        };
+
+        try {
+            submitted.set(executor.submit(task));
+        } catch (RejectedExecutionException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            inFlight.release();
+            errors.send(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is busy, please retry later");
+            complete(async, response);
+        }
+    }
+
+    /**
+     * End a compressed body while the response is still writable, then complete the request
+     */
+    private static void complete(AsyncContext async, HttpServletResponse response) {
+        try {
+            CompressionFilter.finish(response);
+        } catch (IOException ignored) {
+            // Client went away
+        }
+        async.complete();
+    }
+
+    /**
+     * Deadline (System.nanoTime()) of the async request the current thread is running, or null
+     */
+    static Long currentDeadline() {
+        return DEADLINE.get();
+    }
+
+    /**
+     * Run a call on another thread on behalf of a request with this deadline (null for none)
+     */
+    static <T> T callWithDeadline(Long deadline, Callable<T> call) throws Exception {
+        Long previous = DEADLINE.get();
+        DEADLINE.set(deadline);
+        try {
+            return call.call();
+        } finally {
+            DEADLINE.set(previous);
+        }
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
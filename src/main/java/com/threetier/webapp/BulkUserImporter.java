@@ -0,0 +1,470 @@
+package com.threetier.webapp;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk user import.
+ *
+ * Input rows are parsed incrementally (JSON array or CSV) and written in fixed-size
+ * chunks on a single connection, one transaction per chunk, so memory use is bounded by
+ * the chunk size rather than the payload size. When users are sharded, rows are chunked
+ * per owning shard, on one connection per shard. Each chunk is written either with a JDBC
+ * batch of {@code INSERT ... ON CONFLICT (email) DO NOTHING} statements or, for large
+ * payloads, with PostgreSQL COPY into a temporary staging table. Rows that fail
+ * validation or collide with an existing email are reported individually and never
+ * abort the rest of the import.
+ */
+public class BulkUserImporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkUserImporter.class);
+
+    /** Maximum number of per-row problems echoed back to the client */
+    private static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final String INSERT_SQL =
+        "INSERT INTO users (name, email) VALUES (?, ?) ON CONFLICT (email) DO NOTHING";
+    private static final String CREATE_STAGING_SQL =
+        "CREATE TEMP TABLE IF NOT EXISTS bulk_users_staging (" +
+        "row_num INT NOT NULL, name VARCHAR(100) NOT NULL, email VARCHAR(100) NOT NULL) " +
+        "ON COMMIT DELETE ROWS";
+    private static final String COPY_SQL =
+        "COPY bulk_users_staging (row_num, name, email) FROM STDIN WITH (FORMAT csv)";
+    private static final String MERGE_STAGING_SQL =
+        "INSERT INTO users (name, email) " +
+        "SELECT DISTINCT ON (email) name, email FROM bulk_users_staging ORDER BY email, row_num " +
+        "ON CONFLICT (email) DO NOTHING RETURNING email";
+
+    /**
+     * How chunks are written to the database
+     */
+    public enum Method {
+        BATCH, COPY
+    }
+
+    private final int chunkSize;
+    private final Method method;
+
+    public BulkUserImporter(int chunkSize, Method method) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.method = method;
+    }
+
+    /**
+     * A parsed input row and its 1-based position in the payload
+     */
+    private static final class Row {
+        final int number;
+        final User user;
+
+        Row(int number, User user) {
+            this.number = number;
+            this.user = user;
+        }
+    }
+
+    /**
+     * Open connections and pending chunks, per shard
+     */
+    private final class Writers implements AutoCloseable {
+        final Connection[] connections = new Connection[DatabaseConnection.getShardCount()];
+        final List<List<Row>> chunks = new ArrayList<>();
+
+        Writers() {
+            for (int i = 0; i < connections.length; i++) {
+                chunks.add(new ArrayList<>());
+            }
+        }
+
+        Connection connection(int shard) throws SQLException {
+            if (connections[shard] == null) {
+                Connection conn = DatabaseConnection.getConnection(shard);
+                try {
+                    prepare(conn);
+                } catch (SQLException e) {
+                    conn.close();
+                    throw e;
+                }
+                connections[shard] = conn;
+            }
+            return connections[shard];
+        }
+
+        @Override
+        public void close() throws SQLException {
+            SQLException failure = null;
+            for (Connection conn : connections) {
+                if (conn == null) {
+                    continue;
+                }
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * A row that was not imported, numbered from 1 in request order
+     */
+    public static final class RowError {
+        final int row;
+        final String email;
+        final String message;
+
+        RowError(int row, String email, String message) {
+            this.row = row;
+            this.email = email;
+            this.message = message;
+        }
+
+        public int getRow() { return row; }
+        public String getEmail() { return email; }
+        public String getMessage() { return message; }
+    }
+
+    /**
+     * Outcome of an import
+     */
+    public static class Result {
+        int received;
+        int inserted;
+        int invalid;
+        int conflicts;
+        long elapsedMs;
+        private final List<RowError> errors = new ArrayList<>();
+        private int unreportedErrors;
+
+        void addError(int row, String email, String error) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new RowError(row, email, error));
+            } else {
+                unreportedErrors++;
+            }
+        }
+
+        public int getReceived() { return received; }
+        public int getInserted() { return inserted; }
+        public int getInvalid() { return invalid; }
+        public int getConflicts() { return conflicts; }
+        public List<RowError> getErrors() { return errors; }
+
+        /**
+         * Write the result summary as JSON
+         */
+        public void writeJson(Writer out, String methodName) throws IOException {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            json.name("method").value(methodName);
+            json.name("received").value(received);
+            json.name("inserted").value(inserted);
+            json.name("conflicts").value(conflicts);
+            json.name("invalid").value(invalid);
+            json.name("elapsedMs").value(elapsedMs);
+            json.name("rowsPerSecond").value(elapsedMs == 0 ? inserted : inserted * 1000L / elapsedMs);
+            json.name("errors").beginArray();
+            for (RowError e : errors) {
+                json.beginObject();
+                json.name("row").value(e.row);
+                json.name("email").value(e.email);
+                json.name("error").value(e.message);
+                json.endObject();
+            }
+            json.endArray();
+            json.name("unreportedErrors").value(unreportedErrors);
+            json.endObject();
+            json.flush();
+        }
+    }
+
+    /**
+     * Import a JSON array of {"name": ..., "email": ...} objects
+     */
+    public Result importJson(Reader input) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        try (Writers writers = new Writers()) {
+            JsonReader reader = new JsonReader(input);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int rowNumber = ++result.received;
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    reject(result, rowNumber, null, "Row is not a JSON object");
+                    continue;
+                }
+                String name = null;
+                String email = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (reader.peek() == JsonToken.STRING && field.equals("name")) {
+                        name = reader.nextString();
+                    } else if (reader.peek() == JsonToken.STRING && field.equals("email")) {
+                        email = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                accept(writers, result, rowNumber, name, email);
+            }
+            reader.endArray();
+            flushAll(writers, result);
+        }
+        result.elapsedMs = System.currentTimeMillis() - start;
+        logResult("JSON", result);
+        return result;
+    }
+
+    /**
+     * Import CSV lines of the form {@code name,email}. A leading header line
+     * ("name,email") is skipped. Fields may be double-quoted.
+     */
+    public Result importCsv(Reader input) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        try (Writers writers = new Writers()) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (first) {
+                    first = false;
+                    if (line.trim().equalsIgnoreCase("name,email")) {
+                        continue;
+                    }
+                }
+                int rowNumber = ++result.received;
+                List<String> fields = parseCsvLine(line);
+                if (fields == null || fields.size() != 2) {
+                    reject(result, rowNumber, null, "Expected 2 CSV fields: name,email");
+                    continue;
+                }
+                accept(writers, result, rowNumber, fields.get(0), fields.get(1));
+            }
+            flushAll(writers, result);
+        }
+        result.elapsedMs = System.currentTimeMillis() - start;
+        logResult("CSV", result);
+        return result;
+    }
+
+    private void logResult(String format, Result result) {
+        LOGGER.info("Bulk {} import via {}: received={} inserted={} conflicts={} invalid={} in {}ms",
+            format, method, result.received, result.inserted, result.conflicts, result.invalid, result.elapsedMs);
+    }
+
+    private void prepare(Connection conn) throws SQLException {
+        if (method == Method.COPY) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(CREATE_STAGING_SQL);
+            }
+        }
+        conn.setAutoCommit(false);
+    }
+
+    private void accept(Writers writers, Result result, int rowNumber,
+                        String name, String email) throws SQLException {
+        User user = new User(name == null ? null : name.trim(), email == null ? null : email.trim());
+        if (!user.isValid()) {
+            reject(result, rowNumber, email, "Invalid name or email format");
+            return;
+        }
+        // A too-long value would fail the whole chunk's INSERT or COPY with 22001
+        if (!user.fitsColumns()) {
+            // An oversized email is not echoed back
+            reject(result, rowNumber, user.getEmail().length() <= User.MAX_FIELD_LENGTH ? user.getEmail() : null,
+                   "Name and email must be at most " + User.MAX_FIELD_LENGTH + " characters");
+            return;
+        }
+        int shard = DatabaseConnection.shardOf(user.getEmail());
+        List<Row> chunk = writers.chunks.get(shard);
+        chunk.add(new Row(rowNumber, user));
+        if (chunk.size() >= chunkSize) {
+            flush(writers, shard, result);
+        }
+    }
+
+    private void flushAll(Writers writers, Result result) throws SQLException {
+        for (int shard = 0; shard < writers.connections.length; shard++) {
+            flush(writers, shard, result);
+        }
+    }
+
+    private void reject(Result result, int rowNumber, String email, String error) {
+        result.invalid++;
+        result.addError(rowNumber, email, error);
+    }
+
+    /**
+     * Write a shard's buffered chunk in one transaction and record per-row outcomes
+     */
+    private void flush(Writers writers, int shard, Result result) throws SQLException {
+        List<Row> chunk = writers.chunks.get(shard);
+        if (writers.connections.length > 1) {
+            dropPreviouslyOwned(chunk, result);
+        }
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Connection conn = writers.connection(shard);
+        try {
+            if (method == Method.COPY) {
+                writeWithCopy(conn, chunk, result);
+            } else {
+                writeWithBatch(conn, chunk, result);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+        chunk.clear();
+    }
+
+    private void writeWithBatch(Connection conn, List<Row> chunk, Result result) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            for (Row row : chunk) {
+                stmt.setString(1, row.user.getName());
+                stmt.setString(2, row.user.getEmail());
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                // ON CONFLICT DO NOTHING reports 0 rows for an email that already exists
+                if (counts[i] == 0) {
+                    conflict(result, chunk.get(i));
+                } else {
+                    result.inserted++;
+                }
+            }
+        }
+    }
+
+    private void writeWithCopy(Connection conn, List<Row> chunk, Result result) throws SQLException {
+        StringBuilder csv = new StringBuilder(chunk.size() * 48);
+        for (Row row : chunk) {
+            csv.append(row.number).append(',');
+            appendCsvField(csv, row.user.getName());
+            csv.append(',');
+            appendCsvField(csv, row.user.getEmail());
+            csv.append('\n');
+        }
+        try {
+            CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+            copy.copyIn(COPY_SQL, new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into staging table failed", "58030", e);
+        }
+
+        Set<String> inserted = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(MERGE_STAGING_SQL)) {
+            while (rs.next()) {
+                inserted.add(rs.getString(1));
+            }
+        }
+        // The first occurrence of each inserted email won; every other row is a conflict
+        for (Row row : chunk) {
+            if (inserted.remove(row.user.getEmail())) {
+                result.inserted++;
+            } else {
+                conflict(result, row);
+            }
+        }
+    }
+
+    /**
+     * While resharding, report rows whose email still exists on its previous shard as conflicts
+     */
+    private void dropPreviouslyOwned(List<Row> chunk, Result result) throws SQLException {
+        List<String> emails = new ArrayList<>(chunk.size());
+        for (Row row : chunk) {
+            emails.add(row.user.getEmail());
+        }
+        Set<String> existing = DatabaseConnection.findOnPreviousOwners(emails);
+        if (!existing.isEmpty()) {
+            chunk.removeIf(row -> {
+                if (existing.contains(row.user.getEmail())) {
+                    conflict(result, row);
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    private void conflict(Result result, Row row) {
+        result.conflicts++;
+        result.addError(row.number, row.user.getEmail(), "User with this email already exists");
+    }
+
+    private static void appendCsvField(StringBuilder sb, String value) {
+        sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Split one CSV line, honouring double-quoted fields. Returns null for an
+     * unterminated quote.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>(2);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,183 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker for the primary database.
+ *
+ * CLOSED: calls go through; FAILURE_THRESHOLD consecutive outage failures (see
+ * SqlErrorClassifier.Kind.isOutage) open the breaker. OPEN: calls fail immediately with
+ * OpenException until the open period has passed. HALF_OPEN: one trial call is let
+ * through; if it reaches the database the breaker closes, otherwise it opens again for
+ * twice as long (up to the maximum), so a long outage is probed less and less often.
+ */
+public final class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Thrown instead of contacting the database while the breaker is open
+     */
+    public static final class OpenException extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMs;
+
+        OpenException(String name, long retryAfterMs) {
+            super("Circuit breaker '" + name + "' is open; the database is unavailable", "08001");
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+
+    private final String name;
+    private final boolean enabled;
+    private final int failureThreshold;
+    private final long openMs;
+    private final long openMaxMs;
+
+    private volatile State state = State.CLOSED;
+    private volatile int consecutiveFailures;
+    // Guarded by this
+    private long openUntil;
+    private long currentOpenMs;
+    private boolean trialInFlight;
+    private long openedAt;
+    private String lastFailure;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    public CircuitBreaker(String name, boolean enabled, int failureThreshold, long openMs, long openMaxMs) {
+        this.name = name;
+        this.enabled = enabled;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMs = Math.max(1, openMs);
+        this.openMaxMs = Math.max(this.openMs, openMaxMs);
+        this.currentOpenMs = this.openMs;
+    }
+
+    /**
+     * Create a breaker from DB_BREAKER_* settings
+     */
+    public static CircuitBreaker fromEnvironment(String name) {
+        return new CircuitBreaker(name,
+            EnvConfig.getBoolean("DB_BREAKER_ENABLED", true),
+            EnvConfig.getInt("DB_BREAKER_FAILURE_THRESHOLD", 5),
+            EnvConfig.getLong("DB_BREAKER_OPEN_MS", 5000),
+            EnvConfig.getLong("DB_BREAKER_OPEN_MAX_MS", 60000));
+    }
+
+    /**
+     * Check that a call may go to the database
+     * @throws OpenException while the breaker is open, or half-open with a trial call already running
+     */
+    public void acquire() throws OpenException {
+        if (!enabled || state == State.CLOSED) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now >= openUntil) {
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+                LOGGER.info("Circuit breaker '{}' half-open, letting a trial call through", name);
+            }
+            if (state == State.HALF_OPEN && !trialInFlight) {
+                trialInFlight = true;
+                return;
+            }
+            if (state == State.CLOSED) {
+                return;
+            }
+            rejected.incrementAndGet();
+            throw new OpenException(name, Math.max(0, openUntil - now));
+        }
+    }
+
+    /**
+     * Record a call that reached the database
+     */
+    public void onSuccess() {
+        if (!enabled) {
+            return;
+        }
+        if (state == State.CLOSED) {
+            if (consecutiveFailures != 0) {
+                consecutiveFailures = 0;
+            }
+            return;
+        }
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                LOGGER.info("Circuit breaker '{}' closed after {}ms", name, System.currentTimeMillis() - openedAt);
+                state = State.CLOSED;
+                consecutiveFailures = 0;
+                currentOpenMs = openMs;
+                trialInFlight = false;
+            }
+        }
+    }
+
+    /**
+     * Record a call whose outcome says nothing about the database (e.g. no pooled
+     * connection was free), so a half-open trial slot is handed to the next call
+     */
+    public synchronized void onInconclusive() {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Record a call that failed because the database is unreachable or unable to serve
+     */
+    public synchronized void onFailure(Exception e) {
+        if (!enabled) {
+            return;
+        }
+        lastFailure = e.getMessage();
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            currentOpenMs = Math.min(openMaxMs, currentOpenMs * 2);
+            open(now);
+        } else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+            openedAt = now;
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        trialInFlight = false;
+        openUntil = now + currentOpenMs;
+        opened.incrementAndGet();
+        LOGGER.warn("Circuit breaker '{}' open for {}ms: {}", name, currentOpenMs, lastFailure);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Breaker state as a JSON object
+     */
+    public synchronized String getStatsJson() {
+        long retryAfterMs = state == State.OPEN ? Math.max(0, openUntil - System.currentTimeMillis()) : 0;
+        return String.format("{\"enabled\":%s,\"state\":\"%s\",\"consecutiveFailures\":%d,\"retryAfterMs\":%d,"
+                + "\"timesOpened\":%d,\"rejected\":%d}",
+            enabled, state, consecutiveFailures, retryAfterMs, opened.get(), rejected.get());
+    }
+}
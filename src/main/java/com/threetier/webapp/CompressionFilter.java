@@ -0,0 +1,460 @@
+package com.threetier.webapp;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compresses dynamic responses for clients that accept it.
+ *
+ * Only the first COMPRESSION_MIN_BYTES of a body are held back to decide whether compressing
+ * is worthwhile; after that, bytes are compressed and passed on as they are written, so
+ * streamed responses (the users export) are never buffered whole. Flushes use a gzip sync
+ * flush, so streamed data reaches the client without waiting for the end of the body.
+ * Async handlers must call {@link #finish(ServletResponse)} before completing the
+ * AsyncContext, since the response is not guaranteed to be writable once it has completed.
+ *
+ * A compressed body is a different representation from the identity one, so its ETag gets
+ * a {@code -gzip} suffix; a 304 repeats the suffixed tag when that is the one the client sent.
+ */
+public class CompressionFilter implements Filter {
+    private static final boolean ENABLED = EnvConfig.getBoolean("COMPRESSION_ENABLED", true);
+    private static final int MIN_BYTES = Math.max(0, EnvConfig.getInt("COMPRESSION_MIN_BYTES", 1024));
+    private static final int LEVEL = Math.max(1, Math.min(9, EnvConfig.getInt("COMPRESSION_GZIP_LEVEL", 6)));
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        // Event streams are written with non-blocking I/O straight to the container's stream
+        if (!ENABLED || "HEAD".equals(request.getMethod())
+                || MetricsFilter.endpointOf(request) == Metrics.Endpoint.USERS_STREAM) {
+            chain.doFilter(request, response);
+            return;
+        }
+        // The representation depends on Accept-Encoding whether or not this response is compressed
+        response.addHeader("Vary", "Accept-Encoding");
+        if (!accepts(request, "gzip")) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        GzipResponseWrapper wrapper = new GzipResponseWrapper(response, request.getHeader("If-None-Match"));
+        boolean async = false;
+        try {
+            chain.doFilter(request, wrapper);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        // Normally already finished by the handler; nothing is written then
+                        wrapper.finish();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                wrapper.finish();
+            }
+        }
+    }
+
+    /**
+     * Write any held-back body and the gzip trailer of a response this filter wrapped, so an
+     * async handler can end the body before calling AsyncContext.complete(). Does nothing for
+     * responses that are not being compressed or are already finished.
+     */
+    static void finish(ServletResponse response) throws IOException {
+        while (response instanceof ServletResponseWrapper) {
+            if (response instanceof GzipResponseWrapper) {
+                ((GzipResponseWrapper) response).finish();
+                return;
+            }
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+    }
+
+    /**
+     * ETag of the gzip representation of a response with this ETag
+     */
+    static String gzipEtag(String etag) {
+        return etag.endsWith("\"")
+            ? etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + '"'
+            : etag + GZIP_ETAG_SUFFIX;
+    }
+
+    /**
+     * ETag of the identity representation, given a tag that may belong to the gzip one
+     */
+    static String identityEtag(String etag) {
+        String suffix = GZIP_ETAG_SUFFIX + '"';
+        return etag.endsWith(suffix)
+            ? etag.substring(0, etag.length() - suffix.length()) + '"'
+            : etag;
+    }
+
+    /**
+     * Whether the request's Accept-Encoding allows the given content coding (q=0 refuses it)
+     */
+    static boolean accepts(HttpServletRequest request, String coding) {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) {
+            return false;
+        }
+        for (String part : header.split(",")) {
+            String[] params = part.trim().split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a content type is worth compressing (text formats; not already-compressed media
+     * and not event streams, whose small events must be flushed immediately)
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/event-stream")) {
+            return false;
+        }
+        return type.startsWith("text/")
+            || type.startsWith("application/json")
+            || type.startsWith("application/x-ndjson")
+            || type.startsWith("application/javascript")
+            || type.startsWith("application/xml")
+            || type.startsWith("image/svg+xml");
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Response wrapper that decides on compression once the body passes the size threshold
+     */
+    static final class GzipResponseWrapper extends HttpServletResponseWrapper {
+        private final HttpServletResponse response;
+        private final String ifNoneMatch;
+        private CompressingOutputStream stream;
+        private PrintWriter writer;
+        private long contentLength = -1;
+        private boolean finished;
+
+        GzipResponseWrapper(HttpServletResponse response, String ifNoneMatch) {
+            super(response);
+            this.response = response;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, variantHeader(name, value));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            super.addHeader(name, variantHeader(name, value));
+        }
+
+        /**
+         * An ETag set after compression has started names the gzip representation
+         */
+        private String variantHeader(String name, String value) {
+            return value != null && "ETag".equalsIgnoreCase(name) && stream != null && stream.compressing
+                ? gzipEtag(value) : value;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return stream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        private CompressingOutputStream stream() throws IOException {
+            if (stream == null) {
+                stream = new CompressingOutputStream(this, response.getOutputStream());
+            }
+            return stream;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            setContentLengthLong(len);
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            // Only meaningful if the body ends up uncompressed; applied when that is decided
+            if (stream == null || !stream.decided) {
+                contentLength = len;
+            } else if (!stream.compressing) {
+                response.setContentLengthLong(len);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (stream != null) {
+                stream.flush();
+            }
+            if (stream == null || stream.decided) {
+                response.flushBuffer();
+            }
+        }
+
+        @Override
+        public boolean isCommitted() {
+            // Once gzip output has started the body can no longer be replaced
+            return (stream != null && stream.compressing) || response.isCommitted();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (stream != null) {
+                if (stream.compressing) {
+                    throw new IllegalStateException("Response body is already being compressed");
+                }
+                stream.count = 0;
+            }
+            response.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            if (stream != null && stream.compressing) {
+                throw new IllegalStateException("Response body is already being compressed");
+            }
+            response.reset();
+            stream = null;
+            writer = null;
+            contentLength = -1;
+            finished = false;
+        }
+
+        /**
+         * Write anything still held back and end the gzip stream
+         */
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            String etag = response.getHeader("ETag");
+            if (response.getStatus() == HttpServletResponse.SC_NOT_MODIFIED && etag != null
+                    && ifNoneMatch != null && ifNoneMatch.contains(gzipEtag(etag))) {
+                // The client validated its gzip copy; confirm that representation's tag
+                response.setHeader("ETag", gzipEtag(etag));
+            }
+            if (stream == null) {
+                return;
+            }
+            stream.finishing = true;
+            if (writer != null) {
+                writer.flush();
+            }
+            stream.finish();
+        }
+
+        long getPendingContentLength() {
+            return contentLength;
+        }
+    }
+
+    /**
+     * Holds back up to MIN_BYTES, then streams either straight through or through gzip
+     */
+    static final class CompressingOutputStream extends ServletOutputStream {
+        private final GzipResponseWrapper wrapper;
+        private final ServletOutputStream raw;
+        private final byte[] pending = new byte[Math.max(1, MIN_BYTES)];
+        int count;
+        boolean decided;
+        boolean compressing;
+        boolean finishing;
+        private OutputStream target;
+
+        CompressingOutputStream(GzipResponseWrapper wrapper, ServletOutputStream raw) {
+            this.wrapper = wrapper;
+            this.raw = raw;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!decided) {
+                if (count + len < MIN_BYTES) {
+                    System.arraycopy(b, off, pending, count, len);
+                    count += len;
+                    return;
+                }
+                decide(true);
+            }
+            target.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!decided) {
+                if (finishing || isCompressible(wrapper.getContentType())) {
+                    // Keep holding back small bodies; the decision is made at the threshold or the end
+                    return;
+                }
+                decide(false);
+            }
+            target.flush();
+        }
+
+        private void decide(boolean large) throws IOException {
+            decided = true;
+            int status = wrapper.getStatus();
+            compressing = large
+                && status != HttpServletResponse.SC_NO_CONTENT
+                && status != HttpServletResponse.SC_NOT_MODIFIED
+                && wrapper.getHeader("Content-Encoding") == null
+                && isCompressible(wrapper.getContentType());
+            if (compressing) {
+                wrapper.response.setHeader("Content-Encoding", "gzip");
+                String etag = wrapper.response.getHeader("ETag");
+                if (etag != null) {
+                    wrapper.response.setHeader("ETag", gzipEtag(etag));
+                }
+                target = new GZIPOutputStream(new NonClosingOutputStream(raw), 8192, true) {
+                    {
+                        def.setLevel(LEVEL);
+                    }
+                };
+            } else {
+                if (wrapper.getPendingContentLength() >= 0) {
+                    wrapper.response.setContentLengthLong(wrapper.getPendingContentLength());
+                }
+                target = raw;
+            }
+            if (count > 0) {
+                target.write(pending, 0, count);
+                count = 0;
+            }
+        }
+
+        void finish() throws IOException {
+            if (!decided) {
+                decide(false);
+            }
+            if (compressing) {
+                ((GZIPOutputStream) target).finish();
+            }
+            target.flush();
+        }
+
+        @Override
+        public boolean isReady() {
+            return raw.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            raw.setWriteListener(writeListener);
+        }
+    }
+
+    /**
+     * Keeps GZIPOutputStream from closing the container's stream
+     */
+    private static final class NonClosingOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package com.threetier.webapp;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded JDBC connection pool.
+ *
+ * Capacity is enforced with a fair semaphore so callers queue in arrival order when the
+ * pool is exhausted. Idle connections are kept in a LIFO deque so the most recently used
+ * (and therefore most likely still healthy) connection is handed out first. A background
+ * housekeeper evicts idle and expired connections and keeps the pool topped up to its
+ * minimum size.
+ */
+public class ConnectionPool implements DataSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /** Upper bounds (ms) of the acquire-time histogram buckets; the last bucket is open-ended */
+    static final long[] ACQUIRE_BUCKETS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private final String name;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Settings settings;
+
+    private final Semaphore permits;
+    private final Deque<PooledEntry> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLongArray acquireHistogram = new AtomicLongArray(ACQUIRE_BUCKETS_MS.length + 1);
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong acquireNanosTotal = new AtomicLong();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    /**
+     * Pool sizing and lifecycle settings
+     */
+    public static class Settings {
+        int minSize = 2;
+        int maxSize = 10;
+        long acquireTimeoutMs = 5000;
+        long idleTimeoutMs = 300_000;
+        long maxLifetimeMs = 1_800_000;
+        boolean validateOnBorrow = true;
+        int validationTimeoutSec = 2;
+        long housekeepingIntervalMs = 30_000;
+
+        /**
+         * Build settings from the DB_POOL_* environment variables
+         */
+        public static Settings fromEnvironment() {
+            Settings s = new Settings();
+            s.maxSize = Math.max(1, EnvConfig.getInt("DB_POOL_MAX_SIZE", s.maxSize));
+            s.minSize = Math.max(0, Math.min(s.maxSize, EnvConfig.getInt("DB_POOL_MIN_SIZE", s.minSize)));
+            s.acquireTimeoutMs = EnvConfig.getLong("DB_POOL_ACQUIRE_TIMEOUT_MS", s.acquireTimeoutMs);
+            s.idleTimeoutMs = EnvConfig.getLong("DB_POOL_IDLE_TIMEOUT_MS", s.idleTimeoutMs);
+            s.maxLifetimeMs = EnvConfig.getLong("DB_POOL_MAX_LIFETIME_MS", s.maxLifetimeMs);
+            s.validateOnBorrow = EnvConfig.getBoolean("DB_POOL_VALIDATE_ON_BORROW", s.validateOnBorrow);
+            s.validationTimeoutSec = EnvConfig.getInt("DB_POOL_VALIDATION_TIMEOUT_SEC", s.validationTimeoutSec);
+            s.housekeepingIntervalMs = Math.max(1000,
+                EnvConfig.getLong("DB_POOL_HOUSEKEEPING_INTERVAL_MS", s.housekeepingIntervalMs));
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("min=%d max=%d acquireTimeoutMs=%d idleTimeoutMs=%d maxLifetimeMs=%d validateOnBorrow=%s",
+                minSize, maxSize, acquireTimeoutMs, idleTimeoutMs, maxLifetimeMs, validateOnBorrow);
+        }
+    }
+
+    /**
+     * Thrown when no connection became free within the acquire timeout
+     */
+    static final class AcquireTimeoutException extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        AcquireTimeoutException(String message, String sqlState) {
+            super(message, sqlState);
+        }
+    }
+
+    /**
+     * A physical connection together with its bookkeeping timestamps
+     */
+    private static final class PooledEntry {
+        final Connection raw;
+        final long createdAt;
+        // Restored on release; borrowers may shorten it for a request deadline
+        final int networkTimeoutMs;
+        volatile long lastReturnedAt;
+
+        PooledEntry(Connection raw) throws SQLException {
+            this.raw = raw;
+            this.createdAt = System.currentTimeMillis();
+            this.networkTimeoutMs = raw.getNetworkTimeout();
+            this.lastReturnedAt = createdAt;
+        }
+    }
+
+    public ConnectionPool(String name, String url, String user, String password, Settings settings) {
+        this.name = name;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0,
+            settings.housekeepingIntervalMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("Connection pool '{}' started: {}", name, settings);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool '" + name + "' is closed", "08003");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        waiters.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(settings.acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", "08001", e);
+        } finally {
+            waiters.decrementAndGet();
+        }
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            recordAcquire(System.nanoTime() - start);
+            throw new AcquireTimeoutException("Timed out after " + settings.acquireTimeoutMs +
+                "ms waiting for a database connection from pool '" + name + "'", "08001");
+        }
+        return borrow(start);
+    }
+
+    /**
+     * Borrow a connection only if one is free right now, without waiting for the acquire timeout
+     * @return a pooled connection, or null when every connection is in use
+     */
+    Connection tryGetConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool '" + name + "' is closed", "08003");
+        }
+        long start = System.nanoTime();
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        return borrow(start);
+    }
+
+    /**
+     * Hand out an idle or new connection once a permit is held
+     */
+    private Connection borrow(long start) throws SQLException {
+        try {
+            PooledEntry entry = borrowIdle();
+            if (entry == null) {
+                entry = createEntry();
+            }
+            active.incrementAndGet();
+            recordAcquire(System.nanoTime() - start);
+            return wrap(entry);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pool credentials are fixed at construction time");
+    }
+
+    /**
+     * Take a usable idle connection, discarding any that are expired or fail validation
+     */
+    private PooledEntry borrowIdle() {
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (isExpired(entry, System.currentTimeMillis())) {
+                destroy(entry);
+                continue;
+            }
+            if (settings.validateOnBorrow && !isValid(entry)) {
+                LOGGER.debug("Discarding connection that failed validation in pool '{}'", name);
+                destroy(entry);
+                continue;
+            }
+            return entry;
+        }
+        return null;
+    }
+
+    private PooledEntry createEntry() throws SQLException {
+        Connection raw = DriverManager.getConnection(url, user, password);
+        PooledEntry entry;
+        try {
+            entry = new PooledEntry(raw);
+        } catch (SQLException e) {
+            raw.close();
+            throw e;
+        }
+        total.incrementAndGet();
+        created.incrementAndGet();
+        return entry;
+    }
+
+    private boolean isValid(PooledEntry entry) {
+        try {
+            return entry.raw.isValid(settings.validationTimeoutSec);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private boolean isExpired(PooledEntry entry, long now) {
+        return settings.maxLifetimeMs > 0 && now - entry.createdAt >= settings.maxLifetimeMs;
+    }
+
+    private void destroy(PooledEntry entry) {
+        total.decrementAndGet();
+        destroyed.incrementAndGet();
+        try {
+            entry.raw.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Error closing pooled connection", e);
+        }
+    }
+
+    /**
+     * Return a borrowed connection to the pool. Open transactions are rolled back and
+     * auto-commit is restored so the next borrower sees a clean session.
+     */
+    private void release(PooledEntry entry) {
+        active.decrementAndGet();
+        try {
+            boolean reusable = !closed && !entry.raw.isClosed() && !isExpired(entry, System.currentTimeMillis());
+            if (reusable) {
+                try {
+                    if (!entry.raw.getAutoCommit()) {
+                        entry.raw.rollback();
+                        entry.raw.setAutoCommit(true);
+                    }
+                    if (entry.raw.getNetworkTimeout() != entry.networkTimeoutMs) {
+                        entry.raw.setNetworkTimeout(Runnable::run, entry.networkTimeoutMs);
+                    }
+                    entry.raw.clearWarnings();
+                } catch (SQLException e) {
+                    reusable = false;
+                }
+            }
+            if (reusable) {
+                entry.lastReturnedAt = System.currentTimeMillis();
+                idle.offerFirst(entry);
+            } else {
+                destroy(entry);
+            }
+        } catch (SQLException e) {
+            destroy(entry);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Evict idle/expired connections beyond the minimum and refill up to the minimum size
+     */
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+            Iterator<PooledEntry> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledEntry entry = it.next();
+                boolean idleTooLong = settings.idleTimeoutMs > 0
+                    && now - entry.lastReturnedAt >= settings.idleTimeoutMs
+                    && total.get() > settings.minSize;
+                if ((idleTooLong || isExpired(entry, now)) && idle.removeFirstOccurrence(entry)) {
+                    destroy(entry);
+                }
+            }
+            while (!closed && total.get() < settings.minSize && permits.tryAcquire()) {
+                try {
+                    idle.offerLast(createEntry());
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Pool '{}' could not refill to minimum size", name, e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unexpected error during pool housekeeping", e);
+        }
+    }
+
+    private void recordAcquire(long nanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = ACQUIRE_BUCKETS_MS.length;
+        for (int i = 0; i < ACQUIRE_BUCKETS_MS.length; i++) {
+            if (ms <= ACQUIRE_BUCKETS_MS[i]) {
+                bucket = i;
+                break;
+            }
+        }
+        acquireHistogram.incrementAndGet(bucket);
+        acquireCount.incrementAndGet();
+        acquireNanosTotal.addAndGet(nanos);
+    }
+
+    /**
+     * Wrap a physical connection so that close() hands it back to the pool
+     */
+    private Connection wrap(PooledEntry entry) {
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean returned;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!returned) {
+                            returned = true;
+                            release(entry);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned || entry.raw.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Pooled[" + name + "]" + entry.raw;
+                    default:
+                        if (returned) {
+                            throw new SQLException("Connection has already been returned to the pool", "08003");
+                        }
+                        try {
+                            return method.invoke(entry.raw, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, handler);
+    }
+
+    /**
+     * Close all idle connections and stop the housekeeper. Borrowed connections are
+     * closed as they are returned.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledEntry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry);
+        }
+        LOGGER.info("Connection pool '{}' closed", name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    public int getMaxSize() {
+        return settings.maxSize;
+    }
+
+    /**
+     * Snapshot of live pool statistics as a JSON object
+     */
+    public String getStatsJson() {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i <= ACQUIRE_BUCKETS_MS.length; i++) {
+            if (i > 0) histogram.append(',');
+            String le = i < ACQUIRE_BUCKETS_MS.length ? String.valueOf(ACQUIRE_BUCKETS_MS[i]) : "+Inf";
+            histogram.append(String.format(Locale.ROOT, "{\"le\":\"%s\",\"count\":%d}", le, acquireHistogram.get(i)));
+        }
+        long count = acquireCount.get();
+        double avgMs = count == 0 ? 0.0 : acquireNanosTotal.get() / (double) count / 1_000_000.0;
+        // Locale.ROOT: a locale with a decimal comma would write invalid JSON
+        return String.format(Locale.ROOT,
+            "{" +
+            "\"name\":\"%s\"," +
+            "\"active\":%d," +
+            "\"idle\":%d," +
+            "\"total\":%d," +
+            "\"max\":%d," +
+            "\"waiters\":%d," +
+            "\"created\":%d," +
+            "\"destroyed\":%d," +
+            "\"timeouts\":%d," +
+            "\"acquireCount\":%d," +
+            "\"acquireAvgMs\":%.3f," +
+            "\"acquireHistogramMs\":[%s]" +
+            "}",
+            name, active.get(), idle.size(), total.get(), settings.maxSize, waiters.get(),
+            created.get(), destroyed.get(), timeouts.get(), count, avgMs, histogram);
+    }
+
+    long[] getAcquireHistogram() {
+        long[] counts = new long[acquireHistogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = acquireHistogram.get(i);
+        }
+        return counts;
+    }
+
+    long getAcquireCount() {
+        return acquireCount.get();
+    }
+
+    long getAcquireNanosTotal() {
+        return acquireNanosTotal.get();
+    }
+
+    // DataSource boilerplate
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(settings.acquireTimeoutMs);
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() {
+        return java.util.logging.Logger.getLogger(ConnectionPool.class.getName());
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
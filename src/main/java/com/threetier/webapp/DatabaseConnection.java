@@ -2,178 +2,552 @@ package com.threetier.webapp;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
-import java.util.logging.Logger;
-import java.util.logging.Level;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Database connection utility class for PostgreSQL
  */
 public class DatabaseConnection {
-    private static final Logger LOGGER = Logger.getLogger(DatabaseConnection.class.getName());
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseConnection.class);
     
-    // Database configuration - can be overridden by environment variables
-    private static final String DB_HOST = System.getenv().getOrDefault("DB_HOST", "db-primary-service");
-    private static final String DB_PORT = System.getenv().getOrDefault("DB_PORT", "5432");
-    private static final String DB_NAME = System.getenv().getOrDefault("DB_NAME", "appdb");
-    private static final String DB_USER = System.getenv().getOrDefault("DB_USER", "appuser");
-    private static final String DB_PASSWORD = System.getenv().getOrDefault("DB_PASSWORD", "apppassword");
+    // Database configuration - can be overridden by environment variables (or system properties)
+    private static final String DB_HOST = EnvConfig.getString("DB_HOST", "db-primary-service");
+    private static final String DB_PORT = EnvConfig.getString("DB_PORT", "5432");
+    private static final String DB_NAME = EnvConfig.getString("DB_NAME", "appdb");
+    private static final String DB_USER = EnvConfig.getString("DB_USER", "appuser");
+    private static final String DB_PASSWORD = EnvConfig.getString("DB_PASSWORD", "apppassword");
     
     private static final String DB_URL = String.format("jdbc:postgresql://%s:%s/%s", DB_HOST, DB_PORT, DB_NAME);
     
+    // Connection pooling - enabled by default, set DB_POOL_ENABLED=false to open a new connection per call
+    private static final boolean POOL_ENABLED = EnvConfig.getBoolean("DB_POOL_ENABLED", true);
+    private static volatile ConnectionPool pool;
+    
+    // Read replicas - comma-separated host or host:port list; empty means all reads use the primary
+    private static final String DB_REPLICA_HOSTS = EnvConfig.getString("DB_REPLICA_HOSTS", "");
+    private static volatile ReplicaRouter replicaRouter;
+    private static volatile boolean replicaRouterInitialized;
+    
+    // Sharding - comma-separated host[:port][/dbname] list; empty means all users live in DB_NAME on DB_HOST
+    private static volatile ShardRouter shardRouter;
+    private static volatile boolean shardRouterInitialized;
+    
+    // Resilience - fail fast while the primary is down, retry transient failures with jitter
+    private static final CircuitBreaker BREAKER = CircuitBreaker.fromEnvironment("primary");
+    // Set when getReadConnection hands this thread a replica connection, so withRetry can keep
+    // a broken replica connection out of the primary breaker
+    private static final ThreadLocal<Boolean> READ_FROM_REPLICA = new ThreadLocal<>();
+    private static final int RETRY_MAX_ATTEMPTS = Math.max(1, EnvConfig.getInt("DB_RETRY_MAX_ATTEMPTS", 3));
+    private static final long RETRY_BASE_DELAY_MS = Math.max(1, EnvConfig.getLong("DB_RETRY_BASE_DELAY_MS", 50));
+    private static final long RETRY_MAX_DELAY_MS = Math.max(1, EnvConfig.getLong("DB_RETRY_MAX_DELAY_MS", 1000));
+    
     static {
         try {
             Class.forName("org.postgresql.Driver");
             LOGGER.info("PostgreSQL JDBC driver loaded successfully");
         } catch (ClassNotFoundException e) {
-            LOGGER.log(Level.SEVERE, "Failed to load PostgreSQL JDBC driver", e);
+            LOGGER.error("Failed to load PostgreSQL JDBC driver", e);
         }
     }
     
     /**
-     * Get a database connection
-     * @return Connection object
-     * @throws SQLException if connection fails
+     * Lazily create the shared connection pool
      */
-    public static Connection getConnection() throws SQLException {
+    private static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DatabaseConnection.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ConnectionPool("primary", DB_URL, DB_USER, DB_PASSWORD,
+                                           ConnectionPool.Settings.fromEnvironment());
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+    
+    /**
+     * Lazily create the replica router, or return null when no replicas are configured
+     */
+    private static ReplicaRouter getReplicaRouter() {
+        if (!replicaRouterInitialized) {
+            synchronized (DatabaseConnection.class) {
+                if (!replicaRouterInitialized) {
+                    replicaRouter = createReplicaRouter();
+                    replicaRouterInitialized = true;
+                }
+            }
+        }
+        return replicaRouter;
+    }
+    
+    private static ReplicaRouter createReplicaRouter() {
+        List<ReplicaRouter.Replica> replicas = new ArrayList<>();
+        for (String entry : DB_REPLICA_HOSTS.split(",")) {
+            String host = entry.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            String hostPort = host.contains(":") ? host : host + ":" + DB_PORT;
+            String url = String.format("jdbc:postgresql://%s/%s", hostPort, DB_NAME);
+            replicas.add(new ReplicaRouter.Replica(hostPort,
+                new ConnectionPool("replica-" + hostPort, url, DB_USER, DB_PASSWORD,
+                                   ConnectionPool.Settings.fromEnvironment())));
+        }
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        ReplicaRouter.Balancing balancing;
         try {
-            return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-        } catch (SQLException e) {
-            // Improve error handling to distinguish between connection and permission issues
-            if (e.getMessage().contains("permission") ||
-                e.getMessage().contains("privilege") ||
-                e.getSQLState().equals("42501")) {  // PostgreSQL permission denied code
-                LOGGER.log(Level.SEVERE, "Database permission error: User '" + DB_USER +
-                          "' lacks required permissions", e);
-                throw new SQLException("Database permission error: The application user lacks " +
-                                     "required permissions to perform this operation. " +
-                                     "Please check database user privileges.", e);
-            } else if (e.getMessage().contains("connection") ||
-                      e.getSQLState().startsWith("08")) {  // PostgreSQL connection error codes
-                LOGGER.log(Level.SEVERE, "Database connection error: Unable to connect to " + DB_URL, e);
-                throw new SQLException("Database connection error: Unable to establish connection " +
-                                     "to the database. Please check database availability and " +
-                                     "connection parameters.", e);
+            balancing = ReplicaRouter.Balancing.valueOf(
+                EnvConfig.getString("DB_REPLICA_BALANCING", "round_robin").trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown DB_REPLICA_BALANCING value, using round_robin");
+            balancing = ReplicaRouter.Balancing.ROUND_ROBIN;
+        }
+        return new ReplicaRouter(replicas, balancing,
+            EnvConfig.getLong("DB_REPLICA_MAX_LAG_MS", 5000),
+            EnvConfig.getLong("DB_REPLICA_CHECK_INTERVAL_MS", 2000));
+    }
+    
+    /**
+     * Lazily create the shard router, or return null when DB_SHARDS is not set
+     */
+    static ShardRouter getShardRouter() {
+        if (!shardRouterInitialized) {
+            synchronized (DatabaseConnection.class) {
+                if (!shardRouterInitialized) {
+                    shardRouter = ShardRouter.fromEnvironment(DB_PORT, DB_NAME, DB_USER, DB_PASSWORD, POOL_ENABLED);
+                    shardRouterInitialized = true;
+                }
             }
-            // If it's another type of error, just rethrow
-            throw e;
         }
+        return shardRouter;
     }
     
     /**
-     * Initialize database schema and sample data
+     * Id distance spanned by this many consecutive rows on one shard. Sharded sequences step
+     * by DB_SHARD_ID_SLOTS, so look-back windows counted in rows must be scaled by it.
      */
+    public static int idSpanOfRows(int rows) {
+        ShardRouter router = getShardRouter();
+        return rows * (router == null ? 1 : router.getIdSlots());
+    }
+    
     /**
-     * Initialize database schema and sample data
-     * @return boolean indicating if initialization was successful
+     * Number of databases holding users; 1 when not sharded
      */
-    public static boolean initializeDatabase() {
-        LOGGER.info("Initializing database schema...");
-        boolean success = false;
-        
-        try (Connection conn = getConnection();
-             Statement stmt = conn.createStatement()) {
-            
-            // First verify if we have proper permissions by checking if we can query the users table
-            try {
-                stmt.executeQuery("SELECT 1 FROM users LIMIT 1");
-                LOGGER.info("Users table exists and is accessible");
-            } catch (SQLException e) {
-                // Table might not exist or we don't have permission
-                if (e.getMessage().contains("relation") && e.getMessage().contains("does not exist")) {
-                    LOGGER.info("Users table does not exist, will attempt to create it");
-                } else if (e.getMessage().contains("permission") ||
-                          e.getMessage().contains("privilege") ||
-                          e.getSQLState().equals("42501")) {
-                    LOGGER.severe("Permission denied: User '" + DB_USER +
-                                "' lacks required permissions to access the users table");
-                    LOGGER.severe("Please ensure the database user has appropriate permissions");
-                    return false;
-                } else {
-                    throw e; // Rethrow unexpected errors
+    public static int getShardCount() {
+        ShardRouter router = getShardRouter();
+        return router == null ? 1 : router.size();
+    }
+    
+    /**
+     * Shard that stores (or will store) the user with this email; 0 when not sharded
+     */
+    public static int shardOf(String email) {
+        ShardRouter router = getShardRouter();
+        return router == null ? 0 : router.ownerOf(email);
+    }
+    
+    /**
+     * Shard that stored the user with this email before the resharding in progress, or -1
+     * when there is none or the owner did not change
+     */
+    public static int previousShardOf(String email) {
+        ShardRouter router = getShardRouter();
+        return router == null ? -1 : router.previousOwnerOf(email);
+    }
+    
+    /**
+     * Get a connection to one shard, with the same breaker and retry handling as
+     * getConnection(); shard 0 is the primary when not sharded
+     */
+    public static Connection getConnection(int shard) throws SQLException {
+        ShardRouter router = getShardRouter();
+        if (router == null) {
+            if (shard != 0) {
+                throw new IllegalArgumentException("No shard " + shard + "; DB_SHARDS is not set");
+            }
+            return bounded(connect(BREAKER, DB_URL, () -> POOL_ENABLED
+                ? getPool().getConnection()
+                : DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)));
+        }
+        ShardRouter.Shard s = router.get(shard);
+        return bounded(connect(s.breaker, s.url, () -> s.pool != null
+            ? s.pool.getConnection()
+            : DriverManager.getConnection(s.url, DB_USER, DB_PASSWORD)));
+    }
+    
+    /**
+     * Get a read-only connection to one shard. Read replicas are only used when not sharded.
+     */
+    public static Connection getReadConnection(int shard, boolean requirePrimary) throws SQLException {
+        return getShardRouter() == null ? getReadConnection(requirePrimary) : getConnection(shard);
+    }
+    
+    /**
+     * Run a call once per shard, in parallel when sharded and on the calling thread when not
+     * @return the results in shard order
+     */
+    public static <T> List<T> forEachShard(ShardCall<T> call) throws SQLException {
+        ShardRouter router = getShardRouter();
+        if (router == null) {
+            return Collections.singletonList(call.call(0));
+        }
+        return router.scatter(call);
+    }
+    
+    /**
+     * A unit of database work against one shard
+     */
+    @FunctionalInterface
+    public interface ShardCall<T> {
+        T call(int shard) throws SQLException;
+    }
+    
+    /**
+     * While resharding, find which of these emails are still stored on their previous owner
+     * (the rebalancer has not moved them yet)
+     * @return the emails that exist on a previous owner; empty when not resharding
+     */
+    public static Set<String> findOnPreviousOwners(Collection<String> emails) throws SQLException {
+        ShardRouter router = getShardRouter();
+        Set<String> found = new HashSet<>();
+        if (router == null || !router.isResharding()) {
+            return found;
+        }
+        Map<Integer, List<String>> byShard = new TreeMap<>();
+        for (String email : emails) {
+            int previous = router.previousOwnerOf(email);
+            if (previous >= 0) {
+                byShard.computeIfAbsent(previous, k -> new ArrayList<>()).add(email);
+            }
+        }
+        for (Map.Entry<Integer, List<String>> e : byShard.entrySet()) {
+            try (Connection conn = getConnection(e.getKey());
+                 PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT email FROM users WHERE email = ANY(?)")) {
+                stmt.setArray(1, conn.createArrayOf("varchar", e.getValue().toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        found.add(rs.getString(1));
+                    }
                 }
             }
-            
-            // Create users table
-            try {
-                String createTable = "CREATE TABLE IF NOT EXISTS users (" +
-                    "id SERIAL PRIMARY KEY, " +
-                    "name VARCHAR(100) NOT NULL, " +
-                    "email VARCHAR(100) UNIQUE NOT NULL, " +
-                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                    "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
-                stmt.execute(createTable);
-                LOGGER.info("Users table created/verified");
-            } catch (SQLException e) {
-                if (e.getMessage().contains("permission") ||
-                    e.getMessage().contains("privilege") ||
-                    e.getSQLState().equals("42501")) {
-                    LOGGER.severe("Permission denied: User '" + DB_USER +
-                                "' lacks required permissions to create tables");
-                    LOGGER.severe("Please ensure the database user has CREATE TABLE permission");
-                    return false;
-                } else {
-                    throw e; // Rethrow unexpected errors
+        }
+        return found;
+    }
+    
+    /**
+     * Get shard layout and per-shard state
+     * @return JSON object with shard statistics, or a disabled marker when not sharded
+     */
+    public static String getShardStatsJson() {
+        ShardRouter router = getShardRouter();
+        return router == null ? "{\"enabled\":false}" : router.getStatsJson();
+    }
+    
+    /**
+     * Get a connection for read-only queries. Reads go to a read replica when replicas
+     * are configured and one is healthy and within the lag limit; otherwise they use the
+     * primary. Writes and schema changes must use getConnection().
+     * @param requirePrimary true to bypass replicas, e.g. to read a client's own recent writes
+     * @return Connection object
+     * @throws SQLException if connection fails
+     */
+    public static Connection getReadConnection(boolean requirePrimary) throws SQLException {
+        if (!requirePrimary) {
+            ReplicaRouter router = getReplicaRouter();
+            if (router != null) {
+                Connection conn = router.getConnection();
+                if (conn != null) {
+                    READ_FROM_REPLICA.set(Boolean.TRUE);
+                    return bounded(conn);
                 }
             }
-            
-            // Insert sample data
+        }
+        return getConnection();
+    }
+    
+    /**
+     * Get read replica routing state
+     * @return JSON object with replica statistics, or a disabled marker when no replicas are configured
+     */
+    public static String getReplicaStatsJson() {
+        ReplicaRouter router = getReplicaRouter();
+        return router == null ? "{\"enabled\":false}" : router.getStatsJson();
+    }
+    
+    /**
+     * Get the pooled DataSource, or null when pooling is disabled or users are sharded
+     * @return DataSource backed by the connection pool
+     */
+    public static DataSource getDataSource() {
+        return POOL_ENABLED && getShardRouter() == null ? getPool() : null;
+    }
+    
+    /**
+     * Get the pools that writes go to: the primary pool, or one pool per shard when sharded;
+     * empty when pooling is disabled
+     */
+    static List<ConnectionPool> getWritePools() {
+        ShardRouter router = getShardRouter();
+        if (router == null) {
+            return POOL_ENABLED ? Collections.singletonList(getPool()) : Collections.emptyList();
+        }
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (ShardRouter.Shard shard : router.getShards()) {
+            if (shard.pool != null) {
+                pools.add(shard.pool);
+            }
+        }
+        return pools;
+    }
+    
+    /**
+     * Get live connection pool statistics
+     * @return JSON object with pool statistics, or a disabled marker when pooling is off
+     *         (when sharded, each shard's pool is reported with the shards)
+     */
+    public static String getPoolStatsJson() {
+        if (!POOL_ENABLED) {
+            return "{\"enabled\":false}";
+        }
+        if (getShardRouter() != null) {
+            return "{\"enabled\":true,\"perShard\":true}";
+        }
+        return getPool().getStatsJson();
+    }
+    
+    /**
+     * Close pooled connections; called when the application is undeployed
+     */
+    public static synchronized void shutdown() {
+        if (shardRouter != null) {
+            shardRouter.close();
+            shardRouter = null;
+            shardRouterInitialized = false;
+        }
+        if (replicaRouter != null) {
+            replicaRouter.close();
+            replicaRouter = null;
+            replicaRouterInitialized = false;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+    
+    /**
+     * Get a database connection, borrowed from the pool when pooling is enabled.
+     * Closing the returned connection hands it back to the pool.
+     *
+     * Calls go through the primary circuit breaker, which fails fast while the database is
+     * down. Attempts that could not establish a connection (nothing was sent yet) are
+     * retried up to DB_RETRY_MAX_ATTEMPTS times with jittered exponential backoff.
+     *
+     * When sharded this is a connection to shard 0; user rows must be reached through
+     * getConnection(shardOf(email)) or forEachShard.
+     * @return Connection object
+     * @throws SQLException if connection fails; CircuitBreaker.OpenException while the breaker is open
+     */
+    public static Connection getConnection() throws SQLException {
+        return getConnection(0);
+    }
+    
+    /**
+     * Give a connection borrowed for an async request a network timeout of the time left
+     * before its deadline. The driver ignores interrupts, so this is what stops a slow query
+     * from holding the request past its timeout; the pool restores the timeout on return.
+     * @throws SQLTimeoutException (57014) if the deadline has already passed
+     */
+    private static Connection bounded(Connection conn) throws SQLException {
+        Long deadline = AsyncDbExecutor.currentDeadline();
+        if (deadline == null) {
+            return conn;
+        }
+        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        try {
+            if (remainingMs <= 0) {
+                throw new SQLTimeoutException("Request deadline passed before the query ran", "57014");
+            }
+            conn.setNetworkTimeout(Runnable::run, (int) Math.min(remainingMs, Integer.MAX_VALUE));
+            return conn;
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+    
+    private static Connection connect(CircuitBreaker breaker, String url, SqlCall<Connection> opener)
+            throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            breaker.acquire();
+            SQLException failure;
             try {
-                String insertSample = "INSERT INTO users (name, email) VALUES " +
-                    "('John Doe', 'john.doe@example.com'), " +
-                    "('Jane Smith', 'jane.smith@example.com'), " +
-                    "('Bob Johnson', 'bob.johnson@example.com') " +
-                    "ON CONFLICT (email) DO NOTHING";
-                int rowsInserted = stmt.executeUpdate(insertSample);
-                LOGGER.info("Sample data inserted: " + rowsInserted + " rows");
+                Connection conn = opener.call();
+                breaker.onSuccess();
+                return conn;
             } catch (SQLException e) {
-                if (e.getMessage().contains("permission") ||
-                    e.getMessage().contains("privilege") ||
-                    e.getSQLState().equals("42501")) {
-                    LOGGER.warning("Permission denied: User '" + DB_USER +
-                                 "' lacks required permissions to insert data");
-                    LOGGER.warning("Application will continue but may have limited functionality");
-                    // Continue execution as read-only operations might still work
-                } else {
-                    throw e; // Rethrow unexpected errors
-                }
+                failure = e;
             }
-            
-            // Create index for better performance
+            SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(failure);
+            recordOutcome(breaker, kind, failure);
+            if (kind == SqlErrorClassifier.Kind.CONNECT_FAILED && attempt < RETRY_MAX_ATTEMPTS
+                    && breaker.getState() == CircuitBreaker.State.CLOSED) {
+                LOGGER.debug("Connection attempt {} failed, retrying: {}", attempt, failure.getMessage());
+                Metrics.recordDbRetry();
+                backoff(attempt);
+                continue;
+            }
+            throw describe(kind, failure, url);
+        }
+    }
+    
+    /**
+     * Run a read (or a transaction that is safe to rerun as a whole), retrying it with
+     * jittered backoff when its connection broke or it hit a serialization failure or
+     * deadlock. Failures to connect are already retried by getConnection().
+     */
+    public static <T> T withRetry(SqlCall<T> call) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            READ_FROM_REPLICA.remove();
             try {
-                String createIndex = "CREATE INDEX IF NOT EXISTS idx_users_email ON users(email)";
-                stmt.execute(createIndex);
-                LOGGER.info("Database index created/verified");
+                return call.call();
             } catch (SQLException e) {
-                if (e.getMessage().contains("permission") ||
-                    e.getMessage().contains("privilege") ||
-                    e.getSQLState().equals("42501")) {
-                    LOGGER.warning("Permission denied: User '" + DB_USER +
-                                 "' lacks required permissions to create indexes");
-                    LOGGER.warning("Application will continue but may have reduced performance");
-                    // Continue execution as the application can still function without the index
-                } else {
-                    throw e; // Rethrow unexpected errors
+                SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+                boolean retryable = kind == SqlErrorClassifier.Kind.SERIALIZATION
+                    || kind == SqlErrorClassifier.Kind.CONNECTION_LOST;
+                // Sharded calls cannot tell which shard broke; the shard breakers see the reconnect.
+                // A replica that broke says nothing about the primary; its lag check takes it out.
+                if (kind == SqlErrorClassifier.Kind.CONNECTION_LOST && getShardRouter() == null
+                        && READ_FROM_REPLICA.get() == null) {
+                    BREAKER.onFailure(e);
                 }
+                if (!retryable || attempt >= RETRY_MAX_ATTEMPTS
+                        || BREAKER.getState() != CircuitBreaker.State.CLOSED) {
+                    throw e;
+                }
+                LOGGER.debug("Database call attempt {} failed ({}), retrying", attempt, kind);
+                Metrics.recordDbRetry();
+                backoff(attempt);
             }
-            
-            LOGGER.info("Database initialization completed successfully");
-            success = true;
-            
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Failed to initialize database", e);
-            if (e.getMessage().contains("permission") ||
-                e.getMessage().contains("privilege") ||
-                e.getSQLState().equals("42501")) {
-                LOGGER.severe("Database permission error: Please check user privileges");
-            } else if (e.getMessage().contains("connection") ||
-                      e.getSQLState().startsWith("08")) {
-                LOGGER.severe("Database connection error: Please check database availability");
-            }
         }
-        
-        return success;
+    }
+    
+    /**
+     * A unit of database work for withRetry
+     */
+    @FunctionalInterface
+    public interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+    
+    /**
+     * Feed a failed connection attempt into the circuit breaker
+     */
+    private static void recordOutcome(CircuitBreaker breaker, SqlErrorClassifier.Kind kind, SQLException e) {
+        if (kind == SqlErrorClassifier.Kind.CIRCUIT_OPEN) {
+            return;
+        }
+        if (kind.isOutage()) {
+            breaker.onFailure(e);
+        } else if (kind == SqlErrorClassifier.Kind.POOL_EXHAUSTED || kind == SqlErrorClassifier.Kind.OVERLOADED) {
+            // Busy rather than down: neither counts towards opening nor closes a half-open breaker
+            breaker.onInconclusive();
+        } else {
+            // The server answered (e.g. authentication failed), so it is reachable
+            breaker.onSuccess();
+        }
+    }
+    
+    /**
+     * Sleep before retry number attempt: a uniformly random time up to the exponential
+     * backoff ("full jitter"), so clients that failed together do not retry together
+     */
+    private static void backoff(int attempt) throws SQLException {
+        long ceiling = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry a database call", "08001", e);
+        }
+    }
+    
+    /**
+     * Replace driver messages for permission and connection failures with actionable ones,
+     * keeping the SQLState and the original exception as the cause
+     */
+    private static SQLException describe(SqlErrorClassifier.Kind kind, SQLException e, String url) {
+        switch (kind) {
+            case PERMISSION_DENIED:
+                LOGGER.error("Database permission error: User '{}' lacks required permissions", DB_USER, e);
+                return new SQLException("Database permission error: The application user lacks " +
+                                     "required permissions to perform this operation. " +
+                                     "Please check database user privileges.", e.getSQLState(), e);
+            case CONNECT_FAILED:
+            case CONNECTION_LOST:
+                LOGGER.error("Database connection error: Unable to connect to {}", url, e);
+                return new SQLException("Database connection error: Unable to establish connection " +
+                                     "to the database. Please check database availability and " +
+                                     "connection parameters.", e.getSQLState(), e);
+            default:
+                return e;
+        }
+    }
+    
+    /**
+     * Get primary circuit breaker state
+     * @return JSON object with breaker state
+     */
+    public static String getCircuitBreakerJson() {
+        return BREAKER.getStatsJson();
+    }
+    
+    static CircuitBreaker getCircuitBreaker() {
+        return BREAKER;
+    }
+    
+    /**
+     * Open a primary connection outside the pool, for long-lived sessions such as LISTEN
+     * or the schema migration lock
+     * @return Connection object the caller must close
+     * @throws SQLException if connection fails
+     */
+    static Connection openDedicatedConnection() throws SQLException {
+        return openDedicatedConnection(0);
+    }
+    
+    /**
+     * Open a connection to one shard outside its pool
+     */
+    static Connection openDedicatedConnection(int shard) throws SQLException {
+        ShardRouter router = getShardRouter();
+        return router == null
+            ? DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)
+            : router.openDedicatedConnection(shard);
     }
     
     /**
@@ -190,7 +564,7 @@ public class DatabaseConnection {
             
             // First test basic connection
             if (conn == null || conn.isClosed()) {
-                LOGGER.warning("Database connection failed or is closed");
+                LOGGER.warn("Database connection failed or is closed");
                 return false;
             }
             
@@ -199,31 +573,26 @@ public class DatabaseConnection {
             
             // Finally test if we can access the users table
             try {
-                stmt.executeQuery("SELECT COUNT(*) FROM users").close();
+                stmt.executeQuery("SELECT 1 FROM users LIMIT 1").close();
                 LOGGER.info("Database connection and permissions verified");
                 return true;
             } catch (SQLException e) {
-                if (e.getMessage().contains("permission") ||
-                    e.getMessage().contains("privilege") ||
-                    e.getSQLState().equals("42501")) {
-                    LOGGER.warning("Database permission error: User '" + DB_USER +
-                                 "' lacks required permissions to access the users table");
+                SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+                if (kind == SqlErrorClassifier.Kind.PERMISSION_DENIED) {
+                    LOGGER.warn("Database permission error: User '{}' lacks required permissions to access the users table", DB_USER);
                     return false;
-                } else if (e.getMessage().contains("relation") &&
-                          e.getMessage().contains("does not exist")) {
-                    LOGGER.warning("Users table does not exist. Database may need initialization");
+                } else if (kind == SqlErrorClassifier.Kind.UNDEFINED_TABLE) {
+                    LOGGER.warn("Users table does not exist. Database may need initialization");
                     return false;
                 }
                 throw e; // Rethrow unexpected errors
             }
             
         } catch (SQLException e) {
-            if (e.getMessage().contains("permission") ||
-                e.getMessage().contains("privilege") ||
-                e.getSQLState().equals("42501")) {
-                LOGGER.log(Level.WARNING, "Database permission test failed", e);
+            if (SqlErrorClassifier.classify(e) == SqlErrorClassifier.Kind.PERMISSION_DENIED) {
+                LOGGER.warn("Database permission test failed", e);
             } else {
-                LOGGER.log(Level.WARNING, "Database connection test failed", e);
+                LOGGER.warn("Database connection test failed", e);
             }
             return false;
         }
@@ -234,6 +603,10 @@ public class DatabaseConnection {
      * @return connection info string
      */
     public static String getConnectionInfo() {
+        ShardRouter router = getShardRouter();
+        if (router != null) {
+            return String.format("shards=%d user=%s", router.size(), DB_USER);
+        }
         return String.format("host=%s port=%s dbname=%s user=%s",
                          DB_HOST, DB_PORT, DB_NAME, DB_USER);
     }
@@ -0,0 +1,36 @@
+package com.threetier.webapp;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logback async appender that counts the events it drops.
+ *
+ * Events are handed to a bounded queue and written by a single background thread. With
+ * neverBlock enabled a full queue drops the event instead of stalling the request thread,
+ * and INFO and below are already discarded once the queue passes the discarding threshold.
+ * The count is exported as log_events_dropped_total so lost lines are visible.
+ */
+public class DroppingAsyncAppender extends AsyncAppender {
+    private static final LongAdder DROPPED = new LongAdder();
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        int remaining = getRemainingCapacity();
+        // Mirrors the checks in AsyncAppenderBase; a racing producer can make this slightly off
+        if ((remaining == 0 && isNeverBlock())
+                || (remaining < getDiscardingThreshold() && isDiscardable(event))) {
+            DROPPED.increment();
+        }
+        super.append(event);
+    }
+
+    /**
+     * Events dropped since startup across all instances
+     */
+    public static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+}
@@ -0,0 +1,498 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Users stored off-heap in memory-mapped files, without a database (USERS_STORAGE=embedded).
+ *
+ * Users are appended to segment files of USERS_EMBEDDED_SEGMENT_BYTES in the RecordSegments
+ * format shared with the write journal, with [id, created at, name, email] payloads. On
+ * startup the segments are scanned up to the last complete record and anything after it
+ * (a torn write) is cleared. Records survive a process crash once written; with
+ * USERS_EMBEDDED_FSYNC they are also forced to disk before the insert returns.
+ *
+ * The heap only holds two primitive indexes: record locations in a long array indexed by
+ * id (ids are assigned in append order), and an email index split into
+ * USERS_EMBEDDED_STRIPES open-addressing tables of (hash fingerprint, id) longs, each with
+ * its own read-write lock. Writers for different stripes check for duplicates in parallel
+ * and only serialize on the append itself, a copy of a few hundred bytes; readers look up
+ * ids without locking. Users are never deleted, so pages and scans walk the id index.
+ *
+ * The directory is locked, so each instance needs its own.
+ */
+public class EmbeddedUserRepository implements UserRepository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedUserRepository.class);
+
+    private static final String SEGMENT_PREFIX = "users-";
+    private static final String SEGMENT_SUFFIX = ".store";
+    private static final String LOCK_FILE = "lock";
+    private static final int HEADER_BYTES = RecordSegments.HEADER_BYTES;
+    // id, created at, name length, email length
+    private static final int FIXED_BYTES = 4 + 8 + 2 + 2;
+
+    private static EmbeddedUserRepository shared;
+
+    /**
+     * One segment file; index + 1 is the high half of the locations that point into it
+     */
+    private static final class Segment {
+        final int index;
+        final MappedByteBuffer buffer;
+
+        Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * One stripe of the email index: linear probing over (fingerprint << 32 | id) slots, 0 is empty
+     */
+    private static final class EmailStripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        long[] slots = new long[64];
+        int size;
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final boolean fsync;
+    private final EmailStripe[] stripes;
+    private final int stripeMask;
+
+    // Guarded by appendLock: ids are assigned and records appended in the same order. Not
+    // striped: recovery stops at the first incomplete record of a segment, so records must
+    // be completed in position order; the stripes cover everything else a writer does
+    private final Object appendLock = new Object();
+    private Segment writeSegment;
+    private int writePos;
+    private int nextId = 1;
+
+    // Written under appendLock and published by the volatile writes, read without locks
+    private volatile Segment[] segments = new Segment[0];
+    private volatile long[] locations = new long[1024];
+    private volatile int maxId;
+    private volatile int users;
+
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private volatile boolean open;
+
+    public EmbeddedUserRepository(Path directory, int segmentBytes, long maxBytes, boolean fsync, int stripes) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        this.fsync = fsync;
+        // A power of two, so the stripe is the high bits of the email hash (the low bits are the fingerprint)
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, Math.min(1024, stripes)) - 1);
+        this.stripes = new EmailStripe[1 << bits];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new EmailStripe();
+        }
+        this.stripeMask = this.stripes.length - 1;
+    }
+
+    /**
+     * The store configured by USERS_EMBEDDED_* settings, opened on first use
+     * @throws UncheckedIOException if it cannot be opened
+     */
+    static synchronized EmbeddedUserRepository shared() {
+        if (shared == null) {
+            EmbeddedUserRepository repository = fromEnvironment();
+            try {
+                repository.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Embedded user store could not be opened", e);
+            }
+            shared = repository;
+        }
+        return shared;
+    }
+
+    public static EmbeddedUserRepository fromEnvironment() {
+        return new EmbeddedUserRepository(
+            Paths.get(EnvConfig.getString("USERS_EMBEDDED_DIR",
+                                          Paths.get(System.getProperty("java.io.tmpdir"), "users-store").toString())),
+            EnvConfig.getInt("USERS_EMBEDDED_SEGMENT_BYTES", 64 * 1024 * 1024),
+            EnvConfig.getLong("USERS_EMBEDDED_MAX_BYTES", 4L * 1024 * 1024 * 1024),
+            EnvConfig.getBoolean("USERS_EMBEDDED_FSYNC", false),
+            EnvConfig.getInt("USERS_EMBEDDED_STRIPES", 64));
+    }
+
+    /**
+     * Lock the directory and rebuild the indexes from the segments
+     */
+    public synchronized void open() throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another instance in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Embedded user store " + directory + " is in use by another instance");
+        }
+
+        List<Long> found = RecordSegments.list(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        synchronized (appendLock) {
+            for (int i = 0; i < found.size(); i++) {
+                if (found.get(i) != i) {
+                    throw new IOException("Embedded user store segment " + i + " is missing in " + directory);
+                }
+                Segment segment = map(i);
+                segments = append(segments, segment);
+                writeSegment = segment;
+                writePos = recover(segment);
+            }
+            if (writeSegment == null) {
+                writeSegment = map(0);
+                segments = append(segments, writeSegment);
+                writePos = 0;
+            } else {
+                RecordSegments.zero(writeSegment.buffer, writePos);
+            }
+        }
+        open = true;
+        LOGGER.info("Embedded user store opened in {}: {} users in {} segments ({}ms)",
+                    directory, users, segments.length, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Index the complete records of a segment
+     * @return the position after the last one
+     */
+    private int recover(Segment segment) {
+        int pos = 0;
+        while (true) {
+            int end = RecordSegments.recordEnd(segment.buffer, pos, FIXED_BYTES);
+            if (end < 0) {
+                return pos;
+            }
+            long location = location(segment.index, pos);
+            User user = read(segment, pos);
+            publish(user.getId(), location);
+            nextId = Math.max(nextId, user.getId() + 1);
+            long hash = ShardRing.hash(user.getEmail());
+            EmailStripe stripe = stripeOf(hash);
+            if (find(stripe, (int) hash, user.getEmail().getBytes(StandardCharsets.UTF_8)) == 0) {
+                insertSlot(stripe, (int) hash, user.getId());
+            } else {
+                LOGGER.warn("Embedded user store has a second record for the email of user {}", user.getId());
+            }
+            pos = end;
+        }
+    }
+
+    @Override
+    public User findById(int id, boolean primaryRequired) {
+        int max = maxId;
+        if (id <= 0 || id > max) {
+            return null;
+        }
+        long location = locations[id];
+        return location == 0 ? null : read(location);
+    }
+
+    @Override
+    public User findByEmail(String email, boolean primaryRequired) {
+        long hash = ShardRing.hash(email);
+        EmailStripe stripe = stripeOf(hash);
+        int id;
+        stripe.lock.readLock().lock();
+        try {
+            id = find(stripe, (int) hash, email.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+        return id == 0 ? null : findById(id, primaryRequired);
+    }
+
+    @Override
+    public boolean readPage(int afterId, int limit, List<User> page, boolean primaryRequired) {
+        page.clear();
+        int max = maxId;
+        long[] index = locations;
+        for (int id = Math.max(0, afterId) + 1; id <= max; id++) {
+            if (index[id] == 0) {
+                continue;
+            }
+            if (page.size() == limit) {
+                return true;
+            }
+            page.add(read(index[id]));
+        }
+        return false;
+    }
+
+    @Override
+    public void scan(boolean primaryRequired, Visitor visitor) throws IOException {
+        int max = maxId;
+        long[] index = locations;
+        for (int id = 1; id <= max; id++) {
+            if (index[id] != 0) {
+                visitor.visit(read(index[id]));
+            }
+        }
+    }
+
+    @Override
+    public User insert(User user) throws SQLException {
+        if (!user.fitsColumns()) {
+            throw new SQLException("value too long for type character varying(" + User.MAX_FIELD_LENGTH + ")", "22001");
+        }
+        String name = user.getName();
+        String email = user.getEmail();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(FIXED_BYTES + nameBytes.length + emailBytes.length);
+        payload.position(12);
+        payload.putShort((short) nameBytes.length).put(nameBytes).putShort((short) emailBytes.length).put(emailBytes);
+
+        long hash = ShardRing.hash(email);
+        EmailStripe stripe = stripeOf(hash);
+        int id;
+        long createdAt;
+        Segment written;
+        // The stripe lock makes the duplicate check and the insert atomic for this email
+        stripe.lock.writeLock().lock();
+        try {
+            if (find(stripe, (int) hash, emailBytes) != 0) {
+                throw UserRepository.duplicateEmail();
+            }
+            synchronized (appendLock) {
+                if (!open) {
+                    throw new SQLException("Embedded user store is closed", "08003");
+                }
+                id = nextId;
+                createdAt = System.currentTimeMillis();
+                payload.putInt(0, id).putLong(4, createdAt);
+                int checksum = RecordSegments.checksum(payload.array());
+                if (writePos + HEADER_BYTES + payload.capacity() > segmentBytes) {
+                    rotate();
+                }
+                written = writeSegment;
+                int pos = writePos;
+                writePos = RecordSegments.write(written.buffer, pos, payload.array(), checksum);
+                nextId = id + 1;
+                publish(id, location(written.index, pos));
+            }
+            insertSlot(stripe, (int) hash, id);
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+        if (fsync) {
+            written.buffer.force();
+        }
+        return new User(id, name, email, new Timestamp(createdAt).toString());
+    }
+
+    /**
+     * Start the next segment; called with appendLock held
+     */
+    private void rotate() throws SQLException {
+        if ((long) (segments.length + 1) * segmentBytes > maxBytes) {
+            throw new SQLException("Embedded user store is full (" + maxBytes + " bytes)", "53100");
+        }
+        if (fsync) {
+            writeSegment.buffer.force();
+        }
+        try {
+            writeSegment = map(writeSegment.index + 1);
+        } catch (IOException e) {
+            throw new SQLException("Embedded user store could not add a segment: " + e.getMessage(), "58030", e);
+        }
+        // Published before any location that points into it
+        segments = append(segments, writeSegment);
+        writePos = 0;
+    }
+
+    /**
+     * Make a record readable by id; called with appendLock held (or while opening)
+     */
+    private void publish(int id, long location) {
+        long[] index = locations;
+        if (id >= index.length) {
+            index = Arrays.copyOf(index, Math.max(id + 1, index.length * 2));
+            index[id] = location;
+            locations = index;
+        } else {
+            index[id] = location;
+        }
+        users++;
+        // Readers check maxId first, so this write publishes the slot and the array
+        maxId = Math.max(maxId, id);
+    }
+
+    private EmailStripe stripeOf(long hash) {
+        return stripes[(int) (hash >>> 32) & stripeMask];
+    }
+
+    /**
+     * Id of the user with this email in the stripe, or 0; called with the stripe locked
+     */
+    private int find(EmailStripe stripe, int fingerprint, byte[] email) {
+        long[] slots = stripe.slots;
+        int mask = slots.length - 1;
+        for (int i = fingerprint & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == 0) {
+                return 0;
+            }
+            if ((int) (slot >>> 32) == fingerprint && emailEquals(locations[(int) slot], email)) {
+                return (int) slot;
+            }
+        }
+    }
+
+    /**
+     * Add an id to the stripe, doubling the table above 3/4 full; called with the stripe write-locked
+     */
+    private static void insertSlot(EmailStripe stripe, int fingerprint, int id) {
+        if ((stripe.size + 1) * 4 > stripe.slots.length * 3) {
+            long[] old = stripe.slots;
+            long[] grown = new long[old.length * 2];
+            for (long slot : old) {
+                if (slot != 0) {
+                    place(grown, slot);
+                }
+            }
+            stripe.slots = grown;
+        }
+        place(stripe.slots, ((long) fingerprint << 32) | (id & 0xFFFFFFFFL));
+        stripe.size++;
+    }
+
+    private static void place(long[] slots, long slot) {
+        int mask = slots.length - 1;
+        int i = (int) (slot >>> 32) & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = slot;
+    }
+
+    /**
+     * Compare a stored email with UTF-8 bytes without decoding it
+     */
+    private boolean emailEquals(long location, byte[] email) {
+        ByteBuffer buffer = segments[(int) (location >>> 32) - 1].buffer;
+        int pos = (int) location + HEADER_BYTES + 12;
+        pos += 2 + buffer.getShort(pos);
+        if (buffer.getShort(pos) != email.length) {
+            return false;
+        }
+        pos += 2;
+        for (int i = 0; i < email.length; i++) {
+            if (buffer.get(pos + i) != email[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private User read(long location) {
+        return read(segments[(int) (location >>> 32) - 1], (int) location);
+    }
+
+    private static User read(Segment segment, int pos) {
+        ByteBuffer in = segment.buffer.duplicate();
+        in.position(pos + HEADER_BYTES);
+        int id = in.getInt();
+        long createdAt = in.getLong();
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        byte[] email = new byte[in.getShort()];
+        in.get(email);
+        return new User(id, new String(name, StandardCharsets.UTF_8), new String(email, StandardCharsets.UTF_8),
+                        new Timestamp(createdAt).toString());
+    }
+
+    private static long location(int segment, int pos) {
+        // 0 means no record, so segment numbers start at 1
+        return ((long) (segment + 1) << 32) | pos;
+    }
+
+    private Segment map(int index) throws IOException {
+        Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        return new Segment(index, RecordSegments.map(path, segmentBytes));
+    }
+
+    private static Segment[] append(Segment[] segments, Segment segment) {
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = segment;
+        return grown;
+    }
+
+    @Override
+    public long count() {
+        return users;
+    }
+
+    @Override
+    public String checkHealth() {
+        return open ? null : "Embedded user store is closed";
+    }
+
+    @Override
+    public boolean usesDatabase() {
+        return false;
+    }
+
+    @Override
+    public String getStatsJson() {
+        Segment[] current = segments;
+        return String.format("{\"engine\":\"embedded\",\"directory\":\"%s\",\"users\":%d,\"segments\":%d," +
+                             "\"mappedBytes\":%d,\"stripes\":%d,\"fsync\":%s}",
+            directory.toString().replace("\\", "\\\\").replace("\"", "\\\""), users, current.length,
+            (long) current.length * segmentBytes, stripes.length, fsync);
+    }
+
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        }
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to release the embedded user store lock", e);
+        }
+        synchronized (EmbeddedUserRepository.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        LOGGER.info("Embedded user store closed with {} users", users);
+    }
+}
@@ -0,0 +1,91 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for reading typed configuration values from environment variables.
+ * A JVM system property with the same name takes precedence, which lets embedded
+ * runs (load tests, benchmarks) configure the application without a custom environment.
+ */
+public final class EnvConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnvConfig.class);
+
+    private EnvConfig() {}
+
+    private static String lookup(String name) {
+        String value = System.getProperty(name);
+        return value != null ? value : System.getenv(name);
+    }
+
+    /**
+     * Read a string setting
+     * @param name environment variable name
+     * @param defaultValue value used when the variable is unset
+     * @return configured value
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = lookup(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Read an integer setting, falling back to the default when unset or malformed
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = lookup(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid integer for {}: '{}', using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Read a long setting, falling back to the default when unset or malformed
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = lookup(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid number for {}: '{}', using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Read a decimal setting, falling back to the default when unset or malformed
+     */
+    public static double getDouble(String name, double defaultValue) {
+        String value = lookup(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid number for {}: '{}', using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Read a boolean setting ("true", "1", "yes" and "on" are treated as true)
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = lookup(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        String v = value.trim().toLowerCase();
+        return v.equals("true") || v.equals("1") || v.equals("yes") || v.equals("on");
+    }
+}
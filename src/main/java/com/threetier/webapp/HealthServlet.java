@@ -5,58 +5,109 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Date;
-import java.util.logging.Logger;
-import java.util.logging.Level;
+import java.util.Locale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Health check servlet for monitoring application and database status
+ * Health check servlet for monitoring application and database status.
+ * Database health is probed in the background by HealthMonitor; every endpoint here
+ * answers from the latest snapshot and never touches the database itself.
  */
 public class HealthServlet extends HttpServlet {
-    private static final Logger LOGGER = Logger.getLogger(HealthServlet.class.getName());
-    
+    private static final Logger LOGGER = LoggerFactory.getLogger(HealthServlet.class);
+
+    private static final String DISABLED = "{\"enabled\":false}";
+
+    private UserRepository repository;
+    private HealthMonitor monitor;
+
+    @Override
+    public void init() throws ServletException {
+        try {
+            repository = UserRepository.shared();
+        } catch (RuntimeException e) {
+            throw new ServletException("User storage could not be opened", e);
+        }
+        monitor = new HealthMonitor(repository, EnvConfig.getLong("HEALTH_CHECK_INTERVAL_MS", 10_000));
+        monitor.start();
+        // Become ready as soon as migrations finish rather than at the next scheduled check
+        SchemaMigrator.shared().onReady(monitor::checkNow);
+    }
+
+    @Override
+    public void destroy() {
+        monitor.stop();
+    }
+
     /**
-     * GET /health - Health check endpoint
+     * GET /health, /api/system-health - Full health report
+     * GET /health/live - Liveness: the application is running
+     * GET /health/ready - Readiness: schema migrations completed and the last database check passed and is recent
      */
     @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) 
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        
+
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
         response.setHeader("Access-Control-Allow-Origin", "*");
-        
+        response.setHeader("Cache-Control", "no-store");
+
+        String path = request.getServletPath();
+        if ("/health/live".equals(path)) {
+            sendLiveness(response);
+        } else if ("/health/ready".equals(path)) {
+            sendReadiness(response);
+        } else {
+            sendFullReport(response);
+        }
+    }
+
+    /**
+     * Liveness only reports that the application is serving requests
+     */
+    private void sendLiveness(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().write(String.format("{\"status\":\"UP\",\"timestamp\":\"%s\"}", new Date()));
+    }
+
+    /**
+     * Readiness reflects the migration state and the cached database snapshot
+     */
+    private void sendReadiness(HttpServletResponse response) throws IOException {
+        HealthMonitor.Snapshot db = monitor.getSnapshot();
+        SchemaMigrator migrator = SchemaMigrator.shared();
+        boolean ready = migrator.isReady() && monitor.isReady();
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.getWriter().write(String.format(
+            "{\"status\":\"%s\",\"database\":\"%s\",\"schema\":\"%s\",\"circuitBreaker\":\"%s\",\"lastCheckAgeMs\":%d}",
+            ready ? "UP" : "DOWN", db.getStatus(), migrator.getState(),
+            DatabaseConnection.getCircuitBreaker().getState(), db.getAgeMs()));
+    }
+
+    /**
+     * Full report with application, database, pool and cache details
+     */
+    private void sendFullReport(HttpServletResponse response) throws IOException {
         // Check application status
         String appStatus = "UP";
         String appDetails = "Application is running normally";
-        
-        // Check database status
-        boolean dbHealthy = false;
-        String dbStatus = "DOWN";
-        String dbDetails = "Database connection failed";
-        
-        try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement()) {
-            // Test actual table access instead of just connection
-            stmt.executeQuery("SELECT COUNT(*) FROM users");
-            dbHealthy = true;
-            dbStatus = "UP";
-            dbDetails = "Database connection and permissions verified";
-        } catch (SQLException e) {
-            LOGGER.log(Level.WARNING, "Database health check failed", e);
-            dbHealthy = false;
-            dbStatus = "DEGRADED";
-            dbDetails = "Database error: " + e.getMessage();
-        }
-        
+
+        // Database status comes from the background monitor
+        HealthMonitor.Snapshot db = monitor.getSnapshot();
+        boolean dbHealthy = monitor.isReady();
+        SchemaMigrator migrator = SchemaMigrator.shared();
+
         // Determine overall status
-        String overallStatus = dbHealthy ? "UP" : "DEGRADED";
-        
+        String overallStatus = dbHealthy && migrator.isReady() ? "UP" : "DEGRADED";
+
+        // The embedded store has no connections, pools, replicas or shards
+        boolean database = repository.usesDatabase();
+
         // Build health response
-        String healthJson = String.format(
+        String healthJson = String.format(Locale.ROOT,
             "{" +
             "\"status\":\"%s\"," +
             "\"timestamp\":\"%s\"," +
@@ -67,24 +118,48 @@ public class HealthServlet extends HttpServlet {
             "\"database\":{" +
                 "\"status\":\"%s\"," +
                 "\"details\":\"%s\"," +
-                "\"connection\":\"%s\"" +
+                "\"connection\":\"%s\"," +
+                "\"lastCheckLatencyMs\":%.3f," +
+                "\"lastCheckAgeMs\":%d," +
+                "\"checkIntervalMs\":%d," +
+                "\"storage\":%s," +
+                "\"pool\":%s," +
+                "\"replicas\":%s," +
+                "\"shards\":%s," +
+                "\"circuitBreaker\":%s," +
+                "\"writeJournal\":%s," +
+                "\"schema\":%s" +
             "}," +
+            "\"cache\":%s," +
             "\"version\":\"1.0.0\"," +
             "\"environment\":\"production\"" +
             "}",
             overallStatus, new Date().toString(),
             appStatus, appDetails,
-            dbStatus, dbDetails, DatabaseConnection.getConnectionInfo()
+            db.getStatus(), escapeJson(db.getDetails()), database ? DatabaseConnection.getConnectionInfo() : "embedded",
+            db.getLatencyMs(), db.getAgeMs(), monitor.getIntervalMs(),
+            repository.getStatsJson(),
+            database ? DatabaseConnection.getPoolStatsJson() : DISABLED,
+            database ? DatabaseConnection.getReplicaStatsJson() : DISABLED,
+            database ? DatabaseConnection.getShardStatsJson() : DISABLED,
+            DatabaseConnection.getCircuitBreakerJson(),
+            UserWriteJournal.getActiveStatsJson(),
+            migrator.getStatusJson(),
+            UserReadCache.shared().getStatsJson()
         );
-        
+
         // Set appropriate HTTP status
-        if (!dbHealthy) {
+        if (!dbHealthy || migrator.getState() == SchemaMigrator.State.FAILED) {
             response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
         } else {
             response.setStatus(HttpServletResponse.SC_OK);
         }
-        
+
         response.getWriter().write(healthJson);
-        LOGGER.info("Health check completed - Overall status: " + overallStatus);
+        LOGGER.debug("Health check served - Overall status: {}", overallStatus);
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", " ").replace("\r", " ");
     }
 }
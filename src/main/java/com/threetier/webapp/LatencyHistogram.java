@@ -0,0 +1,73 @@
+package com.threetier.webapp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram with lock-free, allocation-free recording.
+ *
+ * Each bucket is a striped LongAdder, so concurrent request threads do not contend on a
+ * single counter. Bucket counts are stored non-cumulatively and only summed when the
+ * histogram is rendered.
+ */
+public class LatencyHistogram {
+
+    /** Bucket upper bounds in seconds, as exposed to Prometheus */
+    static final double[] BUCKETS_SECONDS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private static final long[] BUCKETS_NANOS = new long[BUCKETS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+            BUCKETS_NANOS[i] = (long) (BUCKETS_SECONDS[i] * 1_000_000_000L);
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS_SECONDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record one observation
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BUCKETS_NANOS.length && nanos > BUCKETS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Append this histogram in Prometheus text format
+     * @param name metric name without suffix
+     * @param labels label pairs without braces (e.g. {@code endpoint="x"}), may be empty
+     */
+    public void writePrometheus(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+            cumulative += buckets[i].sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"")
+               .append(BUCKETS_SECONDS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += buckets[BUCKETS_SECONDS.length].sum();
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
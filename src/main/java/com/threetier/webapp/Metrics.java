@@ -0,0 +1,375 @@
+package com.threetier.webapp;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Application metrics registry rendered in Prometheus text format.
+ *
+ * All per-endpoint state is allocated up front (or once per HTTP status code), so the
+ * request hot path only increments striped LongAdder counters and never locks or allocates.
+ */
+public final class Metrics {
+
+    /**
+     * Instrumented endpoints
+     */
+    public enum Endpoint {
+        USERS_LIST("GET", "/api/users"),
+        USERS_CREATE("POST", "/api/users"),
+        USERS_GET("GET", "/api/users/{id}"),
+        USERS_BY_EMAIL("GET", "/api/users?email"),
+        USERS_SEARCH("GET", "/api/users/search"),
+        USERS_COUNT("GET", "/api/users/count"),
+        USERS_EXPORT("GET", "/api/users/export"),
+        USERS_BULK("POST", "/api/users/bulk"),
+        USERS_STREAM("GET", "/api/users/stream"),
+        USERS_BATCH("POST", "/api/batch"),
+        HEALTH("GET", "/health"),
+        OTHER("*", "other");
+
+        final String method;
+        final String path;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram dbTime = new LatencyHistogram();
+        final LatencyHistogram serializationTime = new LatencyHistogram();
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder shed = new LongAdder();
+        final AtomicReferenceArray<LongAdder> byStatus = new AtomicReferenceArray<>(600);
+
+        Endpoint(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        String labels() {
+            return "method=\"" + method + "\",endpoint=\"" + path + "\"";
+        }
+    }
+
+    // Users change stream (SSE)
+    private static final AtomicLong STREAM_CLIENTS = new AtomicLong();
+    private static final LongAdder STREAM_EVENTS = new LongAdder();
+    private static final LongAdder STREAM_OVERFLOWS = new LongAdder();
+
+    // Database resilience
+    private static final LongAdder DB_RETRIES = new LongAdder();
+
+    // Local write journal
+    private static final AtomicLong JOURNAL_PENDING = new AtomicLong();
+    private static final LongAdder JOURNAL_APPENDED = new LongAdder();
+    private static final LongAdder JOURNAL_REPLAYED = new LongAdder();
+    private static final LongAdder JOURNAL_DUPLICATES = new LongAdder();
+    private static final LongAdder JOURNAL_REJECTED = new LongAdder();
+
+    private Metrics() {}
+
+    /**
+     * Record a completed request
+     */
+    public static void recordRequest(Endpoint endpoint, int status, long nanos) {
+        endpoint.requests.increment();
+        endpoint.latency.record(nanos);
+        if (status >= 400) {
+            endpoint.errors.increment();
+        }
+        if (status >= 100 && status < 600) {
+            LongAdder counter = endpoint.byStatus.get(status);
+            if (counter == null) {
+                endpoint.byStatus.compareAndSet(status, null, new LongAdder());
+                counter = endpoint.byStatus.get(status);
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * Record a request that shared another request's in-flight database lookup
+     */
+    public static void recordCoalesced(Endpoint endpoint) {
+        endpoint.coalesced.increment();
+    }
+
+    /**
+     * Record a request rejected by admission control
+     */
+    public static void recordShed(Endpoint endpoint) {
+        endpoint.shed.increment();
+    }
+
+    /**
+     * Record a database call retried after a transient failure
+     */
+    public static void recordDbRetry() {
+        DB_RETRIES.increment();
+    }
+
+    /**
+     * Record a user accepted into the local write journal
+     */
+    public static void recordJournalAppend() {
+        JOURNAL_APPENDED.increment();
+    }
+
+    /**
+     * Record a replayed journal batch
+     */
+    public static void recordJournalReplay(int inserted, int duplicates, int rejected) {
+        JOURNAL_REPLAYED.add(inserted);
+        JOURNAL_DUPLICATES.add(duplicates);
+        JOURNAL_REJECTED.add(rejected);
+        JOURNAL_PENDING.addAndGet(-(inserted + duplicates + rejected));
+    }
+
+    public static void adjustJournalPending(long delta) {
+        JOURNAL_PENDING.addAndGet(delta);
+    }
+
+    /**
+     * Record a user change event fanned out to stream clients
+     */
+    public static void recordStreamEvent() {
+        STREAM_EVENTS.increment();
+    }
+
+    /**
+     * Record a stream client disconnected because its event buffer was full
+     */
+    public static void recordStreamOverflow() {
+        STREAM_OVERFLOWS.increment();
+    }
+
+    public static void recordStreamClientOpened() {
+        STREAM_CLIENTS.incrementAndGet();
+    }
+
+    public static void recordStreamClientClosed() {
+        STREAM_CLIENTS.decrementAndGet();
+    }
+
+    /**
+     * Record time spent in the database (connection, query and row mapping)
+     */
+    public static void recordDbTime(Endpoint endpoint, long nanos) {
+        endpoint.dbTime.record(nanos);
+    }
+
+    /**
+     * Record time spent serializing the response body
+     */
+    public static void recordSerializationTime(Endpoint endpoint, long nanos) {
+        endpoint.serializationTime.record(nanos);
+    }
+
+    /**
+     * Render all metrics in Prometheus text exposition format
+     */
+    public static String renderPrometheus() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+
+        out.append("# HELP http_requests_total Completed HTTP requests\n");
+        out.append("# TYPE http_requests_total counter\n");
+        for (Endpoint e : Endpoint.values()) {
+            out.append("http_requests_total{").append(e.labels()).append("} ").append(e.requests.sum()).append('\n');
+        }
+
+        out.append("# HELP http_request_errors_total Requests answered with a 4xx or 5xx status\n");
+        out.append("# TYPE http_request_errors_total counter\n");
+        for (Endpoint e : Endpoint.values()) {
+            out.append("http_request_errors_total{").append(e.labels()).append("} ").append(e.errors.sum()).append('\n');
+        }
+
+        out.append("# HELP http_responses_total Responses by HTTP status\n");
+        out.append("# TYPE http_responses_total counter\n");
+        for (Endpoint e : Endpoint.values()) {
+            for (int status = 100; status < 600; status++) {
+                LongAdder counter = e.byStatus.get(status);
+                if (counter != null) {
+                    out.append("http_responses_total{").append(e.labels()).append(",status=\"").append(status)
+                       .append("\"} ").append(counter.sum()).append('\n');
+                }
+            }
+        }
+
+        out.append("# HELP http_requests_coalesced_total Requests answered by another request's in-flight lookup\n");
+        out.append("# TYPE http_requests_coalesced_total counter\n");
+        for (Endpoint e : Endpoint.values()) {
+            long coalesced = e.coalesced.sum();
+            if (coalesced > 0) {
+                out.append("http_requests_coalesced_total{").append(e.labels()).append("} ").append(coalesced).append('\n');
+            }
+        }
+
+        out.append("# HELP http_requests_shed_total Requests rejected by admission control\n");
+        out.append("# TYPE http_requests_shed_total counter\n");
+        for (Endpoint e : Endpoint.values()) {
+            long shed = e.shed.sum();
+            if (shed > 0) {
+                out.append("http_requests_shed_total{").append(e.labels()).append("} ").append(shed).append('\n');
+            }
+        }
+        AdmissionController admission = AdmissionController.shared();
+        gauge(out, "admission_limit", "Current adaptive concurrency limit", "", admission.getLimit());
+        gauge(out, "admission_in_flight", "Admitted requests in progress", "", admission.getInFlight());
+        gauge(out, "admission_queued", "Requests waiting for admission", "", admission.getQueued());
+
+        writeHistograms(out, "http_request_duration_seconds", "Request latency", Phase.TOTAL);
+        writeHistograms(out, "http_request_db_seconds", "Time spent in the database per request", Phase.DB);
+        writeHistograms(out, "http_request_serialization_seconds", "Time spent serializing responses", Phase.SERIALIZATION);
+
+        out.append("# HELP log_events_dropped_total Log events dropped by the async appender\n");
+        out.append("# TYPE log_events_dropped_total counter\n");
+        out.append("log_events_dropped_total ").append(DroppingAsyncAppender.getDroppedCount()).append('\n');
+
+        gauge(out, "users_stream_clients", "Connected users change stream clients", "", STREAM_CLIENTS.get());
+        out.append("# HELP users_stream_events_total User change events fanned out to stream clients\n");
+        out.append("# TYPE users_stream_events_total counter\n");
+        out.append("users_stream_events_total ").append(STREAM_EVENTS.sum()).append('\n');
+        out.append("# HELP users_stream_overflows_total Stream clients disconnected with a full event buffer\n");
+        out.append("# TYPE users_stream_overflows_total counter\n");
+        out.append("users_stream_overflows_total ").append(STREAM_OVERFLOWS.sum()).append('\n');
+
+        out.append("# HELP db_retries_total Database calls retried after a transient failure\n");
+        out.append("# TYPE db_retries_total counter\n");
+        out.append("db_retries_total ").append(DB_RETRIES.sum()).append('\n');
+        CircuitBreaker breaker = DatabaseConnection.getCircuitBreaker();
+        gauge(out, "db_circuit_breaker_state", "Primary circuit breaker state (0 closed, 1 open, 2 half-open)", "",
+              breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : breaker.getState() == CircuitBreaker.State.OPEN ? 1 : 2);
+        out.append("# HELP db_circuit_breaker_rejections_total Database calls failed fast by the open breaker\n");
+        out.append("# TYPE db_circuit_breaker_rejections_total counter\n");
+        out.append("db_circuit_breaker_rejections_total ").append(breaker.getRejectedCount()).append('\n');
+
+        gauge(out, "users_journal_pending", "Journaled users awaiting replay into the database", "", JOURNAL_PENDING.get());
+        out.append("# HELP users_journal_records_total Journaled users by outcome\n");
+        out.append("# TYPE users_journal_records_total counter\n");
+        out.append("users_journal_records_total{outcome=\"appended\"} ").append(JOURNAL_APPENDED.sum()).append('\n');
+        out.append("users_journal_records_total{outcome=\"replayed\"} ").append(JOURNAL_REPLAYED.sum()).append('\n');
+        out.append("users_journal_records_total{outcome=\"duplicate\"} ").append(JOURNAL_DUPLICATES.sum()).append('\n');
+        out.append("users_journal_records_total{outcome=\"rejected\"} ").append(JOURNAL_REJECTED.sum()).append('\n');
+
+        writePool(out);
+        writeJvm(out);
+        return out.toString();
+    }
+
+    private enum Phase { TOTAL, DB, SERIALIZATION }
+
+    private static void writeHistograms(StringBuilder out, String name, String help, Phase phase) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        for (Endpoint e : Endpoint.values()) {
+            LatencyHistogram h = phase == Phase.TOTAL ? e.latency : phase == Phase.DB ? e.dbTime : e.serializationTime;
+            if (phase == Phase.TOTAL || h.getCount() > 0) {
+                h.writePrometheus(out, name, e.labels());
+            }
+        }
+    }
+
+    /**
+     * Pool gauges for the primary pool, or for every shard's pool when users are sharded
+     */
+    private static void writePool(StringBuilder out) {
+        if (UserRepository.isEmbedded()) {
+            return;
+        }
+        List<ConnectionPool> pools = DatabaseConnection.getWritePools();
+        if (pools.isEmpty()) {
+            return;
+        }
+        header(out, "db_pool_active_connections", "Connections currently borrowed", "gauge");
+        for (ConnectionPool pool : pools) {
+            sample(out, "db_pool_active_connections", poolLabels(pool), pool.getActive());
+        }
+        header(out, "db_pool_idle_connections", "Connections idle in the pool", "gauge");
+        for (ConnectionPool pool : pools) {
+            sample(out, "db_pool_idle_connections", poolLabels(pool), pool.getIdle());
+        }
+        header(out, "db_pool_waiters", "Threads waiting for a connection", "gauge");
+        for (ConnectionPool pool : pools) {
+            sample(out, "db_pool_waiters", poolLabels(pool), pool.getWaiters());
+        }
+        header(out, "db_pool_max_connections", "Configured maximum pool size", "gauge");
+        for (ConnectionPool pool : pools) {
+            sample(out, "db_pool_max_connections", poolLabels(pool), pool.getMaxSize());
+        }
+
+        header(out, "db_pool_acquire_seconds", "Time to borrow a connection from the pool", "histogram");
+        for (ConnectionPool pool : pools) {
+            String labels = poolLabels(pool);
+            long[] counts = pool.getAcquireHistogram();
+            long cumulative = 0;
+            for (int i = 0; i < ConnectionPool.ACQUIRE_BUCKETS_MS.length; i++) {
+                cumulative += counts[i];
+                out.append("db_pool_acquire_seconds_bucket{").append(labels).append(",le=\"")
+                   .append(ConnectionPool.ACQUIRE_BUCKETS_MS[i] / 1000.0).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts[counts.length - 1];
+            out.append("db_pool_acquire_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append("db_pool_acquire_seconds_sum{").append(labels).append("} ")
+               .append(pool.getAcquireNanosTotal() / 1e9).append('\n');
+            out.append("db_pool_acquire_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static String poolLabels(ConnectionPool pool) {
+        return "pool=\"" + pool.getName() + "\"";
+    }
+
+    private static void writeJvm(StringBuilder out) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        out.append("# HELP jvm_memory_bytes_used Used memory by area\n");
+        out.append("# TYPE jvm_memory_bytes_used gauge\n");
+        out.append("jvm_memory_bytes_used{area=\"heap\"} ").append(heap.getUsed()).append('\n');
+        out.append("jvm_memory_bytes_used{area=\"nonheap\"} ").append(nonHeap.getUsed()).append('\n');
+        out.append("# HELP jvm_memory_bytes_committed Committed memory by area\n");
+        out.append("# TYPE jvm_memory_bytes_committed gauge\n");
+        out.append("jvm_memory_bytes_committed{area=\"heap\"} ").append(heap.getCommitted()).append('\n');
+        out.append("jvm_memory_bytes_committed{area=\"nonheap\"} ").append(nonHeap.getCommitted()).append('\n');
+        gauge(out, "jvm_memory_bytes_max", "Maximum heap size", "area=\"heap\"", heap.getMax());
+
+        out.append("# HELP jvm_gc_collection_seconds Time spent in garbage collection\n");
+        out.append("# TYPE jvm_gc_collection_seconds summary\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = "gc=\"" + gc.getName() + "\"";
+            out.append("jvm_gc_collection_seconds_count{").append(labels).append("} ")
+               .append(Math.max(0, gc.getCollectionCount())).append('\n');
+            out.append("jvm_gc_collection_seconds_sum{").append(labels).append("} ")
+               .append(Math.max(0, gc.getCollectionTime()) / 1000.0).append('\n');
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge(out, "jvm_threads_current", "Live threads", "", threads.getThreadCount());
+        gauge(out, "jvm_threads_daemon", "Live daemon threads", "", threads.getDaemonThreadCount());
+        gauge(out, "process_uptime_seconds", "JVM uptime", "",
+              ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String labels, double value) {
+        header(out, name, help, "gauge");
+        sample(out, name, labels, value);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,120 @@
+package com.threetier.webapp;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Records request count, status and latency for every API and health request, and writes
+ * the sampled request log line. Async requests are recorded when the async cycle completes.
+ */
+public class MetricsFilter implements Filter {
+
+    /**
+     * Request attribute holding the resolved endpoint, so servlets can record phase timings
+     */
+    public static final String ENDPOINT_ATTRIBUTE = MetricsFilter.class.getName() + ".endpoint";
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        Metrics.Endpoint endpoint = resolve(request);
+        request.setAttribute(ENDPOINT_ATTRIBUTE, endpoint);
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        complete(endpoint, response, start);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                complete(endpoint, response, start);
+            }
+        }
+    }
+
+    private static void complete(Metrics.Endpoint endpoint, HttpServletResponse response, long start) {
+        long nanos = System.nanoTime() - start;
+        int status = response.getStatus();
+        Metrics.recordRequest(endpoint, status, nanos);
+        RequestLog.record(endpoint, status, nanos);
+    }
+
+    /**
+     * Map a request to the endpoint it is counted under
+     */
+    static Metrics.Endpoint resolve(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        String method = request.getMethod();
+        if ("/api/users".equals(servletPath)) {
+            String pathInfo = request.getPathInfo();
+            if (pathInfo == null || "/".equals(pathInfo)) {
+                if ("GET".equals(method) && request.getParameter("email") != null) return Metrics.Endpoint.USERS_BY_EMAIL;
+                if ("GET".equals(method)) return Metrics.Endpoint.USERS_LIST;
+                if ("POST".equals(method)) return Metrics.Endpoint.USERS_CREATE;
+            } else if ("/export".equals(pathInfo) && "GET".equals(method)) {
+                return Metrics.Endpoint.USERS_EXPORT;
+            } else if ("/bulk".equals(pathInfo) && "POST".equals(method)) {
+                return Metrics.Endpoint.USERS_BULK;
+            } else if ("/search".equals(pathInfo) && "GET".equals(method)) {
+                return Metrics.Endpoint.USERS_SEARCH;
+            } else if ("/count".equals(pathInfo) && "GET".equals(method)) {
+                return Metrics.Endpoint.USERS_COUNT;
+            } else if ("/stream".equals(pathInfo) && "GET".equals(method)) {
+                return Metrics.Endpoint.USERS_STREAM;
+            } else if ("GET".equals(method) && UserServlet.parseUserId(pathInfo) > 0) {
+                return Metrics.Endpoint.USERS_GET;
+            }
+        } else if ("/api/batch".equals(servletPath) && "POST".equals(method)) {
+            return Metrics.Endpoint.USERS_BATCH;
+        } else if (servletPath.startsWith("/health") || "/api/system-health".equals(servletPath)) {
+            return Metrics.Endpoint.HEALTH;
+        }
+        return Metrics.Endpoint.OTHER;
+    }
+
+    /**
+     * Endpoint resolved for the current request, or OTHER when the filter did not run
+     */
+    public static Metrics.Endpoint endpointOf(ServletRequest request) {
+        Object endpoint = request.getAttribute(ENDPOINT_ATTRIBUTE);
+        return endpoint instanceof Metrics.Endpoint ? (Metrics.Endpoint) endpoint : Metrics.Endpoint.OTHER;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
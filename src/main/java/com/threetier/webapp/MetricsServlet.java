@@ -0,0 +1,25 @@
+package com.threetier.webapp;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Prometheus scrape endpoint
+ */
+public class MetricsServlet extends HttpServlet {
+
+    /**
+     * GET /metrics - Metrics in Prometheus text exposition format
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(Metrics.renderPrometheus());
+    }
+}
@@ -0,0 +1,41 @@
+package com.threetier.webapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque keyset pagination cursor.
+ *
+ * The cursor encodes the id of the last row of the previous page, so the next page is
+ * fetched with {@code WHERE id > ?} and can use the primary key index regardless of how
+ * deep the client has paged. Clients must treat the value as opaque.
+ */
+public final class PageCursor {
+    private static final String PREFIX = "id:";
+
+    private PageCursor() {}
+
+    /**
+     * Encode the last id of a page as a cursor string
+     */
+    public static String encode(int lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor string back to the id it was created from
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static int decode(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!raw.startsWith(PREFIX)) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return Integer.parseInt(raw.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
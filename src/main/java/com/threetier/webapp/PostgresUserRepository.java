@@ -0,0 +1,330 @@
+package com.threetier.webapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Users in PostgreSQL, through DatabaseConnection: reads may go to replicas unless the
+ * caller needs the primary, transient failures are retried, and when users are sharded
+ * lookups go to the owning shard and pages and scans are merged over all shards by id.
+ */
+public class PostgresUserRepository implements UserRepository {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgresUserRepository.class);
+
+    private static final int EXPORT_FETCH_SIZE = Math.max(1, EnvConfig.getInt("USERS_EXPORT_FETCH_SIZE", 1000));
+    private static final String SELECT_USERS = "SELECT id, name, email, created_at FROM users ";
+    private static final String PROBE_SQL =
+        "SELECT 1, to_regclass('users') IS NOT NULL, has_table_privilege(to_regclass('users'), 'SELECT')";
+
+    private static final PostgresUserRepository SHARED = new PostgresUserRepository();
+
+    public static PostgresUserRepository shared() {
+        return SHARED;
+    }
+
+    /**
+     * Map the current result set row (id, name, email, created_at) to a User
+     */
+    static User mapUser(ResultSet rs) throws SQLException {
+        return new User(
+            rs.getInt("id"),
+            rs.getString("name"),
+            rs.getString("email"),
+            rs.getString("created_at")
+        );
+    }
+
+    @Override
+    public User findById(int id, boolean primaryRequired) throws SQLException {
+        return DatabaseConnection.withRetry(() -> findUser(null, SELECT_USERS + "WHERE id = ?", id, primaryRequired));
+    }
+
+    @Override
+    public User findByEmail(String email, boolean primaryRequired) throws SQLException {
+        // The owning shard, then (while resharding) the shard it may not have been moved from yet
+        int previous = DatabaseConnection.previousShardOf(email);
+        int[] shards = previous < 0
+            ? new int[] {DatabaseConnection.shardOf(email)}
+            : new int[] {DatabaseConnection.shardOf(email), previous};
+        return DatabaseConnection.withRetry(
+            () -> findUser(shards, SELECT_USERS + "WHERE email = ?", email, primaryRequired));
+    }
+
+    /**
+     * Read a single user from the given shards in order, or from every shard in parallel
+     * @param shards shards to try, or null for all of them
+     * @return the first user found, or null if no shard has a matching row
+     */
+    private User findUser(int[] shards, String sql, Object key, boolean primaryRequired) throws SQLException {
+        if (shards == null) {
+            for (User user : DatabaseConnection.forEachShard(shard -> readUser(shard, sql, key, primaryRequired))) {
+                if (user != null) {
+                    return user;
+                }
+            }
+            return null;
+        }
+        for (int shard : shards) {
+            User user = readUser(shard, sql, key, primaryRequired);
+            if (user != null) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a single user from one shard with a one-parameter query
+     * @return the user, or null if no row matches
+     */
+    private User readUser(int shard, String sql, Object key, boolean primaryRequired) throws SQLException {
+        try (Connection conn = DatabaseConnection.getReadConnection(shard, primaryRequired);
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setObject(1, key);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? mapUser(rs) : null;
+            }
+        }
+    }
+
+    /**
+     * Pages use a keyset predicate on id. When sharded every shard returns its own next rows
+     * and the pages are merged by id; a user being moved between shards can be on both for
+     * a moment and is listed once.
+     */
+    @Override
+    public boolean readPage(int afterId, int limit, List<User> users, boolean primaryRequired) throws SQLException {
+        return DatabaseConnection.withRetry(() -> {
+            users.clear();
+            // Fetch one extra row to find out whether another page exists
+            List<List<User>> pages = DatabaseConnection.forEachShard(
+                shard -> readShardPage(shard, afterId, limit + 1, primaryRequired));
+            return mergePages(pages, afterId, limit, users);
+        });
+    }
+
+    /**
+     * Merge per-shard pages (each ordered by id, with up to limit + 1 rows) into one page
+     * @return true if more rows exist after this page
+     */
+    static boolean mergePages(List<List<User>> pages, int afterId, int limit, List<User> users) {
+        List<User> rows = pages.get(0);
+        if (pages.size() > 1) {
+            rows = new ArrayList<>();
+            for (List<User> page : pages) {
+                rows.addAll(page);
+            }
+            rows.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        }
+        int lastId = afterId;
+        for (User user : rows) {
+            if (user.getId() == lastId) {
+                continue;
+            }
+            if (users.size() == limit) {
+                return true;
+            }
+            users.add(user);
+            lastId = user.getId();
+        }
+        return false;
+    }
+
+    private List<User> readShardPage(int shard, int afterId, int rows, boolean primaryRequired) throws SQLException {
+        List<User> users = new ArrayList<>(Math.min(rows, 64));
+        try (Connection conn = DatabaseConnection.getReadConnection(shard, primaryRequired);
+             PreparedStatement stmt = conn.prepareStatement(SELECT_USERS + "WHERE id > ? ORDER BY id LIMIT ?")) {
+
+            stmt.setInt(1, afterId);
+            stmt.setInt(2, rows);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(mapUser(rs));
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Rows are read through server-side cursors (fetch size inside a transaction), one per
+     * shard, merged by id
+     */
+    @Override
+    public void scan(boolean primaryRequired, Visitor visitor) throws SQLException, IOException {
+        List<ScanCursor> cursors = new ArrayList<>();
+        try {
+            PriorityQueue<ScanCursor> heads = new PriorityQueue<>((a, b) -> Integer.compare(a.id, b.id));
+            for (int shard = 0; shard < DatabaseConnection.getShardCount(); shard++) {
+                ScanCursor cursor = new ScanCursor(DatabaseConnection.getReadConnection(shard, primaryRequired));
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    heads.add(cursor);
+                }
+            }
+            int lastId = 0;
+            while (!heads.isEmpty()) {
+                ScanCursor cursor = heads.poll();
+                // A user being moved between shards is visited once
+                if (cursor.id != lastId) {
+                    lastId = cursor.id;
+                    visitor.visit(mapUser(cursor.rs));
+                }
+                if (cursor.next()) {
+                    heads.add(cursor);
+                }
+            }
+            for (ScanCursor cursor : cursors) {
+                cursor.conn.commit();
+            }
+        } finally {
+            for (ScanCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * A server-side cursor over one shard's users in id order
+     */
+    private static final class ScanCursor {
+        final Connection conn;
+        final PreparedStatement stmt;
+        final ResultSet rs;
+        int id;
+
+        ScanCursor(Connection conn) throws SQLException {
+            this.conn = conn;
+            try {
+                // PostgreSQL only honours the fetch size with auto-commit off
+                conn.setAutoCommit(false);
+                stmt = conn.prepareStatement(SELECT_USERS + "ORDER BY id",
+                                             ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                stmt.setFetchSize(EXPORT_FETCH_SIZE);
+                rs = stmt.executeQuery();
+            } catch (SQLException e) {
+                conn.close();
+                throw e;
+            }
+        }
+
+        boolean next() throws SQLException {
+            if (!rs.next()) {
+                return false;
+            }
+            id = rs.getInt("id");
+            return true;
+        }
+
+        void close() {
+            try {
+                stmt.close();
+                conn.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Failed to close a scan cursor", e);
+            }
+        }
+    }
+
+    @Override
+    public User insert(User newUser) throws SQLException {
+        if (!DatabaseConnection.findOnPreviousOwners(Collections.singleton(newUser.getEmail())).isEmpty()) {
+            throw UserRepository.duplicateEmail();
+        }
+        try (Connection conn = DatabaseConnection.getConnection(DatabaseConnection.shardOf(newUser.getEmail()));
+             PreparedStatement stmt = conn.prepareStatement(
+                 "INSERT INTO users (name, email) VALUES (?, ?) RETURNING id, created_at")) {
+
+            stmt.setString(1, newUser.getName());
+            stmt.setString(2, newUser.getEmail());
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return new User(
+                    rs.getInt("id"),
+                    newUser.getName(),
+                    newUser.getEmail(),
+                    rs.getString("created_at")
+                );
+            }
+        }
+    }
+
+    @Override
+    public long count() throws SQLException {
+        long total = 0;
+        for (long shardCount : DatabaseConnection.forEachShard(shard -> {
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        })) {
+            total += shardCount;
+        }
+        return total;
+    }
+
+    /**
+     * {@code SELECT 1} plus a catalog lookup for the users table and the application's
+     * privilege on it, on every shard; it never scans the table
+     */
+    @Override
+    public String checkHealth() throws SQLException {
+        List<boolean[]> probes = DatabaseConnection.forEachShard(PostgresUserRepository::probe);
+        for (int shard = 0; shard < probes.size(); shard++) {
+            if (!probes.get(shard)[0]) {
+                return "Users table does not exist" + onShard(probes.size(), shard);
+            }
+        }
+        for (int shard = 0; shard < probes.size(); shard++) {
+            if (!probes.get(shard)[1]) {
+                return "Application user lacks SELECT permission on users table" + onShard(probes.size(), shard);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the users table exists and whether it is readable
+     */
+    private static boolean[] probe(int shard) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(PROBE_SQL)) {
+            rs.next();
+            return new boolean[] {rs.getBoolean(2), rs.getBoolean(3)};
+        }
+    }
+
+    private static String onShard(int shards, int shard) {
+        return shards == 1 ? "" : " on shard " + shard;
+    }
+
+    @Override
+    public boolean usesDatabase() {
+        return true;
+    }
+
+    @Override
+    public String getStatsJson() {
+        return String.format("{\"engine\":\"postgresql\",\"shards\":%d}", DatabaseConnection.getShardCount());
+    }
+
+    @Override
+    public void close() {
+        DatabaseConnection.shutdown();
+    }
+}
@@ -0,0 +1,100 @@
+package com.threetier.webapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The on-disk format shared by the write journal and the embedded user store: fixed-size,
+ * memory-mapped segment files of [payload length][CRC32C][payload] records. The length is
+ * written last, so a record is either complete or reads as the end of the segment, and the
+ * checksum catches pages that reached the disk out of order.
+ */
+final class RecordSegments {
+    static final int HEADER_BYTES = 8;
+
+    private RecordSegments() {
+    }
+
+    /**
+     * Numbers of the segment files named prefix + number + suffix in a directory, in order
+     */
+    static List<Long> list(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                found.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+            }
+        }
+        found.sort(null);
+        return found;
+    }
+
+    static MappedByteBuffer map(Path path, int bytes) throws IOException {
+        // Mapping beyond the end grows the file; new files read as zeros
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    static int checksum(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write a record at pos; the caller has checked that it fits
+     * @return the position after it
+     */
+    static int write(ByteBuffer segment, int pos, byte[] payload, int checksum) {
+        ByteBuffer out = segment.duplicate();
+        out.position(pos + 4);
+        out.putInt(checksum);
+        out.put(payload);
+        // The length goes in last: until then the record reads as the end of the segment
+        segment.putInt(pos, payload.length);
+        return pos + HEADER_BYTES + payload.length;
+    }
+
+    /**
+     * Position after the complete, checksummed record at pos, or -1 if there is none
+     * @param minLength shortest valid payload
+     */
+    static int recordEnd(ByteBuffer segment, int pos, int minLength) {
+        int capacity = segment.capacity();
+        if (pos + HEADER_BYTES > capacity) {
+            return -1;
+        }
+        int length = segment.getInt(pos);
+        if (length < Math.max(1, minLength) || length > capacity - pos - HEADER_BYTES) {
+            return -1;
+        }
+        ByteBuffer payload = segment.duplicate();
+        payload.position(pos + HEADER_BYTES).limit(pos + HEADER_BYTES + length);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return (int) crc.getValue() == segment.getInt(pos + 4) ? pos + HEADER_BYTES + length : -1;
+    }
+
+    /**
+     * Clear anything after the last complete record, e.g. a torn write
+     */
+    static void zero(ByteBuffer segment, int from) {
+        for (int i = from; i < segment.capacity(); i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+            }
+        }
+    }
+}
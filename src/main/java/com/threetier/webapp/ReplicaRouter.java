@@ -0,0 +1,190 @@
+package com.threetier.webapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes read-only queries to PostgreSQL streaming replicas.
+ *
+ * Each replica has its own connection pool. A background task measures replication lag
+ * on every replica; replicas that are unreachable, not streaming from the primary, or lag
+ * more than the configured maximum are skipped until they catch up. A replica whose pool
+ * has no free connection is passed over for that read only. When no replica is usable the
+ * caller falls back to the primary.
+ */
+public class ReplicaRouter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    // Milliseconds since the last replayed transaction; 0 on a primary or a replica with nothing
+    // to replay, -1 on a replica without a WAL receiver (disconnected from the primary), whose
+    // replay position says nothing about how stale it is. Without pg_read_all_stats only the
+    // receiver's pid is visible, so a NULL status counts as streaming.
+    private static final String LAG_SQL =
+        "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+        "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver " +
+        "WHERE pid IS NOT NULL AND COALESCE(status, 'streaming') = 'streaming') THEN -1 " +
+        "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+        "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    /**
+     * Replica load-balancing strategy
+     */
+    public enum Balancing {
+        ROUND_ROBIN, LEAST_OUTSTANDING
+    }
+
+    /**
+     * One read replica and its most recent lag measurement
+     */
+    static final class Replica {
+        final String host;
+        final ConnectionPool pool;
+        volatile boolean healthy;
+        volatile long lagMs = -1;
+
+        Replica(String host, ConnectionPool pool) {
+            this.host = host;
+            this.pool = pool;
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final Balancing balancing;
+    private final long maxLagMs;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong primaryFallbacks = new AtomicLong();
+    private final ScheduledExecutorService lagChecker;
+
+    public ReplicaRouter(List<Replica> replicas, Balancing balancing, long maxLagMs, long checkIntervalMs) {
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.balancing = balancing;
+        this.maxLagMs = maxLagMs;
+        this.lagChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-replica-lag-checker");
+            t.setDaemon(true);
+            return t;
+        });
+        lagChecker.scheduleWithFixedDelay(this::checkLag, 0, Math.max(500, checkIntervalMs), TimeUnit.MILLISECONDS);
+        LOGGER.info("Read replica routing enabled: {} replicas, {}, max lag {}ms", replicas.size(), balancing, maxLagMs);
+    }
+
+    /**
+     * Borrow a connection from a usable replica
+     * @return a replica connection, or null when no replica is currently usable
+     */
+    public Connection getConnection() {
+        int size = replicas.size();
+        if (balancing == Balancing.LEAST_OUTSTANDING) {
+            Replica best = null;
+            for (Replica r : replicas) {
+                if (r.healthy && (best == null || r.pool.getActive() < best.pool.getActive())) {
+                    best = r;
+                }
+            }
+            Connection conn = best == null ? null : tryBorrow(best);
+            if (conn != null) {
+                return conn;
+            }
+        } else {
+            int start = Math.floorMod(next.getAndIncrement(), size);
+            for (int i = 0; i < size; i++) {
+                Replica r = replicas.get((start + i) % size);
+                if (r.healthy) {
+                    Connection conn = tryBorrow(r);
+                    if (conn != null) {
+                        return conn;
+                    }
+                }
+            }
+        }
+        primaryFallbacks.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Borrow without waiting: a replica whose connections are all in use is busy, not down,
+     * and the read goes elsewhere instead of blocking for the acquire timeout
+     * @return a connection, or null when the replica is busy or unavailable
+     */
+    private Connection tryBorrow(Replica replica) {
+        try {
+            Connection conn = replica.pool.tryGetConnection();
+            if (conn != null) {
+                replicaReads.incrementAndGet();
+            }
+            return conn;
+        } catch (SQLException e) {
+            LOGGER.warn("Replica {} unavailable, taking it out of rotation", replica.host, e);
+            replica.healthy = false;
+            return null;
+        }
+    }
+
+    private void checkLag() {
+        for (Replica replica : replicas) {
+            boolean wasHealthy = replica.healthy;
+            try {
+                Connection borrowed = replica.pool.tryGetConnection();
+                if (borrowed == null) {
+                    // Busy, not down: keep the last result and check again next round
+                    LOGGER.debug("Lag check skipped for replica {}: no free connection", replica.host);
+                    continue;
+                }
+                try (Connection conn = borrowed;
+                     Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+                    rs.next();
+                    replica.lagMs = (long) rs.getDouble(1);
+                    replica.healthy = replica.lagMs >= 0 && (maxLagMs <= 0 || replica.lagMs <= maxLagMs);
+                }
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.debug("Lag check failed for replica {}", replica.host, e);
+                replica.lagMs = -1;
+                replica.healthy = false;
+            }
+            if (wasHealthy != replica.healthy) {
+                if (replica.healthy) {
+                    LOGGER.info("Replica {} back in rotation", replica.host);
+                } else {
+                    LOGGER.info("Replica {} out of rotation (lag {}ms)", replica.host, replica.lagMs);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        lagChecker.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+
+    /**
+     * Replica routing state as a JSON object
+     */
+    public String getStatsJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("{\"balancing\":\"%s\",\"maxLagMs\":%d,\"replicaReads\":%d,\"primaryFallbacks\":%d,\"replicas\":[",
+            balancing, maxLagMs, replicaReads.get(), primaryFallbacks.get()));
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica r = replicas.get(i);
+            if (i > 0) sb.append(',');
+            sb.append(String.format("{\"host\":\"%s\",\"healthy\":%s,\"lagMs\":%d,\"active\":%d}",
+                r.host, r.healthy, r.lagMs, r.pool.getActive()));
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampled per-request log line in key=value form.
+ *
+ * Each endpoint logs roughly one in N completed requests, where N comes from
+ * LOG_SAMPLE_EVERY_&lt;ENDPOINT&gt; (e.g. LOG_SAMPLE_EVERY_USERS_LIST) or the LOG_SAMPLE_EVERY
+ * default; 0 turns the line off. Server errors are always logged. Only the endpoint label is
+ * written, never the query string or parameters, so no personal data reaches the log.
+ */
+public final class RequestLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestLog.class);
+
+    private static final int[] SAMPLE_EVERY = new int[Metrics.Endpoint.values().length];
+
+    static {
+        int defaultEvery = Math.max(0, EnvConfig.getInt("LOG_SAMPLE_EVERY", 100));
+        for (Metrics.Endpoint endpoint : Metrics.Endpoint.values()) {
+            SAMPLE_EVERY[endpoint.ordinal()] =
+                Math.max(0, EnvConfig.getInt("LOG_SAMPLE_EVERY_" + endpoint.name(), defaultEvery));
+        }
+    }
+
+    private RequestLog() {}
+
+    /**
+     * Log a completed request if it is sampled
+     */
+    public static void record(Metrics.Endpoint endpoint, int status, long nanos) {
+        if (status >= 500) {
+            LOGGER.warn("request method={} endpoint={} status={} durationMs={}",
+                        endpoint.method, endpoint.path, status, nanos / 1_000_000.0);
+            return;
+        }
+        int every = SAMPLE_EVERY[endpoint.ordinal()];
+        if (every == 0 || !LOGGER.isInfoEnabled()) {
+            return;
+        }
+        if (every == 1 || ThreadLocalRandom.current().nextInt(every) == 0) {
+            LOGGER.info("request method={} endpoint={} status={} durationMs={} sampleEvery={}",
+                        endpoint.method, endpoint.path, status, nanos / 1_000_000.0, every);
+        }
+    }
+}
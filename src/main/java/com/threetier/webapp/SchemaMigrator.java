@@ -0,0 +1,565 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned schema migrations, applied in the background at startup.
+ *
+ * Migrations are SQL scripts under db/migration on the classpath, listed in MIGRATIONS in
+ * version order. Each applied version is recorded in schema_migrations with the SHA-256
+ * checksum of its script; a recorded checksum that no longer matches stops the migration
+ * rather than running against an unknown schema. When every version is already recorded,
+ * startup costs one read of schema_migrations and takes no locks. Otherwise the pending
+ * scripts are applied under a PostgreSQL advisory lock, so during a rollout one instance
+ * migrates while the others wait and then find the schema current. Each script runs in its
+ * own transaction with a short lock_timeout, so DDL fails and retries instead of queueing
+ * behind a long transaction while blocking every query after it.
+ *
+ * When users are sharded (DB_SHARDS) every shard is migrated in turn, each under its own
+ * lock. Sample users are then kept only on the shard that owns them, and the shards' id
+ * sequences are given their slots (see ShardRouter) under the lock on shard 0.
+ *
+ * Until migration completes the application reports not ready and the users API answers
+ * 503; static content and the health endpoints are served from the start.
+ */
+public class SchemaMigrator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchemaMigrator.class);
+
+    private static final String LOCATION = "db/migration/";
+    private static final String[] MIGRATIONS = {
+        "V1__create_users_table.sql",
+        "V2__users_email_index.sql",
+        "V3__sample_users.sql",
+        "V4__users_changed_notify.sql"
+    };
+
+    // Application-wide key for pg_advisory_lock; any constant shared by all instances works
+    private static final long LOCK_KEY = 0x7468726565746965L;
+    private static final long LOCK_POLL_MS = 250;
+    private static final int SAMPLE_USERS_VERSION = 3;
+    private static final Pattern EMAIL_LITERAL = Pattern.compile("'([^']+@[^']+)'");
+
+    private static final SchemaMigrator SHARED = new SchemaMigrator(
+        // The embedded store has no schema
+        EnvConfig.getBoolean("DB_MIGRATE_ENABLED", true) && !UserRepository.isEmbedded(),
+        EnvConfig.getLong("DB_MIGRATION_LOCK_WAIT_MS", 60_000),
+        EnvConfig.getLong("DB_MIGRATION_LOCK_TIMEOUT_MS", 5_000),
+        EnvConfig.getLong("DB_MIGRATION_RETRY_MAX_MS", 30_000));
+
+    public enum State { PENDING, MIGRATING, READY, FAILED }
+
+    /**
+     * One versioned script
+     */
+    static final class Migration {
+        final int version;
+        final String description;
+        final String sql;
+        final String checksum;
+
+        Migration(int version, String description, String sql) {
+            this.version = version;
+            this.description = description;
+            this.sql = sql;
+            this.checksum = sha256(sql);
+        }
+    }
+
+    private final boolean enabled;
+    private final long lockWaitMs;
+    private final long ddlLockTimeoutMs;
+    private final long retryMaxMs;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    private volatile State state = State.PENDING;
+    private volatile int version;
+    private volatile int applied;
+    private volatile boolean managed = true;
+    private volatile String lastError;
+    private volatile long durationMs = -1;
+    private volatile boolean stopped;
+    private Thread worker;
+
+    public SchemaMigrator(boolean enabled, long lockWaitMs, long ddlLockTimeoutMs, long retryMaxMs) {
+        this.enabled = enabled;
+        this.lockWaitMs = Math.max(0, lockWaitMs);
+        this.ddlLockTimeoutMs = Math.max(0, ddlLockTimeoutMs);
+        this.retryMaxMs = Math.max(1000, retryMaxMs);
+    }
+
+    /**
+     * Application-wide migrator configured from the DB_MIGRATE* environment variables
+     */
+    public static SchemaMigrator shared() {
+        return SHARED;
+    }
+
+    /**
+     * Start migrating in the background; later calls do nothing
+     */
+    public synchronized void start() {
+        if (worker != null || state == State.READY) {
+            return;
+        }
+        if (!enabled) {
+            LOGGER.info("Schema migrations are disabled (DB_MIGRATE_ENABLED=false or USERS_STORAGE=embedded)");
+            managed = false;
+            markReady();
+            return;
+        }
+        stopped = false;
+        worker = new Thread(this::run, "schema-migrator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run the action once the schema is ready: on the migration thread, or immediately if it already is
+     */
+    public void onReady(Runnable action) {
+        ready.thenRun(action);
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Migration state as a JSON object
+     */
+    public String getStatusJson() {
+        String error = lastError;
+        return String.format("{\"state\":\"%s\",\"version\":%d,\"latest\":%d,\"applied\":%d,\"managed\":%s," +
+                             "\"durationMs\":%d,\"error\":%s}",
+            state, version, MIGRATIONS.length, applied, managed, durationMs,
+            error == null ? "null" : "\"" + error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Retry transient failures (database unreachable, lock timeouts) with backoff; stop on
+     * anything that retrying will not fix
+     */
+    private void run() {
+        long start = System.currentTimeMillis();
+        long backoffMs = 1000;
+        List<Migration> migrations;
+        try {
+            migrations = load();
+        } catch (IOException | RuntimeException e) {
+            fail("Cannot read migration scripts: " + e.getMessage(), e);
+            return;
+        }
+        while (!stopped) {
+            state = State.MIGRATING;
+            try {
+                migrate(migrations);
+                durationMs = System.currentTimeMillis() - start;
+                lastError = null;
+                markReady();
+                return;
+            } catch (SQLException e) {
+                if (!isTransient(e)) {
+                    fail("Schema migration failed (SQLState " + e.getSQLState() + "): " + e.getMessage(), e);
+                    return;
+                }
+                lastError = e.getMessage();
+                state = State.PENDING;
+                LOGGER.warn("Schema migration could not run, retrying in {}ms: {}", backoffMs, e.getMessage());
+            } catch (RuntimeException e) {
+                fail(e.getMessage(), e);
+                return;
+            }
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoffMs = Math.min(retryMaxMs, backoffMs * 2);
+        }
+    }
+
+    private void markReady() {
+        state = State.READY;
+        ready.complete(null);
+    }
+
+    private void fail(String message, Exception e) {
+        lastError = message;
+        state = State.FAILED;
+        LOGGER.error("{}; the application will stay not ready", message, e);
+    }
+
+    private static boolean isTransient(SQLException e) {
+        // Unavailable covers connection failures, server shutdown/startup, exhausted
+        // resources and lock_timeout (including the migration lock wait)
+        SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+        return e.getSQLState() == null
+            || kind.isUnavailable()
+            || kind == SqlErrorClassifier.Kind.SERIALIZATION;
+    }
+
+    private void migrate(List<Migration> migrations) throws SQLException {
+        List<Integer> seeded = new ArrayList<>();
+        for (int shard = 0; shard < DatabaseConnection.getShardCount(); shard++) {
+            if (migrate(shard, migrations)) {
+                seeded.add(shard);
+            }
+        }
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        if (router != null && managed) {
+            prepareShards(router, migrations, seeded);
+        }
+    }
+
+    /**
+     * Migrate one shard (the database, when not sharded)
+     * @return true if the sample users were inserted on it by this run
+     */
+    private boolean migrate(int shard, List<Migration> migrations) throws SQLException {
+        String where = DatabaseConnection.getShardCount() > 1
+            ? " on shard " + DatabaseConnection.getShardRouter().get(shard).name : "";
+        boolean seeded = false;
+        // A dedicated connection, so the session-level advisory lock can never go back to the pool
+        try (Connection conn = DatabaseConnection.openDedicatedConnection(shard)) {
+            Map<Integer, String> recorded = readRecorded(conn);
+            if (recorded != null && isCurrent(migrations, recorded)) {
+                version = migrations.size();
+                LOGGER.info("Database schema{} is current at version {}", where, version);
+                return false;
+            }
+
+            acquireLock(conn);
+            try {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (" +
+                        "version INTEGER PRIMARY KEY, " +
+                        "description VARCHAR(200) NOT NULL, " +
+                        "checksum CHAR(64) NOT NULL, " +
+                        "applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                        "execution_ms INTEGER NOT NULL)");
+                }
+                // Another instance may have migrated while this one waited for the lock
+                recorded = readRecorded(conn);
+                validate(migrations, recorded);
+                for (Migration migration : migrations) {
+                    if (!recorded.containsKey(migration.version)) {
+                        apply(conn, migration);
+                        applied++;
+                        seeded |= migration.version == SAMPLE_USERS_VERSION;
+                    }
+                    version = migration.version;
+                }
+                LOGGER.info("Database schema{} migrated to version {} ({} applied)", where, version, applied);
+            } finally {
+                releaseLock(conn);
+            }
+        } catch (SQLException e) {
+            if (SqlErrorClassifier.classify(e) == SqlErrorClassifier.Kind.PERMISSION_DENIED && usersTableAccessible(shard)) {
+                // Same tolerance as before migrations were versioned: a user without DDL rights
+                // can still serve an existing schema, which is then managed elsewhere
+                LOGGER.warn("Permission denied while migrating the schema{}; using the existing users table as is", where);
+                managed = false;
+                return false;
+            }
+            throw e;
+        }
+        return seeded;
+    }
+
+    /**
+     * Remove duplicate sample users from freshly seeded shards and configure the id
+     * sequences, under the migration lock on shard 0
+     */
+    private void prepareShards(ShardRouter router, List<Migration> migrations, List<Integer> seeded)
+            throws SQLException {
+        try (Connection conn = DatabaseConnection.openDedicatedConnection(0)) {
+            acquireLock(conn);
+            try {
+                if (!seeded.isEmpty()) {
+                    List<String> samples = new ArrayList<>();
+                    Matcher m = EMAIL_LITERAL.matcher(migrations.get(SAMPLE_USERS_VERSION - 1).sql);
+                    while (m.find()) {
+                        samples.add(m.group(1));
+                    }
+                    pruneSampleUsers(router, seeded, samples);
+                }
+                router.configureIdSequences();
+            } finally {
+                releaseLock(conn);
+            }
+        }
+    }
+
+    /**
+     * The sample script inserts every sample user on every new shard, with the same ids.
+     * Keep each one only on the shard that owns its email, and only if no other shard already
+     * has that email or id (a shard added to a running installation).
+     */
+    private static void pruneSampleUsers(ShardRouter router, List<Integer> seeded, List<String> samples)
+            throws SQLException {
+        for (int shard : seeded) {
+            List<String> remove = new ArrayList<>();
+            for (String email : readSampleUsers(shard, samples).keySet()) {
+                if (router.ownerOf(email) != shard) {
+                    remove.add(email);
+                }
+            }
+            deleteSampleUsers(router, shard, remove);
+        }
+        // Only owners hold sample users now, so a copy found elsewhere predates this run
+        for (int shard : seeded) {
+            List<String> remove = new ArrayList<>();
+            for (Map.Entry<String, Integer> row : readSampleUsers(shard, samples).entrySet()) {
+                for (int other = 0; other < router.size(); other++) {
+                    if (other != shard && existsOn(other, row.getKey(), row.getValue())) {
+                        remove.add(row.getKey());
+                        break;
+                    }
+                }
+            }
+            deleteSampleUsers(router, shard, remove);
+        }
+    }
+
+    private static Map<String, Integer> readSampleUsers(int shard, List<String> samples) throws SQLException {
+        Map<String, Integer> rows = new HashMap<>();
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement stmt = conn.prepareStatement("SELECT email, id FROM users WHERE email = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("varchar", samples.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.put(rs.getString(1), rs.getInt(2));
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static boolean existsOn(int shard, String email, int id) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM users WHERE email = ? OR id = ?")) {
+            stmt.setString(1, email);
+            stmt.setInt(2, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static void deleteSampleUsers(ShardRouter router, int shard, List<String> emails) throws SQLException {
+        if (emails.isEmpty()) {
+            return;
+        }
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM users WHERE email = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("varchar", emails.toArray()));
+            stmt.executeUpdate();
+        }
+        LOGGER.info("Removed {} duplicate sample users from shard {}", emails.size(), router.get(shard).name);
+    }
+
+    /**
+     * Read recorded versions and checksums, or null if schema_migrations does not exist yet
+     */
+    private static Map<Integer, String> readRecorded(Connection conn) throws SQLException {
+        Map<Integer, String> recorded = new HashMap<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_migrations")) {
+            while (rs.next()) {
+                recorded.put(rs.getInt(1), rs.getString(2).trim());
+            }
+        } catch (SQLException e) {
+            if (SqlErrorClassifier.classify(e) == SqlErrorClassifier.Kind.UNDEFINED_TABLE) {
+                return null;
+            }
+            throw e;
+        }
+        return recorded;
+    }
+
+    private static boolean isCurrent(List<Migration> migrations, Map<Integer, String> recorded) {
+        for (Migration migration : migrations) {
+            if (!migration.checksum.equals(recorded.get(migration.version))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void validate(List<Migration> migrations, Map<Integer, String> recorded) {
+        int latest = 0;
+        for (Migration migration : migrations) {
+            latest = migration.version;
+            String checksum = recorded.get(migration.version);
+            if (checksum != null && !checksum.equals(migration.checksum)) {
+                throw new IllegalStateException("Checksum mismatch for applied schema migration V" + migration.version +
+                    " (" + migration.description + "); the script was changed after it was applied");
+            }
+        }
+        for (int recordedVersion : recorded.keySet()) {
+            if (recordedVersion > latest) {
+                // A newer release migrated this database; it must stay compatible with older code
+                LOGGER.warn("Database has schema migration V{}, newer than this release (V{})", recordedVersion, latest);
+            }
+        }
+    }
+
+    /**
+     * Wait for the migration lock, polling so a stuck holder turns into a retryable timeout
+     */
+    private void acquireLock(Connection conn) throws SQLException {
+        long deadline = System.currentTimeMillis() + lockWaitMs;
+        boolean logged = false;
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+            stmt.setLong(1, LOCK_KEY);
+            while (true) {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (rs.getBoolean(1)) {
+                        return;
+                    }
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new SQLException("Timed out waiting for the schema migration lock", "55P03");
+                }
+                if (!logged) {
+                    LOGGER.info("Waiting for another instance to finish migrating the schema");
+                    logged = true;
+                }
+                try {
+                    Thread.sleep(LOCK_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for the schema migration lock", "57014", e);
+                }
+            }
+        }
+    }
+
+    private static void releaseLock(Connection conn) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+            stmt.setLong(1, LOCK_KEY);
+            stmt.executeQuery().close();
+        } catch (SQLException e) {
+            // Closing the dedicated connection releases the lock anyway
+            LOGGER.debug("Failed to release the schema migration lock", e);
+        }
+    }
+
+    /**
+     * Run one script and record it, in a single transaction
+     */
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        long start = System.nanoTime();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("SET LOCAL lock_timeout = " + ddlLockTimeoutMs);
+            stmt.execute(migration.sql);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            try (PreparedStatement insert = conn.prepareStatement(
+                     "INSERT INTO schema_migrations (version, description, checksum, execution_ms) VALUES (?, ?, ?, ?)")) {
+                insert.setInt(1, migration.version);
+                insert.setString(2, migration.description);
+                insert.setString(3, migration.checksum);
+                insert.setInt(4, (int) elapsedMs);
+                insert.executeUpdate();
+            }
+            conn.commit();
+            LOGGER.info("Applied schema migration V{} {} in {}ms", migration.version, migration.description, elapsedMs);
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static boolean usersTableAccessible(int shard) {
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             Statement stmt = conn.createStatement()) {
+            stmt.executeQuery("SELECT 1 FROM users LIMIT 1").close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the scripts listed in MIGRATIONS; versions must be 1..n in order
+     */
+    static List<Migration> load() throws IOException {
+        List<Migration> migrations = new ArrayList<>(MIGRATIONS.length);
+        for (String script : MIGRATIONS) {
+            int separator = script.indexOf("__");
+            int version = Integer.parseInt(script.substring(1, separator));
+            if (version != migrations.size() + 1) {
+                throw new IllegalStateException("Schema migration " + script + " is out of sequence");
+            }
+            String description = script.substring(separator + 2, script.length() - ".sql".length()).replace('_', ' ');
+            migrations.add(new Migration(version, description, read(LOCATION + script)));
+        }
+        return migrations;
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream in = SchemaMigrator.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing migration script " + resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            // Normalize line endings so a checkout with CRLF does not change the checksum
+            return new String(out.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+        }
+    }
+
+    private static String sha256(String sql) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sql.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.threetier.webapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Moves users to their owners under the current DB_SHARDS layout while the application
+ * keeps serving, after shards were added or removed.
+ *
+ * Start the application with the new layout in DB_SHARDS and the old one in
+ * DB_SHARDS_PREVIOUS, then run this with the same settings. Every shard is scanned in id
+ * order; each batch of rows whose owner changed is copied to the new owner with its id and
+ * timestamps ({@code ON CONFLICT (id) DO NOTHING}), committed, and only then deleted from
+ * the old one, so a user is never missing and is at most briefly on both shards (reads
+ * merge by id). Only rows that were inserted, or that the new owner already holds with the
+ * same id and email (copied by an interrupted run), are deleted. A row whose email belongs
+ * to a different user on the new owner is left in place and reported. A failed run can
+ * simply be repeated. Once it reports nothing left to move and no collisions, remove
+ * DB_SHARDS_PREVIOUS and restart the application.
+ *
+ * Usage: {@code ShardRebalancer [--dry-run] [--batch-size N] [--rate ROWS_PER_SECOND]}
+ */
+public final class ShardRebalancer {
+
+    private static final String SCAN_SQL =
+        "SELECT id, name, email, created_at, updated_at FROM users WHERE id > ? ORDER BY id LIMIT ?";
+
+    private final ShardRouter router;
+    private final boolean dryRun;
+    private final int batchSize;
+    private final int rowsPerSecond;
+    private long scanned;
+    private long moved;
+    private long collisions;
+
+    /**
+     * One row being moved, with the columns that must survive the move
+     */
+    private static final class Row {
+        final int id;
+        final String name;
+        final String email;
+        final Timestamp createdAt;
+        final Timestamp updatedAt;
+
+        Row(ResultSet rs) throws SQLException {
+            id = rs.getInt(1);
+            name = rs.getString(2);
+            email = rs.getString(3);
+            createdAt = rs.getTimestamp(4);
+            updatedAt = rs.getTimestamp(5);
+        }
+    }
+
+    ShardRebalancer(ShardRouter router, boolean dryRun, int batchSize, int rowsPerSecond) {
+        this.router = router;
+        this.dryRun = dryRun;
+        this.batchSize = Math.max(1, batchSize);
+        this.rowsPerSecond = Math.max(0, rowsPerSecond);
+    }
+
+    public static void main(String[] args) {
+        boolean dryRun = false;
+        int batchSize = 500;
+        int rate = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--dry-run":
+                        dryRun = true;
+                        break;
+                    case "--batch-size":
+                        batchSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Usage: ShardRebalancer [--dry-run] [--batch-size N] [--rate ROWS_PER_SECOND]");
+            System.exit(2);
+        }
+
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        if (router == null || !router.isResharding()) {
+            System.err.println("Nothing to rebalance: set DB_SHARDS to the new layout and DB_SHARDS_PREVIOUS to the old one");
+            System.exit(2);
+        }
+        System.out.println("Resharding " + router.getPreviousRing().getShards() + " -> " + router.getRing().getShards());
+        for (String line : ShardRing.describeMoves(router.getPreviousRing(), router.getRing())) {
+            System.out.println("  " + line);
+        }
+        int status = 0;
+        ShardRebalancer rebalancer = new ShardRebalancer(router, dryRun, batchSize, rate);
+        try {
+            rebalancer.run();
+            if (rebalancer.getCollisions() > 0) {
+                status = 1;
+            }
+        } catch (SQLException e) {
+            System.err.println("Rebalancing stopped (SQLState " + e.getSQLState() + "): " + e.getMessage() +
+                               "; run it again to continue");
+            status = 1;
+        } finally {
+            DatabaseConnection.shutdown();
+        }
+        System.exit(status);
+    }
+
+    void run() throws SQLException {
+        long start = System.currentTimeMillis();
+        for (ShardRouter.Shard shard : router.getShards()) {
+            long before = moved;
+            drain(shard.index);
+            System.out.printf("%s: %s %d users%n", shard.name, dryRun ? "would move" : "moved", moved - before);
+        }
+        System.out.printf("Scanned %d users, %s %d in %dms%n", scanned, dryRun ? "would move" : "moved", moved,
+                          System.currentTimeMillis() - start);
+        if (collisions > 0) {
+            System.out.printf("%d users were left in place because their email belongs to another user on the new "
+                              + "owner; resolve them and run again%n", collisions);
+        } else if (!dryRun) {
+            System.out.println("Every user is on its owner; remove DB_SHARDS_PREVIOUS and restart the application");
+        }
+    }
+
+    long getMoved() {
+        return moved;
+    }
+
+    long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Move every row of one shard that another shard owns, one batch at a time
+     */
+    private void drain(int source) throws SQLException {
+        int afterId = 0;
+        while (true) {
+            long batchStart = System.nanoTime();
+            List<Row> rows = new ArrayList<>(batchSize);
+            try (Connection conn = DatabaseConnection.getConnection(source);
+                 PreparedStatement stmt = conn.prepareStatement(SCAN_SQL)) {
+                stmt.setInt(1, afterId);
+                stmt.setInt(2, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Row(rs));
+                    }
+                }
+            }
+            if (rows.isEmpty()) {
+                return;
+            }
+            scanned += rows.size();
+            afterId = rows.get(rows.size() - 1).id;
+
+            Map<Integer, List<Row>> byTarget = new TreeMap<>();
+            for (Row row : rows) {
+                int owner = router.ownerOf(row.email);
+                if (owner != source) {
+                    byTarget.computeIfAbsent(owner, k -> new ArrayList<>()).add(row);
+                }
+            }
+            for (Map.Entry<Integer, List<Row>> target : byTarget.entrySet()) {
+                if (dryRun) {
+                    moved += target.getValue().size();
+                    continue;
+                }
+                List<Integer> copied = copy(source, target.getKey(), target.getValue());
+                delete(source, copied);
+                moved += copied.size();
+            }
+            throttle(rows.size(), batchStart);
+        }
+    }
+
+    /**
+     * Copy rows to their new owner
+     * @return ids that the target now holds as the same user, so they may be deleted from the source
+     */
+    private List<Integer> copy(int source, int target, List<Row> rows) throws SQLException {
+        Integer[] ids = new Integer[rows.size()];
+        String[] emails = new String[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rows.get(i).id;
+            emails[i] = rows.get(i).email;
+        }
+        List<Integer> copied = new ArrayList<>(rows.size());
+        try (Connection conn = DatabaseConnection.getConnection(target)) {
+            // What the target already has under these ids or emails
+            Map<Integer, String> emailById = new HashMap<>();
+            Map<String, Integer> idByEmail = new HashMap<>();
+            try (PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT id, email FROM users WHERE id = ANY(?) OR email = ANY(?)")) {
+                stmt.setArray(1, conn.createArrayOf("integer", ids));
+                stmt.setArray(2, conn.createArrayOf("varchar", emails));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        emailById.put(rs.getInt(1), rs.getString(2));
+                        idByEmail.put(rs.getString(2), rs.getInt(1));
+                    }
+                }
+            }
+            List<Row> toInsert = new ArrayList<>(rows.size());
+            for (Row row : rows) {
+                Integer existing = idByEmail.get(row.email);
+                if (existing != null && existing == row.id) {
+                    // Copied by an earlier, interrupted run
+                    copied.add(row.id);
+                } else if (existing != null || emailById.containsKey(row.id)) {
+                    // Ids and emails only, since the rows are personal data
+                    collisions++;
+                    System.out.printf("  user %d on shard %s left in place: the new owner %s already has %s%n",
+                                      row.id, router.get(source).name, router.get(target).name,
+                                      existing != null ? "its email as user " + existing : "its id for another email");
+                } else {
+                    toInsert.add(row);
+                }
+            }
+            if (toInsert.isEmpty()) {
+                return copied;
+            }
+            StringBuilder sql = new StringBuilder("INSERT INTO users (id, name, email, created_at, updated_at) VALUES ");
+            for (int i = 0; i < toInsert.size(); i++) {
+                sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+            }
+            // An id taken since the check above is left for the next run to verify; an email
+            // taken since then fails the batch, and the next run reports it
+            sql.append(" ON CONFLICT (id) DO NOTHING RETURNING id");
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (Row row : toInsert) {
+                    stmt.setInt(index++, row.id);
+                    stmt.setString(index++, row.name);
+                    stmt.setString(index++, row.email);
+                    stmt.setTimestamp(index++, row.createdAt);
+                    stmt.setTimestamp(index++, row.updatedAt);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        copied.add(rs.getInt(1));
+                    }
+                }
+            }
+        }
+        return copied;
+    }
+
+    private static void delete(int source, List<Integer> copied) throws SQLException {
+        if (copied.isEmpty()) {
+            return;
+        }
+        Integer[] ids = copied.toArray(new Integer[0]);
+        try (Connection conn = DatabaseConnection.getConnection(source);
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM users WHERE id = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf("integer", ids));
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Sleep so that scanning stays under the requested rows per second
+     */
+    private void throttle(int rows, long batchStartNanos) {
+        if (rowsPerSecond == 0) {
+            return;
+        }
+        long budgetNanos = rows * 1_000_000_000L / rowsPerSecond;
+        long sleepMs = (budgetNanos - (System.nanoTime() - batchStartNanos)) / 1_000_000;
+        if (sleepMs > 0) {
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.threetier.webapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring mapping user emails to shards.
+ *
+ * Each shard owns DB_SHARD_VNODES points on a 64-bit ring, placed by hashing its name, and a key
+ * belongs to the first point at or after its own hash. Points depend only on shard names,
+ * so every instance builds the same ring, and adding a shard takes over about 1/N of the
+ * keys from the others instead of rehashing everything.
+ */
+public final class ShardRing {
+
+    private final List<String> shards;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param shards shard names; owner indexes returned by ownerOf refer to this list
+     * @param vnodes ring points per shard
+     */
+    public ShardRing(List<String> shards, int vnodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        int perShard = Math.max(1, vnodes);
+        long[][] entries = new long[shards.size() * perShard][];
+        int n = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int v = 0; v < perShard; v++) {
+                entries[n++] = new long[] {hash(shards.get(shard) + "#" + v), shard};
+            }
+        }
+        // Ties (practically impossible) go to the lower shard index on every instance
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[entries.length];
+        owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Index of the shard that owns a key
+     */
+    public int ownerOf(String key) {
+        return ownerOfHash(hash(key));
+    }
+
+    int ownerOfHash(long hash) {
+        int pos = Arrays.binarySearch(points, hash);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return owners[pos == points.length ? 0 : pos];
+    }
+
+    /**
+     * Share of the key space owned by each shard
+     */
+    public double[] shares() {
+        double[] shares = new double[shards.size()];
+        for (int i = 0; i < points.length; i++) {
+            // Point i owns the arc from the previous point (exclusive) up to itself
+            long from = i == 0 ? points[points.length - 1] : points[i - 1];
+            shares[owners[i]] += arc(from, points[i]);
+        }
+        return shares;
+    }
+
+    /**
+     * Share of the key space whose owner differs between two rings, by shard name pair
+     * ("from -> to"); used to plan a resharding
+     */
+    public static List<String> describeMoves(ShardRing from, ShardRing to) {
+        long[] bounds = new long[from.points.length + to.points.length];
+        System.arraycopy(from.points, 0, bounds, 0, from.points.length);
+        System.arraycopy(to.points, 0, bounds, from.points.length, to.points.length);
+        Arrays.sort(bounds);
+        Map<String, Double> moved = new TreeMap<>();
+        for (int i = 0; i < bounds.length; i++) {
+            long end = bounds[i];
+            long start = i == 0 ? bounds[bounds.length - 1] : bounds[i - 1];
+            if (start == end) {
+                continue;
+            }
+            // Every key in (start, end] has the same owner on both rings
+            String a = from.shards.get(from.ownerOfHash(end));
+            String b = to.shards.get(to.ownerOfHash(end));
+            if (!a.equals(b)) {
+                moved.merge(a + " -> " + b, arc(start, end), Double::sum);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Double> e : moved.entrySet()) {
+            lines.add(String.format("%s: %.2f%% of keys", e.getKey(), e.getValue() * 100));
+        }
+        return lines;
+    }
+
+    private static double arc(long from, long to) {
+        if (from == to) {
+            // A single point owns the whole ring
+            return 1.0;
+        }
+        // Unsigned distance going up the ring, as a fraction of 2^64
+        double d = (double) ((to - from) >>> 1) * 2.0;
+        return d / 18446744073709551616.0;
+    }
+
+    /**
+     * 64-bit FNV-1a with a murmur3 finalizer, so similar emails spread over the whole ring;
+     * stable across JVMs and releases, which String.hashCode is not guaranteed to be
+     */
+    static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
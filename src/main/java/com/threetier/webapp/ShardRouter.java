@@ -0,0 +1,448 @@
+package com.threetier.webapp;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the users table over several PostgreSQL databases (DB_SHARDS).
+ *
+ * A user lives on the shard that owns its email on a consistent hash ring, so inserts and
+ * lookups by email go to one shard, while reads by id or by page ask every shard in
+ * parallel and merge the results. Each shard has its own connection pool and circuit
+ * breaker, so one shard being down does not fail requests that do not need it.
+ *
+ * Ids stay globally unique without coordination: every shard's id sequence steps by
+ * DB_SHARD_ID_SLOTS and starts at a different remainder (the shard's slot). Sequences only
+ * advance with their own shard's inserts, so a background task moves a lagging sequence
+ * forward; ids then stay close to creation order across shards, which the change stream and
+ * the incremental catch-ups rely on.
+ *
+ * While resharding, DB_SHARDS_PREVIOUS holds the old layout. Shards listed only there are
+ * still read, lookups by email fall back to the previous owner, and inserts check it for an
+ * existing email, until ShardRebalancer has moved every row to its new owner.
+ */
+public class ShardRouter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardRouter.class);
+
+    private static final String SEQUENCE_SQL = "SELECT pg_get_serial_sequence('users', 'id')";
+
+    /**
+     * One shard database
+     */
+    static final class Shard {
+        final int index;
+        final String name;
+        final String url;
+        final ConnectionPool pool;
+        final CircuitBreaker breaker;
+        volatile String sequence;
+        volatile int slot = -1;
+
+        Shard(int index, String name, String url, ConnectionPool pool, CircuitBreaker breaker) {
+            this.index = index;
+            this.name = name;
+            this.url = url;
+            this.pool = pool;
+            this.breaker = breaker;
+        }
+    }
+
+    private final List<Shard> shards;
+    private final ShardRing ring;
+    private final int[] ringShards;
+    private final ShardRing previousRing;
+    private final int[] previousRingShards;
+    private final String user;
+    private final String password;
+    private final int idSlots;
+    private final long maxIdSkew;
+    private final ExecutorService queries;
+    private final ScheduledExecutorService aligner;
+    private final AtomicLong alignments = new AtomicLong();
+
+    /**
+     * @param current shard names (host:port/dbname) that own users now
+     * @param previous shard names of the layout being migrated away from, or empty
+     * @param urls JDBC URL of every shard name in either list
+     */
+    ShardRouter(List<String> current, List<String> previous, Map<String, String> urls, String user, String password,
+                boolean pooled, int vnodes, int idSlots, long maxIdSkew, long alignIntervalMs) {
+        this.user = user;
+        this.password = password;
+        this.idSlots = Math.max(1, idSlots);
+        this.maxIdSkew = Math.max(this.idSlots, maxIdSkew);
+
+        // Current shards first, so shard 0 is the first entry of DB_SHARDS
+        List<String> names = new ArrayList<>(current);
+        for (String name : previous) {
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        List<Shard> list = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            String url = urls.get(name);
+            ConnectionPool pool = pooled
+                ? new ConnectionPool("shard-" + name, url, user, password, ConnectionPool.Settings.fromEnvironment())
+                : null;
+            list.add(new Shard(i, name, url, pool, CircuitBreaker.fromEnvironment("shard-" + name)));
+        }
+        this.shards = Collections.unmodifiableList(list);
+        this.ring = new ShardRing(current, vnodes);
+        this.ringShards = indexes(current, names);
+        this.previousRing = previous.isEmpty() ? null : new ShardRing(previous, vnodes);
+        this.previousRingShards = previous.isEmpty() ? null : indexes(previous, names);
+
+        AtomicInteger threads = new AtomicInteger();
+        this.queries = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "db-shard-query-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.aligner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-shard-id-aligner");
+            t.setDaemon(true);
+            return t;
+        });
+        if (alignIntervalMs > 0 && shards.size() > 1) {
+            aligner.scheduleWithFixedDelay(this::alignIds, alignIntervalMs, alignIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        LOGGER.info("Users sharded over {} databases ({} id slots){}", current.size(), this.idSlots,
+                    previousRing == null ? "" : ", resharding from " + previous.size() + " databases");
+    }
+
+    /**
+     * Create the router from DB_SHARDS, or return null when it is empty
+     * @param defaultPort port for entries without one
+     * @param defaultDatabase database name for entries without one
+     */
+    static ShardRouter fromEnvironment(String defaultPort, String defaultDatabase, String user, String password,
+                                       boolean pooled) {
+        Map<String, String> urls = new LinkedHashMap<>();
+        List<String> current = parse(EnvConfig.getString("DB_SHARDS", ""), defaultPort, defaultDatabase, urls);
+        if (current.isEmpty()) {
+            return null;
+        }
+        List<String> previous = parse(EnvConfig.getString("DB_SHARDS_PREVIOUS", ""), defaultPort, defaultDatabase, urls);
+        int idSlots = EnvConfig.getInt("DB_SHARD_ID_SLOTS", 8);
+        if (current.size() > idSlots) {
+            throw new IllegalStateException("DB_SHARDS lists " + current.size() + " shards but DB_SHARD_ID_SLOTS is " + idSlots);
+        }
+        return new ShardRouter(current, previous, urls, user, password, pooled,
+            EnvConfig.getInt("DB_SHARD_VNODES", 128),
+            idSlots,
+            EnvConfig.getLong("DB_SHARD_ID_MAX_SKEW", idSlots * 100L),
+            EnvConfig.getLong("DB_SHARD_ID_ALIGN_MS", 1000));
+    }
+
+    /**
+     * Parse a comma-separated host[:port][/dbname] list into shard names, recording their URLs
+     */
+    static List<String> parse(String value, String defaultPort, String defaultDatabase, Map<String, String> urls) {
+        List<String> names = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            String spec = entry.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            String database = defaultDatabase;
+            int slash = spec.indexOf('/');
+            if (slash >= 0) {
+                database = spec.substring(slash + 1);
+                spec = spec.substring(0, slash);
+            }
+            String hostPort = spec.contains(":") ? spec : spec + ":" + defaultPort;
+            String name = hostPort + "/" + database;
+            if (!names.contains(name)) {
+                names.add(name);
+                urls.put(name, String.format("jdbc:postgresql://%s/%s", hostPort, database));
+            }
+        }
+        return names;
+    }
+
+    private static int[] indexes(List<String> ringNames, List<String> shardNames) {
+        int[] indexes = new int[ringNames.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = shardNames.indexOf(ringNames.get(i));
+        }
+        return indexes;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    Shard get(int shard) {
+        return shards.get(shard);
+    }
+
+    List<Shard> getShards() {
+        return shards;
+    }
+
+    public int getIdSlots() {
+        return idSlots;
+    }
+
+    /**
+     * Shard that stores the user with this email
+     */
+    public int ownerOf(String email) {
+        return ringShards[ring.ownerOf(email)];
+    }
+
+    /**
+     * Shard that stored the user with this email before the current resharding, or -1 when
+     * no resharding is in progress or the owner did not change
+     */
+    public int previousOwnerOf(String email) {
+        if (previousRing == null) {
+            return -1;
+        }
+        int previous = previousRingShards[previousRing.ownerOf(email)];
+        return previous == ownerOf(email) ? -1 : previous;
+    }
+
+    public boolean isResharding() {
+        return previousRing != null;
+    }
+
+    ShardRing getRing() {
+        return ring;
+    }
+
+    ShardRing getPreviousRing() {
+        return previousRing;
+    }
+
+    /**
+     * Open a connection to one shard outside its pool, for long-lived sessions such as LISTEN
+     * or the schema migration lock
+     */
+    Connection openDedicatedConnection(int shard) throws SQLException {
+        return DriverManager.getConnection(shards.get(shard).url, user, password);
+    }
+
+    /**
+     * Run a call against every shard in parallel; the calling thread takes shard 0
+     * @return the results in shard order
+     * @throws SQLException the first failure, after the other calls have finished or been cancelled
+     */
+    <T> List<T> scatter(DatabaseConnection.ShardCall<T> call) throws SQLException {
+        List<Future<T>> futures = new ArrayList<>(shards.size() - 1);
+        // Shard queries are bounded by the deadline of the request that started them
+        Long deadline = AsyncDbExecutor.currentDeadline();
+        for (int i = 1; i < shards.size(); i++) {
+            int shard = i;
+            futures.add(queries.submit(() -> AsyncDbExecutor.callWithDeadline(deadline, () -> call.call(shard))));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            results.add(call.call(0));
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Shard query failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for shard queries", "57014", e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Give every shard's id sequence the DB_SHARD_ID_SLOTS step and a slot of its own.
+     * Shards that already step by the slot count keep their slot; new ones get the lowest
+     * free slot and restart above the highest id on any shard, so rows created before
+     * sharding (or moved between shards) never collide with new ids. Called by the schema
+     * migrator under its lock once every shard has the users table.
+     */
+    void configureIdSequences() throws SQLException {
+        int n = shards.size();
+        long[] increments = new long[n];
+        long[] lastValues = new long[n];
+        long highest = 0;
+        boolean[] used = new boolean[idSlots];
+        for (Shard shard : shards) {
+            try (Connection conn = DatabaseConnection.getConnection(shard.index);
+                 Statement stmt = conn.createStatement()) {
+                String sequence = sequenceOf(shard, stmt);
+                try (ResultSet rs = stmt.executeQuery(
+                         "SELECT increment_by, COALESCE(last_value, start_value) FROM pg_sequences" +
+                         " WHERE (quote_ident(schemaname) || '.' || quote_ident(sequencename))::regclass = '" +
+                         sequence + "'::regclass")) {
+                    rs.next();
+                    increments[shard.index] = rs.getLong(1);
+                    lastValues[shard.index] = rs.getLong(2);
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM users")) {
+                    rs.next();
+                    highest = Math.max(highest, rs.getLong(1));
+                }
+            }
+            if (increments[shard.index] == idSlots && idSlots > 1) {
+                shard.slot = (int) (lastValues[shard.index] % idSlots);
+                if (used[shard.slot]) {
+                    throw new IllegalStateException("Shards share id slot " + shard.slot + "; ids would collide");
+                }
+                used[shard.slot] = true;
+                highest = Math.max(highest, lastValues[shard.index]);
+            } else if (increments[shard.index] != 1) {
+                throw new IllegalStateException("Shard " + shard.name + " id sequence steps by " +
+                    increments[shard.index] + ", not DB_SHARD_ID_SLOTS (" + idSlots + "); the setting must not change");
+            }
+        }
+        for (Shard shard : shards) {
+            if (shard.slot >= 0) {
+                continue;
+            }
+            int slot = 0;
+            while (slot < idSlots && used[slot]) {
+                slot++;
+            }
+            if (slot == idSlots) {
+                throw new IllegalStateException("No free id slot for shard " + shard.name + "; raise DB_SHARD_ID_SLOTS");
+            }
+            long restart = highest + 1 + Math.floorMod(slot - (highest + 1), idSlots);
+            if (restart > Integer.MAX_VALUE) {
+                throw new IllegalStateException("User ids on shard " + shard.name + " would exceed the integer range");
+            }
+            try (Connection conn = DatabaseConnection.getConnection(shard.index);
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER SEQUENCE " + shard.sequence + " INCREMENT BY " + idSlots +
+                             " MINVALUE 1 RESTART WITH " + restart);
+            }
+            used[slot] = true;
+            shard.slot = slot;
+            LOGGER.info("Shard {} issues user ids from {} in steps of {}", shard.name, restart, idSlots);
+        }
+    }
+
+    private static String sequenceOf(Shard shard, Statement stmt) throws SQLException {
+        String sequence = shard.sequence;
+        if (sequence == null) {
+            try (ResultSet rs = stmt.executeQuery(SEQUENCE_SQL)) {
+                rs.next();
+                sequence = rs.getString(1);
+            }
+            if (sequence == null) {
+                throw new SQLException("users.id on shard " + shard.name + " has no sequence", "42P01");
+            }
+            shard.sequence = sequence;
+        }
+        return sequence;
+    }
+
+    /**
+     * Move sequences that fell more than DB_SHARD_ID_MAX_SKEW behind the furthest one
+     * forward (keeping their slot), so a shard with fewer inserts does not keep issuing
+     * ids far below the others
+     */
+    private void alignIds() {
+        try {
+            long[] lastValues = new long[shards.size()];
+            long highest = 0;
+            for (Shard shard : shards) {
+                lastValues[shard.index] = -1;
+                if (shard.slot < 0 || shard.breaker.getState() != CircuitBreaker.State.CLOSED) {
+                    continue;
+                }
+                try (Connection conn = DatabaseConnection.getConnection(shard.index);
+                     Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT last_value FROM " + sequenceOf(shard, stmt))) {
+                    rs.next();
+                    lastValues[shard.index] = rs.getLong(1);
+                    highest = Math.max(highest, lastValues[shard.index]);
+                }
+            }
+            for (Shard shard : shards) {
+                long last = lastValues[shard.index];
+                if (last < 0 || highest - last <= maxIdSkew) {
+                    continue;
+                }
+                long target = last + (highest - last) / idSlots * idSlots;
+                try (Connection conn = DatabaseConnection.getConnection(shard.index);
+                     PreparedStatement stmt = conn.prepareStatement(
+                         // Only if no insert moved the sequence since it was read; sequences
+                         // are not transactional, so this check is as close as it gets
+                         "SELECT setval('" + shard.sequence + "', ?) FROM " + shard.sequence + " WHERE last_value = ?")) {
+                    stmt.setLong(1, target);
+                    stmt.setLong(2, last);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            alignments.incrementAndGet();
+                            LOGGER.debug("Moved shard {} id sequence from {} to {}", shard.name, last, target);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.debug("Shard id alignment skipped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Shard layout, key share, breaker and pool state as a JSON object
+     */
+    public String getStatsJson() {
+        double[] shares = ring.shares();
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\"enabled\":true,\"resharding\":%s,\"idSlots\":%d,\"idAlignments\":%d,\"shards\":[",
+            isResharding(), idSlots, alignments.get()));
+        for (Shard shard : shards) {
+            int ringIndex = ring.getShards().indexOf(shard.name);
+            if (shard.index > 0) {
+                json.append(',');
+            }
+            // Locale.ROOT: a locale with a decimal comma would write invalid JSON
+            json.append(String.format(Locale.ROOT, "{\"name\":\"%s\",\"slot\":%d,\"keyShare\":%.4f,\"circuitBreaker\":%s,\"pool\":%s}",
+                shard.name, shard.slot, ringIndex < 0 ? 0.0 : shares[ringIndex], shard.breaker.getStatsJson(),
+                shard.pool == null ? "{\"enabled\":false}" : shard.pool.getStatsJson()));
+        }
+        return json.append("]}").toString();
+    }
+
+    void close() {
+        aligner.shutdownNow();
+        queries.shutdownNow();
+        for (Shard shard : shards) {
+            if (shard.pool != null) {
+                shard.pool.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.threetier.webapp;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution.
+ *
+ * The first caller for a key runs the loader; callers that arrive while it is in flight
+ * wait for and share its result (or its exception) instead of running their own query and
+ * taking their own connection. Nothing is kept once the call completes, so this bounds
+ * duplicate work under a burst on a hot key without adding any staleness.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Work to run once per key
+     */
+    @FunctionalInterface
+    public interface Loader<V> {
+        V load() throws SQLException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onCoalesced;
+
+    /**
+     * @param onCoalesced called each time a caller joins a call already in flight
+     */
+    public SingleFlight(Runnable onCoalesced) {
+        this.onCoalesced = onCoalesced;
+    }
+
+    /**
+     * Run the loader for this key, or wait for the call already in flight
+     */
+    public V execute(K key, Loader<V> loader) throws SQLException {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            onCoalesced.run();
+            return await(existing);
+        }
+        try {
+            V value = loader.load();
+            call.complete(value);
+            return value;
+        } catch (Throwable t) {
+            call.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> call) throws SQLException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a shared lookup", "57014", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException("Shared lookup failed", cause);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.threetier.webapp;
+
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Classifies database failures by SQLState instead of by message text.
+ *
+ * Exact codes are looked up first, then the two-character SQLState class. The cause chain
+ * is walked because wrappers (such as the friendlier messages in DatabaseConnection) may
+ * not carry a state of their own. Both tables are built once; classifying costs a hash
+ * lookup or two per exception. A socket read timeout is reported by the driver as a broken
+ * connection (08006) but is a query that ran past a request deadline, so it classifies as
+ * QUERY_CANCELED and neither trips the breaker nor is retried.
+ */
+public final class SqlErrorClassifier {
+
+    /**
+     * What a failure means for the caller
+     */
+    public enum Kind {
+        /** A new connection could not be established; nothing was sent, so retrying is safe */
+        CONNECT_FAILED(true),
+        /** An established connection broke, possibly mid-statement */
+        CONNECTION_LOST(true),
+        /** The server is out of resources (disk, memory) */
+        UNAVAILABLE(true),
+        /** The server refused a connection because its connection slots are full; it is up */
+        OVERLOADED(false),
+        /** The circuit breaker is open and the database was not contacted */
+        CIRCUIT_OPEN(true),
+        /** No pooled connection became free in time; the database itself may be fine */
+        POOL_EXHAUSTED(false),
+        /** Serialization failure or deadlock; the transaction was rolled back and can be rerun */
+        SERIALIZATION(false),
+        LOCK_TIMEOUT(false),
+        QUERY_CANCELED(false),
+        UNIQUE_VIOLATION(false),
+        CONSTRAINT_VIOLATION(false),
+        INVALID_DATA(false),
+        PERMISSION_DENIED(false),
+        UNDEFINED_TABLE(false),
+        OTHER(false);
+
+        private final boolean outage;
+
+        Kind(boolean outage) {
+            this.outage = outage;
+        }
+
+        /**
+         * True if the failure suggests the database is unreachable or unable to serve,
+         * which is what the circuit breaker counts
+         */
+        public boolean isOutage() {
+            return outage;
+        }
+
+        /**
+         * True if the request failed because of database availability or capacity and the
+         * client should retry later (503), rather than because of the request itself
+         */
+        public boolean isUnavailable() {
+            return outage || this == POOL_EXHAUSTED || this == OVERLOADED || this == LOCK_TIMEOUT;
+        }
+    }
+
+    private static final Map<String, Kind> BY_CODE = new HashMap<>();
+    private static final Map<String, Kind> BY_CLASS = new HashMap<>();
+
+    static {
+        BY_CODE.put("08001", Kind.CONNECT_FAILED);      // sqlclient_unable_to_establish_sqlconnection
+        BY_CODE.put("08004", Kind.CONNECT_FAILED);      // sqlserver_rejected_establishment_of_sqlconnection
+        BY_CODE.put("53300", Kind.OVERLOADED);          // too_many_connections
+        BY_CODE.put("57P03", Kind.CONNECT_FAILED);      // cannot_connect_now (starting up)
+        BY_CODE.put("57P01", Kind.CONNECTION_LOST);     // admin_shutdown
+        BY_CODE.put("57P02", Kind.CONNECTION_LOST);     // crash_shutdown
+        BY_CODE.put("57014", Kind.QUERY_CANCELED);      // query_canceled, e.g. statement_timeout
+        BY_CODE.put("40001", Kind.SERIALIZATION);       // serialization_failure
+        BY_CODE.put("40P01", Kind.SERIALIZATION);       // deadlock_detected
+        BY_CODE.put("55P03", Kind.LOCK_TIMEOUT);        // lock_not_available
+        BY_CODE.put("23505", Kind.UNIQUE_VIOLATION);    // unique_violation
+        BY_CODE.put("42501", Kind.PERMISSION_DENIED);   // insufficient_privilege
+        BY_CODE.put("42P01", Kind.UNDEFINED_TABLE);     // undefined_table
+        BY_CODE.put("28000", Kind.PERMISSION_DENIED);   // invalid_authorization_specification
+        BY_CODE.put("28P01", Kind.PERMISSION_DENIED);   // invalid_password
+
+        BY_CLASS.put("08", Kind.CONNECTION_LOST);       // connection_exception (08000, 08003, 08006, ...)
+        BY_CLASS.put("53", Kind.UNAVAILABLE);           // insufficient_resources
+        BY_CLASS.put("23", Kind.CONSTRAINT_VIOLATION);  // integrity_constraint_violation
+        BY_CLASS.put("22", Kind.INVALID_DATA);          // data_exception
+        BY_CLASS.put("40", Kind.SERIALIZATION);         // transaction_rollback
+    }
+
+    private SqlErrorClassifier() {}
+
+    /**
+     * Classify a database failure
+     */
+    public static Kind classify(SQLException e) {
+        if (isSocketTimeout(e)) {
+            return Kind.QUERY_CANCELED;
+        }
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < 8; depth++, t = t.getCause()) {
+            if (t instanceof CircuitBreaker.OpenException) {
+                return Kind.CIRCUIT_OPEN;
+            }
+            if (t instanceof ConnectionPool.AcquireTimeoutException) {
+                return Kind.POOL_EXHAUSTED;
+            }
+            if (t instanceof SQLException) {
+                String sqlState = ((SQLException) t).getSQLState();
+                if (sqlState != null && sqlState.length() == 5) {
+                    Kind kind = BY_CODE.get(sqlState);
+                    if (kind == null) {
+                        kind = BY_CLASS.get(sqlState.substring(0, 2));
+                    }
+                    return kind != null ? kind : Kind.OTHER;
+                }
+                if (t instanceof SQLTransientConnectionException || t instanceof SQLNonTransientConnectionException) {
+                    return Kind.CONNECTION_LOST;
+                }
+            }
+        }
+        return Kind.OTHER;
+    }
+
+    private static boolean isSocketTimeout(Throwable e) {
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < 8; depth++, t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
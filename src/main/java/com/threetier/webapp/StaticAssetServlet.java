@@ -0,0 +1,185 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serves static assets from memory.
+ *
+ * Every asset is read once at startup together with its precompressed variants
+ * (&lt;asset&gt;.gz written by AssetPrecompressor at build time, and &lt;asset&gt;.br if one is
+ * packaged). A gzip variant is produced at startup when the build did not provide one.
+ * Responses carry a content-hash ETag and a Cache-Control max-age of STATIC_CACHE_MAX_AGE
+ * seconds. Each encoding is a different byte sequence, so the gzip and br bodies carry the
+ * identity tag with a -gz or -br suffix, keeping the tags strong validators. Paths that are not preloaded fall through to the container's default servlet.
+ */
+public class StaticAssetServlet extends HttpServlet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticAssetServlet.class);
+
+    private static final long CACHE_MAX_AGE = Math.max(0, EnvConfig.getLong("STATIC_CACHE_MAX_AGE", 86400));
+
+    /**
+     * One static asset and its encoded variants
+     */
+    private static final class Asset {
+        final String contentType;
+        final String etag;
+        final String gzipEtag;
+        final String brotliEtag;
+        final byte[] identity;
+        final byte[] gzip;
+        final byte[] brotli;
+
+        Asset(String contentType, String etag, byte[] identity, byte[] gzip, byte[] brotli) {
+            this.contentType = contentType;
+            this.etag = etag;
+            this.gzipEtag = variantEtag(etag, "-gz");
+            this.brotliEtag = variantEtag(etag, "-br");
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+    }
+
+    private final Map<String, Asset> assets = new HashMap<>();
+    private String cacheControl;
+
+    @Override
+    public void init() throws ServletException {
+        cacheControl = "public, max-age=" + CACHE_MAX_AGE;
+        try {
+            load(getServletContext(), "/");
+        } catch (IOException e) {
+            throw new ServletException("Failed to load static assets", e);
+        }
+        LOGGER.info("Static assets loaded: {}", assets.keySet());
+    }
+
+    private void load(ServletContext context, String dir) throws IOException {
+        Set<String> paths = context.getResourcePaths(dir);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            if (path.startsWith("/WEB-INF/") || path.startsWith("/META-INF/")) {
+                continue;
+            }
+            if (path.endsWith("/")) {
+                load(context, path);
+            } else if (!path.endsWith(".gz") && !path.endsWith(".br") && AssetPrecompressor.isCompressible(path)) {
+                byte[] identity = read(context, path);
+                byte[] gzip = read(context, path + ".gz");
+                if (gzip == null) {
+                    gzip = AssetPrecompressor.gzip(identity);
+                }
+                if (gzip.length >= identity.length) {
+                    gzip = null;
+                }
+                String contentType = context.getMimeType(path);
+                if (contentType != null && contentType.startsWith("text/") && !contentType.contains("charset")) {
+                    contentType += ";charset=UTF-8";
+                }
+                assets.put(path, new Asset(contentType, etag(identity), identity, gzip, read(context, path + ".br")));
+            }
+        }
+    }
+
+    private static byte[] read(ServletContext context, String path) throws IOException {
+        try (InputStream in = context.getResourceAsStream(path)) {
+            if (in == null) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < 12; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The identity tag with a suffix inside the quotes, e.g. "abc" becomes "abc-gz"
+     */
+    private static String variantEtag(String etag, String suffix) {
+        return etag.substring(0, etag.length() - 1) + suffix + '"';
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String path = request.getServletPath() + (request.getPathInfo() != null ? request.getPathInfo() : "");
+        Asset asset = assets.get(path);
+        if (asset == null) {
+            RequestDispatcher fallback = getServletContext().getNamedDispatcher("default");
+            if (fallback == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            fallback.forward(request, response);
+            return;
+        }
+
+        byte[] body = asset.identity;
+        String etag = asset.etag;
+        String encoding = null;
+        if (asset.brotli != null && CompressionFilter.accepts(request, "br")) {
+            encoding = "br";
+            body = asset.brotli;
+            etag = asset.brotliEtag;
+        } else if (asset.gzip != null && CompressionFilter.accepts(request, "gzip")) {
+            encoding = "gzip";
+            body = asset.gzip;
+            etag = asset.gzipEtag;
+        }
+
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", cacheControl);
+        if (asset.gzip != null || asset.brotli != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (encoding != null) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        if (asset.contentType != null) {
+            response.setContentType(asset.contentType);
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+}
@@ -6,6 +6,9 @@ import java.time.LocalDateTime;
  * User entity class
  */
 public class User {
+    // Length of the name and email columns (VARCHAR(100))
+    public static final int MAX_FIELD_LENGTH = 100;
+
     private int id;
     private String name;
     private String email;
@@ -77,6 +80,14 @@ public class User {
                isValidEmail(email);
     }
     
+    /**
+     * Whether the name and email fit their columns; longer values fail the insert with SQLState 22001
+     */
+    public boolean fitsColumns() {
+        return name != null && name.length() <= MAX_FIELD_LENGTH
+            && email != null && email.length() <= MAX_FIELD_LENGTH;
+    }
+    
     private boolean isValidEmail(String email) {
         return email.contains("@") && email.contains(".") && email.length() > 5;
     }
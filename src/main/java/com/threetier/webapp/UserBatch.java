@@ -0,0 +1,682 @@
+package com.threetier.webapp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An ordered batch of user operations for {@code POST /api/batch}.
+ *
+ * Operations run in request order on one pooled connection per shard they touch (a single
+ * connection when users are not sharded), borrowed once for the whole batch. Consecutive
+ * operations of the same kind are sent as one statement: creates as a multi-row
+ * {@code INSERT ... ON CONFLICT (email) DO NOTHING RETURNING}, lookups by id or email as one
+ * {@code = ANY(?)} query. Reads go to the primary, bypass the read cache and see the
+ * batch's own earlier writes.
+ *
+ * An atomic batch runs in one transaction and stops at its first failed operation; the
+ * transaction is rolled back and every other operation reports 424. When users are
+ * sharded, an atomic batch may only create users on one shard. Otherwise every statement
+ * commits on its own and a failed operation does not affect the others.
+ */
+public class UserBatch {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserBatch.class);
+
+    static final int SC_FAILED_DEPENDENCY = 424;
+    private static final String SELECT_USERS = "SELECT id, name, email, created_at FROM users ";
+    private static final String DUPLICATE_MESSAGE = "User with this email already exists";
+
+    /**
+     * Operation kinds, by the name used in the request
+     */
+    public enum Kind {
+        CREATE("create"), GET("get"), GET_BY_EMAIL("getByEmail"), LIST("list");
+
+        final String wireName;
+
+        Kind(String wireName) {
+            this.wireName = wireName;
+        }
+
+        static Kind of(String name) {
+            for (Kind kind : values()) {
+                if (kind.wireName.equals(name)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One requested operation and, once run, its outcome
+     */
+    static final class Operation {
+        final int index;
+        final String name;
+        final Kind kind;
+        User user;
+        int id;
+        String email;
+        int limit;
+        int afterId;
+        int status;
+        String error;
+        JsonElement body;
+        String nextCursor;
+
+        Operation(int index, String name, Kind kind) {
+            this.index = index;
+            this.name = name;
+            this.kind = kind;
+        }
+
+        boolean failed() {
+            return status >= 400;
+        }
+
+        void fail(int status, String error) {
+            this.status = status;
+            this.error = error;
+            this.body = null;
+            this.nextCursor = null;
+        }
+    }
+
+    /**
+     * Thrown when the operations array is longer than the caller allows
+     */
+    public static final class TooManyOperationsException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyOperationsException(int maxOperations) {
+            super("a batch may contain at most " + maxOperations + " operations");
+        }
+    }
+
+    private final boolean atomic;
+    private final List<Operation> operations;
+    private final Gson gson;
+    private final List<User> created = new ArrayList<>();
+    private int writeShard = -1;
+    private boolean committed;
+    private int failedStatus;
+
+    private UserBatch(boolean atomic, List<Operation> operations, Gson gson) {
+        this.atomic = atomic;
+        this.operations = operations;
+        this.gson = gson;
+    }
+
+    /**
+     * Parse {"atomic": bool, "operations": [{"op": "create"|"get"|"getByEmail"|"list", ...}]}.
+     * Invalid operations are kept and answered with 400, so results line up with the request.
+     * @throws TooManyOperationsException if there are more than maxOperations operations
+     * @throws IllegalArgumentException if the body is not a batch, or is an atomic batch that
+     *         would create users on more than one shard
+     * @throws com.google.gson.JsonParseException if the body is not JSON
+     */
+    public static UserBatch parse(Reader input, Gson gson, int maxOperations, int defaultPageSize, int maxPageSize) {
+        JsonElement root = JsonParser.parseReader(input);
+        if (!root.isJsonObject() || !root.getAsJsonObject().has("operations")
+                || !root.getAsJsonObject().get("operations").isJsonArray()) {
+            throw new IllegalArgumentException("expected an object with an operations array");
+        }
+        JsonObject batch = root.getAsJsonObject();
+        boolean atomic = batch.has("atomic") && batch.get("atomic").isJsonPrimitive()
+            && batch.get("atomic").getAsBoolean();
+        JsonArray requested = batch.getAsJsonArray("operations");
+        // Checked before any Operation is built, so an oversized batch costs only the parse
+        if (requested.size() > maxOperations) {
+            throw new TooManyOperationsException(maxOperations);
+        }
+        List<Operation> operations = new ArrayList<>(requested.size());
+        for (JsonElement element : requested) {
+            operations.add(parseOperation(operations.size(), element, defaultPageSize, maxPageSize));
+        }
+
+        UserBatch parsed = new UserBatch(atomic, operations, gson);
+        if (atomic) {
+            Set<Integer> shards = new TreeSet<>();
+            for (Operation op : operations) {
+                if (op.kind == Kind.CREATE && op.status == 0) {
+                    shards.add(DatabaseConnection.shardOf(op.user.getEmail()));
+                }
+            }
+            if (shards.size() > 1) {
+                throw new IllegalArgumentException("an atomic batch can only create users on one shard");
+            }
+            parsed.writeShard = shards.isEmpty() ? -1 : shards.iterator().next();
+        }
+        return parsed;
+    }
+
+    private static Operation parseOperation(int index, JsonElement element, int defaultPageSize, int maxPageSize) {
+        JsonObject fields = element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+        String name = string(fields, "op");
+        Operation op = new Operation(index, name, Kind.of(name));
+        if (!element.isJsonObject()) {
+            op.fail(HttpServletResponse.SC_BAD_REQUEST, "Operation is not a JSON object");
+            return op;
+        }
+        if (op.kind == null) {
+            op.fail(HttpServletResponse.SC_BAD_REQUEST, "Unknown operation: use create, get, getByEmail or list");
+            return op;
+        }
+        switch (op.kind) {
+            case CREATE:
+                String userName = string(fields, "name");
+                String email = string(fields, "email");
+                if (userName == null || email == null || userName.trim().isEmpty() || email.trim().isEmpty()) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST, "Name and email are required");
+                } else if (userName.trim().length() > User.MAX_FIELD_LENGTH
+                           || email.trim().length() > User.MAX_FIELD_LENGTH) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST,
+                            "Name and email must be at most " + User.MAX_FIELD_LENGTH + " characters");
+                } else {
+                    op.user = new User(userName.trim(), email.trim());
+                    if (!op.user.isValid()) {
+                        op.fail(HttpServletResponse.SC_BAD_REQUEST, "Invalid email format");
+                    }
+                }
+                break;
+            case GET:
+                op.id = positiveInt(fields, "id");
+                if (op.id <= 0) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST, "id must be a positive integer");
+                }
+                break;
+            case GET_BY_EMAIL:
+                op.email = string(fields, "email");
+                if (op.email == null || op.email.trim().isEmpty()) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST, "Email must not be empty");
+                } else {
+                    op.email = op.email.trim();
+                }
+                break;
+            case LIST:
+                op.limit = fields.has("limit") ? positiveInt(fields, "limit") : defaultPageSize;
+                String after = string(fields, "after");
+                try {
+                    op.afterId = (after == null || after.isEmpty()) ? 0 : PageCursor.decode(after);
+                } catch (IllegalArgumentException e) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST, "Invalid pagination parameters: " + e.getMessage());
+                    break;
+                }
+                if (op.limit <= 0) {
+                    op.fail(HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid pagination parameters: limit must be a positive integer");
+                }
+                op.limit = Math.min(op.limit, maxPageSize);
+                break;
+            default:
+                break;
+        }
+        return op;
+    }
+
+    private static String string(JsonObject fields, String field) {
+        JsonElement value = fields.get(field);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+
+    /**
+     * A positive integer field, or -1 if it is missing or not a positive integer
+     */
+    private static int positiveInt(JsonObject fields, String field) {
+        JsonElement value = fields.get(field);
+        if (value == null || !value.isJsonPrimitive()) {
+            return -1;
+        }
+        try {
+            int n = Integer.parseInt(value.getAsString());
+            return n > 0 ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    /**
+     * Users this batch inserted and committed
+     */
+    public List<User> getCreated() {
+        return created;
+    }
+
+    /**
+     * HTTP status of the whole batch: 200 once it has run, or the status of the failure
+     * that rolled back an atomic batch
+     */
+    public int getStatus() {
+        return failedStatus != 0 ? failedStatus : HttpServletResponse.SC_OK;
+    }
+
+    /**
+     * Borrowed connections, one per shard, held until the batch is done
+     */
+    private final class Connections implements AutoCloseable {
+        final Connection[] held = new Connection[DatabaseConnection.getShardCount()];
+
+        Connection get(int shard) throws SQLException {
+            if (held[shard] == null) {
+                Connection conn = DatabaseConnection.withRetry(() -> DatabaseConnection.getConnection(shard));
+                if (atomic) {
+                    try {
+                        conn.setAutoCommit(false);
+                    } catch (SQLException e) {
+                        conn.close();
+                        throw e;
+                    }
+                }
+                held[shard] = conn;
+            }
+            return held[shard];
+        }
+
+        /**
+         * Commit every connection, the one holding the batch's writes last, so a failed
+         * commit can only lose reads
+         */
+        void commit() throws SQLException {
+            for (int shard = 0; shard < held.length; shard++) {
+                if (held[shard] != null && shard != writeShard) {
+                    held[shard].commit();
+                }
+            }
+            if (writeShard >= 0 && held[writeShard] != null) {
+                held[writeShard].commit();
+            }
+        }
+
+        void rollback() {
+            for (Connection conn : held) {
+                if (conn == null) {
+                    continue;
+                }
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    LOGGER.warn("Rolling back a user batch failed (SQLState {})", e.getSQLState());
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Connection conn : held) {
+                if (conn == null) {
+                    continue;
+                }
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    LOGGER.warn("Closing a user batch connection failed (SQLState {})", e.getSQLState());
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the operations in order, one statement per run of same-kind operations and shard
+     */
+    public void execute() {
+        List<User> inserted = new ArrayList<>();
+        Operation failure = null;
+        try (Connections connections = new Connections()) {
+            int i = 0;
+            while (i < operations.size() && failure == null) {
+                Operation first = operations.get(i);
+                int end = i + 1;
+                if (first.status == 0 && first.kind != Kind.LIST) {
+                    while (end < operations.size() && operations.get(end).status == 0
+                            && operations.get(end).kind == first.kind) {
+                        end++;
+                    }
+                }
+                List<Operation> run = operations.subList(i, end);
+                if (first.status == 0) {
+                    try {
+                        run(connections, first.kind, run, inserted);
+                    } catch (SQLException e) {
+                        LOGGER.warn("Database error in a user batch (SQLState {})", e.getSQLState());
+                        LOGGER.debug("Database error in a user batch", e);
+                        for (Operation op : run) {
+                            fail(op, e);
+                        }
+                    }
+                }
+                if (atomic) {
+                    for (Operation op : run) {
+                        if (op.failed()) {
+                            failure = op;
+                            break;
+                        }
+                    }
+                }
+                i = end;
+            }
+
+            if (!atomic) {
+                created.addAll(inserted);
+                return;
+            }
+            if (failure == null) {
+                try {
+                    connections.commit();
+                    committed = true;
+                    created.addAll(inserted);
+                    return;
+                } catch (SQLException e) {
+                    LOGGER.warn("Commit of a user batch failed (SQLState {})", e.getSQLState());
+                    connections.rollback();
+                    for (Operation op : operations) {
+                        fail(op, e);
+                    }
+                    failedStatus = operations.get(0).status;
+                    return;
+                }
+            }
+            connections.rollback();
+        }
+
+        failedStatus = failure.status;
+        for (Operation op : operations) {
+            if (op != failure) {
+                op.fail(SC_FAILED_DEPENDENCY, "Not applied: operation " + failure.index + " failed");
+            }
+        }
+    }
+
+    private void run(Connections connections, Kind kind, List<Operation> run, List<User> inserted)
+            throws SQLException {
+        switch (kind) {
+            case CREATE:
+                create(connections, run, inserted);
+                break;
+            case GET:
+                getById(connections, run);
+                break;
+            case GET_BY_EMAIL:
+                getByEmail(connections, run);
+                break;
+            case LIST:
+                for (Operation op : run) {
+                    list(connections, op);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Insert a run of creates with one multi-row insert per owning shard
+     */
+    private void create(Connections connections, List<Operation> run, List<User> inserted) throws SQLException {
+        Set<String> emails = new LinkedHashSet<>();
+        for (Operation op : run) {
+            emails.add(op.user.getEmail());
+        }
+        Set<String> onPreviousOwner = findOnPreviousOwners(connections, emails);
+        Map<Integer, List<Operation>> byShard = new TreeMap<>();
+        for (Operation op : run) {
+            if (onPreviousOwner.contains(op.user.getEmail())) {
+                // Not moved to its new shard yet, but it exists
+                op.fail(HttpServletResponse.SC_CONFLICT, DUPLICATE_MESSAGE);
+            } else {
+                byShard.computeIfAbsent(DatabaseConnection.shardOf(op.user.getEmail()),
+                                        k -> new ArrayList<>()).add(op);
+            }
+        }
+        for (Map.Entry<Integer, List<Operation>> group : byShard.entrySet()) {
+            try {
+                insert(connections.get(group.getKey()), group.getValue(), inserted);
+            } catch (SQLException e) {
+                // Other shards' inserts have committed (or, when atomic, the batch stops here)
+                LOGGER.warn("Database error in a user batch insert (SQLState {})", e.getSQLState());
+                LOGGER.debug("Database error in a user batch insert", e);
+                for (Operation op : group.getValue()) {
+                    fail(op, e);
+                }
+                if (atomic) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void insert(Connection conn, List<Operation> ops, List<User> inserted) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO users (name, email) VALUES ");
+        for (int i = 0; i < ops.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(" ON CONFLICT (email) DO NOTHING RETURNING id, email, created_at");
+
+        Map<String, User> rows = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Operation op : ops) {
+                stmt.setString(index++, op.user.getName());
+                stmt.setString(index++, op.user.getEmail());
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String email = rs.getString("email");
+                    rows.put(email, new User(rs.getInt("id"), null, email, rs.getString("created_at")));
+                }
+            }
+        }
+        for (Operation op : ops) {
+            // Only the first operation for an email may claim the inserted row
+            User row = rows.remove(op.user.getEmail());
+            if (row == null) {
+                op.fail(HttpServletResponse.SC_CONFLICT, DUPLICATE_MESSAGE);
+                continue;
+            }
+            row.setName(op.user.getName());
+            inserted.add(row);
+            op.status = HttpServletResponse.SC_CREATED;
+            op.body = gson.toJsonTree(row);
+        }
+    }
+
+    /**
+     * Emails that exist on the shard that owned them before a resharding
+     */
+    private static Set<String> findOnPreviousOwners(Connections connections, Set<String> emails)
+            throws SQLException {
+        Set<String> found = new LinkedHashSet<>();
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        if (router == null || !router.isResharding()) {
+            return found;
+        }
+        Map<Integer, List<String>> byShard = new TreeMap<>();
+        for (String email : emails) {
+            int previous = router.previousOwnerOf(email);
+            if (previous >= 0) {
+                byShard.computeIfAbsent(previous, k -> new ArrayList<>()).add(email);
+            }
+        }
+        for (Map.Entry<Integer, List<String>> e : byShard.entrySet()) {
+            for (User user : select(connections.get(e.getKey()), "email", "varchar", e.getValue().toArray())) {
+                found.add(user.getEmail());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Look up a run of ids with one query per shard, stopping once all are found
+     */
+    private void getById(Connections connections, List<Operation> run) throws SQLException {
+        Set<Integer> missing = new LinkedHashSet<>();
+        for (Operation op : run) {
+            missing.add(op.id);
+        }
+        Map<Integer, User> found = new HashMap<>();
+        for (int shard = 0; shard < DatabaseConnection.getShardCount() && !missing.isEmpty(); shard++) {
+            for (User user : select(connections.get(shard), "id", "integer", missing.toArray())) {
+                found.put(user.getId(), user);
+                missing.remove(user.getId());
+            }
+        }
+        for (Operation op : run) {
+            complete(op, found.get(op.id));
+        }
+    }
+
+    /**
+     * Look up a run of emails with one query per owning shard, then (while resharding) one
+     * per previous owner for the emails not found
+     */
+    private void getByEmail(Connections connections, List<Operation> run) throws SQLException {
+        Map<Integer, Set<String>> byShard = new TreeMap<>();
+        for (Operation op : run) {
+            byShard.computeIfAbsent(DatabaseConnection.shardOf(op.email), k -> new LinkedHashSet<>()).add(op.email);
+        }
+        Map<String, User> found = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> e : byShard.entrySet()) {
+            for (User user : select(connections.get(e.getKey()), "email", "varchar", e.getValue().toArray())) {
+                found.put(user.getEmail(), user);
+            }
+        }
+        Map<Integer, Set<String>> byPrevious = new TreeMap<>();
+        for (Operation op : run) {
+            int previous = DatabaseConnection.previousShardOf(op.email);
+            if (previous >= 0 && !found.containsKey(op.email)) {
+                byPrevious.computeIfAbsent(previous, k -> new LinkedHashSet<>()).add(op.email);
+            }
+        }
+        for (Map.Entry<Integer, Set<String>> e : byPrevious.entrySet()) {
+            for (User user : select(connections.get(e.getKey()), "email", "varchar", e.getValue().toArray())) {
+                found.put(user.getEmail(), user);
+            }
+        }
+        for (Operation op : run) {
+            complete(op, found.get(op.email));
+        }
+    }
+
+    /**
+     * Read one page after the operation's cursor, merged over the shards like the list endpoint
+     */
+    private void list(Connections connections, Operation op) throws SQLException {
+        List<List<User>> pages = new ArrayList<>();
+        for (int shard = 0; shard < DatabaseConnection.getShardCount(); shard++) {
+            // One extra row tells whether another page exists
+            try (PreparedStatement stmt = connections.get(shard).prepareStatement(
+                     SELECT_USERS + "WHERE id > ? ORDER BY id LIMIT ?")) {
+                stmt.setInt(1, op.afterId);
+                stmt.setInt(2, op.limit + 1);
+                List<User> page = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(PostgresUserRepository.mapUser(rs));
+                    }
+                }
+                pages.add(page);
+            }
+        }
+        List<User> users = new ArrayList<>(Math.min(op.limit, 64));
+        boolean hasMore = PostgresUserRepository.mergePages(pages, op.afterId, op.limit, users);
+        op.status = HttpServletResponse.SC_OK;
+        op.body = gson.toJsonTree(users);
+        op.nextCursor = hasMore ? PageCursor.encode(users.get(users.size() - 1).getId()) : null;
+    }
+
+    private static List<User> select(Connection conn, String column, String type, Object[] keys)
+            throws SQLException {
+        List<User> users = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_USERS + "WHERE " + column + " = ANY(?)")) {
+            stmt.setArray(1, conn.createArrayOf(type, keys));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(PostgresUserRepository.mapUser(rs));
+                }
+            }
+        }
+        return users;
+    }
+
+    private void complete(Operation op, User user) {
+        if (user == null) {
+            op.fail(HttpServletResponse.SC_NOT_FOUND, "User not found");
+        } else {
+            op.status = HttpServletResponse.SC_OK;
+            op.body = gson.toJsonTree(user);
+        }
+    }
+
+    /**
+     * Record a database error as the operation's result, with the status the single-user
+     * endpoints would answer
+     */
+    private static void fail(Operation op, SQLException e) {
+        SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+        if (kind == SqlErrorClassifier.Kind.UNIQUE_VIOLATION) {
+            op.fail(HttpServletResponse.SC_CONFLICT, DUPLICATE_MESSAGE);
+        } else if (kind == SqlErrorClassifier.Kind.PERMISSION_DENIED) {
+            op.fail(HttpServletResponse.SC_FORBIDDEN, "Database permission error");
+        } else if (kind.isUnavailable()) {
+            op.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Database is temporarily unavailable, please retry");
+        } else {
+            op.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error (SQLState " + e.getSQLState() + ")");
+        }
+    }
+
+    /**
+     * The outcome as {"atomic", "committed" (atomic only), "results": [{"op", "status",
+     * "body" or "error", "next" for list pages}]}, in request order
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("atomic", atomic);
+        if (atomic) {
+            json.addProperty("committed", committed);
+        }
+        JsonArray results = new JsonArray(operations.size());
+        for (Operation op : operations) {
+            JsonObject result = new JsonObject();
+            result.add("op", op.name == null ? null : new JsonPrimitive(op.name));
+            result.addProperty("status", op.status);
+            if (op.failed()) {
+                result.addProperty("error", op.error);
+            } else {
+                result.add("body", op.body);
+                if (op.nextCursor != null) {
+                    result.addProperty("next", op.nextCursor);
+                }
+            }
+            results.add(result);
+        }
+        json.add("results", results);
+        return json;
+    }
+}
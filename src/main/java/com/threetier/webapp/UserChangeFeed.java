@@ -0,0 +1,661 @@
+package com.threetier.webapp;
+
+import com.google.gson.Gson;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-Sent Events feed of newly created users.
+ *
+ * Users created by this pod are published in-process as soon as their insert returns.
+ * Users created anywhere else (other pods, bulk imports) arrive through a PostgreSQL LISTEN
+ * on the users_changed channel, which a statement-level insert trigger (migration V4) notifies; each
+ * notification triggers a catch-up read of rows above the last id seen. Ids are taken when a
+ * transaction inserts, not when it commits, so each catch-up also re-reads
+ * USERS_STREAM_LOOKBACK ids below the cursor and streams rows it has not delivered yet;
+ * delivered ids are remembered for deduplication. Event ids are user
+ * ids, so a reconnecting client's Last-Event-ID is replayed from a ring of recent events
+ * or, when the ring no longer covers it, from the database. A client that has missed more
+ * than USERS_STREAM_REPLAY_EVENTS users gets a reset event and should reload the list.
+ *
+ * When users are sharded there is one LISTEN connection and one catch-up cursor per shard,
+ * and rows read from several shards are delivered in id order.
+ *
+ * Clients are written with non-blocking servlet I/O, so idle connections hold no thread.
+ * Each event is encoded once and the same bytes are queued to every client. A client whose
+ * queue reaches USERS_STREAM_CLIENT_BUFFER events is disconnected and resumes on reconnect.
+ */
+public class UserChangeFeed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserChangeFeed.class);
+
+    static final String CHANNEL = "users_changed";
+    private static final int LISTEN_POLL_MS = 5000;
+    private static final long LISTEN_RETRY_MAX_MS = 30_000;
+    private static final byte[] RETRY = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESET = "event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * One encoded event
+     */
+    private static final class Event {
+        final int id;
+        final byte[] frame;
+
+        Event(int id, byte[] frame) {
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Events read from the database for a client resuming from an id the ring no longer covers
+     */
+    public static final class Backfill {
+        final List<Event> events;
+        final Set<Integer> ids;
+        final boolean reset;
+        final long sequence;
+        final long resets;
+
+        Backfill(List<Event> events, boolean reset, long sequence, long resets) {
+            this.events = events;
+            this.ids = new HashSet<>();
+            for (Event event : events) {
+                ids.add(event.id);
+            }
+            this.reset = reset;
+            this.sequence = sequence;
+            this.resets = resets;
+        }
+    }
+
+    private final int replayEvents;
+    private final int clientBuffer;
+    private final int maxClients;
+    private final int lookback;
+    private final long heartbeatMs;
+    private final boolean listen;
+    private final Gson gson = new Gson();
+
+    // Guarded by this: the recent-event ring and its coverage
+    private final ArrayDeque<Event> recent = new ArrayDeque<>();
+    // Ids delivered above deliveredFloor; ids at or below the floor are never delivered again
+    private final TreeSet<Integer> deliveredIds = new TreeSet<>();
+    private int deliveredFloor;
+    // The ring holds every event with an id above coveredFrom (unknown until seeded)
+    private int coveredFrom = Integer.MAX_VALUE;
+    private int evictedUpTo;
+    private long sequence;
+    private long resets;
+
+    // Registered under this lock so registration and delivery are ordered; removed without it
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+
+    // Guarded by catchUpLock: highest id read by a database catch-up, per shard
+    private final Object catchUpLock = new Object();
+    private int[] catchUpCursors;
+
+    private final ScheduledExecutorService dispatcher;
+    private final List<Thread> listeners = new ArrayList<>();
+    private final Set<Connection> listenConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger listening = new AtomicInteger();
+    private volatile boolean running;
+
+    public UserChangeFeed(int replayEvents, int clientBuffer, int maxClients, int lookback,
+                          long heartbeatMs, boolean listen) {
+        this.replayEvents = Math.max(1, replayEvents);
+        this.clientBuffer = Math.max(1, clientBuffer);
+        this.maxClients = Math.max(1, maxClients);
+        this.lookback = Math.max(0, lookback);
+        this.heartbeatMs = heartbeatMs;
+        this.listen = listen;
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-change-feed");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create the feed from USERS_STREAM_* settings, or return null when the stream is disabled
+     */
+    public static UserChangeFeed fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_STREAM_ENABLED", true)) {
+            return null;
+        }
+        return new UserChangeFeed(
+            EnvConfig.getInt("USERS_STREAM_REPLAY_EVENTS", 1000),
+            EnvConfig.getInt("USERS_STREAM_CLIENT_BUFFER", 256),
+            EnvConfig.getInt("USERS_STREAM_MAX_CLIENTS", 10000),
+            EnvConfig.getInt("USERS_STREAM_LOOKBACK", 100),
+            EnvConfig.getLong("USERS_STREAM_HEARTBEAT_MS", 15000),
+            EnvConfig.getBoolean("USERS_STREAM_LISTEN", true));
+    }
+
+    /**
+     * Start heartbeats and, when enabled, the LISTEN thread
+     */
+    public void start() {
+        running = true;
+        if (heartbeatMs > 0) {
+            dispatcher.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        }
+        if (listen) {
+            int shards = DatabaseConnection.getShardCount();
+            for (int i = 0; i < shards; i++) {
+                int shard = i;
+                Thread t = new Thread(() -> listenLoop(shard),
+                                      shards == 1 ? "user-change-listener" : "user-change-listener-" + shard);
+                t.setDaemon(true);
+                listeners.add(t);
+                t.start();
+            }
+        } else {
+            dispatcher.execute(this::requestedCatchUp);
+        }
+    }
+
+    /**
+     * Publish a user created by this pod; fan-out happens on the feed thread
+     */
+    public void publish(User user) {
+        if (running) {
+            dispatcher.execute(() -> deliver(user));
+        }
+    }
+
+    /**
+     * Schedule a catch-up read of rows added outside publish (e.g. by a bulk import)
+     */
+    public void requestCatchUp() {
+        if (running) {
+            dispatcher.execute(this::requestedCatchUp);
+        }
+    }
+
+    private void requestedCatchUp() {
+        try {
+            catchUp();
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.warn("User change feed catch-up failed", e);
+        }
+    }
+
+    private synchronized void deliver(User user) {
+        int id = user.getId();
+        if (id <= deliveredFloor || !deliveredIds.add(id)) {
+            // Already delivered, e.g. published in-process and then read back after a notification
+            return;
+        }
+        if (deliveredIds.size() > replayEvents + lookback) {
+            // Bound the set; a row committing this late below the floor is no longer streamed
+            raiseFloor(deliveredIds.first());
+        }
+        Event event = new Event(id, frame(id, "user-created", gson.toJson(user)));
+        recent.addLast(event);
+        sequence++;
+        if (recent.size() > replayEvents) {
+            Event evicted = recent.removeFirst();
+            evictedUpTo = Math.max(evictedUpTo, evicted.id);
+            if (coveredFrom != Integer.MAX_VALUE) {
+                coveredFrom = Math.max(coveredFrom, evictedUpTo);
+            }
+        }
+        Metrics.recordStreamEvent();
+        for (Client client : clients) {
+            client.send(event.frame);
+        }
+    }
+
+    /**
+     * Drop the ring and tell every client to reload, after more changes than the ring holds
+     */
+    private synchronized void reset(int upToId) {
+        recent.clear();
+        raiseFloor(upToId);
+        evictedUpTo = Math.max(evictedUpTo, upToId);
+        coveredFrom = evictedUpTo;
+        resets++;
+        for (Client client : clients) {
+            client.send(RESET);
+        }
+    }
+
+    private synchronized void seed(int maxId) {
+        if (coveredFrom == Integer.MAX_VALUE) {
+            coveredFrom = Math.max(maxId, evictedUpTo);
+            // Rows that existed before the feed started are not streamed by the look-back
+            raiseFloor(maxId);
+        }
+    }
+
+    private void raiseFloor(int id) {
+        if (id > deliveredFloor) {
+            deliveredFloor = id;
+            deliveredIds.headSet(id, true).clear();
+        }
+    }
+
+    /**
+     * Rows not delivered yet, in id order
+     */
+    private synchronized List<User> undelivered(List<List<User>> perShard) {
+        List<User> rows = new ArrayList<>();
+        for (List<User> shardRows : perShard) {
+            for (User user : shardRows) {
+                if (user.getId() > deliveredFloor && !deliveredIds.contains(user.getId())) {
+                    rows.add(user);
+                }
+            }
+        }
+        if (perShard.size() > 1) {
+            rows.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        }
+        return rows;
+    }
+
+    private static byte[] frame(int id, String event, String data) {
+        return ("id: " + id + "\nevent: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deliver every undelivered row above the catch-up cursor minus the look-back window, or
+     * reset clients when there are more rows than a client buffer holds (a bulk import),
+     * since streaming them would only overflow every client
+     */
+    private void catchUp() throws SQLException {
+        int burst = Math.min(replayEvents, clientBuffer);
+        int lookbackIds = DatabaseConnection.idSpanOfRows(lookback);
+        synchronized (catchUpLock) {
+            if (catchUpCursors == null) {
+                int[] maxIds = readMaxIds();
+                catchUpCursors = maxIds;
+                seed(max(maxIds));
+                return;
+            }
+            int[] cursors = catchUpCursors;
+            // The window holds at most lookback rows per shard, so hitting the limit means a burst
+            List<List<User>> perShard = DatabaseConnection.forEachShard(
+                shard -> readSince(shard, Math.max(0, cursors[shard] - lookbackIds), lookback + burst + 1));
+            List<User> rows = undelivered(perShard);
+            if (rows.size() > burst) {
+                int[] maxIds = readMaxIds();
+                LOGGER.info("User change feed skipped to id {} after a large batch of changes", max(maxIds));
+                reset(max(maxIds));
+                catchUpCursors = maxIds;
+                return;
+            }
+            for (User user : rows) {
+                deliver(user);
+            }
+            for (int shard = 0; shard < perShard.size(); shard++) {
+                List<User> shardRows = perShard.get(shard);
+                if (!shardRows.isEmpty()) {
+                    cursors[shard] = Math.max(cursors[shard], shardRows.get(shardRows.size() - 1).getId());
+                }
+            }
+        }
+    }
+
+    private static int max(int[] values) {
+        int max = 0;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /**
+     * Read users above an id from every shard, merged in id order
+     */
+    private static List<User> readSince(int afterId, int limit) throws SQLException {
+        List<List<User>> perShard = DatabaseConnection.forEachShard(shard -> readSince(shard, afterId, limit));
+        if (perShard.size() == 1) {
+            return perShard.get(0);
+        }
+        List<User> rows = new ArrayList<>();
+        for (List<User> shardRows : perShard) {
+            rows.addAll(shardRows);
+        }
+        rows.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        return rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+    }
+
+    private static List<User> readSince(int shard, int afterId, int limit) throws SQLException {
+        List<User> users = new ArrayList<>();
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT id, name, email, created_at FROM users WHERE id > ? ORDER BY id LIMIT ?")) {
+            stmt.setInt(1, afterId);
+            stmt.setInt(2, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    users.add(PostgresUserRepository.mapUser(rs));
+                }
+            }
+        }
+        return users;
+    }
+
+    private static int[] readMaxIds() throws SQLException {
+        List<Integer> maxIds = DatabaseConnection.forEachShard(shard -> {
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM users")) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        });
+        int[] ids = new int[maxIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = maxIds.get(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Hold a dedicated connection to one shard in LISTEN and catch up on every notification.
+     * The catch-up after each (re)connect covers anything committed while no connection was
+     * listening.
+     */
+    private void listenLoop(int shard) {
+        long backoffMs = 1000;
+        while (running) {
+            Connection held = null;
+            boolean counted = false;
+            try (Connection conn = DatabaseConnection.openDedicatedConnection(shard)) {
+                held = conn;
+                listenConnections.add(conn);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pg = conn.unwrap(PGConnection.class);
+                listening.incrementAndGet();
+                counted = true;
+                LOGGER.info("User change feed listening on channel {}", CHANNEL);
+                catchUp();
+                backoffMs = 1000;
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(LISTEN_POLL_MS);
+                    if (notifications != null && notifications.length > 0) {
+                        catchUp();
+                    } else if (!conn.isValid(LISTEN_POLL_MS / 1000)) {
+                        throw new SQLException("LISTEN connection is no longer valid", "08006");
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                LOGGER.warn("User change feed LISTEN failed, retrying in {}ms: {}", backoffMs, e.getMessage());
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoffMs = Math.min(LISTEN_RETRY_MAX_MS, backoffMs * 2);
+            } finally {
+                if (counted) {
+                    listening.decrementAndGet();
+                }
+                if (held != null) {
+                    listenConnections.remove(held);
+                }
+            }
+        }
+    }
+
+    private void heartbeat() {
+        for (Client client : clients) {
+            client.send(HEARTBEAT);
+        }
+    }
+
+    /**
+     * Whether another client may connect
+     */
+    public boolean hasCapacity() {
+        return running && clients.size() < maxClients;
+    }
+
+    /**
+     * Read the events a client resuming after lastEventId needs from the database, or
+     * return null when there is nothing to resume or the ring still covers it
+     */
+    public Backfill backfill(int lastEventId) throws SQLException {
+        long sequenceAtRead;
+        long resetsAtRead;
+        synchronized (this) {
+            if (lastEventId < 0 || lastEventId >= coveredFrom) {
+                return null;
+            }
+            sequenceAtRead = sequence;
+            resetsAtRead = resets;
+        }
+        List<User> rows = readSince(lastEventId, replayEvents + 1);
+        if (rows.size() > replayEvents) {
+            return new Backfill(Collections.emptyList(), true, sequenceAtRead, resetsAtRead);
+        }
+        List<Event> events = new ArrayList<>(rows.size());
+        for (User user : rows) {
+            events.add(new Event(user.getId(), frame(user.getId(), "user-created", gson.toJson(user))));
+        }
+        return new Backfill(events, false, sequenceAtRead, resetsAtRead);
+    }
+
+    /**
+     * Register an SSE client on a started async context. Missed events (from the backfill
+     * and the ring) are queued ahead of live ones; writing starts once the container
+     * reports the output stream ready.
+     */
+    public void subscribe(AsyncContext context, int lastEventId, Backfill backfill) throws IOException {
+        ServletOutputStream out = context.getResponse().getOutputStream();
+        List<byte[]> initial = new ArrayList<>();
+        initial.add(RETRY);
+        Client client;
+        synchronized (this) {
+            if (lastEventId >= 0) {
+                if (backfill == null) {
+                    if (lastEventId < coveredFrom) {
+                        // The ring moved past the client between backfill() and now
+                        initial.add(RESET);
+                    } else {
+                        for (Event event : recent) {
+                            if (event.id > lastEventId) {
+                                initial.add(event.frame);
+                            }
+                        }
+                    }
+                } else if (backfill.reset || backfill.resets != resets
+                           || sequence - backfill.sequence >= replayEvents) {
+                    initial.add(RESET);
+                } else {
+                    for (Event event : backfill.events) {
+                        initial.add(event.frame);
+                    }
+                    for (Event event : recent) {
+                        if (event.id > lastEventId && !backfill.ids.contains(event.id)) {
+                            initial.add(event.frame);
+                        }
+                    }
+                }
+            }
+            client = new Client(context, out, initial);
+            clients.add(client);
+        }
+        Metrics.recordStreamClientOpened();
+        context.addListener(client);
+        out.setWriteListener(client);
+    }
+
+    /**
+     * Feed state as a JSON object
+     */
+    public synchronized String getStatsJson() {
+        return String.format("{\"clients\":%d,\"recentEvents\":%d,\"listening\":%s}",
+            clients.size(), recent.size(), listening.get() == listeners.size() && !listeners.isEmpty());
+    }
+
+    /**
+     * Stop background threads and disconnect every client
+     */
+    public void stop() {
+        running = false;
+        dispatcher.shutdownNow();
+        for (Thread t : listeners) {
+            t.interrupt();
+        }
+        for (Connection conn : listenConnections) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Error closing LISTEN connection", e);
+            }
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private void remove(Client client) {
+        if (clients.remove(client)) {
+            Metrics.recordStreamClientClosed();
+        }
+    }
+
+    /**
+     * One SSE connection with a bounded queue of encoded events, written whenever the
+     * container reports the socket writable
+     */
+    private final class Client implements WriteListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final ArrayDeque<byte[]> queue;
+        private final int limit;
+        private boolean writable;
+        private boolean unflushed;
+        private volatile boolean closed;
+
+        Client(AsyncContext context, ServletOutputStream out, List<byte[]> initial) {
+            this.context = context;
+            this.out = out;
+            this.queue = new ArrayDeque<>(initial);
+            // Replayed events do not count against the live buffer
+            this.limit = clientBuffer + initial.size();
+        }
+
+        synchronized void send(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() >= limit) {
+                Metrics.recordStreamOverflow();
+                LOGGER.debug("Disconnecting slow stream client with {} queued events", queue.size());
+                close();
+                return;
+            }
+            queue.addLast(frame);
+            if (writable) {
+                drain();
+            }
+        }
+
+        @Override
+        public synchronized void onWritePossible() {
+            writable = true;
+            drain();
+        }
+
+        /**
+         * Write queued frames while the stream accepts them without blocking, then flush.
+         * When isReady() returns false the container calls onWritePossible() again later.
+         */
+        private void drain() {
+            try {
+                while (!closed && out.isReady()) {
+                    byte[] frame = queue.pollFirst();
+                    if (frame != null) {
+                        out.write(frame);
+                        unflushed = true;
+                    } else if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Stream client write failed: {}", e.getMessage());
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            remove(this);
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed = true;
+            remove(this);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
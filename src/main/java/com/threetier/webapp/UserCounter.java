@@ -0,0 +1,235 @@
+package com.threetier.webapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Number of users, answered from memory for {@code GET /api/users/count}.
+ *
+ * Exact mode keeps an in-process counter: it is seeded with one {@code COUNT(*)}, moved
+ * forward by this instance's successful inserts and reconciled with another count every
+ * USERS_COUNT_RECONCILE_MS, which also picks up rows written by other instances.
+ * Approximate mode reports the planner's row estimate from {@code pg_class.reltuples},
+ * scaled to the table's current size the way the planner does; it costs a catalog lookup
+ * per refresh whatever the table size, and is as current as the last (auto)vacuum or
+ * analyze. Both are refreshed in the background, so a request never touches the database.
+ * When users are sharded, counts and estimates are summed over the shards.
+ */
+public class UserCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserCounter.class);
+
+    private static final String COUNT_SQL = "SELECT COUNT(*) FROM users";
+    // reltuples is -1 until the table has first been vacuumed or analyzed (PostgreSQL 14+)
+    private static final String ESTIMATE_SQL =
+        "SELECT CASE WHEN c.relpages > 0 AND c.reltuples >= 0" +
+        " THEN (c.reltuples / c.relpages) * (pg_relation_size(c.oid) / current_setting('block_size')::int)" +
+        " ELSE c.reltuples END::bigint," +
+        " extract(epoch FROM greatest(s.last_vacuum, s.last_autovacuum, s.last_analyze, s.last_autoanalyze)) * 1000" +
+        " FROM pg_class c LEFT JOIN pg_stat_user_tables s ON s.relid = c.oid" +
+        " WHERE c.oid = to_regclass('users')";
+    private static final long SEED_RETRY_MS = 5000;
+
+    public enum Mode { EXACT, APPROXIMATE }
+
+    private final Mode defaultMode;
+    private final long reconcileIntervalMs;
+    private final long estimateIntervalMs;
+    private final ScheduledExecutorService refresher;
+
+    // Inserts made by this instance; the exact count is offset + inserted
+    private final AtomicLong inserted = new AtomicLong();
+    private volatile long offset;
+    private volatile long insertedAtReconcile;
+    private volatile long reconciledAt;
+    private volatile long lastCorrection;
+
+    private volatile long estimate = -1;
+    private volatile long estimatedAt;
+    private volatile long statisticsAt;
+
+    public UserCounter(Mode defaultMode, long reconcileIntervalMs, long estimateIntervalMs) {
+        this.defaultMode = defaultMode;
+        this.reconcileIntervalMs = Math.max(1000, reconcileIntervalMs);
+        this.estimateIntervalMs = Math.max(1000, estimateIntervalMs);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-counter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create the counter from USERS_COUNT_* settings, or return null when it is disabled
+     */
+    public static UserCounter fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_COUNT_ENABLED", true)) {
+            return null;
+        }
+        Mode mode = parseMode(EnvConfig.getString("USERS_COUNT_DEFAULT_MODE", "exact"));
+        return new UserCounter(mode == null ? Mode.EXACT : mode,
+            EnvConfig.getLong("USERS_COUNT_RECONCILE_MS", 300_000),
+            EnvConfig.getLong("USERS_COUNT_ESTIMATE_REFRESH_MS", 10_000));
+    }
+
+    /**
+     * Parse "exact" or "approximate" (also "approx")
+     * @return the mode, or null if the value is not a mode
+     */
+    public static Mode parseMode(String value) {
+        if (value == null) {
+            return null;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "exact":
+                return Mode.EXACT;
+            case "approx":
+            case "approximate":
+                return Mode.APPROXIMATE;
+            default:
+                return null;
+        }
+    }
+
+    public Mode getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * Seed the counter in the background, then keep both modes refreshed
+     */
+    public void start() {
+        refresher.execute(this::refresh);
+    }
+
+    public void stop() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Count users committed by this instance
+     */
+    public void recordInserted(int users) {
+        if (users > 0) {
+            inserted.addAndGet(users);
+        }
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        try {
+            refreshEstimate();
+        } catch (SQLException e) {
+            LOGGER.warn("User count estimate refresh failed: {}", e.getMessage());
+        }
+        if (reconciledAt == 0 || now - reconciledAt >= reconcileIntervalMs) {
+            try {
+                reconcile();
+            } catch (SQLException e) {
+                LOGGER.warn("User count reconciliation failed, keeping the in-process count: {}", e.getMessage());
+            }
+        }
+        long delay = reconciledAt == 0 ? Math.min(SEED_RETRY_MS, estimateIntervalMs) : estimateIntervalMs;
+        if (!refresher.isShutdown()) {
+            refresher.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshEstimate() throws SQLException {
+        List<long[]> shards = DatabaseConnection.forEachShard(shard -> {
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(ESTIMATE_SQL)) {
+                return rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : new long[] {-1, 0};
+            }
+        });
+        long total = 0;
+        long oldest = Long.MAX_VALUE;
+        for (long[] shard : shards) {
+            if (shard[0] < 0) {
+                // One shard without statistics makes the sum meaningless
+                total = -1;
+                break;
+            }
+            total += shard[0];
+            oldest = Math.min(oldest, shard[1]);
+        }
+        statisticsAt = total < 0 ? 0 : oldest;
+        estimatedAt = System.currentTimeMillis();
+        // Written last: toJson serves the estimate without waiting for the seed
+        estimate = total;
+    }
+
+    /**
+     * Replace the counter with a fresh COUNT(*). Inserts recorded after the count started
+     * are added on top: they committed after its snapshot in all but a narrow race, which
+     * the next reconciliation corrects.
+     */
+    private void reconcile() throws SQLException {
+        long before = inserted.get();
+        long start = System.currentTimeMillis();
+        long counted = 0;
+        for (long shardCount : DatabaseConnection.forEachShard(shard -> {
+            try (Connection conn = DatabaseConnection.getConnection(shard);
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(COUNT_SQL)) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        })) {
+            counted += shardCount;
+        }
+        long previous = offset + before;
+        offset = counted - before;
+        insertedAtReconcile = before;
+        if (reconciledAt == 0) {
+            LOGGER.info("User count seeded with {} users in {}ms", counted, System.currentTimeMillis() - start);
+        } else {
+            lastCorrection = counted - previous;
+            if (lastCorrection != 0) {
+                LOGGER.debug("User count reconciled: {} users, corrected by {} (inserts by other instances)",
+                             counted, lastCorrection);
+            }
+        }
+        reconciledAt = start;
+    }
+
+    /**
+     * The count as a JSON object. An approximate request is answered from the estimate as
+     * soon as there is one, without waiting for the exact counter to be seeded.
+     * @return the JSON, or null if the request needs the exact counter (exact mode, or
+     *         approximate before the table has statistics) and it has not been seeded yet
+     */
+    public String toJson(Mode mode) {
+        long now = System.currentTimeMillis();
+        long estimated = estimate;
+        if (mode == Mode.APPROXIMATE && estimated >= 0) {
+            long estimatedWhen = estimatedAt;
+            long statsAt = statisticsAt;
+            return String.format("{\"count\":%d,\"mode\":\"approximate\",\"source\":\"pg_class.reltuples\","
+                    + "\"refreshedAt\":\"%s\",\"stalenessMs\":%d,\"statisticsAgeMs\":%s}",
+                estimated, Instant.ofEpochMilli(estimatedWhen), now - estimatedWhen,
+                statsAt > 0 ? String.valueOf(now - statsAt) : "null");
+        }
+        long since = reconciledAt;
+        if (since == 0) {
+            return null;
+        }
+        long current = inserted.get();
+        long exact = offset + current;
+        // Approximate requests fall back to the counter until the table has statistics
+        return String.format("{\"count\":%d,\"mode\":\"%s\",\"source\":\"counter\",\"refreshedAt\":\"%s\","
+                + "\"stalenessMs\":%d,\"insertsSinceRefresh\":%d,\"lastCorrection\":%d}",
+            exact, mode.name().toLowerCase(), Instant.ofEpochMilli(since), now - since,
+            current - insertedAtReconcile, lastCorrection);
+    }
+}
@@ -0,0 +1,223 @@
+package com.threetier.webapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process read-through cache for serialized user responses.
+ *
+ * Entries are keyed by request (e.g. a list page) and tagged with the data version that
+ * was current when the database read started. Every write bumps the version, so entries
+ * from before the write are never served again and conditional GETs whose ETag carries
+ * the old version fall through to a fresh read. Size is bounded with LRU eviction and
+ * entries also expire after a TTL, which bounds staleness for writes made by other pods;
+ * conditional GETs are only answered from a fresh entry, so 304s expire with it.
+ */
+public class UserReadCache {
+
+    private static final UserReadCache SHARED = new UserReadCache(
+        EnvConfig.getBoolean("USERS_CACHE_ENABLED", true),
+        EnvConfig.getInt("USERS_CACHE_MAX_ENTRIES", 1000),
+        EnvConfig.getLong("USERS_CACHE_TTL_MS", 30_000));
+
+    private final int maxEntries;
+    private final long ttlMs;
+    private final boolean enabled;
+    // Seeded from the clock so ETags issued before a restart are not reused afterwards
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * A cached response body together with the data version it was read at
+     */
+    public static final class Entry {
+        final String body;
+        final String nextCursor;
+        final long version;
+        final long storedAt;
+        final String etag;
+
+        Entry(String key, String body, String nextCursor, long version) {
+            this.body = body;
+            this.nextCursor = nextCursor;
+            this.version = version;
+            this.storedAt = System.currentTimeMillis();
+            this.etag = etagFor(key, version);
+        }
+
+        public String getBody() { return body; }
+        public String getNextCursor() { return nextCursor; }
+        public String getEtag() { return etag; }
+    }
+
+    public UserReadCache(boolean enabled, int maxEntries, long ttlMs) {
+        this.enabled = enabled;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            // Inside a Map subclass a bare Entry means Map.Entry, so the cache entry is qualified
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserReadCache.Entry> eldest) {
+                if (size() > UserReadCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Application-wide cache configured from the USERS_CACHE_* environment variables
+     */
+    public static UserReadCache shared() {
+        return SHARED;
+    }
+
+    static String etagFor(String key, long version) {
+        return "\"" + Long.toHexString(version) + "-" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    /**
+     * Current data version; capture this before reading from the database and pass it to put()
+     */
+    public long currentVersion() {
+        return version.get();
+    }
+
+    /**
+     * ETag a response for this key would carry at the current data version
+     */
+    public String currentEtag(String key) {
+        return etagFor(key, version.get());
+    }
+
+    /**
+     * Check an If-None-Match header against the ETag of a fresh cached entry for a key. A match
+     * means the client's copy is still current and can be answered with 304 without a database
+     * read. Once the entry has expired the request falls through to a read, so writes made by
+     * other pods are picked up within the same TTL as cached bodies. The tag of the gzip
+     * representation (see CompressionFilter) matches too.
+     */
+    public boolean isNotModified(String key, String ifNoneMatch) {
+        if (!enabled || ifNoneMatch == null) {
+            return false;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = freshEntry(key);
+        }
+        if (entry == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = CompressionFilter.identityEtag(candidate.trim());
+            if (tag.equals(entry.etag) || tag.equals("*")) {
+                notModified.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Look up a fresh entry, or null on a miss
+     */
+    public Entry get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = freshEntry(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Entry for a key if it is at the current version and within the TTL; stale ones are
+     * removed. Callers hold the entries lock.
+     */
+    private Entry freshEntry(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version.get()) {
+            entries.remove(key);
+            return null;
+        }
+        if (ttlMs > 0 && System.currentTimeMillis() - entry.storedAt >= ttlMs) {
+            entries.remove(key);
+            expirations.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Store a response read at the given data version. Responses read before a
+     * concurrent write are tagged with the old version and are dropped instead of cached.
+     * @return the stored entry (also returned when caching is skipped, for its ETag)
+     */
+    public Entry put(String key, String body, String nextCursor, long readVersion) {
+        Entry entry = new Entry(key, body, nextCursor, readVersion);
+        if (enabled && readVersion == version.get()) {
+            synchronized (entries) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Invalidate every cached entry after a write
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        invalidations.incrementAndGet();
+        if (!enabled) {
+            return;
+        }
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Cache counters as a JSON object
+     */
+    public String getStatsJson() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format(
+            "{" +
+            "\"enabled\":%s," +
+            "\"size\":%d," +
+            "\"maxEntries\":%d," +
+            "\"hits\":%d," +
+            "\"misses\":%d," +
+            "\"notModified\":%d," +
+            "\"evictions\":%d," +
+            "\"expirations\":%d," +
+            "\"invalidations\":%d" +
+            "}",
+            enabled, size, maxEntries, hits.get(), misses.get(), notModified.get(),
+            evictions.get(), expirations.get(), invalidations.get());
+    }
+}
@@ -0,0 +1,105 @@
+package com.threetier.webapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage of users behind the user API.
+ *
+ * USERS_STORAGE selects the implementation: {@code postgresql} (the default) keeps users in
+ * PostgreSQL with everything DatabaseConnection provides (pooling, replicas, sharding,
+ * retries); {@code embedded} keeps them in memory-mapped files on local disk with no
+ * database at all, for edge and test deployments and as a throughput baseline for the web
+ * tier. Failures are reported as SQLExceptions with PostgreSQL SQLStates in both cases, so
+ * callers map them to responses the same way (23505 for a duplicate email, 08xxx/53xxx
+ * when the storage is unavailable).
+ */
+public interface UserRepository {
+
+    /**
+     * The repository selected by USERS_STORAGE, shared by the whole application
+     */
+    static UserRepository shared() {
+        return isEmbedded() ? EmbeddedUserRepository.shared() : PostgresUserRepository.shared();
+    }
+
+    /**
+     * Whether USERS_STORAGE selects the embedded engine
+     */
+    static boolean isEmbedded() {
+        return "embedded".equalsIgnoreCase(EnvConfig.getString("USERS_STORAGE", "postgresql").trim());
+    }
+
+    /**
+     * The error insert() reports for an email that already exists, as PostgreSQL raises it
+     */
+    static SQLException duplicateEmail() {
+        return new SQLException("duplicate key value violates unique constraint \"users_email_key\"", "23505");
+    }
+
+    /**
+     * Receives users in id order from scan()
+     */
+    interface Visitor {
+        void visit(User user) throws IOException;
+    }
+
+    /**
+     * @param primaryRequired true to bypass read replicas (read-your-writes)
+     * @return the user, or null if there is none with this id
+     */
+    User findById(int id, boolean primaryRequired) throws SQLException;
+
+    /**
+     * @return the user, or null if there is none with this email
+     */
+    User findByEmail(String email, boolean primaryRequired) throws SQLException;
+
+    /**
+     * Read one page of users ordered by id, after the given id
+     * @param users list the page is added to
+     * @return true if more users exist after this page
+     */
+    boolean readPage(int afterId, int limit, List<User> users, boolean primaryRequired) throws SQLException;
+
+    /**
+     * Pass every user to the visitor in id order without holding them all in memory
+     */
+    void scan(boolean primaryRequired, Visitor visitor) throws SQLException, IOException;
+
+    /**
+     * Insert a user with a new id
+     * @return the created user with id and createdAt populated
+     * @throws SQLException with SQLState 23505 if the email already exists
+     */
+    User insert(User user) throws SQLException;
+
+    /**
+     * Exact number of users
+     */
+    long count() throws SQLException;
+
+    /**
+     * Check that users can be read
+     * @return null when healthy, otherwise what is wrong
+     * @throws SQLException if the storage cannot be reached
+     */
+    String checkHealth() throws SQLException;
+
+    /**
+     * Whether users live in PostgreSQL; the database-only features (bulk import, batches,
+     * the write journal and coalescer, the change stream and schema migrations) need it
+     */
+    boolean usesDatabase();
+
+    /**
+     * Storage details as a JSON object
+     */
+    String getStatsJson();
+
+    /**
+     * Release connections, files and background threads
+     */
+    void close();
+}
@@ -0,0 +1,663 @@
+package com.threetier.webapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory n-gram index over user names and emails.
+ *
+ * Every trigram of the lower-cased name and email maps to a sorted int array of users.
+ * Each word start also gets anchored one- and two-character grams, so short queries
+ * match word prefixes and queries of three or more characters match any substring.
+ * A query intersects the postings of its grams (smallest first), checks the few
+ * candidates against the stored text and keeps the best N, so PostgreSQL never runs a
+ * {@code LIKE '%...%'} scan.
+ *
+ * The index is loaded in the background at startup, updated as users are created, and
+ * caught up periodically from the database for rows written by bulk imports or other
+ * instances. Users are stored densely in the order they were indexed and postings hold
+ * those slot numbers; a primitive id-to-slot map finds a user by id, so memory follows the
+ * number of rows rather than the highest id (sharded sequences leave gaps between ids).
+ * The gram and id maps use open addressing over primitive arrays, so nothing is boxed.
+ * Ids are taken when a transaction inserts, not when it commits, so each catch-up also
+ * re-reads USERS_SEARCH_LOOKBACK rows below the highest id it has seen.
+ */
+public class UserSearchIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSearchIndex.class);
+
+    private static final char ANCHOR = '\u0002';
+    private static final char END = '\uFFFF';
+    private static final int LOAD_FETCH_SIZE = 5000;
+
+    private static final int SCORE_EXACT = 0;
+    private static final int SCORE_PREFIX = 1;
+    private static final int SCORE_WORD_PREFIX = 2;
+    private static final int SCORE_SUBSTRING = 3;
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    /**
+     * Growable sorted array of user slots for one gram
+     */
+    static final class Postings {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size > 0 && slots[size - 1] >= slot) {
+                int pos = Arrays.binarySearch(slots, 0, size, slot);
+                if (pos >= 0) {
+                    return;
+                }
+                insertAt(-pos - 1, slot);
+                return;
+            }
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        private void insertAt(int index, int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            System.arraycopy(slots, index, slots, index + 1, size - index);
+            slots[index] = slot;
+            size++;
+        }
+    }
+
+    /**
+     * Open-addressing map from a gram to its postings
+     */
+    static final class GramMap {
+        private long[] keys = new long[1024];
+        // A null value marks a free bucket, since any long is a valid gram
+        private Postings[] values = new Postings[1024];
+        private int size;
+
+        Postings get(long gram) {
+            int mask = keys.length - 1;
+            for (int i = bucket(gram, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == gram) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        Postings getOrCreate(long gram) {
+            int mask = keys.length - 1;
+            int i = bucket(gram, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == gram) {
+                    return values[i];
+                }
+            }
+            Postings created = new Postings();
+            keys[i] = gram;
+            values[i] = created;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return created;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Postings[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Postings[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = bucket(oldKeys[j], mask);
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int bucket(long gram, int mask) {
+            long h = gram * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Open-addressing map from a user id to its slot
+     */
+    static final class IdMap {
+        // 0 marks a free bucket; user ids are positive
+        private int[] ids = new int[1024];
+        private int[] slots = new int[1024];
+        private int size;
+
+        /**
+         * @return the slot of this id, or -1 if it is not indexed
+         */
+        int get(int id) {
+            int mask = ids.length - 1;
+            for (int i = bucket(id, mask); ids[i] != 0; i = (i + 1) & mask) {
+                if (ids[i] == id) {
+                    return slots[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Map an id that is not in the map yet
+         */
+        void put(int id, int slot) {
+            int mask = ids.length - 1;
+            int i = bucket(id, mask);
+            while (ids[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            slots[i] = slot;
+            if (++size * 2 > ids.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            int[] oldIds = ids;
+            int[] oldSlots = slots;
+            ids = new int[oldIds.length * 2];
+            slots = new int[oldSlots.length * 2];
+            int mask = ids.length - 1;
+            for (int j = 0; j < oldIds.length; j++) {
+                if (oldIds[j] != 0) {
+                    int i = bucket(oldIds[j], mask);
+                    while (ids[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    ids[i] = oldIds[j];
+                    slots[i] = oldSlots[j];
+                }
+            }
+        }
+
+        private static int bucket(int id, int mask) {
+            int h = id * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final GramMap postings = new GramMap();
+    private final IdMap slotsById = new IdMap();
+    // Indexed by slot: users in the order they were added
+    private User[] users = new User[1024];
+    private String[] foldedNames = new String[1024];
+    private String[] foldedEmails = new String[1024];
+    private int count;
+    private int maxId;
+    // Highest id seen by a database catch-up, per shard; ids added directly may be ahead of rows
+    // that other transactions commit later, so catch-up does not start from maxId
+    private final int[] caughtUpToIds = new int[DatabaseConnection.getShardCount()];
+
+    private final int maxResults;
+    private final long refreshIntervalMs;
+    private final int lookback;
+    private final ScheduledExecutorService loader;
+    private volatile boolean ready;
+
+    public UserSearchIndex(int maxResults, long refreshIntervalMs, int lookback) {
+        this.maxResults = Math.max(1, maxResults);
+        this.refreshIntervalMs = refreshIntervalMs;
+        this.lookback = Math.max(0, lookback);
+        this.loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-search-index");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Create the index from USERS_SEARCH_* settings, or return null when search is disabled
+     */
+    public static UserSearchIndex fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_SEARCH_ENABLED", true)) {
+            return null;
+        }
+        return new UserSearchIndex(
+            EnvConfig.getInt("USERS_SEARCH_MAX_RESULTS", 100),
+            EnvConfig.getLong("USERS_SEARCH_REFRESH_MS", 60000),
+            EnvConfig.getInt("USERS_SEARCH_LOOKBACK", 1000));
+    }
+
+    /**
+     * Load existing users in the background, then catch up on the refresh interval
+     */
+    public void start() {
+        loader.execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                int loaded = catchUp();
+                ready = true;
+                LOGGER.info("User search index loaded {} users in {}ms", loaded, System.currentTimeMillis() - start);
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.warn("User search index load failed, retrying on the next refresh", e);
+            }
+        });
+        if (refreshIntervalMs > 0) {
+            loader.scheduleWithFixedDelay(this::refresh, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Load existing users from a repository in the background, without periodic catch-up:
+     * with the embedded store every user is created by this instance and added as it is
+     */
+    public void startFrom(UserRepository repository) {
+        loader.execute(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                List<User> batch = new ArrayList<>(LOAD_FETCH_SIZE);
+                int[] loaded = {0};
+                repository.scan(false, user -> {
+                    batch.add(user);
+                    if (batch.size() == LOAD_FETCH_SIZE) {
+                        loaded[0] += addAll(batch);
+                        batch.clear();
+                    }
+                });
+                loaded[0] += addAll(batch);
+                ready = true;
+                LOGGER.info("User search index loaded {} users in {}ms", loaded[0], System.currentTimeMillis() - start);
+            } catch (SQLException | IOException | RuntimeException e) {
+                LOGGER.warn("User search index load failed", e);
+            }
+        });
+    }
+
+    /**
+     * Schedule a catch-up read of rows added outside this index (e.g. by a bulk import)
+     */
+    public void requestRefresh() {
+        loader.execute(this::refresh);
+    }
+
+    private void refresh() {
+        try {
+            int added = catchUp();
+            ready = true;
+            if (added > 0) {
+                LOGGER.debug("User search index caught up {} users", added);
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.warn("User search index refresh failed", e);
+        }
+    }
+
+    /**
+     * Index every row with an id above the highest one the previous catch-up read, less the
+     * look-back window, per shard; rows already indexed are skipped
+     */
+    private int catchUp() throws SQLException {
+        int lookbackIds = DatabaseConnection.idSpanOfRows(lookback);
+        int added = 0;
+        for (int shard = 0; shard < caughtUpToIds.length; shard++) {
+            added += catchUp(shard, lookbackIds);
+        }
+        return added;
+    }
+
+    private int catchUp(int shard, int lookbackIds) throws SQLException {
+        int caughtUpTo;
+        lock.readLock().lock();
+        try {
+            caughtUpTo = caughtUpToIds[shard];
+        } finally {
+            lock.readLock().unlock();
+        }
+        int fromId = Math.max(0, caughtUpTo - lookbackIds);
+        int added = 0;
+        int lastId = caughtUpTo;
+        try (Connection conn = DatabaseConnection.getConnection(shard)) {
+            // PostgreSQL only honours the fetch size with auto-commit off
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT id, name, email, created_at FROM users WHERE id > ? ORDER BY id")) {
+                stmt.setInt(1, fromId);
+                stmt.setFetchSize(LOAD_FETCH_SIZE);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    List<User> batch = new ArrayList<>(LOAD_FETCH_SIZE);
+                    while (rs.next()) {
+                        User user = PostgresUserRepository.mapUser(rs);
+                        lastId = Math.max(lastId, user.getId());
+                        batch.add(user);
+                        if (batch.size() == LOAD_FETCH_SIZE) {
+                            added += addAll(batch);
+                            batch.clear();
+                        }
+                    }
+                    added += addAll(batch);
+                }
+            } finally {
+                conn.commit();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            caughtUpToIds[shard] = Math.max(caughtUpToIds[shard], lastId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return added;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Add one user (no-op if the id is already indexed)
+     */
+    public void add(User user) {
+        lock.writeLock().lock();
+        try {
+            addLocked(user);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int addAll(List<User> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int added = 0;
+        lock.writeLock().lock();
+        try {
+            for (User user : batch) {
+                if (addLocked(user)) {
+                    added++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return added;
+    }
+
+    private boolean addLocked(User user) {
+        int id = user.getId();
+        if (id <= 0) {
+            return false;
+        }
+        if (slotsById.get(id) >= 0) {
+            return false;
+        }
+        int slot = count;
+        if (slot == users.length) {
+            int capacity = users.length * 2;
+            users = Arrays.copyOf(users, capacity);
+            foldedNames = Arrays.copyOf(foldedNames, capacity);
+            foldedEmails = Arrays.copyOf(foldedEmails, capacity);
+        }
+        String name = fold(user.getName());
+        String email = fold(user.getEmail());
+        users[slot] = user;
+        foldedNames[slot] = name;
+        foldedEmails[slot] = email;
+        slotsById.put(id, slot);
+        for (long gram : documentGrams(name, email)) {
+            postings.getOrCreate(gram).add(slot);
+        }
+        count++;
+        maxId = Math.max(maxId, id);
+        return true;
+    }
+
+    /**
+     * Find users whose name or email contains the query (or, for one- and two-character
+     * queries, has a word starting with it). Exact and prefix matches rank first, then by id.
+     */
+    public List<User> search(String query, int limit) {
+        String q = fold(query);
+        int n = Math.max(1, Math.min(limit, maxResults));
+        long[] grams = queryGrams(q);
+        if (grams.length == 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[grams.length];
+            for (int i = 0; i < grams.length; i++) {
+                lists[i] = postings.get(grams[i]);
+                if (lists[i] == null) {
+                    return new ArrayList<>();
+                }
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            int[] candidates = Arrays.copyOf(lists[0].slots, lists[0].size);
+            int size = candidates.length;
+            for (int i = 1; i < lists.length && size > 0; i++) {
+                size = intersect(candidates, size, lists[i]);
+            }
+
+            // Max-heap of (score << 32 | id) holding the best n matches; a candidate that
+            // cannot beat the current worst is rejected without touching the heap
+            long[] heap = new long[n];
+            int found = 0;
+            for (int i = 0; i < size; i++) {
+                int slot = candidates[i];
+                int score = Math.min(score(foldedNames[slot], q), score(foldedEmails[slot], q));
+                // Trigram hits can be false positives; short queries only match word prefixes
+                if (score == NO_MATCH || (q.length() < 3 && score == SCORE_SUBSTRING)) {
+                    continue;
+                }
+                // Ranked by id within a score, as slots follow indexing order rather than id order
+                long key = ((long) score << 32) | users[slot].getId();
+                if (found < n) {
+                    heap[found] = key;
+                    siftUp(heap, found++);
+                } else if (key < heap[0]) {
+                    heap[0] = key;
+                    siftDown(heap, n);
+                }
+            }
+            Arrays.sort(heap, 0, found);
+            List<User> result = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                result.add(users[slotsById.get((int) heap[i])]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] >= heap[i]) {
+                return;
+            }
+            long tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] > heap[largest]) {
+                largest = left;
+            }
+            if (right < size && heap[right] > heap[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            long tmp = heap[largest];
+            heap[largest] = heap[i];
+            heap[i] = tmp;
+            i = largest;
+        }
+    }
+
+    /**
+     * Keep only slots in both lists; returns the new size of the candidate array
+     */
+    private static int intersect(int[] candidates, int size, Postings other) {
+        int out = 0;
+        int j = 0;
+        if (other.size > 8 * size) {
+            // Much longer list: binary search it instead of walking it
+            for (int i = 0; i < size && j < other.size; i++) {
+                int pos = Arrays.binarySearch(other.slots, j, other.size, candidates[i]);
+                if (pos >= 0) {
+                    candidates[out++] = candidates[i];
+                    j = pos + 1;
+                } else {
+                    j = -pos - 1;
+                }
+            }
+            return out;
+        }
+        for (int i = 0; i < size && j < other.size; i++) {
+            int slot = candidates[i];
+            while (j < other.size && other.slots[j] < slot) {
+                j++;
+            }
+            if (j < other.size && other.slots[j] == slot) {
+                candidates[out++] = slot;
+            }
+        }
+        return out;
+    }
+
+    private static int score(String field, String q) {
+        if (field.equals(q)) {
+            return SCORE_EXACT;
+        }
+        if (field.startsWith(q)) {
+            return SCORE_PREFIX;
+        }
+        int from = 0;
+        int best = NO_MATCH;
+        int at;
+        while ((at = field.indexOf(q, from)) >= 0) {
+            if (isSeparator(field.charAt(at - 1))) {
+                return SCORE_WORD_PREFIX;
+            }
+            best = SCORE_SUBSTRING;
+            from = at + 1;
+        }
+        return best;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '.' || c == '@' || c == '-' || c == '_' || c == '+';
+    }
+
+    private static String fold(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static long gram(char a, char b, char c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    /**
+     * Distinct grams of a user's name and email
+     */
+    private static long[] documentGrams(String name, String email) {
+        long[] grams = new long[3 * (name.length() + email.length()) + 4];
+        int n = addFieldGrams(name, grams, 0);
+        n = addFieldGrams(email, grams, n);
+        Arrays.sort(grams, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || grams[unique - 1] != grams[i]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, unique);
+    }
+
+    private static int addFieldGrams(String field, long[] grams, int n) {
+        int len = field.length();
+        for (int i = 0; i + 2 < len; i++) {
+            grams[n++] = gram(field.charAt(i), field.charAt(i + 1), field.charAt(i + 2));
+        }
+        for (int i = 0; i < len; i++) {
+            if (i == 0 || isSeparator(field.charAt(i - 1))) {
+                grams[n++] = gram(ANCHOR, field.charAt(i), END);
+                if (i + 1 < len) {
+                    grams[n++] = gram(ANCHOR, field.charAt(i), field.charAt(i + 1));
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Grams a matching document must contain
+     */
+    private static long[] queryGrams(String q) {
+        switch (q.length()) {
+            case 0:
+                return new long[0];
+            case 1:
+                return new long[] {gram(ANCHOR, q.charAt(0), END)};
+            case 2:
+                return new long[] {gram(ANCHOR, q.charAt(0), q.charAt(1))};
+            default:
+                long[] grams = new long[q.length() - 2];
+                for (int i = 0; i < grams.length; i++) {
+                    grams[i] = gram(q.charAt(i), q.charAt(i + 1), q.charAt(i + 2));
+                }
+                return grams;
+        }
+    }
+
+    /**
+     * Index size as a JSON object
+     */
+    public String getStatsJson() {
+        lock.readLock().lock();
+        try {
+            return String.format("{\"ready\":%s,\"users\":%d,\"grams\":%d,\"maxId\":%d}",
+                ready, count, postings.size(), maxId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void stop() {
+        loader.shutdownNow();
+    }
+}
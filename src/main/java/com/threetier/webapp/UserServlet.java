@@ -2,119 +2,750 @@ package com.threetier.webapp;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.Writer;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Logger;
-import java.util.logging.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * REST API servlet for user management
  */
 public class UserServlet extends HttpServlet {
-    private static final Logger LOGGER = Logger.getLogger(UserServlet.class.getName());
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserServlet.class);
+    
+    // Page size limits for the users list
+    private static final int MAX_PAGE_SIZE = Math.max(1, EnvConfig.getInt("USERS_PAGE_MAX_SIZE", 500));
+    private static final int DEFAULT_PAGE_SIZE =
+        Math.max(1, Math.min(MAX_PAGE_SIZE, EnvConfig.getInt("USERS_PAGE_DEFAULT_SIZE", 100)));
+    
+    // Read-your-writes: reads stay on the primary for this long after a client writes
+    private static final long READ_YOUR_WRITES_MS = EnvConfig.getLong("DB_READ_YOUR_WRITES_MS", 5000);
+    private static final String RECENT_WRITE_COOKIE = "db_recent_write_until";
+    
+    // Streaming export settings
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    private static final int EXPORT_FLUSH_ROWS = Math.max(1, EnvConfig.getInt("USERS_EXPORT_FLUSH_ROWS", 500));
+    
+    // Bulk import settings
+    private static final int BULK_CHUNK_SIZE = Math.max(1, EnvConfig.getInt("USERS_BULK_CHUNK_SIZE", 1000));
+    private static final long BULK_COPY_THRESHOLD_BYTES = EnvConfig.getLong("USERS_BULK_COPY_THRESHOLD_BYTES", 1_048_576);
+    
+    // Largest number of operations accepted in one POST /api/batch
+    private static final int BATCH_MAX_OPERATIONS = Math.max(1, EnvConfig.getInt("USERS_BATCH_MAX_OPERATIONS", 100));
+    
+    // Response formatting
+    private static final boolean PRETTY_PRINT = EnvConfig.getBoolean("JSON_PRETTY_PRINT", true);
     private Gson gson;
+    private UserRepository repository;
+    private WriteCoalescer writeCoalescer;
+    private AsyncDbExecutor asyncExecutor;
+    private UserSearchIndex searchIndex;
+    private UserChangeFeed changeFeed;
+    private UserWriteJournal writeJournal;
+    private UserCounter userCounter;
+    private final UserReadCache readCache = UserReadCache.shared();
+    private final SchemaMigrator migrator = SchemaMigrator.shared();
+    private boolean destroyed;
+    
+    // Concurrent identical lookups share one query; results are cache entries so serialization is shared too
+    private final SingleFlight<String, UserReadCache.Entry> idLookups =
+        new SingleFlight<>(() -> Metrics.recordCoalesced(Metrics.Endpoint.USERS_GET));
+    private final SingleFlight<String, UserReadCache.Entry> emailLookups =
+        new SingleFlight<>(() -> Metrics.recordCoalesced(Metrics.Endpoint.USERS_BY_EMAIL));
     
     @Override
     public void init() throws ServletException {
         LOGGER.info("Initializing UserServlet...");
         
-        // Configure Gson with pretty printing
-        gson = new GsonBuilder()
-                .setPrettyPrinting()
-                .create();
+        // Pretty printing by default; JSON_PRETTY_PRINT=false emits compact JSON
+        GsonBuilder builder = new GsonBuilder();
+        if (PRETTY_PRINT) {
+            builder.setPrettyPrinting();
+        }
+        gson = builder.create();
         
-        // Initialize database with improved error handling
-        boolean dbInitialized = DatabaseConnection.initializeDatabase();
+        // Users in PostgreSQL, or in the embedded store (USERS_STORAGE=embedded)
+        try {
+            repository = UserRepository.shared();
+        } catch (RuntimeException e) {
+            throw new ServletException("User storage could not be opened", e);
+        }
+        boolean database = repository.usesDatabase();
         
-        if (!dbInitialized) {
-            LOGGER.warning("Database initialization failed or had permission issues");
-            LOGGER.warning("UserServlet will continue but may have limited functionality");
-        } else {
-            LOGGER.info("Database initialized successfully");
+        // Optional async processing of database work off the container threads
+        asyncExecutor = AsyncDbExecutor.fromEnvironment();
+        
+        // Optional group commit of concurrent single-user inserts
+        writeCoalescer = database ? WriteCoalescer.fromEnvironment() : null;
+        
+        // In-memory name/email search index, loaded in the background
+        searchIndex = UserSearchIndex.fromEnvironment();
+        
+        // Server-Sent Events feed of created users, also fed by LISTEN for other instances' writes
+        changeFeed = database ? UserChangeFeed.fromEnvironment() : null;
+        
+        // User count served from memory, seeded and reconciled in the background
+        // (the embedded store counts its users itself)
+        userCounter = database ? UserCounter.fromEnvironment() : null;
+        
+        // Optional local journal that accepts inserts (202) while the database is unavailable
+        writeJournal = database ? UserWriteJournal.fromEnvironment() : null;
+        if (writeJournal != null) {
+            try {
+                writeJournal.open();
+            } catch (IOException e) {
+                LOGGER.error("User write journal could not be opened; inserts will not be journaled", e);
+                writeJournal = null;
+            }
         }
         
+        // Schema migrations run in the background; the API answers 503 until they complete,
+        // and the components that read the users table start afterwards
+        migrator.start();
+        migrator.onReady(this::startSchemaDependents);
+        
         LOGGER.info("UserServlet initialized successfully");
     }
     
+    private synchronized void startSchemaDependents() {
+        if (destroyed) {
+            return;
+        }
+        if (searchIndex != null) {
+            if (repository.usesDatabase()) {
+                searchIndex.start();
+            } else {
+                searchIndex.startFrom(repository);
+            }
+        }
+        if (changeFeed != null) {
+            changeFeed.start();
+        }
+        if (userCounter != null) {
+            userCounter.start();
+        }
+        if (writeJournal != null) {
+            writeJournal.start(this::journalReplayed);
+        }
+    }
+    
     /**
-     * GET /api/users/ - List all users
+     * Make users inserted by journal replay visible like directly created ones
+     */
+    private void journalReplayed(List<User> users) {
+        readCache.invalidate();
+        if (userCounter != null) {
+            userCounter.recordInserted(users.size());
+        }
+        for (User user : users) {
+            if (searchIndex != null) {
+                searchIndex.add(user);
+            }
+            if (changeFeed != null) {
+                changeFeed.publish(user);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void destroy() {
+        LOGGER.info("Destroying UserServlet, closing user storage...");
+        destroyed = true;
+        migrator.stop();
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        if (writeCoalescer != null) {
+            writeCoalescer.shutdown();
+        }
+        if (searchIndex != null) {
+            searchIndex.stop();
+        }
+        if (changeFeed != null) {
+            changeFeed.stop();
+        }
+        if (userCounter != null) {
+            userCounter.stop();
+        }
+        if (writeJournal != null) {
+            writeJournal.close();
+        }
+        repository.close();
+    }
+    
+    /**
+     * GET /api/users/ - List users one page at a time
+     * GET /api/users/{id} - Get one user by id
+     * GET /api/users?email= - Get one user by email
+     * GET /api/users/search?q= - Search names and emails
+     * GET /api/users/count - Number of users
+     * GET /api/users/export - Stream the whole users table
+     * GET /api/users/stream - Server-Sent Events feed of created users
      */
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) 
             throws ServletException, IOException {
         
-        LOGGER.info("GET request received for users list");
-        setJsonResponse(response);
+        if ("/api/batch".equals(request.getServletPath())) {
+            setJsonResponse(response);
+            response.setHeader("Allow", "POST");
+            sendErrorResponse(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Batches are sent with POST");
+            return;
+        }
+        if (rejectUntilSchemaReady(response)) {
+            return;
+        }
+        String pathInfo = request.getPathInfo();
+        AsyncDbExecutor.RequestHandler handler;
+        if ("/export".equals(pathInfo)) {
+            // Long-running stream; stays on the request thread
+            exportUsers(request, response);
+            return;
+        } else if ("/stream".equals(pathInfo)) {
+            // Held open without a request thread once subscribed
+            streamUsers(request, response);
+            return;
+        } else if ("/search".equals(pathInfo)) {
+            // Answered from memory; no database work to move off the request thread
+            searchUsers(request, response);
+            return;
+        } else if ("/count".equals(pathInfo)) {
+            // Answered from memory
+            countUsers(request, response);
+            return;
+        } else if (pathInfo == null || "/".equals(pathInfo)) {
+            if (request.getParameter("email") != null) {
+                handler = () -> getUserByEmail(request, response);
+            } else {
+                handler = () -> listUsers(request, response);
+            }
+        } else {
+            int id = parseUserId(pathInfo);
+            if (id <= 0) {
+                setJsonResponse(response);
+                sendErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, "Not found");
+                return;
+            }
+            handler = () -> getUserById(id, request, response);
+        }
         
-        List<User> users = new ArrayList<>();
+        if (asyncExecutor != null && request.isAsyncSupported()) {
+            asyncExecutor.dispatch(request, response, handler, this::sendDispatchError);
+        } else {
+            handler.handle();
+        }
+    }
+    
+    /**
+     * Answer 503 while schema migrations are still running (or have failed)
+     * @return true if the request was rejected
+     */
+    private boolean rejectUntilSchemaReady(HttpServletResponse response) throws IOException {
+        if (migrator.isReady()) {
+            return false;
+        }
+        setJsonResponse(response);
+        response.setHeader("Retry-After", "5");
+        sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Database schema is not ready (" + migrator.getState() + "), please retry");
+        return true;
+    }
+    
+    /**
+     * Answer 501 for a feature that needs PostgreSQL when users are in the embedded store
+     * @return true if the request was rejected
+     */
+    private boolean rejectWithoutDatabase(HttpServletResponse response, String feature) throws IOException {
+        if (repository.usesDatabase()) {
+            return false;
+        }
+        setJsonResponse(response);
+        sendErrorResponse(response, HttpServletResponse.SC_NOT_IMPLEMENTED,
+                        feature + " need PostgreSQL storage (USERS_STORAGE=postgresql)");
+        return true;
+    }
+    
+    /**
+     * Parse the id from a "/{id}" path, or return -1 if the path is not a user id
+     */
+    static int parseUserId(String pathInfo) {
+        if (pathInfo == null || pathInfo.length() < 2) {
+            return -1;
+        }
+        String id = pathInfo.substring(1, pathInfo.endsWith("/") ? pathInfo.length() - 1 : pathInfo.length());
+        if (id.isEmpty() || id.length() > 10) {
+            return -1;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return -1;
+            }
+        }
+        try {
+            int value = Integer.parseInt(id);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Search users by name or email (?q=&limit=) using the in-memory index.
+     * Queries of three or more characters match substrings; shorter ones match word prefixes.
+     */
+    private void searchUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        setJsonResponse(response);
+        if (searchIndex == null) {
+            sendErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, "Search is disabled");
+            return;
+        }
+        String q = request.getParameter("q");
+        if (q == null || q.trim().isEmpty()) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, "Query parameter q is required");
+            return;
+        }
+        int limit;
+        try {
+            limit = request.getParameter("limit") == null ? 20 : parseLimit(request.getParameter("limit"));
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid limit: " + e.getMessage());
+            return;
+        }
+        if (!searchIndex.isReady()) {
+            response.setHeader("Retry-After", "1");
+            sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Search index is still loading, please retry");
+            return;
+        }
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT * FROM users ORDER BY id")) {
-            
-            while (rs.next()) {
-                User user = new User(
-                    rs.getInt("id"),
-                    rs.getString("name"),
-                    rs.getString("email"),
-                    rs.getString("created_at")
-                );
-                users.add(user);
+        List<User> users = searchIndex.search(q, limit);
+        long serializeStart = System.nanoTime();
+        String body = gson.toJson(users);
+        Metrics.recordSerializationTime(Metrics.Endpoint.USERS_SEARCH, System.nanoTime() - serializeStart);
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(body);
+    }
+    
+    /**
+     * Number of users (?mode=exact|approximate), answered from the in-process counter or
+     * the table statistics without querying PostgreSQL
+     */
+    private void countUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        setJsonResponse(response);
+        if (userCounter == null && repository.usesDatabase()) {
+            sendErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, "User count is disabled");
+            return;
+        }
+        String modeParam = request.getParameter("mode");
+        UserCounter.Mode mode = modeParam == null || modeParam.isEmpty()
+            ? (userCounter == null ? UserCounter.Mode.EXACT : userCounter.getDefaultMode())
+            : UserCounter.parseMode(modeParam);
+        if (mode == null) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                            "Unknown count mode: use exact or approximate");
+            return;
+        }
+        String body;
+        if (userCounter == null) {
+            // The embedded store keeps an exact count in memory
+            try {
+                body = String.format("{\"count\":%d,\"mode\":\"exact\",\"source\":\"embedded\"}",
+                                     repository.count());
+            } catch (SQLException e) {
+                LOGGER.error("Database error while counting users", e);
+                sendReadError(response, e);
+                return;
             }
-            
-            LOGGER.info("Retrieved " + users.size() + " users from database");
-            response.getWriter().write(gson.toJson(users));
-            
+        } else {
+            body = userCounter.toJson(mode);
+        }
+        if (body == null) {
+            response.setHeader("Retry-After", "1");
+            sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "User count is still loading, please retry");
+            return;
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(body);
+    }
+    
+    /**
+     * Server-Sent Events feed of created users ("user-created" events whose id is the user id).
+     * A reconnecting client resumes after its Last-Event-ID header (or ?lastEventId=, e.g. when a
+     * page reopens a stream the server closed); a "reset" event means the client should reload.
+     */
+    private void streamUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (changeFeed == null || !request.isAsyncSupported()) {
+            setJsonResponse(response);
+            sendErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, "Change stream is disabled");
+            return;
+        }
+        int lastEventId;
+        try {
+            lastEventId = parseLastEventId(request);
+        } catch (IllegalArgumentException e) {
+            setJsonResponse(response);
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid Last-Event-ID");
+            return;
+        }
+        if (!changeFeed.hasCapacity()) {
+            setJsonResponse(response);
+            response.setHeader("Retry-After", "5");
+            sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Too many stream clients, please retry");
+            return;
+        }
+        
+        UserChangeFeed.Backfill backfill;
+        try {
+            backfill = changeFeed.backfill(lastEventId);
         } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "Database error while retrieving users", e);
-            
-            // Provide more specific error messages for permission issues
-            if (e.getMessage().contains("permission") ||
-                e.getMessage().contains("privilege") ||
-                e.getSQLState().equals("42501")) {
-                sendErrorResponse(response, HttpServletResponse.SC_FORBIDDEN,
-                                "Database permission error: The application lacks required " +
-                                "permissions to access user data. Please contact the administrator.");
-            } else if (e.getMessage().contains("relation") &&
-                      e.getMessage().contains("does not exist")) {
-                sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                "Database schema error: The users table does not exist. " +
-                                "The database may need to be initialized properly.");
+            LOGGER.error("Database error while resuming the users stream", e);
+            setJsonResponse(response);
+            sendReadError(response, e);
+            return;
+        }
+        
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Stop reverse proxies (nginx) from buffering the stream
+        response.setHeader("X-Accel-Buffering", "no");
+        response.setHeader("Access-Control-Allow-Origin", "*");
+        AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        changeFeed.subscribe(context, lastEventId, backfill);
+    }
+    
+    /**
+     * Read the id a stream client resumes after, or -1 for a fresh subscription
+     */
+    private static int parseLastEventId(HttpServletRequest request) {
+        String value = request.getHeader("Last-Event-ID");
+        if (value == null || value.trim().isEmpty()) {
+            value = request.getParameter("lastEventId");
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            int id = Integer.parseInt(value.trim());
+            if (id < 0) {
+                throw new IllegalArgumentException("negative id");
+            }
+            return id;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not an integer", e);
+        }
+    }
+    
+    /**
+     * Get one user by primary key
+     */
+    private void getUserById(int id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean primaryRequired = hasRecentWrite(request);
+        lookupUser(request, response, primaryRequired, "user:id:" + id, idLookups, Metrics.Endpoint.USERS_GET,
+                   () -> repository.findById(id, primaryRequired));
+    }
+    
+    /**
+     * Get one user by email, using the unique index on email
+     */
+    private void getUserByEmail(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String email = request.getParameter("email").trim();
+        if (email.isEmpty()) {
+            setJsonResponse(response);
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, "Email must not be empty");
+            return;
+        }
+        boolean primaryRequired = hasRecentWrite(request);
+        lookupUser(request, response, primaryRequired, "user:email:" + email, emailLookups,
+                   Metrics.Endpoint.USERS_BY_EMAIL, () -> repository.findByEmail(email, primaryRequired));
+    }
+    
+    /**
+     * Answer a single-user lookup from the read cache, or with one shared query for all
+     * concurrent requests for the same key
+     * @param find reads the user from the repository, or returns null if there is none
+     */
+    private void lookupUser(HttpServletRequest request, HttpServletResponse response, boolean primaryRequired,
+                            String cacheKey, SingleFlight<String, UserReadCache.Entry> lookups,
+                            Metrics.Endpoint endpoint, DatabaseConnection.SqlCall<User> find) throws IOException {
+        setJsonResponse(response);
+        
+        if (!primaryRequired && readCache.isNotModified(cacheKey, request.getHeader("If-None-Match"))) {
+            response.setHeader("ETag", readCache.currentEtag(cacheKey));
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        UserReadCache.Entry entry = primaryRequired ? null : readCache.get(cacheKey);
+        if (entry == null) {
+            try {
+                // Primary reads coalesce separately so they never share a replica result
+                String flightKey = primaryRequired ? "primary:" + cacheKey : cacheKey;
+                entry = lookups.execute(flightKey, () -> {
+                    long readVersion = readCache.currentVersion();
+                    long dbStart = System.nanoTime();
+                    User user = find.call();
+                    long serializeStart = System.nanoTime();
+                    Metrics.recordDbTime(endpoint, serializeStart - dbStart);
+                    if (user == null) {
+                        return null;
+                    }
+                    String body = gson.toJson(user);
+                    Metrics.recordSerializationTime(endpoint, System.nanoTime() - serializeStart);
+                    return readCache.put(cacheKey, body, null, readVersion);
+                });
+            } catch (SQLException e) {
+                LOGGER.error("Database error while looking up a user", e);
+                sendReadError(response, e);
+                return;
+            }
+        }
+        
+        if (entry == null) {
+            sendErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, "User not found");
+            return;
+        }
+        response.setHeader("ETag", entry.getEtag());
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(entry.getBody());
+    }
+    
+    /**
+     * List users one page at a time (?limit=&after=).
+     * Pages are ordered by id and fetched with a keyset predicate on the id of the
+     * previous page's last row; the next page is advertised in the Link header.
+     */
+    private void listUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        
+        setJsonResponse(response);
+        
+        int limit;
+        int afterId;
+        try {
+            limit = parseLimit(request.getParameter("limit"));
+            String after = request.getParameter("after");
+            afterId = (after == null || after.isEmpty()) ? 0 : PageCursor.decode(after);
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                            "Invalid pagination parameters: " + e.getMessage());
+            return;
+        }
+        
+        // Clients that just wrote read from the primary and skip the cache, which may
+        // hold a page read from a lagging replica
+        boolean primaryRequired = hasRecentWrite(request);
+        
+        // Conditional GET: an unchanged data version means the client's copy is current
+        String cacheKey = "list:" + limit + ":" + afterId;
+        if (!primaryRequired && readCache.isNotModified(cacheKey, request.getHeader("If-None-Match"))) {
+            response.setHeader("ETag", readCache.currentEtag(cacheKey));
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        UserReadCache.Entry page = primaryRequired ? null : readCache.get(cacheKey);
+        if (page == null) {
+            long readVersion = readCache.currentVersion();
+            List<User> users = new ArrayList<>(Math.min(limit, 64));
+            try {
+                long dbStart = System.nanoTime();
+                boolean hasMore = repository.readPage(afterId, limit, users, primaryRequired);
+                long serializeStart = System.nanoTime();
+                Metrics.recordDbTime(Metrics.Endpoint.USERS_LIST, serializeStart - dbStart);
+                LOGGER.debug("Retrieved {} users from database", users.size());
+                String next = hasMore ? PageCursor.encode(users.get(users.size() - 1).getId()) : null;
+                String body = gson.toJson(users);
+                Metrics.recordSerializationTime(Metrics.Endpoint.USERS_LIST, System.nanoTime() - serializeStart);
+                page = readCache.put(cacheKey, body, next, readVersion);
+            } catch (SQLException e) {
+                LOGGER.error("Database error while retrieving users", e);
+                sendReadError(response, e);
+                return;
+            }
+        }
+        
+        if (page.getNextCursor() != null) {
+            response.setHeader("Link", "<" + request.getRequestURI() + "?limit=" + limit +
+                               "&after=" + page.getNextCursor() + ">; rel=\"next\"");
+            response.setHeader("X-Next-Cursor", page.getNextCursor());
+        }
+        response.setHeader("ETag", page.getEtag());
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(page.getBody());
+    }
+    
+    /**
+     * Stream every user without materializing the table in memory.
+     * Users are read through UserRepository.scan (server-side cursors in PostgreSQL) and
+     * written one at a time, either as a JSON array or, when the client accepts
+     * application/x-ndjson (or passes ?format=ndjson), as newline-delimited JSON.
+     */
+    private void exportUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean ndjson = wantsNdjson(request);
+        LOGGER.debug("Users export requested ({})", ndjson ? "ndjson" : "json");
+        setJsonResponse(response);
+        if (ndjson) {
+            response.setContentType(NDJSON_CONTENT_TYPE);
+        }
+        response.addHeader("Vary", "Accept");
+        
+        int[] rows = {0};
+        boolean primaryRequired = hasRecentWrite(request);
+        Writer out = response.getWriter();
+        JsonWriter json = new JsonWriter(out);
+        try {
+            if (ndjson) {
+                json.setLenient(true);
             } else {
-                sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                "Database error: " + e.getMessage());
+                json.beginArray();
             }
+            repository.scan(primaryRequired, user -> {
+                json.beginObject();
+                json.name("id").value(user.getId());
+                json.name("name").value(user.getName());
+                json.name("email").value(user.getEmail());
+                json.name("createdAt").value(user.getCreatedAt());
+                json.endObject();
+                if (ndjson) {
+                    out.write('\n');
+                }
+                if (++rows[0] % EXPORT_FLUSH_ROWS == 0) {
+                    json.flush();
+                }
+            });
+            if (!ndjson) {
+                json.endArray();
+            }
+            json.flush();
+            LOGGER.info("Exported {} users", rows[0]);
+        } catch (SQLException e) {
+            LOGGER.error("Database error while exporting users after {} rows", rows[0], e);
+            if (!response.isCommitted()) {
+                response.resetBuffer();
+                sendReadError(response, e);
+            }
+            // Once rows have been sent the status line is gone; the truncated body signals the failure
+        }
+    }
+    
+    /**
+     * Check whether the client negotiated newline-delimited JSON
+     */
+    private boolean wantsNdjson(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        if (format != null) {
+            return format.equalsIgnoreCase("ndjson");
+        }
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(NDJSON_CONTENT_TYPE);
+    }
+    
+    /**
+     * Map a database error on a read path to a JSON error response
+     */
+    private void sendReadError(HttpServletResponse response, SQLException e) throws IOException {
+        SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+        // Provide more specific error messages for permission issues
+        if (kind == SqlErrorClassifier.Kind.PERMISSION_DENIED) {
+            sendErrorResponse(response, HttpServletResponse.SC_FORBIDDEN,
+                            "Database permission error: The application lacks required " +
+                            "permissions to access user data. Please contact the administrator.");
+        } else if (kind == SqlErrorClassifier.Kind.UNDEFINED_TABLE) {
+            sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            "Database schema error: The users table does not exist. " +
+                            "The database may need to be initialized properly.");
+        } else if (kind.isUnavailable()) {
+            sendUnavailable(response, e);
+        } else if (kind == SqlErrorClassifier.Kind.QUERY_CANCELED) {
+            sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Database query timed out, please retry");
+        } else {
+            // Callers log the exception; driver messages are not sent to clients
+            sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            "Database error (SQLState " + e.getSQLState() + ")");
         }
     }
     
+    /**
+     * Answer 503 with Retry-After for a failure caused by database availability or capacity
+     */
+    private void sendUnavailable(HttpServletResponse response, SQLException e) throws IOException {
+        long retryAfterMs = e instanceof CircuitBreaker.OpenException
+            ? ((CircuitBreaker.OpenException) e).getRetryAfterMs() : 1000;
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, (retryAfterMs + 999) / 1000)));
+        sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Database is temporarily unavailable, please retry");
+    }
+    
     /**
      * POST /api/users/ - Create new user
+     * POST /api/users/bulk - Import many users from a JSON array or CSV body
+     * POST /api/batch - Run several user operations in one request
      */
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         
-        LOGGER.info("POST request received for user creation");
-        LOGGER.info("Content Type: " + request.getContentType());
+        if ("/api/batch".equals(request.getServletPath())) {
+            if (rejectWithoutDatabase(response, "Batches") || rejectUntilSchemaReady(response)) {
+                return;
+            }
+            if (asyncExecutor != null && request.isAsyncSupported()) {
+                asyncExecutor.dispatch(request, response, () -> runBatch(request, response), this::sendDispatchError);
+            } else {
+                runBatch(request, response);
+            }
+            return;
+        }
+        boolean bulk = "/bulk".equals(request.getPathInfo());
+        // With the journal, single inserts are accepted even before the schema is ready
+        if ((bulk || writeJournal == null) && rejectUntilSchemaReady(response)) {
+            return;
+        }
+        if (bulk && rejectWithoutDatabase(response, "Bulk import")) {
+            return;
+        }
+        if (bulk) {
+            // Long-running import; stays on the request thread
+            bulkImportUsers(request, response);
+        } else if (asyncExecutor != null && request.isAsyncSupported()) {
+            asyncExecutor.dispatch(request, response, () -> createUser(request, response), this::sendDispatchError);
+        } else {
+            createUser(request, response);
+        }
+    }
+    
+    /**
+     * Create a single user from the name and email form parameters
+     */
+    private void createUser(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        
         setJsonResponse(response);
         
         String name = request.getParameter("name");
         String email = request.getParameter("email");
         
-        LOGGER.info("Received parameters - name: '" + name + "', email: '" + email + "'");
-        LOGGER.info("name is null: " + (name == null) + ", email is null: " + (email == null));
-        if (name != null) LOGGER.info("name is empty: " + name.trim().isEmpty());
-        if (email != null) LOGGER.info("email is empty: " + email.trim().isEmpty());
-        
-        // Validate input
+        // Validate input (parameter values are personal data and are never logged)
         if (name == null || email == null || name.trim().isEmpty() || email.trim().isEmpty()) {
-            LOGGER.warning("Validation failed: Name and email are required");
+            LOGGER.debug("Validation failed: name present={}, email present={}",
+                         name != null && !name.trim().isEmpty(), email != null && !email.trim().isEmpty());
             sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
                             "Name and email are required");
             return;
@@ -127,51 +758,284 @@ public class UserServlet extends HttpServlet {
                             "Invalid email format");
             return;
         }
+        // Checked before coalescing: one oversized row would fail its whole group with 22001
+        // Checked before journaling too: replay would drop a row the table rejects
+        if (!newUser.fitsColumns()) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                            "Name and email must be at most " + User.MAX_FIELD_LENGTH + " characters");
+            return;
+        }
         
-        try (Connection conn = DatabaseConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(
-                 "INSERT INTO users (name, email) VALUES (?, ?) RETURNING id, created_at")) {
-            
-            stmt.setString(1, newUser.getName());
-            stmt.setString(2, newUser.getEmail());
-            
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                User createdUser = new User(
-                    rs.getInt("id"),
-                    newUser.getName(),
-                    newUser.getEmail(),
-                    rs.getString("created_at")
-                );
-                
-                LOGGER.info("Created new user: " + createdUser);
-                response.setStatus(HttpServletResponse.SC_CREATED);
-                response.getWriter().write(gson.toJson(createdUser));
+        if (writeJournal != null
+                && (writeJournal.getMode() == UserWriteJournal.Mode.ALWAYS || !migrator.isReady())) {
+            acceptToJournal(response, newUser);
+            return;
+        }
+        
+        try {
+            long dbStart = System.nanoTime();
+            User createdUser = insertUser(newUser);
+            Metrics.recordDbTime(Metrics.Endpoint.USERS_CREATE, System.nanoTime() - dbStart);
+            readCache.invalidate();
+            if (userCounter != null) {
+                userCounter.recordInserted(1);
             }
+            if (searchIndex != null) {
+                searchIndex.add(createdUser);
+            }
+            if (changeFeed != null) {
+                changeFeed.publish(createdUser);
+            }
+            markRecentWrite(request, response);
+            LOGGER.debug("Created user id={}", createdUser.getId());
+            response.setStatus(HttpServletResponse.SC_CREATED);
+            long serializeStart = System.nanoTime();
+            String body = gson.toJson(createdUser);
+            Metrics.recordSerializationTime(Metrics.Endpoint.USERS_CREATE, System.nanoTime() - serializeStart);
+            response.getWriter().write(body);
             
         } catch (SQLException e) {
-            LOGGER.log(Level.WARNING, "Database error while creating user", e);
+            // The driver message can echo the submitted email, so the full exception is debug only
+            LOGGER.warn("Database error while creating user (SQLState {})", e.getSQLState());
+            LOGGER.debug("Database error while creating user", e);
             
             // Handle different types of database errors with specific messages
-            if (e.getMessage().contains("duplicate key") || e.getMessage().contains("unique")) {
+            SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+            if (writeJournal != null && kind.isUnavailable()) {
+                // Replay is idempotent on email, so this is safe even if the insert did commit
+                acceptToJournal(response, newUser);
+            } else if (kind == SqlErrorClassifier.Kind.UNIQUE_VIOLATION) {
                 sendErrorResponse(response, HttpServletResponse.SC_CONFLICT,
                                 "User with this email already exists");
-            } else if (e.getMessage().contains("permission") ||
-                      e.getMessage().contains("privilege") ||
-                      e.getSQLState().equals("42501")) {
+            } else if (kind == SqlErrorClassifier.Kind.PERMISSION_DENIED) {
                 sendErrorResponse(response, HttpServletResponse.SC_FORBIDDEN,
                                 "Database permission error: The application lacks required " +
                                 "permissions to create new users. Please contact the administrator.");
-            } else if (e.getMessage().contains("relation") &&
-                      e.getMessage().contains("does not exist")) {
+            } else if (kind == SqlErrorClassifier.Kind.UNDEFINED_TABLE) {
                 sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                                 "Database schema error: The users table does not exist. " +
                                 "The database may need to be initialized properly.");
+            } else if (kind.isUnavailable()) {
+                sendUnavailable(response, e);
+            } else if (kind == SqlErrorClassifier.Kind.QUERY_CANCELED) {
+                sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                "Database query timed out, please retry");
             } else {
                 sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                "Database error: " + e.getMessage());
+                                "Database error (SQLState " + e.getSQLState() + ")");
+            }
+        }
+    }
+    
+    /**
+     * Journal a validated user for later insertion and answer 202 Accepted. The user has no
+     * id yet; it appears in the list and the change stream once the journal is replayed. A
+     * journaled user whose email already exists is dropped at replay.
+     */
+    private void acceptToJournal(HttpServletResponse response, User newUser) throws IOException {
+        try {
+            writeJournal.append(newUser);
+        } catch (IOException e) {
+            LOGGER.error("Could not journal user: {}", e.getMessage());
+            response.setHeader("Retry-After", "5");
+            sendErrorResponse(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Database is unavailable and the write journal cannot accept the user, please retry");
+            return;
+        }
+        LOGGER.debug("Journaled user for later insertion");
+        JsonObject body = new JsonObject();
+        body.addProperty("name", newUser.getName());
+        body.addProperty("email", newUser.getEmail());
+        body.addProperty("status", "pending");
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.getWriter().write(gson.toJson(body));
+    }
+    
+    /**
+     * Insert a single user, through the group-commit coalescer when it is enabled
+     * @return the created user with id and createdAt populated
+     */
+    private User insertUser(User newUser) throws SQLException {
+        if (writeCoalescer != null) {
+            return writeCoalescer.insert(newUser);
+        }
+        return repository.insert(newUser);
+    }
+    
+    /**
+     * Import users in bulk. The body is a JSON array of {"name","email"} objects, or CSV
+     * ("name,email" lines) when the content type is text/csv. Rows are written with JDBC
+     * batches, or with COPY when ?method=copy is given or the payload exceeds
+     * BULK_COPY_THRESHOLD_BYTES. Per-row conflicts and validation failures are reported
+     * in the response without aborting the import.
+     */
+    private void bulkImportUsers(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        setJsonResponse(response);
+        
+        String methodParam = request.getParameter("method");
+        BulkUserImporter.Method method;
+        if (methodParam == null || methodParam.isEmpty()) {
+            long length = request.getContentLengthLong();
+            method = (length < 0 || length > BULK_COPY_THRESHOLD_BYTES)
+                ? BulkUserImporter.Method.COPY : BulkUserImporter.Method.BATCH;
+        } else {
+            try {
+                method = BulkUserImporter.Method.valueOf(methodParam.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                                "Unknown import method: use batch or copy");
+                return;
+            }
+        }
+        
+        String contentType = request.getContentType();
+        boolean csv = contentType != null && contentType.toLowerCase().startsWith("text/csv");
+        LOGGER.debug("Bulk import request received ({}, {})", csv ? "csv" : "json", method);
+        
+        BulkUserImporter importer = new BulkUserImporter(BULK_CHUNK_SIZE, method);
+        try {
+            BulkUserImporter.Result result = csv
+                ? importer.importCsv(request.getReader())
+                : importer.importJson(request.getReader());
+            if (result.getInserted() > 0) {
+                readCache.invalidate();
+                if (userCounter != null) {
+                    userCounter.recordInserted(result.getInserted());
+                }
+                markRecentWrite(request, response);
+                if (searchIndex != null) {
+                    // Bulk inserts do not return rows; index them with a catch-up read
+                    searchIndex.requestRefresh();
+                }
+                if (changeFeed != null) {
+                    // Normally also notified by the insert trigger; this covers databases without it
+                    changeFeed.requestCatchUp();
+                }
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            result.writeJson(response.getWriter(), method.name().toLowerCase());
+        } catch (IllegalStateException | MalformedJsonException | EOFException e) {
+            LOGGER.warn("Malformed bulk import payload", e);
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                            "Malformed import payload: expected a JSON array of user objects or CSV");
+        } catch (SQLException e) {
+            LOGGER.error("Database error during bulk import", e);
+            // Earlier chunks may have been committed
+            readCache.invalidate();
+            sendErrorResponse(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            "Database error during bulk import; chunks committed before the error are kept");
+        }
+    }
+    
+    /**
+     * Run an ordered batch of creates and lookups (see UserBatch) on one connection per
+     * shard and answer with one result per operation
+     */
+    private void runBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        setJsonResponse(response);
+        
+        UserBatch batch;
+        try {
+            batch = UserBatch.parse(request.getReader(), gson, BATCH_MAX_OPERATIONS, DEFAULT_PAGE_SIZE, MAX_PAGE_SIZE);
+        } catch (UserBatch.TooManyOperationsException e) {
+            sendErrorResponse(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                            "A batch may contain at most " + BATCH_MAX_OPERATIONS + " operations");
+            return;
+        } catch (JsonParseException e) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST,
+                            "Malformed batch: expected a JSON object with an operations array");
+            return;
+        } catch (IllegalArgumentException e) {
+            sendErrorResponse(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid batch: " + e.getMessage());
+            return;
+        }
+        
+        long dbStart = System.nanoTime();
+        batch.execute();
+        long serializeStart = System.nanoTime();
+        Metrics.recordDbTime(Metrics.Endpoint.USERS_BATCH, serializeStart - dbStart);
+        LOGGER.debug("Ran a batch of {} operations ({})", batch.size(), batch.isAtomic() ? "atomic" : "independent");
+        
+        List<User> created = batch.getCreated();
+        if (!created.isEmpty()) {
+            readCache.invalidate();
+            if (userCounter != null) {
+                userCounter.recordInserted(created.size());
+            }
+            for (User user : created) {
+                if (searchIndex != null) {
+                    searchIndex.add(user);
+                }
+                if (changeFeed != null) {
+                    changeFeed.publish(user);
+                }
+            }
+            markRecentWrite(request, response);
+        }
+        
+        int status = batch.getStatus();
+        if (status == HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            response.setHeader("Retry-After", "1");
+        }
+        response.setStatus(status);
+        String body = gson.toJson(batch.toJson());
+        Metrics.recordSerializationTime(Metrics.Endpoint.USERS_BATCH, System.nanoTime() - serializeStart);
+        response.getWriter().write(body);
+    }
+    
+    /**
+     * Remember that this client just wrote, so its reads go to the primary until
+     * replicas have had time to catch up (read-your-writes)
+     */
+    private void markRecentWrite(HttpServletRequest request, HttpServletResponse response) {
+        if (READ_YOUR_WRITES_MS <= 0) {
+            return;
+        }
+        Cookie cookie = new Cookie(RECENT_WRITE_COOKIE,
+                                   String.valueOf(System.currentTimeMillis() + READ_YOUR_WRITES_MS));
+        cookie.setMaxAge((int) Math.max(1, (READ_YOUR_WRITES_MS + 999) / 1000));
+        cookie.setPath(request.getContextPath().isEmpty() ? "/" : request.getContextPath());
+        cookie.setHttpOnly(true);
+        response.addCookie(cookie);
+    }
+    
+    /**
+     * Check whether this client wrote recently enough that it must read from the primary
+     */
+    private boolean hasRecentWrite(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return false;
+        }
+        for (Cookie cookie : cookies) {
+            if (RECENT_WRITE_COOKIE.equals(cookie.getName())) {
+                try {
+                    return Long.parseLong(cookie.getValue()) > System.currentTimeMillis();
+                } catch (NumberFormatException e) {
+                    return false;
+                }
             }
         }
+        return false;
+    }
+    
+    /**
+     * Parse the requested page size, applying the default and the server-side maximum
+     */
+    private int parseLimit(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit must be a positive integer");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be a positive integer");
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
     }
     
     /**
@@ -182,7 +1046,27 @@ public class UserServlet extends HttpServlet {
         response.setCharacterEncoding("UTF-8");
         response.setHeader("Access-Control-Allow-Origin", "*");
         response.setHeader("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        response.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        response.setHeader("Access-Control-Allow-Headers", "Content-Type, If-None-Match");
+        response.setHeader("Access-Control-Expose-Headers", "Link, X-Next-Cursor, ETag");
+    }
+    
+    /**
+     * Format the JSON error body; the message is escaped, so it may contain any text
+     */
+    static String formatError(int statusCode, String message) {
+        JsonObject body = new JsonObject();
+        body.addProperty("error", message);
+        body.addProperty("status", statusCode);
+        return body.toString();
+    }
+    
+    /**
+     * Send an error for a request the async executor could not run
+     */
+    private void sendDispatchError(HttpServletResponse response, int statusCode, String message)
+            throws IOException {
+        setJsonResponse(response);
+        sendErrorResponse(response, statusCode, message);
     }
     
     /**
@@ -191,8 +1075,11 @@ public class UserServlet extends HttpServlet {
     private void sendErrorResponse(HttpServletResponse response, int statusCode, String message) 
             throws IOException {
         response.setStatus(statusCode);
-        String errorJson = String.format("{\"error\":\"%s\",\"status\":%d}", message, statusCode);
-        response.getWriter().write(errorJson);
-        LOGGER.warning("Error response sent: " + message);
+        response.getWriter().write(formatError(statusCode, message));
+        if (statusCode >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+            LOGGER.warn("Error response sent: {} {}", statusCode, message);
+        } else {
+            LOGGER.debug("Error response sent: {} {}", statusCode, message);
+        }
     }
 }
@@ -0,0 +1,713 @@
+package com.threetier.webapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Local write-ahead journal for user inserts, so signups are kept while PostgreSQL is
+ * unavailable.
+ *
+ * Accepted users are appended to memory-mapped segment files of USERS_JOURNAL_SEGMENT_BYTES
+ * in the RecordSegments format. With USERS_JOURNAL_FSYNC the mapping is forced to
+ * disk before the request is acknowledged. The force runs outside the journal lock and
+ * covers every record written before it started, so concurrent appenders share one force
+ * (group commit) instead of each paying a full fsync in turn.
+ *
+ * A replayer thread drains the journal into the users table in batches, at most
+ * USERS_JOURNAL_REPLAY_RATE rows per second, and records its position in a checkpoint
+ * file after each commit. Inserts use ON CONFLICT (email) DO NOTHING, so rows replayed
+ * twice after a crash (or already committed by a request whose connection broke) are
+ * skipped. Fully replayed segments are deleted. On startup the segments are scanned to
+ * rebuild the write position and the backlog, and replay resumes from the checkpoint.
+ *
+ * The directory is locked, so each instance needs its own (e.g. a StatefulSet volume).
+ */
+public class UserWriteJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserWriteJournal.class);
+
+    private static final String SEGMENT_PREFIX = "users-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+    private static final int MAX_FIELD_BYTES = 4096;
+    private static final long RETRY_MAX_MS = 30_000;
+
+    private static volatile UserWriteJournal active;
+
+    /**
+     * When requests are journaled instead of inserted directly
+     */
+    public enum Mode {
+        /** Insert directly; journal only when the database is unavailable */
+        FALLBACK,
+        /** Journal every insert and answer 202 */
+        ALWAYS
+    }
+
+    /**
+     * Thrown when the journal has reached USERS_JOURNAL_MAX_BYTES
+     */
+    public static final class JournalFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        JournalFullException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One segment file; records below writeLimit are complete
+     */
+    private static final class Segment {
+        final long seq;
+        final Path path;
+        final MappedByteBuffer buffer;
+        volatile int writeLimit;
+
+        Segment(long seq, Path path, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A record read back for replay, with the position just after it
+     */
+    private static final class Entry {
+        final User user;
+        final long seq;
+        final int end;
+
+        Entry(User user, long seq, int end) {
+            this.user = user;
+            this.seq = seq;
+            this.end = end;
+        }
+    }
+
+    private final Path directory;
+    private final Mode mode;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final boolean fsync;
+    private final int batchSize;
+    private final int replayRate;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Guarded by this: the segment being appended to, and appends so far (wakes the replayer)
+    private Segment writeSegment;
+    private long appendCount;
+    // Guarded by syncLock: appends known to be on disk
+    private final Object syncLock = new Object();
+    private long syncedCount;
+    // Replayer thread only: the next record to replay
+    private long readSeq;
+    private int readPos;
+
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private volatile Consumer<List<User>> onReplayed = users -> { };
+    private volatile Thread replayer;
+    private volatile boolean running;
+    private volatile String lastError;
+
+    public UserWriteJournal(Path directory, Mode mode, int segmentBytes, long maxBytes, boolean fsync,
+                            int batchSize, int replayRate) {
+        this.directory = directory;
+        this.mode = mode;
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        this.fsync = fsync;
+        this.batchSize = Math.max(1, batchSize);
+        this.replayRate = Math.max(1, replayRate);
+    }
+
+    /**
+     * Create the journal from USERS_JOURNAL_* settings, or return null when it is disabled
+     */
+    public static UserWriteJournal fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_JOURNAL_ENABLED", false)) {
+            return null;
+        }
+        Mode mode;
+        try {
+            mode = Mode.valueOf(EnvConfig.getString("USERS_JOURNAL_MODE", "fallback").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown USERS_JOURNAL_MODE value, using fallback");
+            mode = Mode.FALLBACK;
+        }
+        return new UserWriteJournal(
+            Paths.get(EnvConfig.getString("USERS_JOURNAL_DIR",
+                                          Paths.get(System.getProperty("java.io.tmpdir"), "users-journal").toString())),
+            mode,
+            EnvConfig.getInt("USERS_JOURNAL_SEGMENT_BYTES", 16 * 1024 * 1024),
+            EnvConfig.getLong("USERS_JOURNAL_MAX_BYTES", 256L * 1024 * 1024),
+            EnvConfig.getBoolean("USERS_JOURNAL_FSYNC", true),
+            EnvConfig.getInt("USERS_JOURNAL_BATCH_SIZE", 200),
+            EnvConfig.getInt("USERS_JOURNAL_REPLAY_RATE", 500));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Lock the directory and recover segments and the replay position. Appends are
+     * accepted from here on; replay starts with start().
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal directory " + directory + " is in use by another process");
+        }
+
+        List<Long> found = RecordSegments.list(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long[] checkpoint = readCheckpoint();
+        readSeq = checkpoint[0];
+        readPos = (int) checkpoint[1];
+
+        long backlog = 0;
+        for (long seq : found) {
+            if (seq < readSeq) {
+                // Replayed before the last shutdown but not yet deleted
+                Files.deleteIfExists(segmentPath(seq));
+                continue;
+            }
+            Segment segment = map(seq);
+            int[] scan = scan(segment, seq == readSeq ? readPos : 0);
+            segment.writeLimit = scan[0];
+            if (seq == readSeq && readPos > segment.writeLimit) {
+                // Replayed records were damaged; new appends start at the damage, so resume there
+                LOGGER.error("Journal segment {} is damaged before the checkpoint at {}; resuming at {}",
+                             seq, readPos, segment.writeLimit);
+                readPos = segment.writeLimit;
+            }
+            backlog += scan[1];
+            segments.put(seq, segment);
+        }
+
+        if (segments.isEmpty()) {
+            writeSegment = createSegment(Math.max(readSeq, found.isEmpty() ? 1 : found.get(found.size() - 1) + 1));
+            readSeq = writeSegment.seq;
+            readPos = 0;
+        } else {
+            writeSegment = segments.lastEntry().getValue();
+            RecordSegments.zero(writeSegment.buffer, writeSegment.writeLimit);
+            if (readSeq < segments.firstKey()) {
+                readSeq = segments.firstKey();
+                readPos = 0;
+            }
+        }
+        pending.set(backlog);
+        Metrics.adjustJournalPending(backlog);
+        active = this;
+        LOGGER.info("User write journal opened in {} ({} mode): {} segments, {} users awaiting replay",
+                    directory, mode.name().toLowerCase(), segments.size(), backlog);
+    }
+
+    /**
+     * Start replaying into the database; call once the users table exists
+     * @param onReplayed called with the users inserted by each replayed batch
+     */
+    public void start(Consumer<List<User>> onReplayed) {
+        this.onReplayed = onReplayed;
+        running = true;
+        Thread t = new Thread(this::replayLoop, "user-journal-replayer");
+        t.setDaemon(true);
+        replayer = t;
+        t.start();
+    }
+
+    /**
+     * Durably record a validated user for later insertion
+     * @throws IllegalArgumentException if the name or email is longer than its column
+     * @throws JournalFullException when the journal has reached its size limit
+     */
+    public void append(User user) throws IOException {
+        // Replay would drop a row the users table rejects, after the client was told 202
+        if (!user.fitsColumns()) {
+            throw new IllegalArgumentException("Name and email must be at most " + User.MAX_FIELD_LENGTH + " characters");
+        }
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] email = user.getEmail().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_FIELD_BYTES || email.length > MAX_FIELD_BYTES) {
+            throw new IOException("User fields are too large to journal");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(4 + name.length + email.length);
+        payload.putShort((short) name.length).put(name).putShort((short) email.length).put(email);
+        int checksum = RecordSegments.checksum(payload.array());
+        int recordBytes = RecordSegments.HEADER_BYTES + payload.capacity();
+
+        long ticket;
+        synchronized (this) {
+            if (lock == null) {
+                throw new IOException("User write journal is closed");
+            }
+            if (writeSegment.writeLimit + recordBytes > segmentBytes) {
+                rotate();
+            }
+            Segment segment = writeSegment;
+            segment.writeLimit = RecordSegments.write(segment.buffer, segment.writeLimit, payload.array(), checksum);
+            ticket = ++appendCount;
+            notifyAll();
+        }
+        if (fsync) {
+            syncThrough(ticket);
+        }
+        appended.incrementAndGet();
+        pending.incrementAndGet();
+        Metrics.recordJournalAppend();
+        Metrics.adjustJournalPending(1);
+    }
+
+    /**
+     * Return once the append with this ticket is on disk. Whoever holds syncLock forces
+     * everything appended so far, so appenders that queued behind it usually find their
+     * record already covered and return without a force of their own.
+     */
+    private void syncThrough(long ticket) {
+        synchronized (syncLock) {
+            if (syncedCount >= ticket) {
+                return;
+            }
+            long target;
+            Segment segment;
+            synchronized (this) {
+                target = appendCount;
+                segment = writeSegment;
+            }
+            // Earlier segments were forced by rotate() before the switch
+            segment.buffer.force();
+            syncedCount = target;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+            throw new JournalFullException("User write journal is full (" + maxBytes + " bytes)");
+        }
+        if (fsync) {
+            writeSegment.buffer.force();
+        }
+        writeSegment = createSegment(writeSegment.seq + 1);
+    }
+
+    private Segment createSegment(long seq) throws IOException {
+        Segment segment = map(seq);
+        segments.put(seq, segment);
+        return segment;
+    }
+
+    private Segment map(long seq) throws IOException {
+        Path path = segmentPath(seq);
+        return new Segment(seq, path, RecordSegments.map(path, segmentBytes));
+    }
+
+    private Path segmentPath(long seq) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Find the end of the complete records in a segment
+     * @return {end position, records from countFrom to the end}
+     */
+    private int[] scan(Segment segment, int countFrom) {
+        int pos = 0;
+        int count = 0;
+        while (true) {
+            int end = RecordSegments.recordEnd(segment.buffer, pos, 1);
+            if (end < 0) {
+                return new int[] {pos, count};
+            }
+            if (pos >= countFrom) {
+                count++;
+            }
+            pos = end;
+        }
+    }
+
+    private static User decode(ByteBuffer buffer, int pos) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(pos + RecordSegments.HEADER_BYTES);
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        byte[] email = new byte[in.getShort()];
+        in.get(email);
+        return new User(new String(name, StandardCharsets.UTF_8), new String(email, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read up to max records from the replay position, moving past finished segments. An
+     * unreadable record is skipped together with the rest of what its segment holds so far
+     * (the next segment, or the segment's current end when it is the newest), and the new
+     * position is checkpointed, so replay cannot stall on it. Skipped records count as
+     * rejected.
+     */
+    private List<Entry> readBatch(int max) throws IOException {
+        List<Entry> batch = new ArrayList<>(Math.min(max, 256));
+        long seq = readSeq;
+        int pos = readPos;
+        while (batch.size() < max) {
+            Segment segment = segments.get(seq);
+            if (segment == null) {
+                break;
+            }
+            int limit = segment.writeLimit;
+            if (pos < limit) {
+                int end = RecordSegments.recordEnd(segment.buffer, pos, 1);
+                if (end > 0) {
+                    batch.add(new Entry(decode(segment.buffer, pos), seq, end));
+                    pos = end;
+                    continue;
+                }
+                if (!batch.isEmpty()) {
+                    // Replay what was read first; the checkpoint must not pass unreplayed records
+                    break;
+                }
+                Map.Entry<Long, Segment> next = segments.higherEntry(seq);
+                long skipSeq = next == null ? seq : next.getKey();
+                int skipPos = next == null ? limit : 0;
+                int lost = countRecords(segment.buffer, pos, limit);
+                LOGGER.error("Unreadable record in journal segment {} at {}; skipping {} records to segment {} at {}",
+                             seq, pos, lost, skipSeq, skipPos);
+                advanceTo(skipSeq, skipPos);
+                pending.addAndGet(-lost);
+                rejected.addAndGet(lost);
+                Metrics.recordJournalReplay(0, 0, lost);
+                seq = skipSeq;
+                pos = skipPos;
+                continue;
+            }
+            Map.Entry<Long, Segment> next = segments.higherEntry(seq);
+            if (next == null) {
+                break;
+            }
+            seq = next.getKey();
+            pos = 0;
+        }
+        return batch;
+    }
+
+    /**
+     * Records between two positions going by their length fields alone, for records that
+     * are skipped because they cannot be read; a damaged length ends the count
+     */
+    private static int countRecords(ByteBuffer buffer, int from, int to) {
+        int count = 0;
+        int pos = from;
+        while (pos < to) {
+            count++;
+            int length = buffer.getInt(pos);
+            if (length <= 0 || length > to - pos - RecordSegments.HEADER_BYTES) {
+                break;
+            }
+            pos += RecordSegments.HEADER_BYTES + length;
+        }
+        return count;
+    }
+
+    private void replayLoop() {
+        long backoffMs = 1000;
+        while (running) {
+            long seen = appendCount();
+            long start = System.nanoTime();
+            try {
+                List<Entry> batch = readBatch(batchSize);
+                if (batch.isEmpty()) {
+                    awaitAppend(seen);
+                    continue;
+                }
+                int done = replay(batch);
+                lastError = null;
+                backoffMs = 1000;
+                if (done < batch.size()) {
+                    // A row hit an availability failure part-way through; retry the rest later
+                    throw new SQLException("Database became unavailable during journal replay", "08006");
+                }
+                // Stay under the replay rate so a large backlog does not swamp the database
+                long minNanos = batch.size() * 1_000_000_000L / replayRate;
+                long sleepMs = (minNanos - (System.nanoTime() - start)) / 1_000_000;
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            } catch (SQLException | IOException | RuntimeException e) {
+                lastError = e.getMessage();
+                LOGGER.warn("User journal replay paused for {}ms: {}", backoffMs, e.getMessage());
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMs / 2, backoffMs + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMs = Math.min(RETRY_MAX_MS, backoffMs * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private synchronized long appendCount() {
+        return appendCount;
+    }
+
+    private synchronized void awaitAppend(long seen) {
+        try {
+            if (appendCount == seen) {
+                wait(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    /**
+     * Insert a batch in one transaction. If that fails for a reason other than availability
+     * (e.g. a value the table rejects), insert row by row and skip the rows that fail, so one
+     * bad record cannot block the journal.
+     * @return the number of records replayed and checkpointed
+     */
+    private int replay(List<Entry> batch) throws SQLException, IOException {
+        List<User> created;
+        try {
+            created = insert(batch);
+        } catch (SQLException e) {
+            if (SqlErrorClassifier.classify(e).isUnavailable()) {
+                throw e;
+            }
+            LOGGER.warn("Journal batch insert failed (SQLState {}), replaying row by row", e.getSQLState());
+            return replayRowByRow(batch);
+        }
+        completed(batch, batch.size(), created, 0);
+        return batch.size();
+    }
+
+    private int replayRowByRow(List<Entry> batch) throws IOException {
+        List<User> created = new ArrayList<>();
+        int done = 0;
+        int skipped = 0;
+        for (Entry entry : batch) {
+            try {
+                created.addAll(insert(batch.subList(done, done + 1)));
+            } catch (SQLException e) {
+                if (SqlErrorClassifier.classify(e).isUnavailable()) {
+                    break;
+                }
+                // Field values are personal data and are not logged
+                LOGGER.warn("Dropping journaled user the database rejected (SQLState {})", e.getSQLState());
+                skipped++;
+            }
+            done++;
+        }
+        if (done > 0) {
+            completed(batch, done, created, skipped);
+        }
+        return done;
+    }
+
+    /**
+     * Insert the rows, one statement per owning shard when sharded. A failure on a later
+     * shard leaves earlier shards committed; replaying them again finds their emails
+     * present and counts them as duplicates.
+     */
+    private static List<User> insert(List<Entry> rows) throws SQLException {
+        if (DatabaseConnection.getShardCount() == 1) {
+            return insert(0, rows);
+        }
+        List<String> emails = new ArrayList<>(rows.size());
+        for (Entry row : rows) {
+            emails.add(row.user.getEmail());
+        }
+        // Users still on their shard from before a resharding already exist
+        Set<String> onPreviousOwner = DatabaseConnection.findOnPreviousOwners(emails);
+        Map<Integer, List<Entry>> byShard = new TreeMap<>();
+        for (Entry row : rows) {
+            if (!onPreviousOwner.contains(row.user.getEmail())) {
+                byShard.computeIfAbsent(DatabaseConnection.shardOf(row.user.getEmail()),
+                                        k -> new ArrayList<>()).add(row);
+            }
+        }
+        List<User> created = new ArrayList<>(rows.size());
+        for (Map.Entry<Integer, List<Entry>> group : byShard.entrySet()) {
+            created.addAll(insert(group.getKey(), group.getValue()));
+        }
+        return created;
+    }
+
+    private static List<User> insert(int shard, List<Entry> rows) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO users (name, email) VALUES ");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(" ON CONFLICT (email) DO NOTHING RETURNING id, name, email, created_at");
+        List<User> created = new ArrayList<>(rows.size());
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (Entry row : rows) {
+                stmt.setString(index++, row.user.getName());
+                stmt.setString(index++, row.user.getEmail());
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    created.add(PostgresUserRepository.mapUser(rs));
+                }
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Advance and persist the replay position past the first count records of the batch,
+     * then delete segments that are fully replayed
+     */
+    private void completed(List<Entry> batch, int count, List<User> created, int skipped) throws IOException {
+        Entry last = batch.get(count - 1);
+        advanceTo(last.seq, last.end);
+
+        int dup = count - created.size() - skipped;
+        pending.addAndGet(-count);
+        replayed.addAndGet(created.size());
+        duplicates.addAndGet(dup);
+        rejected.addAndGet(skipped);
+        Metrics.recordJournalReplay(created.size(), dup, skipped);
+        if (!created.isEmpty()) {
+            LOGGER.debug("Replayed {} journaled users ({} already present)", created.size(), dup);
+            onReplayed.accept(created);
+        }
+    }
+
+    /**
+     * Move and persist the replay position, then delete segments before it
+     */
+    private void advanceTo(long seq, int pos) throws IOException {
+        readSeq = seq;
+        readPos = pos;
+        writeCheckpoint(seq, pos);
+
+        Map.Entry<Long, Segment> oldest;
+        while ((oldest = segments.firstEntry()) != null && oldest.getKey() < readSeq) {
+            segments.remove(oldest.getKey());
+            Files.deleteIfExists(oldest.getValue().path);
+        }
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return new long[] {0, 0};
+        }
+        String[] parts = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim().split(" ");
+        try {
+            return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt journal checkpoint in " + file, e);
+        }
+    }
+
+    /**
+     * Replace the checkpoint atomically, so a crash leaves either the old or the new position
+     */
+    private void writeCheckpoint(long seq, int pos) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap((seq + " " + pos + "\n").getBytes(StandardCharsets.US_ASCII)));
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Journal state as a JSON object
+     */
+    public String getStatsJson() {
+        String error = lastError;
+        return String.format("{\"enabled\":true,\"mode\":\"%s\",\"pending\":%d,\"appended\":%d,\"replayed\":%d,"
+                + "\"duplicates\":%d,\"rejected\":%d,\"segments\":%d,\"lastError\":%s}",
+            mode.name().toLowerCase(), pending.get(), appended.get(), replayed.get(), duplicates.get(),
+            rejected.get(), segments.size(),
+            error == null ? "null" : "\"" + error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+    }
+
+    /**
+     * State of the open journal, or a disabled marker
+     */
+    public static String getActiveStatsJson() {
+        UserWriteJournal journal = active;
+        return journal == null ? "{\"enabled\":false}" : journal.getStatsJson();
+    }
+
+    /**
+     * Stop replaying and release the directory; unreplayed records are kept for the next start
+     */
+    public void close() {
+        running = false;
+        Thread t = replayer;
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (writeSegment != null && fsync) {
+                writeSegment.buffer.force();
+            }
+            try {
+                if (lock != null) {
+                    lock.release();
+                    lockChannel.close();
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Error releasing journal lock", e);
+            }
+            lock = null;
+        }
+        Metrics.adjustJournalPending(-pending.get());
+        if (active == this) {
+            active = null;
+        }
+    }
+}
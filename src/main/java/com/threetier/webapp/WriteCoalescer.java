@@ -0,0 +1,240 @@
+package com.threetier.webapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group-commit coalescer for single-user inserts.
+ *
+ * Request threads enqueue their user and block on a future. A single writer thread waits
+ * for the first pending insert, keeps collecting for up to the coalescing window or until
+ * the batch is full, and then writes the whole group as one multi-row
+ * {@code INSERT ... ON CONFLICT (email) DO NOTHING RETURNING} in one transaction. Each
+ * caller gets back its own generated id and created_at, or a duplicate-key SQLException
+ * when its email already existed, exactly as if it had inserted alone. When users are
+ * sharded, a group is split by owning shard and written as one transaction per shard.
+ */
+public class WriteCoalescer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    private final BlockingQueue<PendingInsert> queue;
+    private final int maxBatchSize;
+    private final long windowMicros;
+    private final long callerTimeoutMs;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private static final class PendingInsert {
+        final User user;
+        final CompletableFuture<User> result = new CompletableFuture<>();
+
+        PendingInsert(User user) {
+            this.user = user;
+        }
+    }
+
+    public WriteCoalescer(int maxBatchSize, long windowMicros, int queueCapacity, long callerTimeoutMs) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.windowMicros = Math.max(0, windowMicros);
+        this.callerTimeoutMs = callerTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.maxBatchSize, queueCapacity));
+        this.writer = new Thread(this::run, "user-write-coalescer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        LOGGER.info("Write coalescer started: maxBatch={} windowMicros={}", this.maxBatchSize, this.windowMicros);
+    }
+
+    /**
+     * Create a coalescer from USERS_WRITE_COALESCING_* environment variables, or return
+     * null when coalescing is disabled
+     */
+    public static WriteCoalescer fromEnvironment() {
+        if (!EnvConfig.getBoolean("USERS_WRITE_COALESCING_ENABLED", false)) {
+            return null;
+        }
+        return new WriteCoalescer(
+            EnvConfig.getInt("USERS_WRITE_COALESCING_MAX_BATCH", 100),
+            EnvConfig.getLong("USERS_WRITE_COALESCING_WINDOW_MICROS", 2000),
+            EnvConfig.getInt("USERS_WRITE_COALESCING_QUEUE_CAPACITY", 10_000),
+            EnvConfig.getLong("USERS_WRITE_COALESCING_TIMEOUT_MS", 10_000));
+    }
+
+    /**
+     * Insert a user as part of the next group commit and wait for its outcome
+     * @return the created user with id and createdAt populated
+     * @throws SQLException on conflict (SQLState 23505) or database failure
+     */
+    public User insert(User user) throws SQLException {
+        PendingInsert pending = new PendingInsert(user);
+        if (!running || !queue.offer(pending)) {
+            throw new SQLException("Write queue is full, please retry", "53400");
+        }
+        try {
+            return pending.result.get(callerTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException("Coalesced insert failed", cause);
+        } catch (TimeoutException e) {
+            // The insert may still be committed later; the caller sees a failure as on a dropped connection
+            throw new SQLException("Timed out waiting for coalesced insert", "08006", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for coalesced insert", "08006", e);
+        }
+    }
+
+    private void run() {
+        List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                PendingInsert first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingInsert next = remaining > 0
+                        ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                        : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // Rows already taken from the queue are not drained by shutdown()
+                failAll(batch, new SQLException("Write coalescer is shutting down", "57P01"));
+                break;
+            } catch (RuntimeException e) {
+                LOGGER.error("Unexpected error in write coalescer", e);
+                failAll(batch, new SQLException("Coalesced insert failed: " + e.getMessage(), e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write one group, per shard when sharded, and complete every caller's future
+     */
+    private void writeBatch(List<PendingInsert> batch) {
+        if (DatabaseConnection.getShardCount() == 1) {
+            writeShard(0, batch);
+            return;
+        }
+        List<String> emails = new ArrayList<>(batch.size());
+        for (PendingInsert pending : batch) {
+            emails.add(pending.user.getEmail());
+        }
+        Set<String> onPreviousOwner;
+        try {
+            onPreviousOwner = DatabaseConnection.findOnPreviousOwners(emails);
+        } catch (SQLException e) {
+            LOGGER.warn("Coalesced insert of {} users failed", batch.size(), e);
+            failAll(batch, e);
+            return;
+        }
+        Map<Integer, List<PendingInsert>> byShard = new TreeMap<>();
+        for (PendingInsert pending : batch) {
+            if (onPreviousOwner.contains(pending.user.getEmail())) {
+                // Not moved to its new shard yet, but it exists
+                pending.result.completeExceptionally(UserRepository.duplicateEmail());
+            } else {
+                byShard.computeIfAbsent(DatabaseConnection.shardOf(pending.user.getEmail()),
+                                        k -> new ArrayList<>()).add(pending);
+            }
+        }
+        for (Map.Entry<Integer, List<PendingInsert>> group : byShard.entrySet()) {
+            writeShard(group.getKey(), group.getValue());
+        }
+    }
+
+    /**
+     * Write the users of one shard in a single transaction
+     */
+    private void writeShard(int shard, List<PendingInsert> batch) {
+        StringBuilder sql = new StringBuilder("INSERT INTO users (name, email) VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        sql.append(" ON CONFLICT (email) DO NOTHING RETURNING id, email, created_at");
+
+        Map<String, User> created = new HashMap<>();
+        try (Connection conn = DatabaseConnection.getConnection(shard)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (PendingInsert pending : batch) {
+                    stmt.setString(index++, pending.user.getName());
+                    stmt.setString(index++, pending.user.getEmail());
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String email = rs.getString("email");
+                        created.put(email, new User(rs.getInt("id"), null, email, rs.getString("created_at")));
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Coalesced insert of {} users failed", batch.size(), e);
+            failAll(batch, e);
+            return;
+        }
+
+        for (PendingInsert pending : batch) {
+            // Only the first request for an email in the group may claim the inserted row
+            User row = created.remove(pending.user.getEmail());
+            if (row != null) {
+                row.setName(pending.user.getName());
+                pending.result.complete(row);
+            } else {
+                pending.result.completeExceptionally(UserRepository.duplicateEmail());
+            }
+        }
+        LOGGER.debug("Group commit wrote {} inserts", batch.size());
+    }
+
+    private void failAll(List<PendingInsert> batch, SQLException e) {
+        for (PendingInsert pending : batch) {
+            pending.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop the writer thread; pending callers fail
+     */
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+        List<PendingInsert> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        failAll(remaining, new SQLException("Write coalescer is shutting down", "57P01"));
+    }
+}
@@ -0,0 +1,5 @@
+INSERT INTO users (name, email) VALUES
+    ('John Doe', 'john.doe@example.com'),
+    ('Jane Smith', 'jane.smith@example.com'),
+    ('Bob Johnson', 'bob.johnson@example.com')
+ON CONFLICT (email) DO NOTHING;
@@ -0,0 +1,11 @@
+-- Notify users change stream listeners (UserChangeFeed.CHANNEL) once per inserting statement
+CREATE OR REPLACE FUNCTION notify_users_changed() RETURNS trigger AS $$
+BEGIN
+    PERFORM pg_notify('users_changed', '');
+    RETURN NULL;
+END
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS users_changed_notify ON users;
+CREATE TRIGGER users_changed_notify AFTER INSERT ON users
+    FOR EACH STATEMENT EXECUTE PROCEDURE notify_users_changed();
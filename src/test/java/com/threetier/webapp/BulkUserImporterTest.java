@@ -0,0 +1,106 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BulkUserImporterTest {
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        ShardedDatabase.start();
+    }
+
+    @Test
+    void csvFieldsMayBeQuoted() {
+        assertEquals(Arrays.asList("Ada", "ada@example.com"), BulkUserImporter.parseCsvLine("Ada,ada@example.com"));
+        assertEquals(Arrays.asList("Lovelace, Ada", "ada@example.com"),
+                     BulkUserImporter.parseCsvLine("\"Lovelace, Ada\",ada@example.com"));
+        assertEquals(Arrays.asList("Ada \"The Countess\"", "ada@example.com"),
+                     BulkUserImporter.parseCsvLine("\"Ada \"\"The Countess\"\"\",ada@example.com"));
+        assertEquals(Arrays.asList("", ""), BulkUserImporter.parseCsvLine(","));
+        assertEquals(Collections.singletonList("Ada"), BulkUserImporter.parseCsvLine("Ada"));
+        assertEquals(Arrays.asList("a", "b", "c"), BulkUserImporter.parseCsvLine("a,b,c"));
+    }
+
+    @Test
+    void unterminatedQuoteIsRejected() {
+        assertNull(BulkUserImporter.parseCsvLine("\"Ada,ada@example.com"));
+    }
+
+    private static void assertError(BulkUserImporter.RowError error, int row, String email, String message) {
+        assertEquals(row, error.getRow());
+        assertEquals(email, error.getEmail());
+        assertEquals(message, error.getMessage());
+    }
+
+    private static void importsCsvReportingEachRow(BulkUserImporter.Method method, String domain) throws Exception {
+        ShardedDatabase.update(DatabaseConnection.shardOf("taken@" + domain),
+                               "INSERT INTO users (name, email) VALUES ('Taken', 'taken@" + domain + "')");
+        String longName = String.join("", Collections.nCopies(User.MAX_FIELD_LENGTH + 1, "x"));
+        String csv = "name,email\n"
+                     + "Ada,ada@" + domain + "\n"
+                     + "\n"
+                     + "\"Hopper, Grace\",grace@" + domain + "\n"
+                     + "No Email,not-an-email\n"
+                     + "\"Unterminated,bad@" + domain + "\n"
+                     + "Taken,taken@" + domain + "\n"
+                     + "Ada Again,ada@" + domain + "\n"
+                     + longName + ",long@" + domain + "\n";
+
+        BulkUserImporter.Result result = new BulkUserImporter(2, method).importCsv(new StringReader(csv));
+
+        assertEquals(7, result.getReceived());
+        assertEquals(2, result.getInserted());
+        assertEquals(3, result.getInvalid());
+        assertEquals(2, result.getConflicts());
+        List<BulkUserImporter.RowError> errors = result.getErrors();
+        errors.sort((a, b) -> Integer.compare(a.getRow(), b.getRow()));
+        assertEquals(5, errors.size());
+        assertError(errors.get(0), 3, "not-an-email", "Invalid name or email format");
+        assertError(errors.get(1), 4, null, "Expected 2 CSV fields: name,email");
+        assertError(errors.get(2), 5, "taken@" + domain, "User with this email already exists");
+        assertError(errors.get(3), 6, "ada@" + domain, "User with this email already exists");
+        assertError(errors.get(4), 7, "long@" + domain,
+                    "Name and email must be at most " + User.MAX_FIELD_LENGTH + " characters");
+
+        assertEquals(Arrays.asList("ada@" + domain, "grace@" + domain, "taken@" + domain),
+                     Arrays.asList(ShardedDatabase.locate("@" + domain).keySet().toArray()));
+        assertEquals(Collections.singletonList("Ada"),
+                     ShardedDatabase.column(DatabaseConnection.shardOf("ada@" + domain),
+                                            "SELECT name FROM users WHERE email = 'ada@" + domain + "'"));
+    }
+
+    @Test
+    void batchImportReportsEachRow() throws Exception {
+        importsCsvReportingEachRow(BulkUserImporter.Method.BATCH, "bulk-batch.test");
+    }
+
+    @Test
+    void copyImportReportsEachRow() throws Exception {
+        importsCsvReportingEachRow(BulkUserImporter.Method.COPY, "bulk-copy.test");
+    }
+
+    @Test
+    void jsonRowsThatAreNotObjectsAreRejected() throws Exception {
+        String json = "[{\"name\":\"Ada\",\"email\":\"ada@bulk-json.test\"}, 42, "
+                      + "{\"name\":\"Grace\",\"email\":\"grace@bulk-json.test\",\"extra\":[1,2]}, {\"name\":\"Nobody\"}]";
+
+        BulkUserImporter.Result result =
+            new BulkUserImporter(100, BulkUserImporter.Method.BATCH).importJson(new StringReader(json));
+
+        assertEquals(4, result.getReceived());
+        assertEquals(2, result.getInserted());
+        assertEquals(2, result.getInvalid());
+        assertError(result.getErrors().get(0), 2, null, "Row is not a JSON object");
+        assertError(result.getErrors().get(1), 4, null, "Invalid name or email format");
+        assertEquals(2, ShardedDatabase.locate("@bulk-json.test").size());
+    }
+}
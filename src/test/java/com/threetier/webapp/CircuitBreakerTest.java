@@ -0,0 +1,84 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private static final SQLException LOST = new SQLException("connection lost", "08006");
+
+    @Test
+    void opensAfterConsecutiveFailuresOnly() {
+        CircuitBreaker breaker = new CircuitBreaker("test", true, 3, 60_000, 60_000);
+        breaker.onFailure(LOST);
+        breaker.onFailure(LOST);
+        // A success in between starts the count again
+        breaker.onSuccess();
+        breaker.onFailure(LOST);
+        breaker.onFailure(LOST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(LOST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        CircuitBreaker.OpenException e = assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+        assertTrue(e.getRetryAfterMs() > 0);
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    void halfOpenLetsOneTrialThroughAndClosesOnSuccess() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", true, 1, 20, 1000);
+        breaker.onFailure(LOST);
+        Thread.sleep(40);
+
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertDoesNotThrow(breaker::acquire);
+    }
+
+    @Test
+    void failedTrialReopensForLonger() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", true, 1, 50, 10_000);
+        breaker.onFailure(LOST);
+        Thread.sleep(70);
+        breaker.acquire();
+
+        breaker.onFailure(LOST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        CircuitBreaker.OpenException e = assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+        assertTrue(e.getRetryAfterMs() > 50, "open period should double: " + e.getRetryAfterMs());
+    }
+
+    @Test
+    void inconclusiveTrialHandsTheSlotOn() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("test", true, 1, 20, 1000);
+        breaker.onFailure(LOST);
+        Thread.sleep(40);
+        breaker.acquire();
+
+        // E.g. the trial found no free pooled connection
+        breaker.onInconclusive();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertDoesNotThrow(breaker::acquire);
+    }
+
+    @Test
+    void disabledBreakerNeverOpens() {
+        CircuitBreaker breaker = new CircuitBreaker("test", false, 1, 60_000, 60_000);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(LOST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertDoesNotThrow(breaker::acquire);
+    }
+}
@@ -0,0 +1,119 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+
+    private ConnectionPool pool;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        ShardedDatabase.start();
+    }
+
+    @AfterEach
+    void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private ConnectionPool open(int maxSize, long acquireTimeoutMs) {
+        ConnectionPool.Settings settings = new ConnectionPool.Settings();
+        settings.minSize = 0;
+        settings.maxSize = maxSize;
+        settings.acquireTimeoutMs = acquireTimeoutMs;
+        pool = new ConnectionPool("test", "jdbc:postgresql://localhost:" + System.getProperty("DB_PORT") + "/postgres",
+                                  "postgres", "postgres", settings);
+        return pool;
+    }
+
+    private static int backendPid(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void exhaustedPoolTimesOutAsPoolExhaustion() throws Exception {
+        open(1, 200);
+        try (Connection held = pool.getConnection()) {
+            assertNull(pool.tryGetConnection());
+            long start = System.nanoTime();
+            SQLException e = assertThrows(SQLException.class, pool::getConnection);
+            long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(waitedMs >= 150, "waited " + waitedMs + "ms");
+            assertEquals(SqlErrorClassifier.Kind.POOL_EXHAUSTED, SqlErrorClassifier.classify(e));
+            assertTrue(pool.getStatsJson().contains("\"timeouts\":1"), pool.getStatsJson());
+        }
+        // Freed again
+        try (Connection conn = pool.tryGetConnection()) {
+            assertNotNull(conn);
+        }
+    }
+
+    @Test
+    void waiterReceivesTheReleasedConnection() throws Exception {
+        open(1, 5000);
+        Connection held = pool.getConnection();
+        int pid = backendPid(held);
+        CompletableFuture<Integer> waiter = CompletableFuture.supplyAsync(() -> {
+            try (Connection conn = pool.getConnection()) {
+                return backendPid(conn);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getWaiters() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, pool.getWaiters());
+
+        held.close();
+        assertEquals(pid, (int) waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void releasedConnectionIsCleanForTheNextBorrower() throws Exception {
+        open(1, 1000);
+        Connection first = pool.getConnection();
+        first.setAutoCommit(false);
+        try (Statement stmt = first.createStatement()) {
+            stmt.execute("CREATE TEMP TABLE pool_test_rollback (id INT)");
+        }
+        first.setNetworkTimeout(Runnable::run, 1234);
+        first.close();
+        SQLException reused = assertThrows(SQLException.class, first::createStatement);
+        assertEquals("08003", reused.getSQLState());
+
+        try (Connection second = pool.getConnection()) {
+            assertTrue(second.getAutoCommit());
+            assertEquals(0, second.getNetworkTimeout());
+            // The open transaction was rolled back, so its table is gone
+            try (Statement stmt = second.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT to_regclass('pool_test_rollback') IS NULL")) {
+                rs.next();
+                assertTrue(rs.getBoolean(1));
+            }
+        }
+        assertEquals(1, pool.getIdle());
+    }
+}
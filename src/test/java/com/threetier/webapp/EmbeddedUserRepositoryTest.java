@@ -0,0 +1,191 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddedUserRepositoryTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    private static EmbeddedUserRepository open(Path directory) throws IOException {
+        EmbeddedUserRepository repository =
+            new EmbeddedUserRepository(directory, SEGMENT_BYTES, 64L * SEGMENT_BYTES, false, 8);
+        repository.open();
+        return repository;
+    }
+
+    interface StoreTest {
+        void run(EmbeddedUserRepository repository) throws Exception;
+    }
+
+    private static void withStore(Path directory, StoreTest test) throws Exception {
+        EmbeddedUserRepository repository = open(directory);
+        try {
+            test.run(repository);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private static User user(int i) {
+        return new User("User " + i, "user" + i + "@embedded.test");
+    }
+
+    private static int segmentCount(Path directory) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "users-*.store")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void insertsAreFoundByIdAndEmail(@TempDir Path directory) throws Exception {
+        withStore(directory, repository -> {
+            User created = repository.insert(user(1));
+            assertEquals(1, created.getId());
+            assertEquals("user1@embedded.test", repository.findById(1, false).getEmail());
+            assertEquals(1, repository.findByEmail("user1@embedded.test", false).getId());
+            assertNull(repository.findByEmail("nobody@embedded.test", false));
+            assertNull(repository.findById(2, false));
+
+            SQLException duplicate = assertThrows(SQLException.class, () -> repository.insert(user(1)));
+            assertEquals("23505", duplicate.getSQLState());
+            String longName = String.join("", Collections.nCopies(User.MAX_FIELD_LENGTH + 1, "x"));
+            SQLException tooLong = assertThrows(SQLException.class,
+                () -> repository.insert(new User(longName, "long@embedded.test")));
+            assertEquals("22001", tooLong.getSQLState());
+            assertEquals(1, repository.count());
+        });
+    }
+
+    @Test
+    void usersSurviveAReopenAcrossSegments(@TempDir Path directory) throws Exception {
+        withStore(directory, repository -> {
+            for (int i = 0; i < 3000; i++) {
+                repository.insert(user(i));
+            }
+        });
+        assertTrue(segmentCount(directory) > 2, "users should span several segments");
+
+        withStore(directory, repository -> {
+            assertEquals(3000, repository.count());
+            assertEquals(2000, repository.findByEmail("user1999@embedded.test", false).getId());
+            // Ids continue after the recovered ones
+            assertEquals(3001, repository.insert(user(3000)).getId());
+
+            List<User> page = new ArrayList<>();
+            assertTrue(repository.readPage(2990, 5, page, false));
+            assertEquals(2991, page.get(0).getId());
+            assertFalse(repository.readPage(2995, 10, page, false));
+            assertEquals(6, page.size());
+
+            List<Integer> scanned = new ArrayList<>();
+            repository.scan(false, u -> scanned.add(u.getId()));
+            assertEquals(3001, scanned.size());
+            assertEquals(3001, (int) scanned.get(scanned.size() - 1));
+        });
+    }
+
+    @Test
+    void tornLastRecordIsDroppedOnOpen(@TempDir Path directory) throws Exception {
+        withStore(directory, repository -> {
+            for (int i = 1; i <= 3; i++) {
+                repository.insert(user(i));
+            }
+        });
+        // Damage a byte of the third record's name, as a write cut short by a crash would
+        int offset = 0;
+        for (int i = 1; i <= 2; i++) {
+            offset += RecordSegments.HEADER_BYTES + 16 + user(i).getName().getBytes(StandardCharsets.UTF_8).length
+                      + user(i).getEmail().getBytes(StandardCharsets.UTF_8).length;
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve("users-0000000000.store"),
+                                                    StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), offset + RecordSegments.HEADER_BYTES + 17);
+        }
+
+        withStore(directory, repository -> {
+            assertEquals(2, repository.count());
+            assertNull(repository.findByEmail("user3@embedded.test", false));
+            // The email is free again and the store appends after the last complete record
+            assertEquals(3, repository.insert(user(3)).getId());
+        });
+        withStore(directory, repository -> {
+            assertEquals(3, repository.count());
+            assertEquals(3, repository.findByEmail("user3@embedded.test", false).getId());
+        });
+    }
+
+    @Test
+    void directoryIsLockedByTheOpenStore(@TempDir Path directory) throws Exception {
+        withStore(directory, repository -> {
+            repository.insert(user(1));
+            assertThrows(IOException.class, () -> open(directory));
+        });
+        withStore(directory, repository -> {
+            assertEquals(1, repository.count());
+        });
+    }
+
+    @Test
+    void concurrentInsertsOfOneEmailCreateOneUser(@TempDir Path directory) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            withStore(directory, repository -> {
+                for (int round = 0; round < 50; round++) {
+                    User candidate = user(round);
+                    CountDownLatch start = new CountDownLatch(1);
+                    List<Future<Boolean>> results = new ArrayList<>();
+                    for (int t = 0; t < 8; t++) {
+                        results.add(pool.submit(() -> {
+                            start.await();
+                            try {
+                                repository.insert(new User(candidate.getName(), candidate.getEmail()));
+                                return true;
+                            } catch (SQLException e) {
+                                assertEquals("23505", e.getSQLState());
+                                return false;
+                            }
+                        }));
+                    }
+                    start.countDown();
+                    int inserted = 0;
+                    for (Future<Boolean> result : results) {
+                        inserted += result.get(10, TimeUnit.SECONDS) ? 1 : 0;
+                    }
+                    assertEquals(1, inserted, candidate.getEmail());
+                }
+                assertEquals(50, repository.count());
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageCursorTest {
+
+    @Test
+    void cursorsRoundTripAndAreUrlSafe() {
+        for (int id : new int[] {0, 1, 42, 1_000_000, Integer.MAX_VALUE}) {
+            String cursor = PageCursor.encode(id);
+            assertTrue(cursor.matches("[A-Za-z0-9_-]+"), cursor);
+            assertEquals(id, PageCursor.decode(cursor));
+        }
+    }
+
+    @Test
+    void malformedCursorsAreRejected() {
+        String wrongPrefix = Base64.getUrlEncoder().encodeToString("offset:5".getBytes(StandardCharsets.UTF_8));
+        String notANumber = Base64.getUrlEncoder().encodeToString("id:five".getBytes(StandardCharsets.UTF_8));
+        for (String cursor : new String[] {"", "not base64!", wrongPrefix, notANumber, "42"}) {
+            assertThrows(IllegalArgumentException.class, () -> PageCursor.decode(cursor), cursor);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardRebalancerTest {
+
+    private static ShardRouter router;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        router = ShardedDatabase.start();
+    }
+
+    /**
+     * Store users where the previous layout put them, with ids no sequence hands out
+     * @return how many are not on their current owner
+     */
+    private static int seedPreviousLayout(String domain, int firstId, int count) throws Exception {
+        int misplaced = 0;
+        for (int i = 0; i < count; i++) {
+            String email = "user" + i + "@" + domain;
+            int previous = router.getPreviousRing().ownerOf(email);
+            ShardedDatabase.update(previous, "INSERT INTO users (id, name, email) VALUES (" + (firstId + i) +
+                                             ", 'User " + i + "', '" + email + "')");
+            if (previous != router.ownerOf(email)) {
+                misplaced++;
+            }
+        }
+        return misplaced;
+    }
+
+    private static int idOn(int shard, String email) throws Exception {
+        return Integer.parseInt(ShardedDatabase.column(shard, "SELECT id FROM users WHERE email = '" + email + "'").get(0));
+    }
+
+    @Test
+    void everyUserEndsUpOnExactlyItsOwner() throws Exception {
+        int misplaced = seedPreviousLayout("rebalance.test", 1_000_000, 200);
+        assertTrue(misplaced > 0, "the new shard should take over some users");
+
+        new ShardRebalancer(router, false, 16, 0).run();
+
+        Map<String, List<Integer>> located = ShardedDatabase.locate("@rebalance.test");
+        assertEquals(200, located.size());
+        for (Map.Entry<String, List<Integer>> entry : located.entrySet()) {
+            String email = entry.getKey();
+            int owner = router.ownerOf(email);
+            assertEquals(List.of(owner), entry.getValue(), email);
+            // Moved rows keep their ids
+            int i = Integer.parseInt(email.substring("user".length(), email.indexOf('@')));
+            assertEquals(1_000_000 + i, idOn(owner, email));
+        }
+
+        // A repeated run finds nothing to move
+        new ShardRebalancer(router, false, 16, 0).run();
+        assertEquals(located, ShardedDatabase.locate("@rebalance.test"));
+    }
+
+    @Test
+    void dryRunMovesNothing() throws Exception {
+        assertTrue(seedPreviousLayout("dry-run.test", 2_000_000, 100) > 0);
+        Map<String, List<Integer>> before = ShardedDatabase.locate("@dry-run.test");
+
+        new ShardRebalancer(router, true, 16, 0).run();
+
+        assertEquals(before, ShardedDatabase.locate("@dry-run.test"));
+        for (Map.Entry<String, List<Integer>> entry : before.entrySet()) {
+            assertEquals(1, entry.getValue().size(), entry.getKey());
+        }
+    }
+
+    @Test
+    void emailTakenByAnotherUserOnTheOwnerIsLeftInPlace() throws Exception {
+        String email = null;
+        for (int i = 0; email == null; i++) {
+            String candidate = "user" + i + "@collision.test";
+            if (router.getPreviousRing().ownerOf(candidate) != router.ownerOf(candidate)) {
+                email = candidate;
+            }
+        }
+        int previous = router.getPreviousRing().ownerOf(email);
+        int owner = router.ownerOf(email);
+        ShardedDatabase.update(previous, "INSERT INTO users (id, name, email) VALUES (3000000, 'Old', '" + email + "')");
+        ShardedDatabase.update(owner, "INSERT INTO users (id, name, email) VALUES (3000001, 'New', '" + email + "')");
+        // Copied by an interrupted run: deleted from the source without another insert
+        String copied = "copied@collision.test";
+        for (int i = 0; router.getPreviousRing().ownerOf(copied) == router.ownerOf(copied); i++) {
+            copied = "copied" + i + "@collision.test";
+        }
+        ShardedDatabase.update(router.getPreviousRing().ownerOf(copied),
+                               "INSERT INTO users (id, name, email) VALUES (3000002, 'Copied', '" + copied + "')");
+        ShardedDatabase.update(router.ownerOf(copied),
+                               "INSERT INTO users (id, name, email) VALUES (3000002, 'Copied', '" + copied + "')");
+
+        ShardRebalancer rebalancer = new ShardRebalancer(router, false, 16, 0);
+        rebalancer.run();
+
+        assertEquals(1, rebalancer.getCollisions());
+        assertEquals(3000000, idOn(previous, email));
+        assertEquals(3000001, idOn(owner, email));
+        assertEquals(List.of(router.ownerOf(copied)), ShardedDatabase.locate(copied).get(copied));
+        assertEquals(3000002, idOn(router.ownerOf(copied), copied));
+    }
+}
@@ -0,0 +1,90 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardRingTest {
+
+    private static final List<String> THREE = Arrays.asList("db-a:5432/appdb", "db-b:5432/appdb", "db-c:5432/appdb");
+    private static final List<String> FOUR =
+        Arrays.asList("db-a:5432/appdb", "db-b:5432/appdb", "db-c:5432/appdb", "db-d:5432/appdb");
+
+    private static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    @Test
+    void ownersDependOnlyOnShardNames() {
+        ShardRing first = new ShardRing(THREE, 128);
+        ShardRing second = new ShardRing(THREE, 128);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(first.ownerOf(email(i)), second.ownerOf(email(i)));
+        }
+    }
+
+    @Test
+    void keysSpreadOverEveryShard() {
+        ShardRing ring = new ShardRing(THREE, 128);
+        double[] shares = ring.shares();
+        assertEquals(1.0, Arrays.stream(shares).sum(), 1e-9);
+
+        int[] keys = new int[THREE.size()];
+        for (int i = 0; i < 30_000; i++) {
+            keys[ring.ownerOf(email(i))]++;
+        }
+        for (int shard = 0; shard < THREE.size(); shard++) {
+            assertTrue(shares[shard] > 0.2 && shares[shard] < 0.47, "share of shard " + shard + ": " + shares[shard]);
+            // Sampled keys land in proportion to the owned arcs
+            assertEquals(shares[shard], keys[shard] / 30_000.0, 0.02);
+        }
+    }
+
+    @Test
+    void addingAShardOnlyMovesKeysToIt() {
+        ShardRing before = new ShardRing(THREE, 128);
+        ShardRing after = new ShardRing(FOUR, 128);
+        int moved = 0;
+        for (int i = 0; i < 20_000; i++) {
+            int owner = after.ownerOf(email(i));
+            if (owner != before.ownerOf(email(i))) {
+                assertEquals(3, owner, "a moved key must go to the new shard");
+                moved++;
+            }
+        }
+        assertEquals(after.shares()[3], moved / 20_000.0, 0.02);
+
+        List<String> moves = ShardRing.describeMoves(before, after);
+        assertEquals(THREE.size(), moves.size());
+        for (String move : moves) {
+            assertTrue(move.contains(" -> db-d:5432/appdb: "), move);
+        }
+    }
+
+    @Test
+    void identicalRingsDescribeNoMoves() {
+        assertTrue(ShardRing.describeMoves(new ShardRing(THREE, 16), new ShardRing(THREE, 16)).isEmpty());
+        assertFalse(ShardRing.describeMoves(new ShardRing(THREE, 16), new ShardRing(FOUR, 16)).isEmpty());
+    }
+
+    @Test
+    void singleShardOwnsEveryKey() {
+        ShardRing ring = new ShardRing(Collections.singletonList("db-a:5432/appdb"), 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, ring.ownerOf(email(i)));
+        }
+        assertEquals(1.0, ring.shares()[0], 1e-9);
+    }
+
+    @Test
+    void emptyRingIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardRing(Collections.emptyList(), 128));
+    }
+}
@@ -0,0 +1,118 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardRouterTest {
+
+    private static ShardRouter router;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        router = ShardedDatabase.start();
+    }
+
+    @Test
+    void parseAppliesDefaultsAndSkipsDuplicates() {
+        Map<String, String> urls = new LinkedHashMap<>();
+        List<String> names = ShardRouter.parse(" db-a, db-b:6543/other ,, db-a:5432 ", "5432", "appdb", urls);
+        assertEquals(Arrays.asList("db-a:5432/appdb", "db-b:6543/other"), names);
+        assertEquals("jdbc:postgresql://db-a:5432/appdb", urls.get("db-a:5432/appdb"));
+        assertEquals("jdbc:postgresql://db-b:6543/other", urls.get("db-b:6543/other"));
+    }
+
+    @Test
+    void ownersFollowTheCurrentRing() {
+        assertEquals(ShardedDatabase.SHARDS, router.size());
+        assertTrue(router.isResharding());
+        Set<Integer> owners = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            String email = "owner" + i + "@routing.test";
+            int owner = router.ownerOf(email);
+            assertEquals(router.getRing().ownerOf(email), owner);
+            assertEquals(owner, DatabaseConnection.shardOf(email));
+
+            // The previous layout's owner index is the shard index, since current shards come first
+            int previous = router.getPreviousRing().ownerOf(email);
+            assertEquals(previous == owner ? -1 : previous, router.previousOwnerOf(email));
+            owners.add(owner);
+        }
+        assertEquals(ShardedDatabase.SHARDS, owners.size());
+    }
+
+    @Test
+    void insertsAreStoredOnlyOnTheirOwner() throws Exception {
+        PostgresUserRepository repository = PostgresUserRepository.shared();
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < 60; i++) {
+            String email = "insert" + i + "@inserts.test";
+            ids.put(email, repository.insert(new User("Insert " + i, email)).getId());
+        }
+
+        Map<String, List<Integer>> located = ShardedDatabase.locate("@inserts.test");
+        assertEquals(ids.keySet(), located.keySet());
+        Map<Integer, Integer> slotByShard = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : located.entrySet()) {
+            String email = entry.getKey();
+            int owner = router.ownerOf(email);
+            assertEquals(List.of(owner), entry.getValue(), email);
+
+            User found = repository.findByEmail(email, true);
+            assertNotNull(found, email);
+            assertEquals(ids.get(email), found.getId());
+            assertEquals(found.getId(), repository.findById(found.getId(), true).getId());
+
+            // Each shard's sequence hands out ids from its own slot
+            int slot = found.getId() % router.getIdSlots();
+            Integer expected = slotByShard.putIfAbsent(owner, slot);
+            if (expected != null) {
+                assertEquals(expected.intValue(), slot, email);
+            }
+        }
+        assertEquals(ids.size(), new HashSet<>(ids.values()).size());
+        assertEquals(slotByShard.size(), new HashSet<>(slotByShard.values()).size());
+    }
+
+    @Test
+    void duplicateEmailIsRejectedOnItsOwner() throws Exception {
+        PostgresUserRepository repository = PostgresUserRepository.shared();
+        String email = "first@duplicates.test";
+        repository.insert(new User("First", email));
+        SQLException e = assertThrows(SQLException.class, () -> repository.insert(new User("Second", email)));
+        assertEquals(SqlErrorClassifier.Kind.UNIQUE_VIOLATION, SqlErrorClassifier.classify(e));
+        assertEquals(List.of(router.ownerOf(email)), ShardedDatabase.locate(email).get(email));
+    }
+
+    @Test
+    void emailNotYetMovedFromItsPreviousOwnerIsADuplicate() throws Exception {
+        String email = null;
+        for (int i = 0; email == null; i++) {
+            String candidate = "unmoved" + i + "@previous.test";
+            if (router.previousOwnerOf(candidate) >= 0) {
+                email = candidate;
+            }
+        }
+        int previous = router.previousOwnerOf(email);
+        ShardedDatabase.update(previous, "INSERT INTO users (name, email) VALUES ('Unmoved', '" + email + "')");
+
+        String duplicate = email;
+        SQLException e = assertThrows(SQLException.class,
+            () -> PostgresUserRepository.shared().insert(new User("Again", duplicate)));
+        assertEquals(SqlErrorClassifier.Kind.UNIQUE_VIOLATION, SqlErrorClassifier.classify(e));
+        assertEquals(List.of(previous), ShardedDatabase.locate(email).get(email));
+    }
+}
@@ -0,0 +1,116 @@
+package com.threetier.webapp;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Embedded PostgreSQL databases shared by the sharding tests.
+ *
+ * DatabaseConnection reads its settings once per JVM, so every test uses the same layout:
+ * users are sharded over all SHARDS databases (DB_SHARDS) while a resharding from the first
+ * SHARDS - 1 of them (DB_SHARDS_PREVIOUS) is in progress. Current shards are listed first,
+ * so a previous ring's owner index is also the shard index.
+ */
+final class ShardedDatabase {
+    static final int SHARDS = 3;
+
+    private static List<EmbeddedPostgres> databases;
+
+    private ShardedDatabase() {
+    }
+
+    /**
+     * Start the databases and migrate every shard, once per JVM
+     */
+    static synchronized ShardRouter start() throws IOException, InterruptedException {
+        if (databases == null) {
+            List<EmbeddedPostgres> started = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < SHARDS; i++) {
+                EmbeddedPostgres database = EmbeddedPostgres.builder().start();
+                started.add(database);
+                names.add("localhost:" + database.getPort());
+            }
+            System.setProperty("DB_HOST", "localhost");
+            System.setProperty("DB_PORT", String.valueOf(started.get(0).getPort()));
+            System.setProperty("DB_NAME", "postgres");
+            System.setProperty("DB_USER", "postgres");
+            System.setProperty("DB_PASSWORD", "postgres");
+            System.setProperty("DB_SHARDS", String.join(",", names));
+            System.setProperty("DB_SHARDS_PREVIOUS", String.join(",", names.subList(0, SHARDS - 1)));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                DatabaseConnection.shutdown();
+                for (EmbeddedPostgres database : started) {
+                    try {
+                        database.close();
+                    } catch (IOException e) {
+                        // The process is going away anyway
+                    }
+                }
+            }));
+            databases = started;
+            migrate();
+        }
+        return DatabaseConnection.getShardRouter();
+    }
+
+    private static void migrate() throws InterruptedException {
+        SchemaMigrator migrator = new SchemaMigrator(true, 60_000, 5_000, 1_000);
+        migrator.start();
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (!migrator.isReady()) {
+            if (migrator.getState() == SchemaMigrator.State.FAILED || System.currentTimeMillis() > deadline) {
+                migrator.stop();
+                throw new IllegalStateException("Schema migration did not complete: " + migrator.getStatusJson());
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Shards holding each user whose email ends with the suffix, by email
+     */
+    static Map<String, List<Integer>> locate(String emailSuffix) throws SQLException {
+        Map<String, List<Integer>> shards = new TreeMap<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            for (String email : column(shard, "SELECT email FROM users WHERE email LIKE '%" + emailSuffix + "'")) {
+                shards.computeIfAbsent(email, k -> new ArrayList<>()).add(shard);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Run a query on one shard and return its first column
+     */
+    static List<String> column(int shard, String sql) throws SQLException {
+        List<String> values = new ArrayList<>();
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Run an update on one shard
+     */
+    static int update(int shard, String sql) throws SQLException {
+        try (Connection conn = DatabaseConnection.getConnection(shard);
+             Statement stmt = conn.createStatement()) {
+            return stmt.executeUpdate(sql);
+        }
+    }
+}
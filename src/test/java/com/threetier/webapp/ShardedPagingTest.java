@@ -0,0 +1,106 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedPagingTest {
+
+    private static final int PAGE_SIZE = 7;
+
+    private static ShardRouter router;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        router = ShardedDatabase.start();
+        PostgresUserRepository repository = PostgresUserRepository.shared();
+        for (int i = 0; i < 40; i++) {
+            repository.insert(new User("Paging " + i, "paging" + i + "@paging.test"));
+        }
+    }
+
+    private static List<User> users(int... ids) {
+        List<User> users = new ArrayList<>();
+        for (int id : ids) {
+            users.add(new User(id, "User " + id, "user" + id + "@example.com", null));
+        }
+        return users;
+    }
+
+    private static List<Integer> ids(List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    void mergeOrdersByIdAndListsACopiedRowOnce() {
+        List<User> page = new ArrayList<>();
+        boolean more = PostgresUserRepository.mergePages(
+            Arrays.asList(users(1, 4, 7), users(2, 4, 9), users(3)), 0, 10, page);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 7, 9), ids(page));
+        assertFalse(more);
+    }
+
+    @Test
+    void mergeStopsAtTheLimitAndReportsMore() {
+        List<User> page = new ArrayList<>();
+        assertTrue(PostgresUserRepository.mergePages(Arrays.asList(users(5, 8), users(6, 9), users(7)), 4, 3, page));
+        assertEquals(Arrays.asList(5, 6, 7), ids(page));
+
+        // Exactly limit rows left: no further page
+        page.clear();
+        assertFalse(PostgresUserRepository.mergePages(Arrays.asList(users(5), users(6), users(7)), 4, 3, page));
+        assertEquals(Arrays.asList(5, 6, 7), ids(page));
+    }
+
+    @Test
+    void pagesFollowCursorsOverEveryShardInIdOrder() throws Exception {
+        // A user being moved is briefly on two shards; the copy must not be listed twice
+        String email = "paging0@paging.test";
+        int owner = router.ownerOf(email);
+        int other = (owner + 1) % ShardedDatabase.SHARDS;
+        int id = Integer.parseInt(ShardedDatabase.column(owner,
+            "SELECT id FROM users WHERE email = '" + email + "'").get(0));
+        ShardedDatabase.update(other, "INSERT INTO users (id, name, email) VALUES (" + id + ", 'Paging 0', '" + email + "')");
+        try {
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int shard = 0; shard < ShardedDatabase.SHARDS; shard++) {
+                for (String value : ShardedDatabase.column(shard, "SELECT id FROM users")) {
+                    expected.add(Integer.parseInt(value));
+                }
+            }
+
+            List<Integer> listed = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            while (true) {
+                int afterId = cursor == null ? 0 : PageCursor.decode(cursor);
+                List<User> page = new ArrayList<>();
+                boolean more = PostgresUserRepository.shared().readPage(afterId, PAGE_SIZE, page, true);
+                pages++;
+                for (User user : page) {
+                    assertTrue(user.getId() > afterId, "page after " + afterId + " listed id " + user.getId());
+                    listed.add(user.getId());
+                }
+                if (!more) {
+                    break;
+                }
+                assertEquals(PAGE_SIZE, page.size(), "only the last page may be short");
+                cursor = PageCursor.encode(page.get(page.size() - 1).getId());
+            }
+
+            assertEquals(new ArrayList<>(expected), listed);
+            assertEquals((expected.size() + PAGE_SIZE - 1) / PAGE_SIZE, pages);
+        } finally {
+            ShardedDatabase.update(other, "DELETE FROM users WHERE id = " + id);
+        }
+    }
+}
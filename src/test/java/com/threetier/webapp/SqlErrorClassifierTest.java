@@ -0,0 +1,76 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SqlErrorClassifierTest {
+
+    private static SqlErrorClassifier.Kind classify(String sqlState) {
+        return SqlErrorClassifier.classify(new SQLException("failure", sqlState));
+    }
+
+    @Test
+    void exactCodesWinOverTheirClass() {
+        assertEquals(SqlErrorClassifier.Kind.CONNECT_FAILED, classify("08001"));
+        assertEquals(SqlErrorClassifier.Kind.CONNECTION_LOST, classify("08006"));
+        assertEquals(SqlErrorClassifier.Kind.UNIQUE_VIOLATION, classify("23505"));
+        assertEquals(SqlErrorClassifier.Kind.CONSTRAINT_VIOLATION, classify("23503"));
+        assertEquals(SqlErrorClassifier.Kind.UNAVAILABLE, classify("53100"));
+        assertEquals(SqlErrorClassifier.Kind.QUERY_CANCELED, classify("57014"));
+        assertEquals(SqlErrorClassifier.Kind.SERIALIZATION, classify("40P01"));
+        assertEquals(SqlErrorClassifier.Kind.OTHER, classify("XX000"));
+        assertEquals(SqlErrorClassifier.Kind.OTHER, classify(null));
+    }
+
+    @Test
+    void fullConnectionSlotsAreOverloadNotAnOutage() {
+        SqlErrorClassifier.Kind kind = classify("53300");
+        assertEquals(SqlErrorClassifier.Kind.OVERLOADED, kind);
+        assertFalse(kind.isOutage(), "the breaker must not count a server that is up");
+        assertTrue(kind.isUnavailable(), "the client should still retry later");
+    }
+
+    @Test
+    void requestErrorsAreNotUnavailability() {
+        assertFalse(classify("23505").isUnavailable());
+        assertFalse(classify("22001").isUnavailable());
+        assertFalse(classify("57014").isUnavailable());
+        assertTrue(classify("55P03").isUnavailable());
+        assertTrue(classify("08006").isOutage());
+    }
+
+    @Test
+    void causeChainIsWalkedForAState() {
+        SQLException wrapper = new SQLException("Could not reach the database");
+        wrapper.initCause(new SQLException("refused", "08001"));
+        assertEquals(SqlErrorClassifier.Kind.CONNECT_FAILED, SqlErrorClassifier.classify(wrapper));
+        assertEquals(SqlErrorClassifier.Kind.CONNECTION_LOST,
+                     SqlErrorClassifier.classify(new SQLTransientConnectionException("closed")));
+    }
+
+    @Test
+    void socketTimeoutIsACanceledQueryNotALostConnection() {
+        SQLException e = new SQLException("An I/O error occurred while sending to the backend.", "08006",
+                                          new SocketTimeoutException("Read timed out"));
+        SqlErrorClassifier.Kind kind = SqlErrorClassifier.classify(e);
+        assertEquals(SqlErrorClassifier.Kind.QUERY_CANCELED, kind);
+        assertFalse(kind.isOutage());
+    }
+
+    @Test
+    void localFailuresAreRecognizedByType() {
+        assertEquals(SqlErrorClassifier.Kind.CIRCUIT_OPEN,
+                     SqlErrorClassifier.classify(new CircuitBreaker.OpenException("test", 1000)));
+        SqlErrorClassifier.Kind exhausted = SqlErrorClassifier.classify(
+            new ConnectionPool.AcquireTimeoutException("no connection", "08001"));
+        assertEquals(SqlErrorClassifier.Kind.POOL_EXHAUSTED, exhausted);
+        assertFalse(exhausted.isOutage());
+    }
+}
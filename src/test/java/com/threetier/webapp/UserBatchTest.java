@@ -0,0 +1,143 @@
+package com.threetier.webapp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserBatchTest {
+
+    private static final Gson GSON = new Gson();
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        ShardedDatabase.start();
+    }
+
+    /**
+     * Emails in the domain that are all owned by one shard and not by a previous one
+     */
+    private static List<String> emailsOnOneShard(String domain, int count) {
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        List<String> emails = new ArrayList<>();
+        for (int i = 0; emails.size() < count; i++) {
+            String email = "user" + i + "@" + domain;
+            if (router.ownerOf(email) == 0 && router.getPreviousRing().ownerOf(email) == 0) {
+                emails.add(email);
+            }
+        }
+        return emails;
+    }
+
+    private static String create(String email) {
+        return "{\"op\":\"create\",\"name\":\"Batch User\",\"email\":\"" + email + "\"}";
+    }
+
+    private static UserBatch run(boolean atomic, String... operations) {
+        String body = "{\"atomic\":" + atomic + ",\"operations\":[" + String.join(",", operations) + "]}";
+        UserBatch batch = UserBatch.parse(new StringReader(body), GSON, 100, 20, 100);
+        batch.execute();
+        return batch;
+    }
+
+    private static void assertStatuses(UserBatch batch, int... expected) {
+        JsonArray results = batch.toJson().getAsJsonArray("results");
+        int[] statuses = new int[results.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = results.get(i).getAsJsonObject().get("status").getAsInt();
+        }
+        assertArrayEquals(expected, statuses, Arrays.toString(statuses));
+    }
+
+    @Test
+    void atomicBatchCommitsAndSeesItsOwnWrites() throws Exception {
+        List<String> emails = emailsOnOneShard("batch-commit.test", 2);
+
+        UserBatch batch = run(true, create(emails.get(0)), create(emails.get(1)),
+                              "{\"op\":\"getByEmail\",\"email\":\"" + emails.get(0) + "\"}");
+
+        assertEquals(200, batch.getStatus());
+        assertStatuses(batch, 201, 201, 200);
+        JsonObject json = batch.toJson();
+        assertTrue(json.get("committed").getAsBoolean());
+        assertEquals(json.getAsJsonArray("results").get(0).getAsJsonObject().getAsJsonObject("body").get("id"),
+                     json.getAsJsonArray("results").get(2).getAsJsonObject().getAsJsonObject("body").get("id"));
+        assertEquals(2, batch.getCreated().size());
+        assertEquals(2, ShardedDatabase.locate("@batch-commit.test").size());
+    }
+
+    @Test
+    void failedOperationRollsBackAnAtomicBatchAndTheRestAnswer424() throws Exception {
+        List<String> emails = emailsOnOneShard("batch-rollback.test", 2);
+
+        UserBatch batch = run(true, create(emails.get(0)), create(emails.get(1)), create(emails.get(0)));
+
+        assertEquals(409, batch.getStatus());
+        assertStatuses(batch, 424, 424, 409);
+        JsonObject json = batch.toJson();
+        assertFalse(json.get("committed").getAsBoolean());
+        assertEquals("Not applied: operation 2 failed",
+                     json.getAsJsonArray("results").get(0).getAsJsonObject().get("error").getAsString());
+        assertTrue(batch.getCreated().isEmpty());
+        assertTrue(ShardedDatabase.locate("@batch-rollback.test").isEmpty());
+    }
+
+    @Test
+    void invalidOperationStopsAnAtomicBatchBeforeAnyWrite() throws Exception {
+        List<String> emails = emailsOnOneShard("batch-invalid.test", 1);
+
+        UserBatch batch = run(true, "{\"op\":\"get\",\"id\":-1}", create(emails.get(0)));
+
+        assertEquals(400, batch.getStatus());
+        assertStatuses(batch, 400, 424);
+        assertTrue(ShardedDatabase.locate("@batch-invalid.test").isEmpty());
+    }
+
+    @Test
+    void nonAtomicBatchKeepsTheOperationsThatSucceeded() throws Exception {
+        List<String> emails = emailsOnOneShard("batch-independent.test", 2);
+
+        UserBatch batch = run(false, create(emails.get(0)), create(emails.get(0)), create(emails.get(1)),
+                              "{\"op\":\"get\",\"id\":2147483647}");
+
+        assertEquals(200, batch.getStatus());
+        assertStatuses(batch, 201, 409, 201, 404);
+        assertEquals(2, batch.getCreated().size());
+        assertEquals(2, ShardedDatabase.locate("@batch-independent.test").size());
+    }
+
+    @Test
+    void atomicBatchMayOnlyCreateOnOneShard() {
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        String first = "user0@batch-shards.test";
+        String other = null;
+        for (int i = 1; other == null; i++) {
+            String email = "user" + i + "@batch-shards.test";
+            if (router.ownerOf(email) != router.ownerOf(first)) {
+                other = email;
+            }
+        }
+        String body = "{\"atomic\":true,\"operations\":[" + create(first) + "," + create(other) + "]}";
+        assertThrows(IllegalArgumentException.class,
+                     () -> UserBatch.parse(new StringReader(body), GSON, 100, 20, 100));
+    }
+
+    @Test
+    void oversizedBatchIsRejectedWhileParsing() {
+        String body = "{\"operations\":[" + create("a@batch-size.test") + "," + create("b@batch-size.test") + "]}";
+        assertThrows(UserBatch.TooManyOperationsException.class,
+                     () -> UserBatch.parse(new StringReader(body), GSON, 1, 20, 100));
+    }
+}
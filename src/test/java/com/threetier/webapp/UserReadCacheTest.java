@@ -0,0 +1,86 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserReadCacheTest {
+
+    @Test
+    void writesInvalidateEntriesAndTheirEtags() {
+        UserReadCache cache = new UserReadCache(true, 10, 60_000);
+        long version = cache.currentVersion();
+        UserReadCache.Entry stored = cache.put("page:0", "[]", null, version);
+        assertEquals(cache.currentEtag("page:0"), stored.getEtag());
+        assertEquals("[]", cache.get("page:0").getBody());
+
+        cache.invalidate();
+        assertNull(cache.get("page:0"));
+        assertNotEquals(stored.getEtag(), cache.currentEtag("page:0"));
+        assertFalse(cache.isNotModified("page:0", stored.getEtag()));
+    }
+
+    @Test
+    void readStartedBeforeAWriteIsNotCached() {
+        UserReadCache cache = new UserReadCache(true, 10, 60_000);
+        long readVersion = cache.currentVersion();
+        cache.invalidate();
+
+        UserReadCache.Entry entry = cache.put("page:0", "[\"stale\"]", null, readVersion);
+        assertNotNull(entry.getEtag());
+        assertNull(cache.get("page:0"));
+    }
+
+    @Test
+    void conditionalGetMatchesEitherRepresentation() {
+        UserReadCache cache = new UserReadCache(true, 10, 60_000);
+        String etag = cache.put("page:0", "[]", null, cache.currentVersion()).getEtag();
+
+        assertTrue(cache.isNotModified("page:0", etag));
+        assertTrue(cache.isNotModified("page:0", CompressionFilter.gzipEtag(etag)));
+        assertTrue(cache.isNotModified("page:0", "\"other\", " + etag));
+        assertTrue(cache.isNotModified("page:0", "*"));
+        assertFalse(cache.isNotModified("page:0", "\"other\""));
+        assertFalse(cache.isNotModified("page:1", etag));
+        assertFalse(cache.isNotModified("page:0", null));
+    }
+
+    @Test
+    void entriesExpireAfterTheTtl() throws Exception {
+        UserReadCache cache = new UserReadCache(true, 10, 30);
+        String etag = cache.put("page:0", "[]", null, cache.currentVersion()).getEtag();
+        Thread.sleep(60);
+
+        assertFalse(cache.isNotModified("page:0", etag));
+        assertNull(cache.get("page:0"));
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvicted() {
+        UserReadCache cache = new UserReadCache(true, 2, 60_000);
+        long version = cache.currentVersion();
+        cache.put("a", "A", null, version);
+        cache.put("b", "B", null, version);
+        cache.get("a");
+        cache.put("c", "C", null, version);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    void disabledCacheStoresNothing() {
+        UserReadCache cache = new UserReadCache(false, 10, 60_000);
+        String etag = cache.put("page:0", "[]", null, cache.currentVersion()).getEtag();
+
+        assertNotNull(etag);
+        assertNull(cache.get("page:0"));
+        assertFalse(cache.isNotModified("page:0", etag));
+    }
+}
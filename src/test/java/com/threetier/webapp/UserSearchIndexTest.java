@@ -0,0 +1,110 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserSearchIndexTest {
+
+    private static UserSearchIndex index(User... users) {
+        UserSearchIndex index = new UserSearchIndex(100, 0, 0);
+        for (User user : users) {
+            index.add(user);
+        }
+        return index;
+    }
+
+    private static User user(int id, String name, String email) {
+        return new User(id, name, email, null);
+    }
+
+    private static List<Integer> ids(List<User> users) {
+        List<Integer> ids = new ArrayList<>();
+        for (User user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    void exactAndPrefixMatchesRankFirstThenById() {
+        UserSearchIndex index = index(
+            user(40, "Annabel Lee", "annabel@example.com"),
+            user(10, "Dr Ann Smith", "smith@example.com"),
+            user(30, "Joanna Ann", "jo@example.com"),
+            user(20, "Ann", "ann@example.com"),
+            user(50, "Bob Jones", "bob@example.com"));
+
+        // Exact name, then prefix, then word prefixes by id
+        assertEquals(List.of(20, 40, 10, 30), ids(index.search("ann", 10)));
+        assertEquals(List.of(20, 40), ids(index.search("ann", 2)));
+    }
+
+    @Test
+    void matchingIgnoresCaseAndCoversEmails() {
+        UserSearchIndex index = index(user(1, "Grace Hopper", "grace.hopper@navy.mil"),
+                                      user(2, "Alan Turing", "alan@bletchley.uk"));
+
+        assertEquals(List.of(1), ids(index.search("HOPPER", 10)));
+        assertEquals(List.of(2), ids(index.search("bletchley", 10)));
+        assertEquals(List.of(1), ids(index.search("  navy.mil ", 10)));
+        assertEquals(List.of(), ids(index.search("lovelace", 10)));
+        assertEquals(List.of(), ids(index.search("", 10)));
+    }
+
+    @Test
+    void shortQueriesOnlyMatchWordStarts() {
+        UserSearchIndex index = index(user(1, "Ada Lovelace", "ada@example.com"),
+                                      user(2, "Linda Park", "linda@example.com"));
+
+        // "da" is inside "linda" and "ada" but starts no word
+        assertEquals(List.of(), ids(index.search("da", 10)));
+        assertEquals(List.of(1), ids(index.search("lo", 10)));
+        // A prefix of the name (Linda) ranks above a later word (Lovelace)
+        assertEquals(List.of(2, 1), ids(index.search("l", 10)));
+        // Three characters match anywhere
+        assertEquals(List.of(2), ids(index.search("nda", 10)));
+    }
+
+    @Test
+    void sparseShuffledIdsAreIndexedOnce() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Gaps like those between sharded sequences
+            users.add(user(7 + i * 100_003, "Person " + i, "person" + i + "@example.com"));
+        }
+        Collections.shuffle(users, new Random(42));
+        UserSearchIndex index = new UserSearchIndex(100, 0, 0);
+        for (User user : users) {
+            index.add(user);
+        }
+        // Re-adding an indexed id does nothing
+        index.add(user(7, "Someone Else", "else@example.com"));
+
+        assertTrue(index.getStatsJson().contains("\"users\":5000"), index.getStatsJson());
+        assertEquals(List.of(7 + 4321 * 100_003), ids(index.search("person4321@", 10)));
+        assertEquals(List.of(), ids(index.search("someone", 10)));
+
+        List<User> found = index.search("person", 100);
+        assertEquals(100, found.size());
+        // All prefix matches, so the lowest ids win
+        for (int i = 0; i < found.size(); i++) {
+            assertEquals(7 + i * 100_003, found.get(i).getId());
+        }
+    }
+
+    @Test
+    void resultsAreCappedAtTheConfiguredMaximum() {
+        UserSearchIndex index = new UserSearchIndex(3, 0, 0);
+        for (int i = 1; i <= 10; i++) {
+            index.add(user(i, "Sam " + i, "sam" + i + "@example.com"));
+        }
+        assertEquals(List.of(1, 2, 3), ids(index.search("sam", 50)));
+    }
+}
@@ -0,0 +1,194 @@
+package com.threetier.webapp;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserWriteJournalTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        ShardedDatabase.start();
+    }
+
+    private static UserWriteJournal open(Path directory) throws IOException {
+        UserWriteJournal journal = new UserWriteJournal(directory, UserWriteJournal.Mode.FALLBACK, SEGMENT_BYTES,
+                                                        16L * SEGMENT_BYTES, false, 100, 100_000);
+        journal.open();
+        return journal;
+    }
+
+    private static User user(String domain, int i) {
+        return new User("User " + i, "user" + i + "@" + domain);
+    }
+
+    private static JsonObject stats(UserWriteJournal journal) {
+        return JsonParser.parseString(journal.getStatsJson()).getAsJsonObject();
+    }
+
+    /**
+     * Start replay and wait until nothing is pending
+     * @return the users the replayer reported as inserted
+     */
+    private static List<User> replay(UserWriteJournal journal) throws InterruptedException {
+        List<User> created = Collections.synchronizedList(new ArrayList<>());
+        journal.start(created::addAll);
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (stats(journal).get("pending").getAsLong() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "replay did not finish: " + journal.getStatsJson());
+            Thread.sleep(20);
+        }
+        return created;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "users-*.journal")) {
+            files.forEach(found::add);
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /**
+     * Offset of the index-th record in a segment holding user(domain, 0..)
+     */
+    private static int offsetOf(String domain, int index) {
+        int pos = 0;
+        for (int i = 0; i < index; i++) {
+            User user = user(domain, i);
+            pos += RecordSegments.HEADER_BYTES + 4 + user.getName().getBytes(StandardCharsets.UTF_8).length
+                   + user.getEmail().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return pos;
+    }
+
+    /**
+     * Overwrite one byte of a record's payload behind the journal's back
+     */
+    private static void damage(Path segment, int recordOffset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) 0xFF}), recordOffset + RecordSegments.HEADER_BYTES + 3);
+        }
+    }
+
+    @Test
+    void usersJournaledBeforeARestartAreReplayed(@TempDir Path directory) throws Exception {
+        UserWriteJournal journal = open(directory);
+        for (int i = 0; i < 20; i++) {
+            journal.append(user("journal-restart.test", i));
+        }
+        journal.close();
+
+        journal = open(directory);
+        try {
+            assertEquals(20, stats(journal).get("pending").getAsLong());
+            assertEquals(20, replay(journal).size());
+        } finally {
+            journal.close();
+        }
+        assertEquals(20, ShardedDatabase.locate("@journal-restart.test").size());
+
+        // The checkpoint keeps them from being replayed again
+        journal = open(directory);
+        try {
+            assertEquals(0, stats(journal).get("pending").getAsLong());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    void tornTailIsDroppedAndAppendsContinueAfterIt(@TempDir Path directory) throws Exception {
+        UserWriteJournal journal = open(directory);
+        for (int i = 0; i < 3; i++) {
+            journal.append(user("journal-torn.test", i));
+        }
+        journal.close();
+        damage(segments(directory).get(0), offsetOf("journal-torn.test", 2));
+
+        journal = open(directory);
+        try {
+            assertEquals(2, stats(journal).get("pending").getAsLong());
+            journal.append(user("journal-torn.test", 3));
+            assertEquals(3, replay(journal).size());
+        } finally {
+            journal.close();
+        }
+        assertEquals(List.of("user0@journal-torn.test", "user1@journal-torn.test", "user3@journal-torn.test"),
+                     new ArrayList<>(ShardedDatabase.locate("@journal-torn.test").keySet()));
+    }
+
+    @Test
+    void replayCrossesSegmentsAndDeletesFinishedOnes(@TempDir Path directory) throws Exception {
+        UserWriteJournal journal = open(directory);
+        try {
+            for (int i = 0; i < 3000; i++) {
+                journal.append(user("journal-rotate.test", i));
+            }
+            assertTrue(segments(directory).size() > 2, "records should span several segments");
+
+            assertEquals(3000, replay(journal).size());
+            assertEquals(1, segments(directory).size());
+        } finally {
+            journal.close();
+        }
+        assertEquals(3000, ShardedDatabase.locate("@journal-rotate.test").size());
+    }
+
+    @Test
+    void unreadableRecordInTheNewestSegmentIsSkipped(@TempDir Path directory) throws Exception {
+        UserWriteJournal journal = open(directory);
+        try {
+            for (int i = 0; i < 3; i++) {
+                journal.append(user("journal-damaged.test", i));
+            }
+            // Damaged after it was written, while the journal is open
+            damage(segments(directory).get(0), offsetOf("journal-damaged.test", 1));
+
+            List<User> created = new ArrayList<>(replay(journal));
+            assertEquals(1, created.size());
+            assertEquals("user0@journal-damaged.test", created.get(0).getEmail());
+            assertEquals(2, stats(journal).get("rejected").getAsLong());
+
+            // Replay goes on past the damage
+            journal.append(user("journal-damaged.test", 3));
+            long deadline = System.currentTimeMillis() + 20_000;
+            while (stats(journal).get("replayed").getAsLong() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline, "replay stalled: " + journal.getStatsJson());
+                Thread.sleep(20);
+            }
+        } finally {
+            journal.close();
+        }
+        assertEquals(List.of("user0@journal-damaged.test", "user3@journal-damaged.test"),
+                     new ArrayList<>(ShardedDatabase.locate("@journal-damaged.test").keySet()));
+
+        // The skip was checkpointed, so a restart does not find the damage again
+        journal = open(directory);
+        try {
+            assertEquals(0, stats(journal).get("pending").getAsLong());
+        } finally {
+            journal.close();
+        }
+    }
+}
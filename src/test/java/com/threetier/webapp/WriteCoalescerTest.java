@@ -0,0 +1,138 @@
+package com.threetier.webapp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteCoalescerTest {
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(16);
+    private WriteCoalescer coalescer;
+
+    @BeforeAll
+    static void startDatabases() throws Exception {
+        ShardedDatabase.start();
+    }
+
+    @AfterEach
+    void stop() {
+        callers.shutdownNow();
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+    }
+
+    /**
+     * Insert the users concurrently, so they share group commits
+     * @return each caller's created user, or its SQLException
+     */
+    private List<Object> insertConcurrently(List<User> users) throws Exception {
+        List<Future<User>> futures = new ArrayList<>();
+        for (User user : users) {
+            futures.add(callers.submit((Callable<User>) () -> coalescer.insert(user)));
+        }
+        List<Object> outcomes = new ArrayList<>();
+        for (Future<User> future : futures) {
+            try {
+                outcomes.add(future.get(20, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                outcomes.add(e.getCause());
+            }
+        }
+        return outcomes;
+    }
+
+    @Test
+    void everyCallerGetsItsOwnRow() throws Exception {
+        coalescer = new WriteCoalescer(50, 20_000, 1000, 20_000);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            users.add(new User("User " + i, "user" + i + "@coalesced.test"));
+        }
+
+        List<Object> outcomes = insertConcurrently(users);
+
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < outcomes.size(); i++) {
+            User created = (User) outcomes.get(i);
+            assertEquals(users.get(i).getEmail(), created.getEmail());
+            assertEquals(users.get(i).getName(), created.getName());
+            assertNotNull(created.getCreatedAt());
+            ids.add(created.getId());
+        }
+        assertEquals(100, ids.size());
+        assertEquals(100, ShardedDatabase.locate("@coalesced.test").size());
+    }
+
+    @Test
+    void onlyOneCallerPerEmailWins() throws Exception {
+        coalescer = new WriteCoalescer(50, 20_000, 1000, 20_000);
+        ShardedDatabase.update(DatabaseConnection.shardOf("taken@coalesced-dup.test"),
+                               "INSERT INTO users (name, email) VALUES ('Taken', 'taken@coalesced-dup.test')");
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            users.add(new User("Same " + i, "same@coalesced-dup.test"));
+        }
+        users.add(new User("Taken Again", "taken@coalesced-dup.test"));
+
+        List<Object> outcomes = insertConcurrently(users);
+
+        int created = 0;
+        for (Object outcome : outcomes) {
+            if (outcome instanceof User) {
+                created++;
+                assertEquals("same@coalesced-dup.test", ((User) outcome).getEmail());
+            } else {
+                assertEquals("23505", ((SQLException) outcome).getSQLState());
+            }
+        }
+        assertEquals(1, created);
+    }
+
+    @Test
+    void emailStillOnItsPreviousShardIsADuplicate() throws Exception {
+        coalescer = new WriteCoalescer(10, 0, 100, 20_000);
+        ShardRouter router = DatabaseConnection.getShardRouter();
+        String email = null;
+        for (int i = 0; email == null; i++) {
+            String candidate = "user" + i + "@coalesced-moving.test";
+            if (router.getPreviousRing().ownerOf(candidate) != router.ownerOf(candidate)) {
+                email = candidate;
+            }
+        }
+        ShardedDatabase.update(router.getPreviousRing().ownerOf(email),
+                               "INSERT INTO users (name, email) VALUES ('Not Moved', '" + email + "')");
+
+        String pending = email;
+        SQLException e = assertThrows(SQLException.class, () -> coalescer.insert(new User("Again", pending)));
+        assertEquals("23505", e.getSQLState());
+        assertEquals(1, ShardedDatabase.locate(email).get(email).size());
+    }
+
+    @Test
+    void insertsAfterShutdownAreRefused() {
+        coalescer = new WriteCoalescer(10, 0, 100, 20_000);
+        coalescer.shutdown();
+
+        SQLException e = assertThrows(SQLException.class,
+                                      () -> coalescer.insert(new User("Late", "late@coalesced.test")));
+        assertTrue(SqlErrorClassifier.classify(e).isUnavailable());
+    }
+}